@@ -0,0 +1,139 @@
+package server.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import server.services.event.Event;
+import server.services.event.EventJournal;
+import server.services.event.EventPayload;
+import server.services.event.JournalReader;
+import server.services.event.PresenceReplay;
+
+/**
+ * Measures how fast the EventJournal records events, and how fast a
+ * JournalReader replays them. A number of producer threads fire room join
+ * events at the journal as fast as they can, the way client threads would,
+ * with and without forcing each batch to disk.
+ *
+ * For every run, the benchmark reports the events written per second, the
+ * average number of events which shared a batch (and so a trip to the disk),
+ * how many events were dropped because the writer fell behind, and the
+ * events replayed per second.
+ *
+ * Usage: <code>EventJournalBenchmark [eventsPerProducer] [producers...]</code>
+ * (defaults to 200000 events for 1, 4 and 8 producers).
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class EventJournalBenchmark {
+
+	private static final int QUEUE_CAPACITY = 65536;
+
+	private static class BenchmarkEvent extends Event {
+		@Override
+		public String getName() {
+			return "ROOM_JOIN";
+		}
+	}
+
+	private static class JoinPayload extends EventPayload {
+		private String userName;
+
+		JoinPayload(String userName) {
+			this.userName = userName;
+		}
+
+		@Override
+		protected void fillProperties(Properties properties) {
+			properties.setProperty("userName", userName);
+			properties.setProperty("roomName", "lobby");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int eventsPerProducer = 200000;
+		int[] producerCounts = { 1, 4, 8 };
+		if (args.length > 0) {
+			eventsPerProducer = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			producerCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				producerCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.println("force  producers   events/s      batch    dropped   replay/s");
+		for (int producers : producerCounts) {
+			for (boolean force : new boolean[] { false, true }) {
+				run(producers, eventsPerProducer / 10, force);
+				long[] result = run(producers, eventsPerProducer, force);
+				System.out.println(String.format("%-6s %9d %10d %10.1f %10d %10d",
+						force, producers, result[0], result[1] / 10.0, result[2], result[3]));
+			}
+		}
+	}
+
+	/**
+	 * Writes and replays a fresh journal.
+	 *
+	 * @return The events written per second, ten times the average batch,
+	 * the number of events dropped, and the events replayed per second.
+	 */
+	private static long[] run(int producers, final int eventsPerProducer, boolean force)
+			throws IOException, InterruptedException {
+		File directory = Files.createTempDirectory("journal-bench").toFile();
+		final EventJournal journal = new EventJournal(directory, EventJournal.DEFAULT_SEGMENT_SIZE,
+				QUEUE_CAPACITY, force);
+		final Event event = new BenchmarkEvent();
+		final JoinPayload[] payloads = new JoinPayload[1024];
+		for (int i = 0; i < payloads.length; i++) {
+			payloads[i] = new JoinPayload("user" + i);
+		}
+		journal.start();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			threads[p] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < eventsPerProducer; i++) {
+						journal.eventOccured(event, payloads[i & (payloads.length - 1)]);
+					}
+				}
+			});
+			threads[p].start();
+		}
+		long began = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		journal.close();
+		long elapsed = System.nanoTime() - began;
+
+		began = System.nanoTime();
+		long replayed = JournalReader.replay(directory, new PresenceReplay());
+		long replayElapsed = System.nanoTime() - began;
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+		return new long[] {
+				journal.getWritten() * 1000000000L / Math.max(elapsed, 1),
+				journal.getWritten() * 10 / Math.max(journal.getBatches(), 1),
+				journal.getDropped(),
+				replayed * 1000000000L / Math.max(replayElapsed, 1) };
+	}
+
+}
@@ -0,0 +1,224 @@
+package server.main;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+
+/**
+ * Compares the lock-free GlobalInputMessageQueue, under each WaitStrategy,
+ * against the queue it replaced: three ConcurrentLinkedQueues behind
+ * synchronized <code>enqueue</code> and <code>dequeue</code> methods. A
+ * number of producer threads enqueue as fast as they can while a single
+ * consumer drains the queue, the same way client threads and the server's
+ * main loop share the real queue.
+ *
+ * For every queue, the benchmark reports the throughput and the 50th, 99th
+ * and 99.9th percentile of the time between enqueueing a message and the
+ * consumer dequeueing it.
+ *
+ * Usage: <code>GlobalQueueBenchmark [messagesPerProducer] [producers...]</code>
+ * (defaults to 200000 messages for 1, 4 and 8 producers).
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class GlobalQueueBenchmark {
+
+	private static final int WARMUP_ROUNDS = 2;
+
+	/**
+	 * The common operations of the queues being compared.
+	 */
+	private static abstract class QueueUnderTest {
+		abstract void enqueue(InputMessageQueue message);
+		abstract InputMessageQueue dequeue();
+		abstract void waitForMessages();
+	}
+
+	/**
+	 * The GlobalInputMessageQueue as it was before it moved to ring buffers.
+	 */
+	private static class LegacyQueue extends QueueUnderTest {
+		private Queue<InputMessageQueue> low = new ConcurrentLinkedQueue<InputMessageQueue>();
+		private Queue<InputMessageQueue> med = new ConcurrentLinkedQueue<InputMessageQueue>();
+		private Queue<InputMessageQueue> high = new ConcurrentLinkedQueue<InputMessageQueue>();
+		private volatile Thread consumer;
+
+		synchronized void enqueue(InputMessageQueue message) {
+			boolean unlockListener = isEmpty();
+			switch (message.getPriority()) {
+				case 0: low.add(message);
+						break;
+				default: med.add(message);
+						break;
+			}
+			if (unlockListener) {
+				Thread waiting = consumer;
+				if (waiting != null) {
+					LockSupport.unpark(waiting);
+				}
+			}
+		}
+
+		synchronized InputMessageQueue dequeue() {
+			try {
+				return high.remove();
+			} catch (NoSuchElementException noHigh) {
+				try {
+					return med.remove();
+				} catch (NoSuchElementException noMed) {
+					try {
+						return low.remove();
+					} catch (NoSuchElementException noLow) {}
+				}
+			}
+			return null;
+		}
+
+		void waitForMessages() {
+			consumer = Thread.currentThread();
+			while (isEmpty()) {
+				LockSupport.park(this);
+			}
+		}
+
+		synchronized boolean isEmpty() {
+			return low.isEmpty() && med.isEmpty() && high.isEmpty();
+		}
+	}
+
+	/**
+	 * The current GlobalInputMessageQueue.
+	 */
+	private static class RingBufferQueue extends QueueUnderTest {
+		private GlobalInputMessageQueue queue;
+
+		RingBufferQueue(WaitStrategy waitStrategy) {
+			queue = new GlobalInputMessageQueue(GlobalInputMessageQueue.DEFAULT_CAPACITY,
+					waitStrategy, new PriorityScheduler());
+		}
+
+		void enqueue(InputMessageQueue message) {
+			queue.enqueue(message);
+		}
+
+		InputMessageQueue dequeue() {
+			return queue.dequeue();
+		}
+
+		void waitForMessages() {
+			queue.waitForMessages();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int messagesPerProducer = 200000;
+		int[] producerCounts = { 1, 4, 8 };
+		if (args.length > 0) {
+			messagesPerProducer = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			producerCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				producerCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		String[] names = { "legacy", "ring/spin", "ring/yield", "ring/park" };
+		System.out.println("queue        producers     msgs/s    p50(us)    p99(us)  p99.9(us)");
+		for (int producers : producerCounts) {
+			for (int q = 0; q < names.length; q++) {
+				for (int i = 0; i < WARMUP_ROUNDS; i++) {
+					run(newQueue(q), producers, messagesPerProducer / 10);
+				}
+				long[] result = run(newQueue(q), producers, messagesPerProducer);
+				System.out.println(String.format("%-12s %9d %10d %10.1f %10.1f %10.1f",
+						names[q], producers, result[0], result[1] / 1000.0,
+						result[2] / 1000.0, result[3] / 1000.0));
+			}
+		}
+	}
+
+	private static QueueUnderTest newQueue(int index) {
+		switch (index) {
+		case 1:
+			return new RingBufferQueue(WaitStrategy.BUSY_SPIN);
+		case 2:
+			return new RingBufferQueue(WaitStrategy.YIELD);
+		case 3:
+			return new RingBufferQueue(WaitStrategy.PARK);
+		default:
+			return new LegacyQueue();
+		}
+	}
+
+	/**
+	 * Runs one measurement.
+	 *
+	 * @return The throughput in messages per second, followed by the 50th,
+	 * 99th and 99.9th percentile latencies in nanoseconds.
+	 */
+	private static long[] run(final QueueUnderTest queue, int producers,
+			final int messagesPerProducer) throws InterruptedException {
+		final int total = producers * messagesPerProducer;
+		final long[] latencies = new long[total];
+		final CountDownLatch start = new CountDownLatch(1);
+
+		Thread consumer = new Thread() {
+			public void run() {
+				int received = 0;
+				while (received < total) {
+					InputMessageQueue message = queue.dequeue();
+					if (message == null) {
+						queue.waitForMessages();
+					} else {
+						latencies[received++] = System.nanoTime() - message.getEnqueuedAt();
+					}
+				}
+			}
+		};
+		consumer.start();
+
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			threads[p] = new Thread() {
+				public void run() {
+					ProtocolMessage payload = new ProtocolMessage("ayt");
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < messagesPerProducer; i++) {
+						InputMessageQueue message = new InputMessageQueue(payload);
+						message.setEnqueuedAt(System.nanoTime());
+						queue.enqueue(message);
+					}
+				}
+			};
+			threads[p].start();
+		}
+
+		long began = System.nanoTime();
+		start.countDown();
+		consumer.join();
+		long elapsed = System.nanoTime() - began;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Arrays.sort(latencies);
+		return new long[] {
+				(long) (total / (elapsed / 1e9)),
+				latencies[(int) (total * 0.5)],
+				latencies[(int) (total * 0.99)],
+				latencies[(int) (total * 0.999)] };
+	}
+
+}
@@ -0,0 +1,139 @@
+package server.main;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import server.services.protocol.ProtocolMessage;
+
+/**
+ * Compares platform threads against virtual threads for the server's
+ * thread-per-client I/O model. Each simulated client gets a thread which
+ * blocks on its own bounded queue, the same way a ClientConnection's
+ * OutputWriter does, and a single sender thread fans messages out to every
+ * client the way the OutputQueueProcessor does.
+ *
+ * For every client count, the benchmark reports how long it took to start
+ * the client threads, how long it took to deliver every message, and how
+ * much heap the client threads held on to.
+ *
+ * Usage: <code>ThreadModeBenchmark [messagesPerClient] [clients...]</code>
+ * (defaults to 20 messages for 1000, 10000 and 50000 clients). Virtual
+ * threads are only measured if the running JVM supports them.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class ThreadModeBenchmark {
+
+	private static final int QUEUE_CAPACITY = 150;
+
+	private static class SimulatedClient implements Runnable {
+		private BlockingQueue<ProtocolMessage> outputQueue;
+		private int expectedMessages;
+		private CountDownLatch done;
+		private long bytesWritten;
+
+		SimulatedClient(int expectedMessages, CountDownLatch done) {
+			this.outputQueue = new LinkedBlockingQueue<ProtocolMessage>(QUEUE_CAPACITY);
+			this.expectedMessages = expectedMessages;
+			this.done = done;
+		}
+
+		public void run() {
+			try {
+				for (int i = 0; i < expectedMessages; i++) {
+					bytesWritten += outputQueue.take().getMessage().length();
+				}
+			} catch (InterruptedException e) {}
+			done.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int messagesPerClient = 20;
+		int[] clientCounts = { 1000, 10000, 50000 };
+		if (args.length > 0) {
+			messagesPerClient = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			clientCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				clientCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.println("mode      clients  start(ms)  deliver(ms)  msgs/s      heap/client(bytes)");
+		for (int clients : clientCounts) {
+			run(false, clients, messagesPerClient);
+			if (ThreadSpawner.isVirtualThreadSupported()) {
+				run(true, clients, messagesPerClient);
+			}
+		}
+		if (!ThreadSpawner.isVirtualThreadSupported()) {
+			System.out.println("Virtual threads are not supported by this JVM; only platform threads were measured.");
+		}
+	}
+
+	private static void run(boolean virtual, int clients, int messagesPerClient) throws InterruptedException {
+		ThreadSpawner.setVirtualThreads(virtual);
+		String mode = virtual ? "virtual " : "platform";
+		CountDownLatch done = new CountDownLatch(clients);
+		SimulatedClient[] simulatedClients = new SimulatedClient[clients];
+
+		long heapBefore = usedHeap();
+		long start = System.nanoTime();
+		int started = 0;
+		try {
+			for (; started < clients; started++) {
+				simulatedClients[started] = new SimulatedClient(messagesPerClient, done);
+				ThreadSpawner.newThread(simulatedClients[started], "OutputListener: user" + started).start();
+			}
+		} catch (OutOfMemoryError e) {
+			for (int i = 0; i < started; i++) {
+				for (int j = 0; j < messagesPerClient; j++) {
+					simulatedClients[i].outputQueue.offer(new ProtocolMessage("bye"));
+				}
+			}
+			done.await();
+			System.out.println(mode + "  " + pad(clients, 7) + "  failed after " + started
+					+ " threads: " + e.getMessage());
+			return;
+		}
+		long startElapsed = System.nanoTime() - start;
+		long heapPerClient = (usedHeap() - heapBefore) / clients;
+
+		ProtocolMessage message = new ProtocolMessage("room tell lobby someone hello everyone");
+		start = System.nanoTime();
+		for (int i = 0; i < messagesPerClient; i++) {
+			for (SimulatedClient client : simulatedClients) {
+				client.outputQueue.put(message);
+			}
+		}
+		done.await();
+		long deliverElapsed = System.nanoTime() - start;
+
+		long totalMessages = (long) clients * messagesPerClient;
+		System.out.println(mode + "  " + pad(clients, 7)
+				+ "  " + pad(startElapsed / 1000000, 9)
+				+ "  " + pad(deliverElapsed / 1000000, 11)
+				+ "  " + pad(totalMessages * 1000000000L / Math.max(deliverElapsed, 1), 10)
+				+ "  " + pad(heapPerClient, 8));
+		ThreadSpawner.setVirtualThreads(false);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static String pad(long value, int width) {
+		String s = String.valueOf(value);
+		while (s.length() < width) {
+			s = " " + s;
+		}
+		return s;
+	}
+
+}
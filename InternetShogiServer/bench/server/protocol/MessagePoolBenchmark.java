@@ -0,0 +1,126 @@
+package server.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.MessagePool;
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMap;
+import server.services.protocol.ProtocolMessage;
+import server.services.protocol.modules.AreYouThere;
+
+/**
+ * Measures the allocation rate of the path every line of client traffic
+ * takes through the server, with the MessagePool off and on. Each line is
+ * wrapped in a ProtocolMessage and an InputMessageQueue the way a
+ * ClientConnection does, parsed by the ProtocolMap, and its replies are
+ * taken apart the way the OutputQueueProcessor and the connections do,
+ * releasing everything at the same points they do.
+ *
+ * The traffic is a mix of <code>ayt</code> pings and messages for protocol
+ * keys with no module, which get an <code>invalid</code> reply, so that
+ * the benchmark needs nothing but the ProtocolMap. The line Strings a
+ * connection reads, and the text of each reply, are allocated either way.
+ *
+ * For each mode, the benchmark reports the time and the heap allocated per
+ * line, and the allocation rate at the measured speed. The allocation is
+ * only reported on JVMs which can measure it.
+ *
+ * Usage: <code>MessagePoolBenchmark [iterations]</code> (defaults to
+ * 2000000 lines).
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class MessagePoolBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	/* Keeps the JIT from discarding the replies as dead code. */
+	private static volatile int sink;
+
+	private static final String[] TRAFFIC = {
+		"ayt",
+		"ayt",
+		"game move 7g7f",
+		"ayt",
+		"clock 300 295",
+	};
+
+	public static void main(String[] args) throws Throwable {
+		int iterations = 2000000;
+		if (args.length > 0) {
+			iterations = Integer.parseInt(args[0]);
+		}
+
+		ProtocolMap protocolMap = new ProtocolMap();
+		protocolMap.loadProtocolModule(new AreYouThere(), new Properties());
+
+		String[] names = { "unpooled", "pooled" };
+		boolean[] pooled = { false, true };
+		System.out.println("mode        ns/line  bytes/line      MB/s");
+		for (int m = 0; m < names.length; m++) {
+			MessagePool.configure(pooled[m], false, MessagePool.DEFAULT_CAPACITY);
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				run(protocolMap, iterations / 10);
+			}
+			double[] result = run(protocolMap, iterations);
+			String bytes = "n/a";
+			String rate = "n/a";
+			if (result[1] >= 0) {
+				bytes = String.format("%.0f", result[1]);
+				rate = String.format("%.0f", result[1] / result[0] * 1e9 / (1 << 20));
+			}
+			System.out.println(String.format("%-10s %8.1f %11s %9s", names[m], result[0], bytes, rate));
+		}
+		MessagePool.configure(false, false, 0);
+	}
+
+	/**
+	 * Runs one measurement.
+	 *
+	 * @return The nanoseconds and the bytes allocated per line, or -1 for
+	 * the bytes if they cannot be measured.
+	 */
+	private static double[] run(ProtocolMap protocolMap, int iterations) {
+		long allocatedBefore = allocatedBytes();
+		long began = System.nanoTime();
+		int result = 0;
+		for (int i = 0; i < iterations; i++) {
+			ProtocolMessage input = MessagePool.acquireMessage(null, TRAFFIC[i % TRAFFIC.length]);
+			InputMessageQueue inputQueue = MessagePool.acquireInputQueue(input, 1);
+			OutputMessageQueue output = protocolMap.parseMessages(inputQueue);
+			ProtocolMessage reply = output.dequeue();
+			while (reply != null) {
+				result += reply.getEncoded().length;
+				MessagePool.release(reply);
+				reply = output.dequeue();
+			}
+			MessagePool.release(output);
+		}
+		long elapsed = System.nanoTime() - began;
+		long allocatedAfter = allocatedBytes();
+		sink = result;
+		return new double[] {
+				(double) elapsed / iterations,
+				(allocatedBefore < 0) ? -1 : (double) (allocatedAfter - allocatedBefore) / iterations };
+	}
+
+	/**
+	 * Get the number of bytes the current thread has allocated so far, or -1
+	 * if the JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (sunThreads.isThreadAllocatedMemorySupported()) {
+				return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,231 @@
+package server.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import server.services.protocol.MessageBuilder;
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.User;
+
+/**
+ * Compares the LinkedList MessageQueues used to be built on against the
+ * current chunked MessageQueue, on the replies with the largest fan-out
+ * the server sends: a <code>room tell</code> broadcast to every occupant of
+ * a room, and the <code>room info</code> reply listing every occupant. Each
+ * reply is put together the way RoomManager does it, appended to the
+ * ProtocolMap's combined output the way <code>parseMessages</code> does,
+ * and then taken apart again the way the OutputQueueProcessor does.
+ *
+ * For each reply and each queue, the benchmark reports the time and the
+ * heap allocated per reply. The allocation is only reported on JVMs which
+ * can measure it.
+ *
+ * Usage: <code>MessageQueueBenchmark [occupants] [iterations]</code>
+ * (defaults to a room of 1000 occupants, and 20000 replies).
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class MessageQueueBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	/* Keeps the JIT from discarding the replies as dead code. */
+	private static volatile int sink;
+
+	private static User[] occupants;
+	private static String[] occupantNames;
+
+	/**
+	 * A way of building, combining and draining a reply.
+	 */
+	private static abstract class Reply {
+		abstract int reply();
+	}
+
+	/**
+	 * The MessageQueue operations, as they were over a LinkedList.
+	 */
+	private static class LinkedListQueue {
+		private LinkedList<ProtocolMessage> messageQueue = new LinkedList<ProtocolMessage>();
+
+		void enqueue(ProtocolMessage message) {
+			messageQueue.add(message);
+		}
+
+		ProtocolMessage dequeue() {
+			return messageQueue.poll();
+		}
+
+		void append(LinkedListQueue messages) {
+			messageQueue.addAll(messages.messageQueue);
+		}
+
+		void broadcast(ProtocolMessage message, User... recipients) {
+			message.getEncoded();
+			for (User recipient : recipients) {
+				messageQueue.add(message.addressedTo(recipient));
+			}
+		}
+
+		void setUser(User user) {
+			Iterator<ProtocolMessage> i = messageQueue.iterator();
+			while (i.hasNext()) {
+				i.next().setUser(user);
+			}
+		}
+
+		int drain() {
+			int result = 0;
+			ProtocolMessage message = dequeue();
+			while (message != null) {
+				result += message.getEncoded().length;
+				message = dequeue();
+			}
+			return result;
+		}
+	}
+
+	private static ProtocolMessage tellMessage() {
+		return MessageBuilder.forThread("room").append("tell").append("lobby")
+				.append("amy").append("anyone up for a game").build();
+	}
+
+	private static ProtocolMessage[] infoMessages() {
+		MessageBuilder occupantsLine = MessageBuilder.forThread("room").append("info occupants");
+		for (String name : occupantNames) {
+			occupantsLine.append(name);
+		}
+		return new ProtocolMessage[] {
+				new ProtocolMessage("room info name lobby"),
+				new ProtocolMessage("room info description The main lobby"),
+				occupantsLine.build(),
+				new ProtocolMessage("room info owners admin") };
+	}
+
+	private static class LinkedListTell extends Reply {
+		int reply() {
+			LinkedListQueue reply = new LinkedListQueue();
+			reply.broadcast(tellMessage(), occupants);
+			LinkedListQueue finalOutput = new LinkedListQueue();
+			finalOutput.append(reply);
+			return finalOutput.drain();
+		}
+	}
+
+	private static class ChunkedTell extends Reply {
+		int reply() {
+			OutputMessageQueue reply = new OutputMessageQueue();
+			reply.broadcast(tellMessage(), occupants);
+			OutputMessageQueue finalOutput = new OutputMessageQueue();
+			finalOutput.append(reply);
+			return drain(finalOutput);
+		}
+	}
+
+	private static class LinkedListInfo extends Reply {
+		int reply() {
+			LinkedListQueue reply = new LinkedListQueue();
+			for (ProtocolMessage message : infoMessages()) {
+				reply.enqueue(message);
+			}
+			reply.setUser(occupants[0]);
+			LinkedListQueue finalOutput = new LinkedListQueue();
+			finalOutput.append(reply);
+			return finalOutput.drain();
+		}
+	}
+
+	private static class ChunkedInfo extends Reply {
+		int reply() {
+			OutputMessageQueue reply = new OutputMessageQueue();
+			for (ProtocolMessage message : infoMessages()) {
+				reply.enqueue(message);
+			}
+			reply.setUser(occupants[0]);
+			OutputMessageQueue finalOutput = new OutputMessageQueue();
+			finalOutput.append(reply);
+			return drain(finalOutput);
+		}
+	}
+
+	private static int drain(OutputMessageQueue queue) {
+		int result = 0;
+		ProtocolMessage message = queue.dequeue();
+		while (message != null) {
+			result += message.getEncoded().length;
+			message = queue.dequeue();
+		}
+		return result;
+	}
+
+	public static void main(String[] args) {
+		int roomSize = 1000;
+		int iterations = 20000;
+		if (args.length > 0) {
+			roomSize = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			iterations = Integer.parseInt(args[1]);
+		}
+
+		// Users can only be made by the UserManager; the recipients are never looked at.
+		occupants = new User[roomSize];
+		occupantNames = new String[roomSize];
+		for (int i = 0; i < roomSize; i++) {
+			occupantNames[i] = "player" + i;
+		}
+
+		String[] names = { "tell/linked", "tell/chunked", "info/linked", "info/chunked" };
+		Reply[] replies = { new LinkedListTell(), new ChunkedTell(), new LinkedListInfo(), new ChunkedInfo() };
+		System.out.println("reply (" + roomSize + " occupants)   us/reply   bytes/reply");
+		for (int r = 0; r < replies.length; r++) {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				run(replies[r], iterations / 10);
+			}
+			double[] result = run(replies[r], iterations);
+			System.out.println(String.format("%-24s %10.2f %13s", names[r], result[0] / 1000,
+					(result[1] < 0) ? "n/a" : String.format("%.0f", result[1])));
+		}
+	}
+
+	/**
+	 * Runs one measurement.
+	 *
+	 * @return The nanoseconds and the bytes allocated per reply, or -1 for
+	 * the bytes if they cannot be measured.
+	 */
+	private static double[] run(Reply reply, int iterations) {
+		long allocatedBefore = allocatedBytes();
+		long began = System.nanoTime();
+		int result = 0;
+		for (int i = 0; i < iterations; i++) {
+			result += reply.reply();
+		}
+		long elapsed = System.nanoTime() - began;
+		long allocatedAfter = allocatedBytes();
+		sink = result;
+		return new double[] {
+				(double) elapsed / iterations,
+				(allocatedBefore < 0) ? -1 : (double) (allocatedAfter - allocatedBefore) / iterations };
+	}
+
+	/**
+	 * Get the number of bytes the current thread has allocated so far, or -1
+	 * if the JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (sunThreads.isThreadAllocatedMemorySupported()) {
+				return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,164 @@
+package server.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import server.services.protocol.ProtocolMessage;
+
+/**
+ * Compares the way ProtocolMessages used to be parsed, re-splitting the whole
+ * line with <code>split(" ")</code> on every call, against the current
+ * single pass over cached token offsets. Both paths parse the same mix of
+ * client traffic, and access every message the way the server does: the
+ * protocol key is read once to pick the message's priority and once to
+ * find its ProtocolModule, and then the module reads the payload.
+ *
+ * For each path, the benchmark reports the time and the heap allocated per
+ * message. The allocation is only reported on JVMs which can measure it.
+ *
+ * Usage: <code>ProtocolMessageBenchmark [iterations]</code> (defaults to
+ * 2000000 messages).
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class ProtocolMessageBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	/* Keeps the JIT from discarding the parsing as dead code. */
+	private static volatile int sink;
+
+	/* Roughly what a busy lobby sends: mostly chat, some room traffic and pings. */
+	private static final String[] TRAFFIC = {
+		"room tell lobby anyone up for a game of shogi tonight",
+		"room tell lobby gg",
+		"tell bob are you still playing the ranked match",
+		"ayt",
+		"room join lobby",
+		"room tell lobby I think the opening was fine but the endgame was a mess",
+		"room list",
+		"room info lobby",
+		"tell amy hi",
+		"room leave lobby",
+	};
+
+	/**
+	 * A way of reading a message, returning something derived from every
+	 * token so the work cannot be optimized away.
+	 */
+	private static abstract class ParsePath {
+		abstract int parse(String line);
+	}
+
+	/**
+	 * The parsing ProtocolMessage did before it cached its token offsets,
+	 * used the way RoomManager used it.
+	 */
+	private static class SplitPath extends ParsePath {
+		private static String getProtocolKey(String message) {
+			return (message.length() == 0) ? "" : message.split(" ")[0];
+		}
+
+		private static String[] getTokenizedPayload(String message) {
+			if (message.split(" ").length < 2)
+				return new String[0];
+			String[] payload = new String[message.split(" ").length - 1];
+			System.arraycopy(message.split(" "), 1, payload, 0, payload.length);
+			return payload;
+		}
+
+		int parse(String line) {
+			String message = new ProtocolMessage(line).getMessage();
+			int result = getProtocolKey(message).length();
+			result += getProtocolKey(message).hashCode();
+			String[] payload = getTokenizedPayload(message);
+			if (payload.length > 1 && payload[0].equals("tell")) {
+				result += getTokenizedPayload(message)[1].length();
+				for (int i = 2; i < getTokenizedPayload(message).length; i++) {
+					result += getTokenizedPayload(message)[i].length();
+				}
+			} else if (payload.length > 0) {
+				result += payload[payload.length - 1].length();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * The current parsing, over cached token offsets.
+	 */
+	private static class OffsetPath extends ParsePath {
+		int parse(String line) {
+			ProtocolMessage message = new ProtocolMessage(line);
+			int result = message.getProtocolKey().length();
+			result += message.getProtocolKey().hashCode();
+			int tokens = message.getTokenCount();
+			if (tokens > 2 && message.tokenEquals(1, "tell")) {
+				result += message.getToken(2).length();
+				for (int i = 3; i < message.getTokenCount(); i++) {
+					result += message.getToken(i).length();
+				}
+			} else if (tokens > 1) {
+				result += message.getToken(tokens - 1).length();
+			}
+			return result;
+		}
+	}
+
+	public static void main(String[] args) {
+		int iterations = 2000000;
+		if (args.length > 0) {
+			iterations = Integer.parseInt(args[0]);
+		}
+
+		String[] names = { "split", "offsets" };
+		ParsePath[] paths = { new SplitPath(), new OffsetPath() };
+		System.out.println("path         ns/msg   bytes/msg");
+		for (int p = 0; p < paths.length; p++) {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				run(paths[p], iterations / 10);
+			}
+			double[] result = run(paths[p], iterations);
+			System.out.println(String.format("%-10s %8.1f %11s", names[p], result[0],
+					(result[1] < 0) ? "n/a" : String.format("%.0f", result[1])));
+		}
+	}
+
+	/**
+	 * Runs one measurement.
+	 *
+	 * @return The nanoseconds and the bytes allocated per message, or -1 for
+	 * the bytes if they cannot be measured.
+	 */
+	private static double[] run(ParsePath path, int iterations) {
+		long allocatedBefore = allocatedBytes();
+		long began = System.nanoTime();
+		int result = 0;
+		for (int i = 0; i < iterations; i++) {
+			result += path.parse(TRAFFIC[i % TRAFFIC.length]);
+		}
+		long elapsed = System.nanoTime() - began;
+		long allocatedAfter = allocatedBytes();
+		sink = result;
+		return new double[] {
+				(double) elapsed / iterations,
+				(allocatedBefore < 0) ? -1 : (double) (allocatedAfter - allocatedBefore) / iterations };
+	}
+
+	/**
+	 * Get the number of bytes the current thread has allocated so far, or -1
+	 * if the JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (sunThreads.isThreadAllocatedMemorySupported()) {
+				return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+}
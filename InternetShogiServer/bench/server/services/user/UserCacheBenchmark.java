@@ -0,0 +1,219 @@
+package server.services.user;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the UserCache against a server with a million registered
+ * accounts. Lookups follow a Zipf distribution, as a few players are far
+ * more active than the rest, and every so often a scan looks up a long run
+ * of accounts nobody else asks for, as a ranking or a listing of every
+ * player would.
+ *
+ * For comparison, it first loads every account up front, as the UserManager
+ * used to, and replays the same lookups through a plain LRU cache of the
+ * same size. For every run, the benchmark reports the lookups per second,
+ * the hit rate, the number of users loaded (each of which would be a query
+ * to the database), the evictions, and the heap the users take up.
+ *
+ * Usage: <code>UserCacheBenchmark [accounts] [capacity] [threads...]</code>
+ * (defaults to 1000000 accounts, a capacity of 10000, and 1 and 4 threads).
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class UserCacheBenchmark {
+
+	private static final int LOOKUPS_PER_THREAD = 2000000;
+	private static final double ZIPF_EXPONENT = 0.99;
+	private static final int SCAN_INTERVAL = 100000;
+	private static final int SCAN_LENGTH = 20000;
+
+	private static String[] names;
+
+	/**
+	 * Stands in for the database, counting the users it is asked for.
+	 */
+	private static class CountingLoader implements UserCache.Loader {
+		private AtomicLong loads = new AtomicLong();
+
+		public User load(String userName) {
+			loads.incrementAndGet();
+			return new User(userName, new UserInformation(userName));
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int accounts = 1000000;
+		int capacity = 10000;
+		int[] threadCounts = { 1, 4 };
+		if (args.length > 0) {
+			accounts = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			capacity = Integer.parseInt(args[1]);
+		}
+		if (args.length > 2) {
+			threadCounts = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				threadCounts[i - 2] = Integer.parseInt(args[i]);
+			}
+		}
+
+		names = new String[accounts];
+		for (int i = 0; i < accounts; i++) {
+			names[i] = "user" + i;
+		}
+		int maxThreads = 1;
+		for (int threads : threadCounts) {
+			maxThreads = Math.max(maxThreads, threads);
+		}
+		int[][] lookups = new int[maxThreads][];
+		double[] distribution = zipf(accounts);
+		for (int t = 0; t < maxThreads; t++) {
+			lookups[t] = generate(distribution, new Random(t), accounts);
+		}
+
+		System.out.println(accounts + " accounts, " + capacity + " cached, "
+				+ LOOKUPS_PER_THREAD + " lookups per thread");
+		System.out.println("cache      threads  lookups/s   hit rate      loads  evictions    heap MB");
+		runEager(accounts);
+		runLru(capacity, lookups[0]);
+		for (int threads : threadCounts) {
+			run(capacity, threads, lookups);
+		}
+	}
+
+	/**
+	 * Loads every account up front, the way the UserManager used to.
+	 */
+	private static void runEager(int accounts) {
+		long heap = usedHeap();
+		long began = System.nanoTime();
+		ConcurrentHashMap<String, User> table = new ConcurrentHashMap<String, User>();
+		for (String name : names) {
+			table.put(name, new User(name, new UserInformation(name)));
+		}
+		long elapsed = System.nanoTime() - began;
+		heap = usedHeap() - heap;
+		System.out.println(String.format("%-10s %7s %10s %10s %10d %10d %10.1f   (%d ms to load)",
+				"eager", "-", "-", "100.0%", accounts, 0, heap / 1048576.0, elapsed / 1000000));
+		table.clear();
+	}
+
+	/**
+	 * Replays the lookups of one thread through an LRU cache of the same size.
+	 */
+	private static void runLru(final int capacity, int[] lookups) {
+		LinkedHashMap<String, User> lru = new LinkedHashMap<String, User>(capacity * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+				return size() > capacity;
+			}
+		};
+		long loads = 0;
+		long began = System.nanoTime();
+		for (int account : lookups) {
+			String name = names[account];
+			if (lru.get(name) == null) {
+				loads++;
+				lru.put(name, new User(name, new UserInformation(name)));
+			}
+		}
+		long elapsed = System.nanoTime() - began;
+		System.out.println(String.format("%-10s %7d %10d %9.1f%% %10d %10d %10s",
+				"lru", 1, lookups.length * 1000000000L / Math.max(elapsed, 1),
+				100.0 * (lookups.length - loads) / lookups.length, loads,
+				Math.max(loads - capacity, 0), "-"));
+	}
+
+	private static void run(int capacity, int threads, final int[][] lookups) throws InterruptedException {
+		CountingLoader loader = new CountingLoader();
+		final UserCache cache = new UserCache(capacity, 0, loader);
+		long heap = usedHeap();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int[] accounts = lookups[t];
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int account : accounts) {
+						cache.get(names[account]);
+					}
+				}
+			});
+			workers[t].start();
+		}
+		long began = System.nanoTime();
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - began;
+		heap = usedHeap() - heap;
+		long total = cache.getHits() + cache.getMisses();
+		System.out.println(String.format("%-10s %7d %10d %9.1f%% %10d %10d %10.1f",
+				"w-tinylfu", threads, total * 1000000000L / Math.max(elapsed, 1),
+				100.0 * cache.getHits() / Math.max(total, 1), loader.loads.get(),
+				cache.getEvictions(), heap / 1048576.0));
+	}
+
+	/**
+	 * Computes the cumulative Zipf distribution over the accounts.
+	 */
+	private static double[] zipf(int accounts) {
+		double[] cumulative = new double[accounts];
+		double sum = 0;
+		for (int i = 0; i < accounts; i++) {
+			sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+			cumulative[i] = sum;
+		}
+		for (int i = 0; i < accounts; i++) {
+			cumulative[i] /= sum;
+		}
+		return cumulative;
+	}
+
+	/**
+	 * Draws the accounts one thread looks up, with a scan every so often.
+	 * Popular accounts are spread over the whole range, not bunched at the
+	 * start, so scans do not favour them.
+	 */
+	private static int[] generate(double[] distribution, Random random, int accounts) {
+		int[] lookups = new int[LOOKUPS_PER_THREAD];
+		int scanStart = 0;
+		for (int i = 0; i < lookups.length; i++) {
+			if (i % SCAN_INTERVAL < SCAN_LENGTH && i >= SCAN_INTERVAL) {
+				lookups[i] = (scanStart++) % accounts;
+				continue;
+			}
+			int rank = Arrays.binarySearch(distribution, random.nextDouble());
+			if (rank < 0) {
+				rank = -rank - 1;
+			}
+			lookups[i] = (int) ((Math.min(rank, accounts - 1) * 2654435761L) % accounts);
+		}
+		return lookups;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -0,0 +1,238 @@
+package server.main;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.MessageQueue;
+
+/**
+ * Decides whether new input from the clients is let into the server, or shed
+ * because the server is already too far behind to answer it in good time.
+ * Two signals are watched for each priority level:
+ *
+ * <ul>
+ * <li>The depth: how many input message queues of any priority have been
+ * let in but have not started being parsed yet, whether they are still in
+ * the GlobalInputMessageQueue or waiting in a Dispatcher lane.</li>
+ * <li>The age: how long the most recent input of the level waited between
+ * being queued and being parsed.</li>
+ * </ul>
+ *
+ * Each level may have its own limit for either; a limit of 0 turns it off.
+ * Once a level passes one of its limits, new input of that priority is shed
+ * until it is back under. High priority input, like game moves, is never
+ * shed for either. Input of any priority which was let in but found its
+ * level of the GlobalInputMessageQueue full is shed as well, and given back
+ * through <code>rejected</code>. The number of shed messages is counted per
+ * level and per reason.
+ *
+ * Any thread may ask for admission, and any thread may report that input
+ * has started being parsed; nothing here locks.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class AdmissionController {
+
+	/**
+	 * The default depth limits of the low, medium and high priority levels.
+	 */
+	public static final int[] DEFAULT_MAX_DEPTH = { 1024, 8192, 0 };
+
+	/**
+	 * The default age limits, in milliseconds, of the low, medium and high
+	 * priority levels.
+	 */
+	public static final long[] DEFAULT_MAX_AGE = { 250, 2000, 0 };
+
+	private static final int LEVELS = MessageQueue.MAX_PRIORITY + 1;
+
+	private int[] maxDepth;
+	private long[] maxAgeNanos;
+
+	private AtomicIntegerArray pending;
+	private AtomicLongArray recentAge;
+	private AtomicLongArray shedByDepth;
+	private AtomicLongArray shedByAge;
+	private AtomicLongArray shedByCapacity;
+	private AtomicLongArray admitted;
+
+	/**
+	 * Constructs an AdmissionController with the default limits.
+	 */
+	public AdmissionController() {
+		this(DEFAULT_MAX_DEPTH, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Constructs a new AdmissionController. The limits of the highest
+	 * priority level are ignored, since it is never shed.
+	 *
+	 * @param maxDepth The depth limit of each priority level, indexed by
+	 * priority, or 0 for none.
+	 * @param maxAge The age limit of each priority level in milliseconds,
+	 * indexed by priority, or 0 for none.
+	 */
+	public AdmissionController(int[] maxDepth, long[] maxAge) {
+		this.maxDepth = new int[LEVELS];
+		this.maxAgeNanos = new long[LEVELS];
+		for (int i = 0; i < MessageQueue.MAX_PRIORITY; i++) {
+			this.maxDepth[i] = maxDepth[i];
+			this.maxAgeNanos[i] = maxAge[i] * 1000000L;
+		}
+		pending = new AtomicIntegerArray(LEVELS);
+		recentAge = new AtomicLongArray(LEVELS);
+		shedByDepth = new AtomicLongArray(LEVELS);
+		shedByAge = new AtomicLongArray(LEVELS);
+		shedByCapacity = new AtomicLongArray(LEVELS);
+		admitted = new AtomicLongArray(LEVELS);
+	}
+
+	/**
+	 * Decides whether an input message queue may be let in. If it is, it
+	 * counts towards the depth until <code>started</code> is called for it.
+	 *
+	 * @param messages The input from a client.
+	 * @return <code>true</code> if the input was let in, and <code>false</code>
+	 * if it must be shed.
+	 */
+	public boolean admit(InputMessageQueue messages) {
+		int priority = levelOf(messages);
+		if (maxDepth[priority] > 0 && getDepth() >= maxDepth[priority]) {
+			shedByDepth.incrementAndGet(priority);
+			return false;
+		}
+		if (maxAgeNanos[priority] > 0 && pending.get(priority) > 0
+				&& recentAge.get(priority) > maxAgeNanos[priority]) {
+			shedByAge.incrementAndGet(priority);
+			return false;
+		}
+		admitted(messages);
+		return true;
+	}
+
+	/**
+	 * Counts an input message queue which is let in regardless of the
+	 * limits, such as input the server generates for itself.
+	 *
+	 * @param messages The input which was let in.
+	 */
+	public void admitted(InputMessageQueue messages) {
+		int priority = levelOf(messages);
+		pending.incrementAndGet(priority);
+		admitted.incrementAndGet(priority);
+	}
+
+	/**
+	 * Sheds an input message queue which was let in, but could not be queued
+	 * because its priority level of the GlobalInputMessageQueue was full. It
+	 * no longer counts towards the depth, nor as admitted.
+	 *
+	 * @param messages The input which was let in.
+	 */
+	public void rejected(InputMessageQueue messages) {
+		int priority = levelOf(messages);
+		pending.decrementAndGet(priority);
+		admitted.decrementAndGet(priority);
+		shedByCapacity.incrementAndGet(priority);
+	}
+
+	/**
+	 * Called once an input message queue which was let in starts being
+	 * parsed. Its wait becomes the age of its priority level.
+	 *
+	 * @param messages The input about to be parsed.
+	 * @param now The current value of <code>System.nanoTime()</code>.
+	 */
+	public void started(InputMessageQueue messages, long now) {
+		int priority = levelOf(messages);
+		pending.decrementAndGet(priority);
+		recentAge.set(priority, now - messages.getEnqueuedAt());
+	}
+
+	private static int levelOf(InputMessageQueue messages) {
+		return Math.max(0, Math.min(messages.getPriority(), MessageQueue.MAX_PRIORITY));
+	}
+
+	/**
+	 * Get the number of input message queues of all priorities which have
+	 * been let in, but have not started being parsed yet.
+	 *
+	 * @return The current depth.
+	 */
+	public int getDepth() {
+		int depth = 0;
+		for (int i = 0; i < LEVELS; i++) {
+			depth += pending.get(i);
+		}
+		return depth;
+	}
+
+	/**
+	 * Get how long the most recently parsed input of a priority level had
+	 * waited.
+	 *
+	 * @param priority The priority level.
+	 * @return The age of the level, in nanoseconds.
+	 */
+	public long getAge(int priority) {
+		return recentAge.get(priority);
+	}
+
+	/**
+	 * Get the number of input message queues of a priority level which were
+	 * let in.
+	 *
+	 * @param priority The priority level.
+	 * @return The number of admitted input message queues.
+	 */
+	public long getAdmitted(int priority) {
+		return admitted.get(priority);
+	}
+
+	/**
+	 * Get the number of input message queues of a priority level which were
+	 * shed because the server had too much input queued.
+	 *
+	 * @param priority The priority level.
+	 * @return The number of input message queues shed for depth.
+	 */
+	public long getShedByDepth(int priority) {
+		return shedByDepth.get(priority);
+	}
+
+	/**
+	 * Get the number of input message queues of a priority level which were
+	 * shed because input of that priority had been waiting too long.
+	 *
+	 * @param priority The priority level.
+	 * @return The number of input message queues shed for age.
+	 */
+	public long getShedByAge(int priority) {
+		return shedByAge.get(priority);
+	}
+
+	/**
+	 * Get the number of input message queues of a priority level which were
+	 * shed because that level of the GlobalInputMessageQueue was full.
+	 *
+	 * @param priority The priority level.
+	 * @return The number of input message queues shed for capacity.
+	 */
+	public long getShedByCapacity(int priority) {
+		return shedByCapacity.get(priority);
+	}
+
+	/**
+	 * Get the total number of input message queues of a priority level which
+	 * were shed.
+	 *
+	 * @param priority The priority level.
+	 * @return The number of shed input message queues.
+	 */
+	public long getShed(int priority) {
+		return shedByDepth.get(priority) + shedByAge.get(priority) + shedByCapacity.get(priority);
+	}
+
+}
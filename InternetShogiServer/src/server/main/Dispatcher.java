@@ -0,0 +1,198 @@
+package server.main;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.ProtocolManager;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.User;
+
+/**
+ * Spreads the parsing of input messages over a fixed pool of worker lanes,
+ * so that the server is no longer limited to a single core. Every User is
+ * always assigned to the same lane, which processes its InputMessageQueues
+ * one at a time in the order they were dispatched; a User's messages are
+ * therefore still parsed (and replied to) in the order they were received,
+ * while different Users are parsed in parallel. A lane does not wait for
+ * the replies of AsyncProtocolModules; the ProtocolManager holds back the
+ * User's later messages until they are delivered, and the lane moves on
+ * to other Users.
+ *
+ * ProtocolModules which are not thread-safe are serialized by the
+ * ProtocolMap, so they never see two messages at once no matter which lanes
+ * the messages were parsed on.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class Dispatcher {
+
+	/**
+	 * A single worker thread and the queue of InputMessageQueues waiting for it.
+	 */
+	private class Lane implements Runnable {
+		private Queue<InputMessageQueue> queue;
+		private AtomicInteger backlog;
+		private AtomicLong processed;
+		private volatile Thread worker;
+
+		Lane() {
+			queue = new ConcurrentLinkedQueue<InputMessageQueue>();
+			backlog = new AtomicInteger();
+			processed = new AtomicLong();
+		}
+
+		void enqueue(InputMessageQueue messages) {
+			queue.add(messages);
+			if (backlog.getAndIncrement() == 0) {
+				Thread waiting = worker;
+				if (waiting != null) {
+					LockSupport.unpark(waiting);
+				}
+			}
+		}
+
+		public void run() {
+			worker = Thread.currentThread();
+			while (alive) {
+				InputMessageQueue messages = queue.poll();
+				if (messages == null) {
+					LockSupport.park(this);
+					continue;
+				}
+				if (admission != null) {
+					admission.started(messages, System.nanoTime());
+				}
+				try {
+					protocolManager.parseMessages(messages);
+				} catch (RuntimeException e) {
+					// A broken module must not bring down every User on this lane.
+					e.printStackTrace();
+				}
+				backlog.decrementAndGet();
+				processed.incrementAndGet();
+			}
+		}
+	}
+
+	private ProtocolManager protocolManager;
+	private AdmissionController admission;
+	private Lane[] lanes;
+	private volatile boolean alive;
+
+	/**
+	 * Constructs a new Dispatcher. No messages are processed until
+	 * <code>start()</code> is called.
+	 *
+	 * @param protocolManager The ProtocolManager to parse messages with.
+	 * @param workers The number of worker lanes.
+	 */
+	public Dispatcher(ProtocolManager protocolManager, int workers) {
+		this(protocolManager, workers, null);
+	}
+
+	/**
+	 * Constructs a new Dispatcher which tells an AdmissionController
+	 * whenever it starts parsing an InputMessageQueue, so that the time
+	 * spent waiting in a lane counts towards the age of the input. No
+	 * messages are processed until <code>start()</code> is called.
+	 *
+	 * @param protocolManager The ProtocolManager to parse messages with.
+	 * @param workers The number of worker lanes.
+	 * @param admission The AdmissionController of the input, or
+	 * <code>null</code> for none.
+	 */
+	public Dispatcher(ProtocolManager protocolManager, int workers, AdmissionController admission) {
+		this.protocolManager = protocolManager;
+		this.admission = admission;
+		lanes = new Lane[Math.max(workers, 1)];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new Lane();
+		}
+	}
+
+	/**
+	 * Starts a thread for each of the worker lanes.
+	 */
+	public void start() {
+		alive = true;
+		for (int i = 0; i < lanes.length; i++) {
+			ThreadSpawner.newThread(lanes[i], "Dispatcher-" + i).start();
+		}
+	}
+
+	/**
+	 * Hands an InputMessageQueue to the lane of the User who sent it. This
+	 * never blocks.
+	 *
+	 * @param messages The messages to be parsed and replied to.
+	 */
+	public void dispatch(InputMessageQueue messages) {
+		lanes[laneOf(messages)].enqueue(messages);
+	}
+
+	/**
+	 * Picks the lane for an InputMessageQueue from the sender of its first
+	 * message. Messages without a sender all go to the first lane.
+	 *
+	 * @param messages The InputMessageQueue to be dispatched.
+	 * @return The index of the lane which must process it.
+	 */
+	private int laneOf(InputMessageQueue messages) {
+		ProtocolMessage first = messages.peek();
+		User user = (first == null) ? null : first.getUser();
+		if (user == null) {
+			return 0;
+		}
+		return (user.hashCode() & Integer.MAX_VALUE) % lanes.length;
+	}
+
+	/**
+	 * Get the number of worker lanes.
+	 *
+	 * @return The number of worker lanes.
+	 */
+	public int getWorkers() {
+		return lanes.length;
+	}
+
+	/**
+	 * Get the number of InputMessageQueues dispatched to the given lane which
+	 * have not been processed yet.
+	 *
+	 * @param lane The index of the lane.
+	 * @return The number of InputMessageQueues waiting on the lane.
+	 */
+	public int getBacklog(int lane) {
+		return lanes[lane].backlog.get();
+	}
+
+	/**
+	 * Get the number of InputMessageQueues the given lane has processed.
+	 *
+	 * @param lane The index of the lane.
+	 * @return The number of InputMessageQueues processed by the lane.
+	 */
+	public long getProcessed(int lane) {
+		return lanes[lane].processed.get();
+	}
+
+	/**
+	 * Brings down every worker lane. InputMessageQueues which have not been
+	 * processed yet are abandoned.
+	 */
+	public void shutdown() {
+		alive = false;
+		for (Lane lane : lanes) {
+			Thread waiting = lane.worker;
+			if (waiting != null) {
+				LockSupport.unpark(waiting);
+			}
+		}
+	}
+
+}
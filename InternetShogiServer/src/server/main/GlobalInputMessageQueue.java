@@ -1,23 +1,46 @@
 package server.main;
 
-import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Collection;
+import java.util.concurrent.locks.LockSupport;
 
 import server.services.protocol.InputMessageQueue;
+import server.services.protocol.MessageQueue;
 
 /**
  * A threadsafe global queue of all the messages received by all clients
  * connected to the server. The server is constantly processing this queue.
  * 
- * The queue uses Round-Robin scheduling; that is, messages of higher priority
- * are always dequeued before messages of lower priority, and it follows a FIFO
- * scheme for messages with the same priority.
+ * The queue uses weighted Round-Robin scheduling across its three priority
+ * levels, as decided by its PriorityScheduler; that is, messages of higher
+ * priority are dequeued more often than messages of lower priority, messages
+ * which have waited too long are dequeued first regardless of their priority,
+ * and it follows a FIFO scheme for messages with the same priority. How long
+ * messages of each priority waited is recorded in a WaitTimeHistogram.
+ * 
+ * Each priority level is a preallocated MpscRingBuffer, so any number of
+ * threads may enqueue without taking a lock or allocating, but only a single
+ * consumer thread may dequeue. If a priority level fills up, messages the
+ * server generates for itself wait for the consumer to make room rather
+ * than being dropped.
+ * 
+ * Input from the clients is offered through <code>offer</code> instead,
+ * which first asks the queue's AdmissionController whether the server can
+ * still answer it in good time, and sheds it otherwise. Client input which
+ * finds its priority level full is shed too, rather than holding up the
+ * thread reading it, which may be serving many other clients.
  * 
  * @author Adrian Petrescu
  */
 public class GlobalInputMessageQueue {
 
+	/**
+	 * The default number of input message queues each priority level can hold.
+	 */
+	public static final int DEFAULT_CAPACITY = 16384;
+	
+	/* How many times a parking consumer yields before it actually parks. */
+	private static final int YIELDS_BEFORE_PARK = 64;
+	
 	private static GlobalInputMessageQueue self;
 	/**
 	 * Singleton accessor to the GlobalInputMessageQueue. If the queue has not
@@ -25,79 +48,256 @@ public class GlobalInputMessageQueue {
 	 * 
 	 * @return A reference to the GlobalInputMessageQueue.
 	 */
-	public static GlobalInputMessageQueue getGlobalInputMessageQueue() {
+	public static synchronized GlobalInputMessageQueue getGlobalInputMessageQueue() {
 		if (self == null) {
-			self = new GlobalInputMessageQueue();
+			self = new GlobalInputMessageQueue(DEFAULT_CAPACITY, WaitStrategy.PARK, new PriorityScheduler(),
+					new AdmissionController());
 		}
 		return self;
 	}
 	
-	protected Queue<InputMessageQueue> lowPriorityInputMessageQueue;
-	protected Queue<InputMessageQueue> medPriorityInputMessageQueue;
-	protected Queue<InputMessageQueue> highPriorityInputMessageQueue;
+	/**
+	 * Creates the GlobalInputMessageQueue with the given settings. This must be
+	 * called before the queue is first accessed, or it has no effect.
+	 * 
+	 * @param capacity The number of input message queues each priority level
+	 * can hold.
+	 * @param waitStrategy How the consumer waits while the queue is empty.
+	 * @param scheduler Decides which priority level is served next. It must
+	 * not be shared with any other queue.
+	 */
+	public static synchronized void configure(int capacity, WaitStrategy waitStrategy, PriorityScheduler scheduler) {
+		configure(capacity, waitStrategy, scheduler, new AdmissionController());
+	}
+	
+	/**
+	 * Creates the GlobalInputMessageQueue with the given settings and
+	 * admission limits. This must be called before the queue is first
+	 * accessed, or it has no effect.
+	 * 
+	 * @param capacity The number of input message queues each priority level
+	 * can hold.
+	 * @param waitStrategy How the consumer waits while the queue is empty.
+	 * @param scheduler Decides which priority level is served next. It must
+	 * not be shared with any other queue.
+	 * @param admission Decides which input from the clients is let in.
+	 */
+	public static synchronized void configure(int capacity, WaitStrategy waitStrategy, PriorityScheduler scheduler,
+			AdmissionController admission) {
+		if (self == null) {
+			self = new GlobalInputMessageQueue(capacity, waitStrategy, scheduler, admission);
+		}
+	}
+	
+	protected MpscRingBuffer<InputMessageQueue> lowPriorityInputMessageQueue;
+	protected MpscRingBuffer<InputMessageQueue> medPriorityInputMessageQueue;
+	protected MpscRingBuffer<InputMessageQueue> highPriorityInputMessageQueue;
+	
+	private WaitStrategy waitStrategy;
+	private volatile Thread parkedConsumer;
+	
+	private PriorityScheduler scheduler;
+	private MessageQueue[] heads;
+	private WaitTimeHistogram[] waitTimes;
+	private AdmissionController admission;
+	
+	/**
+	 * Creates a new instance of GlobalInputMessageQueue with the default
+	 * admission limits.
+	 * 
+	 * @param capacity The number of input message queues each priority level
+	 * can hold.
+	 * @param waitStrategy How the consumer waits while the queue is empty.
+	 * @param scheduler Decides which priority level is served next.
+	 */
+	protected GlobalInputMessageQueue(int capacity, WaitStrategy waitStrategy, PriorityScheduler scheduler) {
+		this(capacity, waitStrategy, scheduler, new AdmissionController());
+	}
 	
 	/**
 	 * Creates a new instance of GlobalInputMessageQueue.
+	 * 
+	 * @param capacity The number of input message queues each priority level
+	 * can hold.
+	 * @param waitStrategy How the consumer waits while the queue is empty.
+	 * @param scheduler Decides which priority level is served next.
+	 * @param admission Decides which input from the clients is let in.
 	 */
-	protected GlobalInputMessageQueue() {
-		lowPriorityInputMessageQueue = new ConcurrentLinkedQueue<InputMessageQueue>();
-		medPriorityInputMessageQueue = new ConcurrentLinkedQueue<InputMessageQueue>();
-		highPriorityInputMessageQueue = new ConcurrentLinkedQueue<InputMessageQueue>();
+	protected GlobalInputMessageQueue(int capacity, WaitStrategy waitStrategy, PriorityScheduler scheduler,
+			AdmissionController admission) {
+		this.admission = admission;
+		lowPriorityInputMessageQueue = new MpscRingBuffer<InputMessageQueue>(capacity);
+		medPriorityInputMessageQueue = new MpscRingBuffer<InputMessageQueue>(capacity);
+		highPriorityInputMessageQueue = new MpscRingBuffer<InputMessageQueue>(capacity);
+		this.waitStrategy = waitStrategy;
+		this.scheduler = scheduler;
+		heads = new MessageQueue[MessageQueue.MAX_PRIORITY + 1];
+		waitTimes = new WaitTimeHistogram[MessageQueue.MAX_PRIORITY + 1];
+		for (int i = 0; i < waitTimes.length; i++) {
+			waitTimes[i] = new WaitTimeHistogram();
+		}
+	}
+	
+	/**
+	 * Add a message to the global queue, regardless of the admission limits.
+	 * This never takes a lock, but if the message's priority level is full,
+	 * it waits until the consumer has made room.
+	 * 
+	 * @param message The message to be queued up.
+	 */
+	public void enqueue(InputMessageQueue message) {
+		message.setEnqueuedAt(System.nanoTime());
+		admission.admitted(message);
+		publish(message);
 	}
 	
 	/**
-	 * Add a message to the global queue. 
+	 * Add input from a client to the global queue, if the AdmissionController
+	 * lets it in. This never takes a lock, and never waits: if the message's
+	 * priority level is full, the message is shed.
 	 * 
 	 * @param message The message to be queued up.
+	 * @return <code>true</code> if the message was queued, and <code>false</code>
+	 * if it was shed; the caller still owns a shed message.
 	 */
-	@SuppressWarnings("deprecation")
-	public synchronized void enqueue(InputMessageQueue message) {
-		boolean unlockListener = this.isEmpty();
-		switch (message.getPriority()) {
-			case 0: lowPriorityInputMessageQueue.add(message);
-					break;
-			case 1: medPriorityInputMessageQueue.add(message);
-					break;
-			case 2: medPriorityInputMessageQueue.add(message);
-					break;
+	public boolean offer(InputMessageQueue message) {
+		message.setEnqueuedAt(System.nanoTime());
+		if (!admission.admit(message)) {
+			return false;
+		}
+		if (!getLevel(message.getPriority()).offer(message)) {
+			admission.rejected(message);
+			wakeConsumer();
+			return false;
 		}
-		if (unlockListener) {
-			/* TODO: According to my experiments, main is always the first thread in
-			 * the main thread group, but I'm not sure if this is always
-			 * necessarily the case. Do more research here.
-			 * 
-			 * Assuming that it is saves time, but may cause deadlock if we're
-			 * wrong.
-			 * 
-			 * If you have definite knowledge about the likelihood of main not
-			 * being the first thread, please file a ticket!
-			 */
-			Thread[] threads = new Thread[1];
-			Thread.currentThread().getThreadGroup().enumerate(threads);
-			
-			if (threads[0].getName().equals("main")) {
-				threads[0].resume();
+		wakeConsumer();
+		return true;
+	}
+	
+	private void publish(InputMessageQueue message) {
+		MpscRingBuffer<InputMessageQueue> buffer = getLevel(message.getPriority());
+		while (!buffer.offer(message)) {
+			wakeConsumer();
+			Thread.yield();
+		}
+		wakeConsumer();
+	}
+	
+	private MpscRingBuffer<InputMessageQueue> getLevel(int priority) {
+		switch (priority) {
+		case 0:
+			return lowPriorityInputMessageQueue;
+		case 1:
+			return medPriorityInputMessageQueue;
+		default:
+			return highPriorityInputMessageQueue;
+		}
+	}
+	
+	private void wakeConsumer() {
+		Thread waiting = parkedConsumer;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+	}
+	
+	/**
+	 * Blocks the calling thread until the queue contains at least one message,
+	 * using the queue's WaitStrategy. Only the queue's single consumer thread
+	 * may call this. Parking is used rather than suspending the thread, so the
+	 * consumer may also be a virtual thread.
+	 */
+	public void waitForMessages() {
+		int idle = 0;
+		while (isEmpty()) {
+			switch (waitStrategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			case PARK:
+				if (idle++ < YIELDS_BEFORE_PARK) {
+					Thread.yield();
+				} else {
+					// Producers check parkedConsumer after publishing, so one
+					// of us is bound to see the other.
+					parkedConsumer = Thread.currentThread();
+					if (isEmpty()) {
+						LockSupport.park(this);
+					}
+					parkedConsumer = null;
+				}
+				break;
 			}
 		}
 	}
 	
 	/**
-	 * @return The oldest message of the highest priority available, or NULL if the
-	 * queue is empty.
+	 * Only the queue's single consumer thread may call this.
+	 * 
+	 * @return The oldest message of the priority chosen by the queue's
+	 * PriorityScheduler, or NULL if the queue is empty.
 	 */
-	public synchronized InputMessageQueue dequeue() {
-		try {
-			return highPriorityInputMessageQueue.remove();
-		} catch (NoSuchElementException noHigh) {
-			try {
-				return medPriorityInputMessageQueue.remove();
-			} catch (NoSuchElementException noMed) {
-				try {
-					return lowPriorityInputMessageQueue.remove();
-				} catch(NoSuchElementException noLow) {}
+	public InputMessageQueue dequeue() {
+		heads[0] = lowPriorityInputMessageQueue.peek();
+		heads[1] = medPriorityInputMessageQueue.peek();
+		heads[2] = highPriorityInputMessageQueue.peek();
+		long now = System.nanoTime();
+		int priority = scheduler.next(heads, now);
+		heads[0] = heads[1] = heads[2] = null;
+		if (priority < 0) {
+			return null;
+		}
+		InputMessageQueue message = getLevel(priority).poll();
+		waitTimes[priority].record(now - message.getEnqueuedAt());
+		return message;
+	}
+	
+	/**
+	 * Removes up to <code>maxMessages</code> messages from the queue in the
+	 * same order <code>dequeue</code> would have returned them, and adds them
+	 * to the given collection. Only the queue's single consumer thread may
+	 * call this.
+	 * 
+	 * @param sink The collection to add the messages to.
+	 * @param maxMessages The largest number of messages to remove.
+	 * @return The number of messages removed.
+	 */
+	public int drainTo(Collection<? super InputMessageQueue> sink, int maxMessages) {
+		int drained = 0;
+		while (drained < maxMessages) {
+			InputMessageQueue message = dequeue();
+			if (message == null) {
+				break;
 			}
+			sink.add(message);
+			drained++;
 		}
-		return null;
+		return drained;
+	}
+	
+	/**
+	 * Get the AdmissionController which decides what input is let into the
+	 * queue. Whoever parses the input must tell it when each input message
+	 * queue starts being parsed.
+	 * 
+	 * @return The queue's AdmissionController.
+	 */
+	public AdmissionController getAdmissionController() {
+		return admission;
+	}
+	
+	/**
+	 * Get the histogram of how long the input message queues of a given
+	 * priority waited before being dequeued.
+	 * 
+	 * @param priority The priority level, from 0 to
+	 * <code>MessageQueue.MAX_PRIORITY</code>.
+	 * @return The wait-time histogram of the given priority.
+	 */
+	public WaitTimeHistogram getWaitTimeHistogram(int priority) {
+		return waitTimes[priority];
 	}
 	
 	/**
@@ -139,7 +339,7 @@ public class GlobalInputMessageQueue {
 	 * 
 	 * @return <code>true</code> if the queue is completely empty.
 	 */
-	public synchronized boolean isEmpty() {
+	public boolean isEmpty() {
 		return lowPriorityInputMessageQueue.isEmpty()
 				&& medPriorityInputMessageQueue.isEmpty()
 				&& highPriorityInputMessageQueue.isEmpty();
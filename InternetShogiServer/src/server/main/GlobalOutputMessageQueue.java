@@ -1,159 +1,288 @@
-package server.main;
-
-import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import server.services.protocol.OutputMessageQueue;
-
-
-/**
- * A threadsafe global queue of all the messages ready to be sent to clients
- * connected to the server. The server is constantly processing this queue.
- * 
- * The queue uses Round-Robin scheduling; that is, messages of higher priority
- * are always dequeued before messages of lower priority, and it follows a FIFO
- * scheme for messages with the same priority.
- * 
- * @author Adrian Petrescu
- */
-public class GlobalOutputMessageQueue {
-
-	private static GlobalOutputMessageQueue self;
-	/**
-	 * Singleton accessor to the GlobalOutputMessageQueue. If the queue has not
-	 * yet been accessed, it will be created.
-	 * 
-	 * @return A reference to the GlobalOutputMessageQueue.
-	 */
-	public static GlobalOutputMessageQueue getGlobalOutputMessageQueue() {
-		if (self == null) {
-			self = new GlobalOutputMessageQueue();
-		}
-		return self;
-	}
-	
-	protected Queue<OutputMessageQueue> lowPriorityOutputMessageQueue;
-	protected Queue<OutputMessageQueue> medPriorityOutputMessageQueue;
-	protected Queue<OutputMessageQueue> highPriorityOutputMessageQueue;
-	
-	/**
-	 * Creates a new instance of GlobalOutputMessageQueue.
-	 */
-	protected GlobalOutputMessageQueue() {
-		lowPriorityOutputMessageQueue = new ConcurrentLinkedQueue<OutputMessageQueue>();
-		medPriorityOutputMessageQueue = new ConcurrentLinkedQueue<OutputMessageQueue>();
-		highPriorityOutputMessageQueue = new ConcurrentLinkedQueue<OutputMessageQueue>();
-	}
-	
-	/**
-	 * Add a message to the global queue. 
-	 * 
-	 * @param message The message to be queued up.
-	 */
-	@SuppressWarnings("deprecation")
-	public synchronized void enqueue(OutputMessageQueue message) {
-		boolean unlockListener = this.isEmpty();
-		switch (message.getPriority()) {
-			case 0: lowPriorityOutputMessageQueue.add(message);
-					break;
-			case 1: medPriorityOutputMessageQueue.add(message);
-					break;
-			case 2: medPriorityOutputMessageQueue.add(message);
-					break;
-		}
-		if (unlockListener) {
-			Thread[] threads = new Thread[Thread.currentThread().getThreadGroup().activeCount()];
-			Thread.currentThread().getThreadGroup().enumerate(threads);
-			for (int i = 0; i < threads.length; i++) {
-				if (threads[i].getName().equals("OutputQueueProcessor")) {
-					threads[i].resume();
-					return;
-				}
-			}
-		}
-	}
-	
-	/**
-	 * @return The oldest message of the highest priority available, or NULL if the
-	 * queue is empty.
-	 */
-	public synchronized OutputMessageQueue dequeue() {
-		try {
-			return highPriorityOutputMessageQueue.remove();
-		} catch (NoSuchElementException noHigh) {
-			try {
-				return medPriorityOutputMessageQueue.remove();
-			} catch (NoSuchElementException noMed) {
-				try {
-					return lowPriorityOutputMessageQueue.remove();
-				} catch(NoSuchElementException noLow) {}
-			}
-		}
-		return null;
-	}
-	
-	
-	/**
-	 * Return the total number of output message queues still queued up
-	 * in the global buffer, of all priorities.
-	 * 
-	 * @return The total number of queued OutputMessageStacks.
-	 */
-	public int getSize() {
-		return lowPriorityOutputMessageQueue.size() +
-				medPriorityOutputMessageQueue.size() +
-				highPriorityOutputMessageQueue.size();
-	}
-	
-	/**
-	 * Return the total number of output message queues still in the queue
-	 * with a given priority.
-	 * 
-	 * @param priority The priority level of counted messages.
-	 * @return The total number of queued OutputMessageStacks of the given
-	 * priority.
-	 */
-	public int getSize(int priority) {
-		switch (priority) {
-			case 0: return lowPriorityOutputMessageQueue.size();
-			case 1: return medPriorityOutputMessageQueue.size();
-			case 2: return highPriorityOutputMessageQueue.size();
-			default: return 0;
-		}
-	}
-	
-	/**
-	 * Returns <code>true</code> if the queue contains no elements of any
-	 * priority.
-	 * 
-	 * @return <code>true</code> if the queue is completely empty.
-	 */
-	public synchronized boolean isEmpty() {
-		return lowPriorityOutputMessageQueue.isEmpty()
-				&& medPriorityOutputMessageQueue.isEmpty()
-				&& highPriorityOutputMessageQueue.isEmpty();
-	}
-	
-	/**
-	 * Returns <code>true</code> if the queue contains no elements of the
-	 * given priority.
-	 * 
-	 * @param priority The priority level to check.
-	 * @return <code>true</code> if the queue is empty of messages of the given
-	 * priority.
-	 */
-	public boolean isEmpty(int priority) {
-		switch (priority) {
-		case 0:
-			return lowPriorityOutputMessageQueue.isEmpty();
-		case 1:
-			return medPriorityOutputMessageQueue.isEmpty();
-		case 2:
-			return highPriorityOutputMessageQueue.isEmpty();
-		default:
-			return true;
-		}
-	}
-	
-}
+package server.main;
+
+import java.util.Collection;
+import java.util.concurrent.locks.LockSupport;
+
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.MessageQueue;
+
+/**
+ * A threadsafe global queue of all the messages ready to be sent to clients
+ * connected to the server. The server is constantly processing this queue.
+ * 
+ * The queue uses weighted Round-Robin scheduling across its three priority
+ * levels, as decided by its PriorityScheduler; that is, messages of higher
+ * priority are dequeued more often than messages of lower priority, messages
+ * which have waited too long are dequeued first regardless of their priority,
+ * and it follows a FIFO scheme for messages with the same priority. How long
+ * messages of each priority waited is recorded in a WaitTimeHistogram.
+ * 
+ * Each priority level is a preallocated MpscRingBuffer, so any number of
+ * threads may enqueue without taking a lock or allocating, but only a single
+ * consumer thread may dequeue. If a priority level fills up, producers wait
+ * for the consumer to make room rather than dropping messages.
+ * 
+ * @author Adrian Petrescu
+ */
+public class GlobalOutputMessageQueue {
+
+	/**
+	 * The default number of output message queues each priority level can hold.
+	 */
+	public static final int DEFAULT_CAPACITY = 16384;
+	
+	/* How many times a parking consumer yields before it actually parks. */
+	private static final int YIELDS_BEFORE_PARK = 64;
+	
+	private static GlobalOutputMessageQueue self;
+	/**
+	 * Singleton accessor to the GlobalOutputMessageQueue. If the queue has not
+	 * yet been accessed, it will be created.
+	 * 
+	 * @return A reference to the GlobalOutputMessageQueue.
+	 */
+	public static synchronized GlobalOutputMessageQueue getGlobalOutputMessageQueue() {
+		if (self == null) {
+			self = new GlobalOutputMessageQueue(DEFAULT_CAPACITY, WaitStrategy.PARK, new PriorityScheduler());
+		}
+		return self;
+	}
+	
+	/**
+	 * Creates the GlobalOutputMessageQueue with the given settings. This must be
+	 * called before the queue is first accessed, or it has no effect.
+	 * 
+	 * @param capacity The number of output message queues each priority level
+	 * can hold.
+	 * @param waitStrategy How the consumer waits while the queue is empty.
+	 * @param scheduler Decides which priority level is served next. It must
+	 * not be shared with any other queue.
+	 */
+	public static synchronized void configure(int capacity, WaitStrategy waitStrategy, PriorityScheduler scheduler) {
+		if (self == null) {
+			self = new GlobalOutputMessageQueue(capacity, waitStrategy, scheduler);
+		}
+	}
+	
+	protected MpscRingBuffer<OutputMessageQueue> lowPriorityOutputMessageQueue;
+	protected MpscRingBuffer<OutputMessageQueue> medPriorityOutputMessageQueue;
+	protected MpscRingBuffer<OutputMessageQueue> highPriorityOutputMessageQueue;
+	
+	private WaitStrategy waitStrategy;
+	private volatile Thread parkedConsumer;
+	
+	private PriorityScheduler scheduler;
+	private MessageQueue[] heads;
+	private WaitTimeHistogram[] waitTimes;
+	
+	/**
+	 * Creates a new instance of GlobalOutputMessageQueue.
+	 * 
+	 * @param capacity The number of output message queues each priority level
+	 * can hold.
+	 * @param waitStrategy How the consumer waits while the queue is empty.
+	 * @param scheduler Decides which priority level is served next.
+	 */
+	protected GlobalOutputMessageQueue(int capacity, WaitStrategy waitStrategy, PriorityScheduler scheduler) {
+		lowPriorityOutputMessageQueue = new MpscRingBuffer<OutputMessageQueue>(capacity);
+		medPriorityOutputMessageQueue = new MpscRingBuffer<OutputMessageQueue>(capacity);
+		highPriorityOutputMessageQueue = new MpscRingBuffer<OutputMessageQueue>(capacity);
+		this.waitStrategy = waitStrategy;
+		this.scheduler = scheduler;
+		heads = new MessageQueue[MessageQueue.MAX_PRIORITY + 1];
+		waitTimes = new WaitTimeHistogram[MessageQueue.MAX_PRIORITY + 1];
+		for (int i = 0; i < waitTimes.length; i++) {
+			waitTimes[i] = new WaitTimeHistogram();
+		}
+	}
+	
+	/**
+	 * Add a message to the global queue. This never takes a lock, but if the
+	 * message's priority level is full, it waits until the consumer has made
+	 * room.
+	 * 
+	 * @param message The message to be queued up.
+	 */
+	public void enqueue(OutputMessageQueue message) {
+		MpscRingBuffer<OutputMessageQueue> buffer = getLevel(message.getPriority());
+		message.setEnqueuedAt(System.nanoTime());
+		while (!buffer.offer(message)) {
+			wakeConsumer();
+			Thread.yield();
+		}
+		wakeConsumer();
+	}
+	
+	private MpscRingBuffer<OutputMessageQueue> getLevel(int priority) {
+		switch (priority) {
+		case 0:
+			return lowPriorityOutputMessageQueue;
+		case 1:
+			return medPriorityOutputMessageQueue;
+		default:
+			return highPriorityOutputMessageQueue;
+		}
+	}
+	
+	private void wakeConsumer() {
+		Thread waiting = parkedConsumer;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+	}
+	
+	/**
+	 * Blocks the calling thread until the queue contains at least one message,
+	 * using the queue's WaitStrategy. Only the queue's single consumer thread
+	 * may call this. Parking is used rather than suspending the thread, so the
+	 * consumer may also be a virtual thread.
+	 */
+	public void waitForMessages() {
+		int idle = 0;
+		while (isEmpty()) {
+			switch (waitStrategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			case PARK:
+				if (idle++ < YIELDS_BEFORE_PARK) {
+					Thread.yield();
+				} else {
+					// Producers check parkedConsumer after publishing, so one
+					// of us is bound to see the other.
+					parkedConsumer = Thread.currentThread();
+					if (isEmpty()) {
+						LockSupport.park(this);
+					}
+					parkedConsumer = null;
+				}
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Only the queue's single consumer thread may call this.
+	 * 
+	 * @return The oldest message of the priority chosen by the queue's
+	 * PriorityScheduler, or NULL if the queue is empty.
+	 */
+	public OutputMessageQueue dequeue() {
+		heads[0] = lowPriorityOutputMessageQueue.peek();
+		heads[1] = medPriorityOutputMessageQueue.peek();
+		heads[2] = highPriorityOutputMessageQueue.peek();
+		long now = System.nanoTime();
+		int priority = scheduler.next(heads, now);
+		heads[0] = heads[1] = heads[2] = null;
+		if (priority < 0) {
+			return null;
+		}
+		OutputMessageQueue message = getLevel(priority).poll();
+		waitTimes[priority].record(now - message.getEnqueuedAt());
+		return message;
+	}
+	
+	/**
+	 * Removes up to <code>maxMessages</code> messages from the queue in the
+	 * same order <code>dequeue</code> would have returned them, and adds them
+	 * to the given collection. Only the queue's single consumer thread may
+	 * call this.
+	 * 
+	 * @param sink The collection to add the messages to.
+	 * @param maxMessages The largest number of messages to remove.
+	 * @return The number of messages removed.
+	 */
+	public int drainTo(Collection<? super OutputMessageQueue> sink, int maxMessages) {
+		int drained = 0;
+		while (drained < maxMessages) {
+			OutputMessageQueue message = dequeue();
+			if (message == null) {
+				break;
+			}
+			sink.add(message);
+			drained++;
+		}
+		return drained;
+	}
+	
+	/**
+	 * Get the histogram of how long the output message queues of a given
+	 * priority waited before being dequeued.
+	 * 
+	 * @param priority The priority level, from 0 to
+	 * <code>MessageQueue.MAX_PRIORITY</code>.
+	 * @return The wait-time histogram of the given priority.
+	 */
+	public WaitTimeHistogram getWaitTimeHistogram(int priority) {
+		return waitTimes[priority];
+	}
+	
+	/**
+	 * Return the total number of output message queues still queued up
+	 * in the global buffer, of all priorities.
+	 * 
+	 * @return The total number of queued OutputMessageStacks.
+	 */
+	public int getSize() {
+		return lowPriorityOutputMessageQueue.size()
+			    + medPriorityOutputMessageQueue.size()
+			    + highPriorityOutputMessageQueue.size();
+	}
+	
+	/**
+	 * Return the total number of output message queues still in the queue
+	 * with a given priority.
+	 * 
+	 * @param priority The priority level of counted messages.
+	 * @return The total number of queued OutputMessageStacks of the given
+	 * priority.
+	 */
+	public int getSize(int priority) {
+		switch (priority) {
+		case 0:
+			return lowPriorityOutputMessageQueue.size();
+		case 1:
+			return medPriorityOutputMessageQueue.size();
+		case 2:
+			return highPriorityOutputMessageQueue.size();
+		default:
+			return 0;
+		}
+	}
+	
+	/**
+	 * Returns <code>true</code> if the queue contains no elements of any
+	 * priority.
+	 * 
+	 * @return <code>true</code> if the queue is completely empty.
+	 */
+	public boolean isEmpty() {
+		return lowPriorityOutputMessageQueue.isEmpty()
+				&& medPriorityOutputMessageQueue.isEmpty()
+				&& highPriorityOutputMessageQueue.isEmpty();
+	}
+	
+	/**
+	 * Returns <code>true</code> if the queue contains no elements of the
+	 * given priority.
+	 * 
+	 * @param priority The priority level to check.
+	 * @return <code>true</code> if the queue is empty of messages of the given
+	 * priority.
+	 */
+	public boolean isEmpty(int priority) {
+		switch (priority) {
+		case 0:
+			return lowPriorityOutputMessageQueue.isEmpty();
+		case 1:
+			return medPriorityOutputMessageQueue.isEmpty();
+		case 2:
+			return highPriorityOutputMessageQueue.isEmpty();
+		default:
+			return true;
+		}
+	}
+	
+}
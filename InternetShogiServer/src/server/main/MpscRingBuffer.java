@@ -0,0 +1,176 @@
+package server.main;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer
+ * thread. Every slot is allocated up front, so queueing an element never
+ * allocates; producers claim slots by advancing a shared tail counter, and
+ * each slot carries a sequence number which tells the consumer when the
+ * element in it has been published and tells producers when it has been
+ * consumed and may be reused.
+ *
+ * Only one thread may ever call <code>poll</code>, <code>peek</code> or
+ * <code>drainTo</code>.
+ * Any number of threads may call <code>offer</code>.
+ *
+ * @author Adrian Petrescu
+ *
+ * @param <E> The type of element held in the buffer.
+ */
+public class MpscRingBuffer<E> {
+
+	private Object[] buffer;
+	private AtomicLongArray sequences;
+	private int capacity;
+	private int mask;
+
+	private AtomicLong tail;
+	private volatile long head;
+
+	/**
+	 * Constructs a new, empty MpscRingBuffer.
+	 *
+	 * @param capacity The minimum number of elements the buffer can hold. It is
+	 * rounded up to the next power of two.
+	 */
+	public MpscRingBuffer(int capacity) {
+		this.capacity = 2;
+		while (this.capacity < capacity) {
+			this.capacity <<= 1;
+		}
+		mask = this.capacity - 1;
+		buffer = new Object[this.capacity];
+		sequences = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			sequences.set(i, i);
+		}
+		tail = new AtomicLong();
+	}
+
+	/**
+	 * Adds an element to the end of the buffer, if there is room for it. This
+	 * may be called from any thread.
+	 *
+	 * @param element The element to add. May not be <code>null</code>.
+	 * @return <code>true</code> if the element was added, and <code>false</code>
+	 * if the buffer was full.
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException();
+		}
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long sequence = sequences.get(index);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					buffer[index] = element;
+					// Publishes the element to the consumer.
+					sequences.set(index, position + 1);
+					return true;
+				}
+			} else if (sequence < position) {
+				// The consumer has not yet freed this slot from the last lap.
+				return false;
+			}
+			// Otherwise another producer claimed the slot first; try the next one.
+		}
+	}
+
+	/**
+	 * Retrieves and removes the element at the head of the buffer. Must only
+	 * be called by the consumer thread.
+	 *
+	 * @return The oldest element in the buffer, or <code>null</code> if no
+	 * element has been published yet.
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long position = head;
+		int index = (int) position & mask;
+		if (sequences.get(index) != position + 1) {
+			return null;
+		}
+		E element = (E) buffer[index];
+		buffer[index] = null;
+		// Frees the slot for the producer which will wrap around to it.
+		sequences.set(index, position + capacity);
+		head = position + 1;
+		return element;
+	}
+
+	/**
+	 * Retrieves, but does not remove, the element at the head of the buffer.
+	 * Must only be called by the consumer thread.
+	 *
+	 * @return The oldest element in the buffer, or <code>null</code> if no
+	 * element has been published yet.
+	 */
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		long position = head;
+		int index = (int) position & mask;
+		if (sequences.get(index) != position + 1) {
+			return null;
+		}
+		return (E) buffer[index];
+	}
+
+	/**
+	 * Removes up to <code>maxElements</code> elements from the head of the
+	 * buffer, in order, and adds them to the given collection. Must only be
+	 * called by the consumer thread.
+	 *
+	 * @param sink The collection to add the elements to.
+	 * @param maxElements The largest number of elements to remove.
+	 * @return The number of elements removed.
+	 */
+	public int drainTo(Collection<? super E> sink, int maxElements) {
+		int drained = 0;
+		while (drained < maxElements) {
+			E element = poll();
+			if (element == null) {
+				break;
+			}
+			sink.add(element);
+			drained++;
+		}
+		return drained;
+	}
+
+	/**
+	 * Returns <code>true</code> if the buffer holds no elements. An element
+	 * whose producer is still in the middle of <code>offer</code> already
+	 * counts as being held.
+	 *
+	 * @return <code>true</code> if the buffer is empty.
+	 */
+	public boolean isEmpty() {
+		return head == tail.get();
+	}
+
+	/**
+	 * Returns the number of elements in the buffer. The value is only a
+	 * snapshot if other threads are using the buffer.
+	 *
+	 * @return The number of elements in the buffer.
+	 */
+	public int size() {
+		long size = tail.get() - head;
+		return (int) Math.max(0, Math.min(size, capacity));
+	}
+
+	/**
+	 * Returns the number of elements the buffer can hold.
+	 *
+	 * @return The capacity of the buffer.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+}
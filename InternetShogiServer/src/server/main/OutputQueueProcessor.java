@@ -1,70 +1,102 @@
-package server.main;
-
-import server.services.connection.ClientConnection;
-import server.services.connection.ConnectionManager;
-import server.services.protocol.OutputMessageQueue;
-import server.services.protocol.ProtocolMessage;
-
-/**
- * A thread that constantly monitors the GlobalOutputMessageQueue for
- * new outgoing messages, and passes them to the appropriate ClientConnection
- * for transfer over the network.
- * 
- * @author Adrian Petrescu
- *
- */
-public class OutputQueueProcessor implements Runnable {
-
-	private GlobalOutputMessageQueue outputQueue;
-	private ConnectionManager connectionManager;
-	private boolean keepSending;
-	
-	protected OutputQueueProcessor(ConnectionManager connectionManager,
-			GlobalOutputMessageQueue outputQueue) {
-		this.connectionManager = connectionManager;
-		this.outputQueue = outputQueue;
-		keepSending = true;
-	}
-	
-	/**
-	 * Brings down the OutputQueueProcessor. No more messages will be sent,
-	 * and the GlobalOutputMessageQueue will only grow, not shrink. Once
-	 * this is called, the thread will die and will have to be recreated
-	 * before it can start working again.
-	 */
-	protected void stopSending() {
-		keepSending = false;
-	}
-	
-	/**
-	 * Begin processing the OutputQueue. Note that this thread does not
-	 * block on I/O; it is not actually responsible for doing the network send.
-	 * Once it has delegated the output to the appropriate ClientConnection,
-	 * it returns and goes to the next one and lets the ClientConnection waste
-	 * time doing the network transfer.
-	 */
-	@SuppressWarnings("deprecation")
-	public void run() {
-		while (keepSending) {
-			if (outputQueue.isEmpty()) {
-				Thread.currentThread().suspend();
-			} else {
-				OutputMessageQueue output = outputQueue.dequeue();
-				while (!output.isEmpty()) {
-					boolean messageSent;
-					ProtocolMessage outputMessage = output.dequeue();
-					ClientConnection conn = connectionManager.getUserConnection(outputMessage.getUser());
-					
-					if (conn == null) {
-						break;
-					}
-					
-					messageSent = conn.sendMessage(outputMessage);
-					if (messageSent) {
-						//TODO: Do some error-checking here.
-					}
-				}
-			}
-		}
-	}
-}
+package server.main;
+
+import java.util.ArrayList;
+
+import server.services.connection.ClientConnection;
+import server.services.connection.ConnectionManager;
+import server.services.protocol.MessagePool;
+import server.services.protocol.MessageQueue;
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+
+/**
+ * A thread that constantly monitors the GlobalOutputMessageQueue for
+ * new outgoing messages, and passes them to the appropriate ClientConnection
+ * for transfer over the network.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class OutputQueueProcessor implements Runnable {
+
+	/* The most output message queues taken off the global queue in one go. */
+	private static final int DRAIN_BATCH = 64;
+
+	private GlobalOutputMessageQueue outputQueue;
+	private ConnectionManager connectionManager;
+	private boolean keepSending;
+	
+	protected OutputQueueProcessor(ConnectionManager connectionManager,
+			GlobalOutputMessageQueue outputQueue) {
+		this.connectionManager = connectionManager;
+		this.outputQueue = outputQueue;
+		keepSending = true;
+	}
+	
+	/**
+	 * Brings down the OutputQueueProcessor. No more messages will be sent,
+	 * and the GlobalOutputMessageQueue will only grow, not shrink. Once
+	 * this is called, the thread will die and will have to be recreated
+	 * before it can start working again.
+	 */
+	protected void stopSending() {
+		keepSending = false;
+	}
+	
+	/**
+	 * Begin processing the OutputQueue. Note that this thread does not
+	 * block on I/O; it is not actually responsible for doing the network send.
+	 * Once it has delegated the output to the appropriate ClientConnection,
+	 * it returns and goes to the next one and lets the ClientConnection waste
+	 * time doing the network transfer.
+	 */
+	public void run() {
+		ArrayList<OutputMessageQueue> batch = new ArrayList<OutputMessageQueue>(DRAIN_BATCH);
+		while (keepSending) {
+			if (outputQueue.drainTo(batch, DRAIN_BATCH) == 0) {
+				outputQueue.waitForMessages();
+				continue;
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				send(batch.get(i));
+			}
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Hands every message of an OutputMessageQueue to the ClientConnection
+	 * of its recipient. High priority messages are marked urgent, so that
+	 * they are flushed to the client right away.
+	 * 
+	 * Each message belongs to its recipient's ClientConnection once it has
+	 * been handed over. A message whose recipient is no longer connected is
+	 * released to the MessagePool and skipped, so that it does not hold back
+	 * the messages to everyone else; the emptied OutputMessageQueue itself
+	 * is released too.
+	 * 
+	 * @param output The messages to be sent.
+	 */
+	void send(OutputMessageQueue output) {
+		boolean urgent = output.getPriority() == MessageQueue.MAX_PRIORITY;
+		while (!output.isEmpty()) {
+			boolean messageSent;
+			ProtocolMessage outputMessage = output.dequeue();
+			if (urgent) {
+				outputMessage.setUrgent(true);
+			}
+			ClientConnection conn = connectionManager.getUserConnection(outputMessage.getUser());
+			
+			if (conn == null) {
+				MessagePool.release(outputMessage);
+				continue;
+			}
+			
+			messageSent = conn.sendMessage(outputMessage);
+			if (messageSent) {
+				//TODO: Do some error-checking here.
+			}
+		}
+		MessagePool.release(output);
+	}
+}
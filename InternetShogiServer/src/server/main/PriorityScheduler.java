@@ -0,0 +1,114 @@
+package server.main;
+
+import server.services.protocol.MessageQueue;
+
+/**
+ * Decides which priority level of a global message queue is served next.
+ * Levels are served in a weighted round-robin: with the default weights, out
+ * of every seven messages dequeued while all levels are busy, four are high
+ * priority, two are medium priority and one is low priority. Levels with
+ * nothing queued are skipped, so an idle level never holds the others up.
+ *
+ * On top of that, messages age: once the oldest message of any level has
+ * waited longer than the maximum wait, it is served next regardless of its
+ * priority, so that a steady stream of high priority work can never starve
+ * the lower levels.
+ *
+ * A PriorityScheduler is only ever used by the single consumer of its queue.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class PriorityScheduler {
+
+	/**
+	 * The default weights of the low, medium and high priority levels.
+	 */
+	public static final int[] DEFAULT_WEIGHTS = { 1, 2, 4 };
+
+	/**
+	 * The default number of milliseconds a message may wait before it is
+	 * served ahead of higher priority messages.
+	 */
+	public static final long DEFAULT_MAX_WAIT = 500;
+
+	private int[] schedule;
+	private int cursor;
+	private long maxWaitNanos;
+
+	/**
+	 * Constructs a new PriorityScheduler.
+	 *
+	 * @param weights The weight of each priority level, indexed by priority.
+	 * Every weight must be at least 1.
+	 * @param maxWait Milliseconds a message may wait before it is served
+	 * ahead of higher priority messages.
+	 */
+	public PriorityScheduler(int[] weights, long maxWait) {
+		maxWaitNanos = maxWait * 1000000L;
+
+		// Spread each level's turns evenly through the schedule, rather than
+		// serving all of a level's turns back to back.
+		int total = 0;
+		for (int weight : weights) {
+			total += weight;
+		}
+		schedule = new int[total];
+		int[] current = new int[weights.length];
+		for (int i = 0; i < total; i++) {
+			int best = 0;
+			for (int level = 0; level < weights.length; level++) {
+				current[level] += weights[level];
+				if (current[level] > current[best]
+						|| (current[level] == current[best] && level > best)) {
+					best = level;
+				}
+			}
+			current[best] -= total;
+			schedule[i] = best;
+		}
+	}
+
+	/**
+	 * Constructs a new PriorityScheduler with the default weights and
+	 * maximum wait.
+	 */
+	public PriorityScheduler() {
+		this(DEFAULT_WEIGHTS, DEFAULT_MAX_WAIT);
+	}
+
+	/**
+	 * Picks the priority level to serve next.
+	 *
+	 * @param heads The oldest message of each priority level, indexed by
+	 * priority, or <code>null</code> for the levels with nothing queued.
+	 * @param now The current value of <code>System.nanoTime()</code>.
+	 * @return The priority level to serve, or -1 if every level is empty.
+	 */
+	int next(MessageQueue[] heads, long now) {
+		int oldest = -1;
+		long oldestWait = maxWaitNanos;
+		for (int level = 0; level < heads.length; level++) {
+			if (heads[level] != null) {
+				long wait = now - heads[level].getEnqueuedAt();
+				if (wait > oldestWait) {
+					oldest = level;
+					oldestWait = wait;
+				}
+			}
+		}
+		if (oldest >= 0) {
+			return oldest;
+		}
+
+		for (int i = 0; i < schedule.length; i++) {
+			int level = schedule[cursor];
+			cursor = (cursor + 1) % schedule.length;
+			if (heads[level] != null) {
+				return level;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -1,71 +1,169 @@
-package server.main;
-
-import java.util.Properties;
-
-import server.services.ServiceManager;
-import server.services.connection.ConnectionManager;
-import server.services.protocol.InputMessageQueue;
-import server.services.protocol.ProtocolManager;
-import server.services.user.UserManager;
-import server.services.database.DatabaseManager;
-import server.services.event.EventManager;
-
-/**
- * This is the main Server component. It is the first piece to be brought
- * up, and it is responsible for instantiating all the various GlobalService's,
- * the global IO queues, and for listening and processing the input queue.
- * 
- * @author Adrian Petrescu
- *
- */
-public class Server {
-
-	private ConnectionManager connectionManager;
-	private UserManager userManager;
-	private ProtocolManager protocolManager;
-	private DatabaseManager databaseManager;
-	private EventManager eventManager;
-	
-	private GlobalInputMessageQueue inputQueue;
-	private GlobalOutputMessageQueue outputQueue;
-	
-	private volatile boolean alive = true;
-	
-	protected Server(Properties databaseConfig, Properties connectionConfig,
-			Properties userConfig, Properties protocolConfig) {
-		
-		inputQueue = GlobalInputMessageQueue.getGlobalInputMessageQueue();
-		outputQueue = GlobalOutputMessageQueue.getGlobalOutputMessageQueue();
-		
-		ServiceManager.loadConfiguration(ConnectionManager.SERVICE_NAME, connectionConfig);
-		ServiceManager.loadConfiguration(UserManager.SERVICE_NAME, userConfig);
-		ServiceManager.loadConfiguration(ProtocolManager.SERVICE_NAME, protocolConfig);
-		ServiceManager.loadConfiguration(DatabaseManager.SERVICE_NAME, databaseConfig);
-		
-		eventManager = ServiceManager.getEventManager();
-		databaseManager = ServiceManager.getDatabaseManager();
-		connectionManager = ServiceManager.getConnectionManager();
-		userManager = ServiceManager.getUserManager();
-		protocolManager = ServiceManager.getProtocolManager();
-		
-		OutputQueueProcessor outputQueueProcessor = new OutputQueueProcessor(connectionManager, outputQueue);
-		new Thread(outputQueueProcessor, "OutputQueueProcessor").start();
-	}
-	
-	/**
-	 * Begin the cycle of constantly waiting for the input queue to have
-	 * data in it, and processing it.
-	 */
-	@SuppressWarnings("deprecation")
-	public void process() {
-		while (alive) {
-			InputMessageQueue input = inputQueue.dequeue();
-			if (input == null) {
-				Thread.currentThread().suspend();
-			} else {
-				protocolManager.parseMessages(input);
-			}
-		}
-	}
-
-}
+package server.main;
+
+import java.util.ArrayList;
+import java.util.Properties;
+
+import server.services.ServiceManager;
+import server.services.connection.ConnectionManager;
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.ProtocolManager;
+import server.services.user.UserManager;
+import server.services.database.DatabaseManager;
+import server.services.event.EventManager;
+
+/**
+ * This is the main Server component. It is the first piece to be brought
+ * up, and it is responsible for instantiating all the various GlobalService's,
+ * the global IO queues, and for listening and processing the input queue.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class Server {
+
+	private static final String THREADS_VIRTUAL = "virtual";
+	
+	/* The most input message queues handed to the Dispatcher in one go. */
+	private static final int DISPATCH_BATCH = 64;
+
+	private ConnectionManager connectionManager;
+	private UserManager userManager;
+	private ProtocolManager protocolManager;
+	private DatabaseManager databaseManager;
+	private EventManager eventManager;
+	
+	private GlobalInputMessageQueue inputQueue;
+	private GlobalOutputMessageQueue outputQueue;
+	private Dispatcher dispatcher;
+	
+	private volatile boolean alive = true;
+	
+	protected Server(Properties serverConfig, Properties databaseConfig,
+			Properties connectionConfig, Properties userConfig,
+			Properties protocolConfig) {
+		this(serverConfig, databaseConfig, connectionConfig, userConfig, protocolConfig, new Properties());
+	}
+	
+	protected Server(Properties serverConfig, Properties databaseConfig,
+			Properties connectionConfig, Properties userConfig,
+			Properties protocolConfig, Properties eventConfig) {
+		
+		ThreadSpawner.setVirtualThreads(THREADS_VIRTUAL.equals(serverConfig.getProperty("threads")));
+		
+		int queueCapacity = getIntSetting(serverConfig, "queue_capacity", GlobalInputMessageQueue.DEFAULT_CAPACITY);
+		WaitStrategy waitStrategy = WaitStrategy.fromName(serverConfig.getProperty("queue_wait", "park").trim());
+		if (waitStrategy == null) {
+			System.err.println("Invalid server_queue_wait, parking idle queue consumers.");
+			waitStrategy = WaitStrategy.PARK;
+		}
+		int[] weights = {
+				getIntSetting(serverConfig, "queue_weight_low", PriorityScheduler.DEFAULT_WEIGHTS[0]),
+				getIntSetting(serverConfig, "queue_weight_medium", PriorityScheduler.DEFAULT_WEIGHTS[1]),
+				getIntSetting(serverConfig, "queue_weight_high", PriorityScheduler.DEFAULT_WEIGHTS[2]) };
+		long maxWait = getIntSetting(serverConfig, "queue_max_wait", (int) PriorityScheduler.DEFAULT_MAX_WAIT);
+		int[] maxDepth = {
+				getIntSetting(serverConfig, "shed_depth_low", AdmissionController.DEFAULT_MAX_DEPTH[0], 0),
+				getIntSetting(serverConfig, "shed_depth_medium", AdmissionController.DEFAULT_MAX_DEPTH[1], 0) };
+		long[] maxAge = {
+				getIntSetting(serverConfig, "shed_age_low", (int) AdmissionController.DEFAULT_MAX_AGE[0], 0),
+				getIntSetting(serverConfig, "shed_age_medium", (int) AdmissionController.DEFAULT_MAX_AGE[1], 0) };
+		GlobalInputMessageQueue.configure(queueCapacity, waitStrategy, new PriorityScheduler(weights, maxWait),
+				new AdmissionController(maxDepth, maxAge));
+		GlobalOutputMessageQueue.configure(queueCapacity, waitStrategy, new PriorityScheduler(weights, maxWait));
+		inputQueue = GlobalInputMessageQueue.getGlobalInputMessageQueue();
+		outputQueue = GlobalOutputMessageQueue.getGlobalOutputMessageQueue();
+		
+		ServiceManager.loadConfiguration(ConnectionManager.SERVICE_NAME, connectionConfig);
+		ServiceManager.loadConfiguration(UserManager.SERVICE_NAME, userConfig);
+		ServiceManager.loadConfiguration(ProtocolManager.SERVICE_NAME, protocolConfig);
+		ServiceManager.loadConfiguration(DatabaseManager.SERVICE_NAME, databaseConfig);
+		ServiceManager.loadConfiguration(EventManager.SERVICE_NAME, eventConfig);
+		
+		ServiceManager.startServices(Boolean.parseBoolean(serverConfig.getProperty("parallel_startup", "true").trim()));
+		eventManager = ServiceManager.getEventManager();
+		databaseManager = ServiceManager.getDatabaseManager();
+		connectionManager = ServiceManager.getConnectionManager();
+		userManager = ServiceManager.getUserManager();
+		protocolManager = ServiceManager.getProtocolManager();
+		
+		// With direct delivery, replies never go through the global output queue.
+		if (!protocolManager.isDirectDelivery()) {
+			OutputQueueProcessor outputQueueProcessor = new OutputQueueProcessor(connectionManager, outputQueue);
+			ThreadSpawner.newThread(outputQueueProcessor, "OutputQueueProcessor").start();
+		}
+		
+		int dispatchWorkers = getIntSetting(serverConfig, "dispatch_workers", 1);
+		if (dispatchWorkers > 1) {
+			dispatcher = new Dispatcher(protocolManager, dispatchWorkers, inputQueue.getAdmissionController());
+			dispatcher.start();
+		}
+	}
+	
+	/**
+	 * Reads a positive numeric setting from the server's configuration. If the
+	 * setting is invalid, the default is used instead.
+	 * 
+	 * @param serverConfig The server's configuration.
+	 * @param key The setting to read.
+	 * @param defaultValue The value to use if the setting is absent or invalid.
+	 * @return The configured value, or <code>defaultValue</code>.
+	 */
+	private static int getIntSetting(Properties serverConfig, String key, int defaultValue) {
+		return getIntSetting(serverConfig, key, defaultValue, 1);
+	}
+	
+	/**
+	 * Reads a numeric setting with the given minimum from the server's
+	 * configuration. If the setting is invalid, the default is used instead.
+	 * 
+	 * @param serverConfig The server's configuration.
+	 * @param key The setting to read.
+	 * @param defaultValue The value to use if the setting is absent or invalid.
+	 * @param minimum The smallest valid value.
+	 * @return The configured value, or <code>defaultValue</code>.
+	 */
+	private static int getIntSetting(Properties serverConfig, String key, int defaultValue, int minimum) {
+		String value = serverConfig.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int parsed = Integer.parseInt(value.trim());
+			if (parsed >= minimum) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {}
+		System.err.println("Invalid server_" + key + ", using " + defaultValue + ".");
+		return defaultValue;
+	}
+	
+	/**
+	 * Begin the cycle of constantly waiting for the input queue to have
+	 * data in it, and processing it. If the server was configured with more
+	 * than one dispatch worker, the messages are drained in batches and
+	 * handed to the Dispatcher instead of being parsed on this thread.
+	 */
+	public void process() {
+		ArrayList<InputMessageQueue> batch = new ArrayList<InputMessageQueue>(DISPATCH_BATCH);
+		while (alive) {
+			if (dispatcher != null) {
+				if (inputQueue.drainTo(batch, DISPATCH_BATCH) == 0) {
+					inputQueue.waitForMessages();
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					dispatcher.dispatch(batch.get(i));
+				}
+				batch.clear();
+			} else {
+				InputMessageQueue input = inputQueue.dequeue();
+				if (input == null) {
+					inputQueue.waitForMessages();
+				} else {
+					inputQueue.getAdmissionController().started(input, System.nanoTime());
+					protocolManager.parseMessages(input);
+				}
+			}
+		}
+	}
+
+}
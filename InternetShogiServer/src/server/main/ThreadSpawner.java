@@ -0,0 +1,86 @@
+package server.main;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the long-lived threads the server uses for client I/O and for
+ * processing its output queue. By default these are ordinary platform
+ * threads; if virtual threads are enabled and the running JVM supports
+ * them, virtual threads are created instead, which makes a thread per
+ * client connection far cheaper.
+ *
+ * Virtual threads are looked up reflectively so that the server still
+ * builds and runs on JVMs which predate them.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class ThreadSpawner {
+
+	private static volatile boolean virtual = false;
+	private static Method ofVirtual;
+	private static Method name;
+	private static Method unstarted;
+
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+	}
+
+	/**
+	 * Checks whether the running JVM is able to create virtual threads.
+	 *
+	 * @return <code>true</code> if virtual threads are supported.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Chooses whether new threads should be virtual threads. If they are
+	 * requested but not supported by the JVM, platform threads will still
+	 * be used.
+	 *
+	 * @param useVirtualThreads <code>true</code> to request virtual threads.
+	 * @return <code>true</code> if new threads will now be virtual threads.
+	 */
+	public static boolean setVirtualThreads(boolean useVirtualThreads) {
+		virtual = useVirtualThreads && isVirtualThreadSupported();
+		return virtual;
+	}
+
+	/**
+	 * Checks whether new threads are created as virtual threads.
+	 *
+	 * @return <code>true</code> if new threads will be virtual threads.
+	 */
+	public static boolean isUsingVirtualThreads() {
+		return virtual;
+	}
+
+	/**
+	 * Creates a new, unstarted thread which will execute the given task.
+	 *
+	 * @param task The task to run on the new thread.
+	 * @param threadName The name of the new thread.
+	 * @return The new thread. It must still be started by the caller.
+	 */
+	public static Thread newThread(Runnable task, String threadName) {
+		if (virtual) {
+			try {
+				Object builder = name.invoke(ofVirtual.invoke(null), threadName);
+				return (Thread) unstarted.invoke(builder, task);
+			} catch (Exception e) {
+				// Fall through to a platform thread.
+			}
+		}
+		return new Thread(task, threadName);
+	}
+
+}
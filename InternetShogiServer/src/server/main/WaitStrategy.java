@@ -0,0 +1,48 @@
+package server.main;
+
+/**
+ * How the consumer of a global message queue waits while the queue is empty.
+ * Spinning gives the lowest latency but keeps a core busy; parking frees the
+ * core but costs a wakeup for every message that arrives at an idle queue.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public enum WaitStrategy {
+
+	/**
+	 * Checks the queue again immediately, in a tight loop.
+	 */
+	BUSY_SPIN,
+
+	/**
+	 * Yields the processor between checks of the queue.
+	 */
+	YIELD,
+
+	/**
+	 * Yields for a short while, then parks the consumer until a producer
+	 * wakes it up.
+	 */
+	PARK;
+
+	/**
+	 * Looks up a WaitStrategy by its configuration name: <code>spin</code>,
+	 * <code>yield</code> or <code>park</code>.
+	 *
+	 * @param name The configured name.
+	 * @return The corresponding WaitStrategy, or <code>null</code> if the name
+	 * is not recognised.
+	 */
+	public static WaitStrategy fromName(String name) {
+		if (name.equalsIgnoreCase("spin")) {
+			return BUSY_SPIN;
+		} else if (name.equalsIgnoreCase("yield")) {
+			return YIELD;
+		} else if (name.equalsIgnoreCase("park")) {
+			return PARK;
+		}
+		return null;
+	}
+
+}
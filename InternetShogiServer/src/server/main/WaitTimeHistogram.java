@@ -0,0 +1,138 @@
+package server.main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of how long messages waited in a queue before being dequeued.
+ * Bucket <code>i</code> counts the waits of less than 2<sup>i</sup>
+ * microseconds which did not fit in bucket <code>i - 1</code>; the last bucket
+ * also counts every longer wait. Recording a wait never locks or allocates,
+ * and the histogram may be read from any thread while it is being recorded.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class WaitTimeHistogram {
+
+	/**
+	 * The number of buckets. The last one starts at about 17 minutes.
+	 */
+	public static final int BUCKETS = 32;
+
+	private AtomicLongArray buckets;
+	private AtomicLong count;
+	private AtomicLong totalNanos;
+	private AtomicLong maxNanos;
+
+	/**
+	 * Constructs a new, empty WaitTimeHistogram.
+	 */
+	public WaitTimeHistogram() {
+		buckets = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		totalNanos = new AtomicLong();
+		maxNanos = new AtomicLong();
+	}
+
+	/**
+	 * Records a single wait.
+	 *
+	 * @param nanos How long the message waited, in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	/**
+	 * Get the number of waits recorded in a bucket.
+	 *
+	 * @param bucket The index of the bucket, from 0 to <code>BUCKETS - 1</code>.
+	 * @return The number of waits in the bucket.
+	 */
+	public long getBucketCount(int bucket) {
+		return buckets.get(bucket);
+	}
+
+	/**
+	 * Get the upper bound of a bucket.
+	 *
+	 * @param bucket The index of the bucket, from 0 to <code>BUCKETS - 1</code>.
+	 * @return The longest wait counted in the bucket, in microseconds, or
+	 * <code>Long.MAX_VALUE</code> for the last bucket.
+	 */
+	public static long getBucketUpperBound(int bucket) {
+		return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	/**
+	 * Get the number of waits recorded.
+	 *
+	 * @return The number of waits recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get the average wait.
+	 *
+	 * @return The average wait, in microseconds.
+	 */
+	public long getAverage() {
+		long waits = count.get();
+		return (waits == 0) ? 0 : totalNanos.get() / waits / 1000;
+	}
+
+	/**
+	 * Get the longest wait recorded.
+	 *
+	 * @return The longest wait, in microseconds.
+	 */
+	public long getMax() {
+		return maxNanos.get() / 1000;
+	}
+
+	/**
+	 * Estimates a percentile of the recorded waits. The result is the upper
+	 * bound of the bucket the percentile falls in, so it is accurate to
+	 * within a factor of two.
+	 *
+	 * @param percentile The percentile to estimate, between 0 and 100.
+	 * @return An upper bound on the percentile, in microseconds.
+	 */
+	public long getPercentile(double percentile) {
+		long waits = count.get();
+		if (waits == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(waits * Math.min(Math.max(percentile, 0), 100) / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(getBucketUpperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + " avg=" + getAverage() + "us p50<="
+				+ getPercentile(50) + "us p99<=" + getPercentile(99)
+				+ "us max=" + getMax() + "us";
+	}
+
+}
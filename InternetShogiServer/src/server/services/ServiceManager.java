@@ -1,189 +1,378 @@
-package server.services;
-
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Properties;
-
-import server.services.connection.ConnectionManager;
-import server.services.protocol.ProtocolManager;
-import server.services.user.UserManager;
-import server.services.database.DatabaseManager;
-import server.services.event.EventManager;
-
-/**
- * The ServiceManager is one of the server's key subsystems. It is responsible for
- * registering and loading every GlobalService on the system, and ensuring that they
- * are only loaded once and do not conflict with each other.
- * 
- * @author Adrian Petrescu
- *
- */
-public class ServiceManager {
-
-	private static ConcurrentHashMap<String, GlobalService> serviceList = new ConcurrentHashMap<String, GlobalService>();
-	private static ConcurrentHashMap<String, Properties> configurationList = new ConcurrentHashMap<String, Properties>();
-	
-	/**
-	 * Loads a Properties file as the configuration for the named service. Note that
-	 * this method has no effect if the named service has already been started - this
-	 * method <b>must</b> be called before the service is first used.
-	 * 
-	 * @param serviceName The service to configure.
-	 * @param properties The Properties file containing the appropriate configuration.
-	 * @return <code>true</code> if the service has not previously been started and loading
-	 * the configuration was successful. <code>false</code> if the service was already started
-	 * and this configuration was useless.
-	 */
-	public static boolean loadConfiguration(String serviceName, Properties properties) {
-		if (serviceList.containsKey(serviceName)) {
-			return false;
-		} else {
-			configurationList.put(serviceName, properties);
-			return true;
-		}
-	}
-	
-	/**
-	 * Get a GlobalService by name. This method should only be used for third-party 
-	 * GlobalServices. The "core" services each have their own special accessor.
-	 * 
-	 * @param serviceName The unique string identifying the desired GlobalService.
-	 * @return The named GlobalService.
-	 * @throws InvalidServiceException thrown if the named GlobalService has not been
-	 * successfully registered.
-	 */
-	public static GlobalService getService(String serviceName) throws InvalidServiceException {
-		return serviceList.get(serviceName);
-	}
-	
-	/**
-	 * Get access to the ConnectionManager service, which controls the threads for
-	 * every individual client connection.
-	 * 
-	 * If the ConnectionManager has not been accessed before, it will be created now.
-	 * 
-	 * @return A reference to the ConnectionManager.
-	 */
-	public static ConnectionManager getConnectionManager() {
-		if (!serviceList.containsKey(ConnectionManager.SERVICE_NAME)) {
-			ConnectionManager connectionManager = new ConnectionManager();
-			try {
-				if (configurationList.containsKey(ConnectionManager.SERVICE_NAME)) {
-					connectionManager.initialize(configurationList.get(ConnectionManager.SERVICE_NAME));
-				} else {
-					connectionManager.initialize(new Properties());
-				}
-			} catch (InvalidServiceConfigurationException e) {
-				System.err.println(e.getMessage());
-				System.exit(-1);
-			}
-			serviceList.put(ConnectionManager.SERVICE_NAME, connectionManager);
-		}
-		return (ConnectionManager) serviceList.get(ConnectionManager.SERVICE_NAME);
-	}
-	
-	/**
-	 * Get access to the ProtocolManager service, which controls the ProtocolMap and
-	 * each individual ProtocolModule.
-	 * 
-	 * If the ProtocolManager has not been accessed before, it will be created now.
-	 * 
-	 * @return A reference to the ProtocolManager.
-	 */
-	public static ProtocolManager getProtocolManager() {
-		if (!serviceList.containsKey(ProtocolManager.SERVICE_NAME)) {
-			ProtocolManager protocolManager = new ProtocolManager();
-			try {
-				if (configurationList.containsKey(ProtocolManager.SERVICE_NAME)) {
-					protocolManager.initialize(configurationList
-							.get(ProtocolManager.SERVICE_NAME));
-				} else {
-					protocolManager.initialize(new Properties());
-				}
-			} catch (InvalidServiceConfigurationException e) {
-				System.err.println(e.getMessage());
-				System.exit(-1);
-			}
-			serviceList.put(ProtocolManager.SERVICE_NAME, protocolManager);
-		}
-		return (ProtocolManager) serviceList.get(ProtocolManager.SERVICE_NAME);
-	}
-	
-	/**
-	 * Get access to the UserManager service, which controls the data structures
-	 * for each individual registered User.
-	 * 
-	 * If the UserManager has not been accessed before, it will be created now.
-	 * 
-	 * @return A reference to the UserManager.
-	 */
-	public static UserManager getUserManager() {
-		if (!serviceList.containsKey(UserManager.SERVICE_NAME)) {
-			UserManager userManager = new UserManager();
-			try {
-				if (configurationList.containsKey(UserManager.SERVICE_NAME)) {
-					userManager.initialize(configurationList.get(UserManager.SERVICE_NAME));
-				} else {
-					userManager.initialize(new Properties());
-				}
-			} catch (InvalidServiceConfigurationException e) {
-				System.err.println(e.getMessage());
-				System.exit(-1);
-			}
-			serviceList.put(UserManager.SERVICE_NAME, userManager);
-		}
-		return (UserManager) serviceList.get(UserManager.SERVICE_NAME);
-	}	
-	
-	/**
-	 * Get access to the EventManager service, which registers events and their
-	 * callbacks.
-	 * 
-	 * If the EventManager has not been accessed before, it will be created now.
-	 * 
-	 * @return A reference to the EventManager.
-	 */
-	public static EventManager getEventManager() {
-		if (!serviceList.containsKey(EventManager.SERVICE_NAME)) {
-			EventManager eventManager = new EventManager();
-			try {
-				if (configurationList.containsKey(EventManager.SERVICE_NAME)) {
-					eventManager.initialize(configurationList.get(EventManager.SERVICE_NAME));
-				} else {
-					eventManager.initialize(new Properties());
-				}
-			} catch (InvalidServiceConfigurationException e) {
-				System.err.println(e.getMessage());
-				System.exit(-1);
-			}
-			serviceList.put(EventManager.SERVICE_NAME, eventManager);
-		}
-		return (EventManager) serviceList.get(EventManager.SERVICE_NAME);
-	}
-	
-	/**
-	 * Get access to the DatabaseManager service, which connects, queries, and
-	 * updates the server backend.
-	 * 
-	 * If the DatabaseManager has not been accessed before, it will be created now.
-	 * 
-	 * @return A reference to the DatabaseManager.
-	 */
-	public static DatabaseManager getDatabaseManager() {
-		if (!serviceList.containsKey(DatabaseManager.SERVICE_NAME)) {
-			DatabaseManager databaseManager = new DatabaseManager();
-			try {
-				if (configurationList.containsKey(DatabaseManager.SERVICE_NAME)) {
-					databaseManager.initialize(configurationList.get(DatabaseManager.SERVICE_NAME));
-				} else {
-					databaseManager.initialize(new Properties());
-				}
-			} catch (InvalidServiceConfigurationException e) {
-				System.err.println(e.getMessage());
-				System.exit(-1);
-			}
-			serviceList.put(DatabaseManager.SERVICE_NAME, databaseManager);
-		}
-		return (DatabaseManager) serviceList.get(DatabaseManager.SERVICE_NAME);
-	}
-
-}
+package server.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import server.main.ThreadSpawner;
+
+import server.services.connection.ConnectionManager;
+import server.services.protocol.ProtocolManager;
+import server.services.user.UserManager;
+import server.services.database.DatabaseManager;
+import server.services.event.EventManager;
+
+/**
+ * The ServiceManager is one of the server's key subsystems. It is responsible for
+ * registering and loading every GlobalService on the system, and ensuring that they
+ * are only loaded once and do not conflict with each other.
+ * 
+ * A GlobalService is started the first time it is asked for, once every service
+ * it depends on has been started. If several threads ask for the same service at
+ * once, exactly one of them initializes it while the others wait for it to finish.
+ * <code>startServices</code> starts all the core services this way, each on its
+ * own thread, so services which do not depend on each other are initialized at
+ * the same time, and records how long each one took.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class ServiceManager {
+
+	/* The core services, in the order they are reported. */
+	private static final String[] coreServices = { EventManager.SERVICE_NAME,
+		DatabaseManager.SERVICE_NAME, ConnectionManager.SERVICE_NAME,
+		UserManager.SERVICE_NAME, ProtocolManager.SERVICE_NAME };
+	
+	private static ConcurrentHashMap<String, GlobalService> serviceList = new ConcurrentHashMap<String, GlobalService>();
+	private static ConcurrentHashMap<String, Properties> configurationList = new ConcurrentHashMap<String, Properties>();
+	private static ConcurrentHashMap<String, Startup> startupList = new ConcurrentHashMap<String, Startup>();
+	private static ConcurrentHashMap<String, ServiceFactory> factoryList = new ConcurrentHashMap<String, ServiceFactory>();
+	
+	/**
+	 * Creates a service which is not one of the core services, so that the
+	 * startup of services other than the core ones can be tested.
+	 */
+	interface ServiceFactory {
+		GlobalService newService();
+	}
+	
+	/**
+	 * The start of a single GlobalService. It is run once, by the first thread
+	 * to ask for the service, and remembers how long each step took.
+	 */
+	private static class Startup implements Callable<GlobalService> {
+		private final String serviceName;
+		private final FutureTask<GlobalService> task;
+		private volatile Thread starter;
+		/* When the startup began, how long creating the service took, when its
+		 * dependencies were ready, and when it finished. */
+		private long began;
+		private long created;
+		private long ready;
+		private long finished;
+		
+		Startup(String serviceName) {
+			this.serviceName = serviceName;
+			this.task = new FutureTask<GlobalService>(this);
+		}
+		
+		public GlobalService call() {
+			began = System.nanoTime();
+			GlobalService service = newService(serviceName);
+			created = System.nanoTime() - began;
+			for (String dependency : service.getDependencies()) {
+				start(dependency);
+			}
+			ready = System.nanoTime();
+			try {
+				Properties properties = configurationList.get(serviceName);
+				service.initialize((properties == null) ? new Properties() : properties);
+			} catch (InvalidServiceConfigurationException e) {
+				System.err.println(e.getMessage());
+				System.exit(-1);
+			}
+			finished = System.nanoTime();
+			serviceList.put(serviceName, service);
+			return service;
+		}
+	}
+	
+	/**
+	 * Sets the factory used to create the service of the given name, if no
+	 * other factory has been set for it already.
+	 * 
+	 * @param serviceName The name of the service.
+	 * @param factory The factory which creates it.
+	 */
+	static void registerFactory(String serviceName, ServiceFactory factory) {
+		factoryList.putIfAbsent(serviceName, factory);
+	}
+	
+	/**
+	 * Creates, but does not initialize, one of the core services, or a
+	 * service with a registered factory.
+	 * 
+	 * @param serviceName The name of the service.
+	 * @return A new instance of the service.
+	 */
+	private static GlobalService newService(String serviceName) {
+		if (serviceName.equals(ConnectionManager.SERVICE_NAME)) {
+			return new ConnectionManager();
+		} else if (serviceName.equals(ProtocolManager.SERVICE_NAME)) {
+			return new ProtocolManager();
+		} else if (serviceName.equals(UserManager.SERVICE_NAME)) {
+			return new UserManager();
+		} else if (serviceName.equals(EventManager.SERVICE_NAME)) {
+			return new EventManager();
+		} else if (serviceName.equals(DatabaseManager.SERVICE_NAME)) {
+			return new DatabaseManager();
+		}
+		ServiceFactory factory = factoryList.get(serviceName);
+		if (factory != null) {
+			return factory.newService();
+		}
+		throw new IllegalArgumentException("No such service " + serviceName);
+	}
+	
+	/**
+	 * Get a service, starting it and its dependencies first if no thread has
+	 * yet. If another thread is starting it, this waits until it is done.
+	 * 
+	 * @param serviceName The name of the service.
+	 * @return The initialized service.
+	 * @throws IllegalStateException Thrown if the service depends, directly
+	 * or not, on itself.
+	 */
+	static GlobalService start(String serviceName) {
+		GlobalService service = serviceList.get(serviceName);
+		if (service != null) {
+			return service;
+		}
+		Startup startup = startupList.get(serviceName);
+		if (startup == null) {
+			Startup created = new Startup(serviceName);
+			startup = startupList.putIfAbsent(serviceName, created);
+			if (startup == null) {
+				startup = created;
+				startup.starter = Thread.currentThread();
+				startup.task.run();
+			}
+		}
+		if (!startup.task.isDone() && startup.starter == Thread.currentThread()) {
+			throw new IllegalStateException(serviceName + " depends on itself.");
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return startup.task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(serviceName + " failed to start.", e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Starts every core service. With <code>parallel</code> set, each one is
+	 * started on its own thread, so the services only wait for the ones they
+	 * depend on; otherwise they are started one after another on this thread.
+	 * Either way, this returns once they have all been initialized.
+	 * 
+	 * @param parallel Whether to start independent services at the same time.
+	 */
+	public static void startServices(boolean parallel) {
+		if (!parallel) {
+			for (String serviceName : coreServices) {
+				start(serviceName);
+			}
+			return;
+		}
+		Thread[] threads = new Thread[coreServices.length];
+		for (int i = 0; i < coreServices.length; i++) {
+			final String serviceName = coreServices[i];
+			threads[i] = ThreadSpawner.newThread(new Runnable() {
+				public void run() {
+					start(serviceName);
+				}
+			}, "ServiceStartup-" + serviceName);
+			threads[i].start();
+		}
+		boolean interrupted = false;
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		// Surface any service which failed on its own thread.
+		for (String serviceName : coreServices) {
+			start(serviceName);
+		}
+	}
+	
+	/**
+	 * Describes how long each service took to start, and how long each of the
+	 * ProtocolManager's modules took to load. Every time is in milliseconds.
+	 * For each service, <i>at</i> is when it was first asked for, counting
+	 * from the first service, <i>wait</i> is how long it then waited for its
+	 * dependencies, and <i>init</i> is how long it took to create and
+	 * initialize.
+	 * 
+	 * @return The report, one line per service or module, or an empty string
+	 * if no service has finished starting.
+	 */
+	public static String getStartupReport() {
+		List<Startup> startups = new ArrayList<Startup>();
+		for (Startup startup : startupList.values()) {
+			if (startup.task.isDone() && serviceList.containsKey(startup.serviceName)) {
+				startups.add(startup);
+			}
+		}
+		if (startups.isEmpty()) {
+			return "";
+		}
+		Collections.sort(startups, new Comparator<Startup>() {
+			public int compare(Startup a, Startup b) {
+				return Long.compare(a.began, b.began);
+			}
+		});
+		long first = startups.get(0).began;
+		long last = first;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%-24s %9s %9s %9s%n", "service", "at", "wait", "init"));
+		for (Startup startup : startups) {
+			last = Math.max(last, startup.finished);
+			report.append(String.format("%-24s %9.1f %9.1f %9.1f%n", startup.serviceName,
+					millis(startup.began - first), millis(startup.ready - startup.began - startup.created),
+					millis(startup.finished - startup.ready + startup.created)));
+		}
+		GlobalService protocolManager = serviceList.get(ProtocolManager.SERVICE_NAME);
+		if (protocolManager != null) {
+			for (Map.Entry<String, Long> module : ((ProtocolManager) protocolManager).getModuleStartupTimes().entrySet()) {
+				report.append(String.format("  module %-16s %29.1f%n", module.getKey(),
+						millis(module.getValue().longValue())));
+			}
+		}
+		report.append(String.format("Services started in %.1f ms.%n", millis(last - first)));
+		return report.toString();
+	}
+	
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+	
+	/**
+	 * Loads a Properties file as the configuration for the named service. Note that
+	 * this method has no effect if the named service has already been started - this
+	 * method <b>must</b> be called before the service is first used.
+	 * 
+	 * @param serviceName The service to configure.
+	 * @param properties The Properties file containing the appropriate configuration.
+	 * @return <code>true</code> if the service has not previously been started and loading
+	 * the configuration was successful. <code>false</code> if the service was already started
+	 * and this configuration was useless.
+	 */
+	public static boolean loadConfiguration(String serviceName, Properties properties) {
+		if (startupList.containsKey(serviceName)) {
+			return false;
+		} else {
+			configurationList.put(serviceName, properties);
+			return true;
+		}
+	}
+	
+	/**
+	 * Get a GlobalService by name. This method should only be used for third-party 
+	 * GlobalServices. The "core" services each have their own special accessor.
+	 * 
+	 * @param serviceName The unique string identifying the desired GlobalService.
+	 * @return The named GlobalService.
+	 * @throws InvalidServiceException thrown if the named GlobalService has not been
+	 * successfully registered.
+	 */
+	public static GlobalService getService(String serviceName) throws InvalidServiceException {
+		return serviceList.get(serviceName);
+	}
+	
+	/**
+	 * Get access to the ConnectionManager service, which controls the threads for
+	 * every individual client connection.
+	 * 
+	 * If the ConnectionManager has not been accessed before, it will be created now,
+	 * after the services it depends on.
+	 * 
+	 * @return A reference to the ConnectionManager.
+	 */
+	public static ConnectionManager getConnectionManager() {
+		return (ConnectionManager) start(ConnectionManager.SERVICE_NAME);
+	}
+	
+	/**
+	 * Get access to the ProtocolManager service, which controls the ProtocolMap and
+	 * each individual ProtocolModule.
+	 * 
+	 * If the ProtocolManager has not been accessed before, it will be created now,
+	 * after the services it depends on.
+	 * 
+	 * @return A reference to the ProtocolManager.
+	 */
+	public static ProtocolManager getProtocolManager() {
+		return (ProtocolManager) start(ProtocolManager.SERVICE_NAME);
+	}
+	
+	/**
+	 * Get access to the UserManager service, which controls the data structures
+	 * for each individual registered User.
+	 * 
+	 * If the UserManager has not been accessed before, it will be created now,
+	 * after the services it depends on.
+	 * 
+	 * @return A reference to the UserManager.
+	 */
+	public static UserManager getUserManager() {
+		return (UserManager) start(UserManager.SERVICE_NAME);
+	}
+	
+	/**
+	 * Get access to the EventManager service, which registers events and their
+	 * callbacks.
+	 * 
+	 * If the EventManager has not been accessed before, it will be created now,
+	 * after the services it depends on.
+	 * 
+	 * @return A reference to the EventManager.
+	 */
+	public static EventManager getEventManager() {
+		return (EventManager) start(EventManager.SERVICE_NAME);
+	}
+	
+	/**
+	 * Get access to the DatabaseManager service, which connects, queries, and
+	 * updates the server backend.
+	 * 
+	 * If the DatabaseManager has not been accessed before, it will be created now,
+	 * after the services it depends on.
+	 * 
+	 * @return A reference to the DatabaseManager.
+	 */
+	public static DatabaseManager getDatabaseManager() {
+		return (DatabaseManager) start(DatabaseManager.SERVICE_NAME);
+	}
+
+}
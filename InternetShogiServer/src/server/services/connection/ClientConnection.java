@@ -1,238 +1,444 @@
-package server.services.connection;
-
-import java.net.Socket;
-import java.io.BufferedReader;
-import java.io.PrintWriter;
-import java.io.IOException;
-
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-
-import server.main.GlobalInputMessageQueue;
-import server.services.ServiceManager;
-import server.services.protocol.InputMessageQueue;
-import server.services.protocol.ProtocolMessage;
-import server.services.user.User;
-
-/**
- * This class represents a unique network connection to a client, associated
- * with a particular User. In general, there will be exactly one instance of
- * <code>ClientConnection</code> for every user connected to the server at any
- * given moment.
- * 
- * @author Adrian Petrescu
- *
- */
-public class ClientConnection {
-
-	/**
-	 * This thread listens constantly on the given port for input from the
-	 * client. Once it recieves a full line, the <code>ClientListener</code>
-	 * notifies its parent <code>ClientConnection</code>.
-	 * 
-	 * @author Adrian Petrescu
-	 *
-	 */
-	class InputListener implements Runnable {
-		private BufferedReader in;
-		private volatile boolean connected;
-		private ClientConnection clientConnection;
-		private InputListener(ClientConnection clientConnection,
-				BufferedReader in) {
-			this.clientConnection = clientConnection;
-			this.in = in;
-			this.connected = true;
-		}
-
-		public void connect() {
-			connected = true;
-		}
-
-		public void disconnect() {
-			connected = false;
-		}
-
-		public void run() {
-			while (connected) {
-				try {
-					String line = in.readLine();
-					if (line == null) {
-						connected = false;
-					} else {
-						clientConnection.messageRecieved(line);
-					}
-				} catch (IOException e) {
-					// An error occurred, we'll let the server decide whether we
-					// should keep trying.
-					connected = clientConnection.connectionErrorOccured(e);
-				}
-			}
-			clientConnection.disconnect();
-		}
-	}
-
-	/**
-	 * This thread is instantiated every time the server needs to send data
-	 * to a client. It blocks so that the server doesn't have to.
-	 * 
-	 * @author Adrian Petrescu
-	 *
-	 */
-	class OutputWriter implements Runnable {
-		private PrintWriter out;
-		private ClientConnection clientConnection;
-		private BlockingQueue<ProtocolMessage> outputQueue;
-		
-		/* An arbitrary number representing how many messages could presumably be
-		 * sent to the user at the same time. Tweaking this value can improve
-		 * performance.
-		 */
-		private static final int MAX_CAPACITY = 150;
-
-		private OutputWriter(ClientConnection clientConnection,
-				PrintWriter out) {
-			this.clientConnection = clientConnection;
-			this.out = out;
-			this.outputQueue = new LinkedBlockingQueue<ProtocolMessage>(MAX_CAPACITY);
-		}
-
-		public void run() {
-			while(true) {
-				try {
-					String line = outputQueue.take().getMessage();
-					out.println(line);
-					out.flush();
-					clientConnection.messageSent();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-		
-		public void sendMessage(ProtocolMessage message) {
-			try {
-				outputQueue.offer(message, 2, TimeUnit.SECONDS);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-	}
-
-	private static final int MAX_FAILURES = 3;
-
-	private InputListener inputListener;
-	private OutputWriter outputWriter;
-	private User user;
-	private Socket socket;
-	private volatile boolean keepConnected;
-	private volatile int numFailures;
-
-	/**
-	 * Constructs a new ClientConnection over the given socket, associated with
-	 * the given user.
-	 * 
-	 * @param user The User who has logged in over this connection.
-	 * @param socket The socket over which the connection was established.
-	 */
-	public ClientConnection(User user, BufferedReader in, PrintWriter out, Socket socket) {
-		inputListener = new InputListener(this, in);
-		outputWriter = new OutputWriter(this, out);
-		this.user = user;
-		this.socket = socket;
-		keepConnected = true;
-		new Thread(inputListener, "ClientListener: " + user.getUserName()).start();
-		new Thread(outputWriter, "OutputListener: " + user.getUserName()).start();
-	}
-
-	/**
-	 * A <code>ClientConnection</code>'s associated InputListener calls
-	 * this method whenever it has received a full line of input from
-	 * the client.
-	 * The ClientConnection wraps it up in an InputMessageQueue and adds it
-	 * to the global message queue to be processed by the server.
-	 * 
-	 * @param message The message sent by the client. 
-	 */
-	private synchronized void messageRecieved(String message) {
-		ProtocolMessage pMessage = new ProtocolMessage(user, message);
-		InputMessageQueue messageQueue = new InputMessageQueue(pMessage);
-		GlobalInputMessageQueue.getGlobalInputMessageQueue().enqueue(
-				messageQueue);
-	}
-
-	/**
-	 * Called by a ClientConnection's associated OutputListener to indicate
-	 * that it has completed sending the data to the client, and the output
-	 * channel is ready for a new message to be written.
-	 */
-	private void messageSent() {
-	}
-
-	/**
-	 * Sends a ProtocolMessage to the client that this ClientConnection is
-	 * connected to.
-	 * The messages are guaranteed to be sent consecutively in exactly the order
-	 * they were added to the OutputMessageQueue.
-	 * 
-	 * @param message The message to queue up for sending.
-	 * @return Returns <code>false</code> if the connection was lost before the message 
-	 * could be sent, and <code>true</code> otherwise. Note that a return value of
-	 * <code>try</code> does <i>not</i> necessarily mean that the message was successfully
-	 * sent, only that the connection was still alive when it began sending.
-	 */
-	public synchronized boolean sendMessage(ProtocolMessage message) {
-		outputWriter.sendMessage(message);
-		return true;
-	}
-
-	/**
-	 * Called by a ClientConnection's associated InputListener if an IOException occurred
-	 * while it was listening for input.
-	 * The ClientConnection is responsible for deciding whether the InputListener should
-	 * maintain the connection.
-	 * 
-	 * @param e The exception thrown by the Socket. The ClientConnection can decide what
-	 * to do based on what went wrong.
-	 * @return <code>true</code> if the InputListener should keep trying to listen for
-	 * more input, and <code>false</code> if it should give up and close the input stream.
-	 */
-	private boolean connectionErrorOccured(IOException e) {
-		numFailures++;
-		if (numFailures > MAX_FAILURES) {
-			keepConnected = false;
-		}
-		return keepConnected;
-	}
-	
-	/**
-	 * Disconnects the associated client. No more input will be read, and no more
-	 * output will be sent.
-	 */
-	protected void disconnect() {
-		keepConnected = false;
-		if (ServiceManager.getConnectionManager().checkUserLoggedIn(user)) {
-			ServiceManager.getConnectionManager().disconnectUser(user);
-		}
-		try {
-			socket.close();
-		} catch (IOException e) {}
-	}
-	
-	/**
-	 * Check whether the associated client still has a connection channel open.
-	 * @return <code>true</code> if there is still a connection, <code>false</code> otherwise.
-	 */
-	protected boolean isConnected() {
-		return keepConnected;
-	}
-	
-	/**
-	 * Get the User which the associated client has logged in as.
-	 * @return The User which the associated client has logged in as.
-	 */
-	public User getUser() {
-		return user;
-	}
-
-}
+package server.services.connection;
+
+import java.net.Socket;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import server.main.GlobalInputMessageQueue;
+import server.main.ThreadSpawner;
+import server.services.ServiceManager;
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.MessageBuilder;
+import server.services.protocol.MessagePool;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.User;
+
+/**
+ * This class represents a unique network connection to a client, associated
+ * with a particular User. In general, there will be exactly one instance of
+ * <code>ClientConnection</code> for every user connected to the server at any
+ * given moment.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class ClientConnection {
+
+	/**
+	 * This thread listens constantly on the given port for input from the
+	 * client. Once it recieves a full line, the <code>ClientListener</code>
+	 * notifies its parent <code>ClientConnection</code>.
+	 * 
+	 * @author Adrian Petrescu
+	 *
+	 */
+	class InputListener implements Runnable {
+		private BufferedReader in;
+		private volatile boolean connected;
+		private ClientConnection clientConnection;
+		private InputListener(ClientConnection clientConnection,
+				BufferedReader in) {
+			this.clientConnection = clientConnection;
+			this.in = in;
+			this.connected = true;
+		}
+
+		public void connect() {
+			connected = true;
+		}
+
+		public void disconnect() {
+			connected = false;
+		}
+
+		public void run() {
+			while (connected) {
+				try {
+					String line = in.readLine();
+					if (line == null) {
+						connected = false;
+					} else {
+						clientConnection.messageRecieved(line);
+					}
+				} catch (IOException e) {
+					// An error occurred, we'll let the server decide whether we
+					// should keep trying.
+					connected = clientConnection.connectionErrorOccured(e);
+				}
+			}
+			clientConnection.disconnect();
+		}
+	}
+
+	/**
+	 * This thread is instantiated every time the server needs to send data
+	 * to a client. It blocks so that the server doesn't have to.
+	 * Everything queued for the client by the time it wakes up is written
+	 * out together with a single flush, optionally lingering a little for
+	 * more output to arrive first, unless one of the messages is urgent.
+	 * Each message is released to the MessagePool as soon as it has been
+	 * copied into the batch.
+	 * 
+	 * @author Adrian Petrescu
+	 *
+	 */
+	class OutputWriter implements Runnable {
+		private OutputStream out;
+		private ClientConnection clientConnection;
+		private OutboundQueue outputQueue;
+		private long lingerNanos;
+		private int maxBatch;
+		private ByteArrayOutputStream batch;
+
+		private OutputWriter(ClientConnection clientConnection,
+				OutputStream out, OutboundQueue outputQueue, OutboundPolicy outboundPolicy) {
+			this.clientConnection = clientConnection;
+			this.out = out;
+			this.outputQueue = outputQueue;
+			lingerNanos = TimeUnit.MICROSECONDS.toNanos(outboundPolicy.getLinger());
+			maxBatch = outboundPolicy.getCapacity();
+			batch = new ByteArrayOutputStream();
+		}
+
+		public void run() {
+			while(true) {
+				try {
+					ProtocolMessage message = outputQueue.take();
+					if (message == null) {
+						// The connection has been closed.
+						return;
+					}
+					long deadline = System.nanoTime() + lingerNanos;
+					boolean urgent = false;
+					int messages = 0;
+					while (message != null) {
+						byte[] encoded = message.getEncoded();
+						batch.write(encoded, 0, encoded.length);
+						urgent |= message.isUrgent();
+						MessagePool.release(message);
+						messages++;
+						if (batch.size() >= maxBatch) {
+							break;
+						}
+						message = outputQueue.poll();
+						if (message == null && !urgent && lingerNanos > 0) {
+							long remaining = deadline - System.nanoTime();
+							if (remaining > 0) {
+								message = outputQueue.poll(remaining, TimeUnit.NANOSECONDS);
+							}
+						}
+					}
+					batch.writeTo(out);
+					out.flush();
+					clientConnection.messagesSent(messages, batch.size());
+					batch.reset();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} catch (IOException e) {
+					// The InputListener notices the broken connection and
+					// disconnects the client; drop whatever was being written.
+					batch.reset();
+				}
+			}
+		}
+	}
+
+	private static final int MAX_FAILURES = 3;
+
+	private InputListener inputListener;
+	private OutputWriter outputWriter;
+	private OutboundQueue outboundQueue;
+	private User user;
+	private Socket socket;
+	private volatile boolean keepConnected;
+	private volatile int numFailures;
+	private boolean tagged;
+	/* Keeps the client's input in order; never held while waiting on output. */
+	private final Object inputLock = new Object();
+
+	/**
+	 * Constructs a new ClientConnection over the given socket, associated with
+	 * the given user. Its threads are not started until <code>start()</code>
+	 * is called.
+	 * 
+	 * @param user The User who has logged in over this connection.
+	 * @param socket The socket over which the connection was established.
+	 * @param outboundPolicy The capacity and OverflowPolicies of the queue of
+	 * messages waiting to be sent to the client.
+	 */
+	public ClientConnection(User user, BufferedReader in, OutputStream out, Socket socket,
+			OutboundPolicy outboundPolicy) {
+		this(user, in, out, socket, outboundPolicy, false);
+	}
+
+	/**
+	 * Constructs a new ClientConnection over the given socket, associated with
+	 * the given user, for a client which may have negotiated tagged requests.
+	 * Its threads are not started until <code>start()</code> is called.
+	 * 
+	 * @param user The User who has logged in over this connection.
+	 * @param socket The socket over which the connection was established.
+	 * @param outboundPolicy The capacity and OverflowPolicies of the queue of
+	 * messages waiting to be sent to the client.
+	 * @param tagged <code>true</code> if the client's requests may carry
+	 * correlation tags.
+	 */
+	public ClientConnection(User user, BufferedReader in, OutputStream out, Socket socket,
+			OutboundPolicy outboundPolicy, boolean tagged) {
+		this.tagged = tagged;
+		outboundQueue = new OutboundQueue(outboundPolicy);
+		inputListener = new InputListener(this, in);
+		outputWriter = new OutputWriter(this, out, outboundQueue, outboundPolicy);
+		this.user = user;
+		this.socket = socket;
+		keepConnected = true;
+	}
+
+	/**
+	 * Constructs a new ClientConnection associated with the given user, without
+	 * any listening or writing threads. Subclasses which provide their own
+	 * transport (such as the non-blocking NioClientConnection) use this
+	 * constructor, and are responsible for calling <code>messageRecieved</code>
+	 * for each line of input.
+	 * Output is queued on the given OutboundQueue, and subclasses are notified
+	 * through <code>messageQueued</code> so they can write it out.
+	 * 
+	 * @param user The User who has logged in over this connection.
+	 * @param outboundQueue The queue of messages waiting to be sent to the client.
+	 */
+	protected ClientConnection(User user, OutboundQueue outboundQueue) {
+		this(user, outboundQueue, false);
+	}
+
+	/**
+	 * Constructs a new ClientConnection associated with the given user, without
+	 * any listening or writing threads, for a client which may have
+	 * negotiated tagged requests.
+	 * 
+	 * @param user The User who has logged in over this connection.
+	 * @param outboundQueue The queue of messages waiting to be sent to the client.
+	 * @param tagged <code>true</code> if the client's requests may carry
+	 * correlation tags.
+	 */
+	protected ClientConnection(User user, OutboundQueue outboundQueue, boolean tagged) {
+		this.tagged = tagged;
+		this.user = user;
+		this.outboundQueue = outboundQueue;
+		keepConnected = true;
+	}
+
+	/**
+	 * A <code>ClientConnection</code>'s associated InputListener calls
+	 * this method whenever it has received a full line of input from
+	 * the client.
+	 * The ClientConnection wraps it up in an InputMessageQueue, with the
+	 * priority configured for its protocol key, and adds it to the global
+	 * message queue to be processed by the server.
+	 * If the client negotiated tags, a line starting with <code>#<i>tag</i> </code>
+	 * is a tagged request; the tag is taken off the line and kept with the
+	 * message, so that it can be given to the replies.
+	 * If the server is too far behind to take on the message, it is refused
+	 * with a <code>busy <i>key</i></code> reply instead.
+	 * 
+	 * This does not wait for senders of output to the client, which may be
+	 * waiting for the client to catch up. With the NIO transport, this is
+	 * called by the event loop which writes that output, so waiting on them
+	 * would stall every session on the loop.
+	 * 
+	 * @param message The message sent by the client. 
+	 */
+	protected void messageRecieved(String message) {
+		synchronized (inputLock) {
+			receive(message);
+		}
+	}
+
+	private void receive(String message) {
+		String tag = null;
+		if (tagged && message.startsWith("#")) {
+			int space = message.indexOf(' ');
+			if (space > 1) {
+				tag = message.substring(1, space);
+				message = message.substring(space + 1);
+			}
+		}
+		ProtocolMessage pMessage = MessagePool.acquireMessage(user, message);
+		pMessage.setTag(tag);
+		InputMessageQueue messageQueue = MessagePool.acquireInputQueue(pMessage,
+				ServiceManager.getProtocolManager().getPriority(pMessage));
+		if (!GlobalInputMessageQueue.getGlobalInputMessageQueue().offer(messageQueue)) {
+			ProtocolMessage busy = MessageBuilder.forThread("busy")
+					.append(pMessage.getProtocolKey())
+					.build(user);
+			busy.setTag(tag);
+			MessagePool.release(pMessage);
+			MessagePool.release(messageQueue);
+			deliver(busy);
+		}
+	}
+
+	/**
+	 * Called by a ClientConnection's associated OutputListener to indicate
+	 * that it has completed sending the data to the client, and the output
+	 * channel is ready for new messages to be written.
+	 * 
+	 * @param messages The number of messages written together.
+	 * @param bytes The size of the write.
+	 */
+	private void messagesSent(int messages, int bytes) {
+		ServiceManager.getConnectionManager().recordWrite(messages, bytes);
+	}
+
+	/**
+	 * Sends a ProtocolMessage to the client that this ClientConnection is
+	 * connected to.
+	 * The messages are guaranteed to be sent consecutively in exactly the order
+	 * they were added to the OutputMessageQueue.
+	 * If the client's outbound queue is full, the OverflowPolicy of the message
+	 * decides what happens, which may mean waiting for the client to catch up.
+	 * 
+	 * @param message The message to queue up for sending.
+	 * @return Returns <code>false</code> if the connection was lost before the message 
+	 * could be sent, or if the message was dropped, and <code>true</code> otherwise.
+	 * Note that a return value of <code>true</code> does <i>not</i> necessarily mean
+	 * that the message was successfully sent, only that it was queued.
+	 */
+	public synchronized boolean sendMessage(ProtocolMessage message) {
+		return queueMessage(message, true);
+	}
+
+	/**
+	 * Queues a ProtocolMessage to be sent to the client without ever blocking
+	 * the caller. This is used when replies are delivered directly by the
+	 * threads parsing input, which must not be held up by a slow client; if
+	 * the client's outbound queue is full and the message's OverflowPolicy
+	 * would have waited, the message is dropped instead. Nor does it wait
+	 * for a <code>sendMessage</code> which is waiting for room.
+	 * 
+	 * @param message The message to queue up for sending.
+	 * @return <code>true</code> if the message was queued, and <code>false</code>
+	 * if it was dropped or the connection has been lost.
+	 */
+	public boolean deliver(ProtocolMessage message) {
+		return queueMessage(message, false);
+	}
+
+	/**
+	 * Queues a message for the client. The ClientConnection owns the message
+	 * from then on, and releases it to the MessagePool if it is not queued.
+	 */
+	private boolean queueMessage(ProtocolMessage message, boolean mayBlock) {
+		if (keepConnected && outboundQueue.offer(message, mayBlock)) {
+			messageQueued();
+			return true;
+		}
+		MessagePool.release(message);
+		if (keepConnected && outboundQueue.isOverflowed()) {
+			// A slow consumer under the DISCONNECT policy.
+			disconnect();
+		}
+		return false;
+	}
+
+	/**
+	 * Called whenever a message has been placed on the outbound queue.
+	 * Transports which do not dedicate a thread to writing override this to
+	 * schedule the write.
+	 */
+	protected void messageQueued() {
+	}
+
+	/**
+	 * Get the queue of messages waiting to be sent to the client, along with
+	 * its statistics: depth, high-water mark and drop counts.
+	 * 
+	 * @return The client's OutboundQueue.
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+
+	/**
+	 * Called by a ClientConnection's associated InputListener if an IOException occurred
+	 * while it was listening for input.
+	 * The ClientConnection is responsible for deciding whether the InputListener should
+	 * maintain the connection.
+	 * 
+	 * @param e The exception thrown by the Socket. The ClientConnection can decide what
+	 * to do based on what went wrong.
+	 * @return <code>true</code> if the InputListener should keep trying to listen for
+	 * more input, and <code>false</code> if it should give up and close the input stream.
+	 */
+	private boolean connectionErrorOccured(IOException e) {
+		numFailures++;
+		if (numFailures > MAX_FAILURES) {
+			keepConnected = false;
+		}
+		return keepConnected;
+	}
+	
+	/**
+	 * Disconnects the associated client. No more input will be read, and no more
+	 * output will be sent.
+	 */
+	protected void disconnect() {
+		keepConnected = false;
+		outboundQueue.close();
+		if (ServiceManager.getConnectionManager().checkUserLoggedIn(user)) {
+			ServiceManager.getConnectionManager().disconnectUser(user);
+		}
+		closeChannel();
+	}
+	
+	/**
+	 * Starts the threads which listen to and write to the client. Called by
+	 * the ConnectionManager once the connection has been registered, so that
+	 * a connection which is refused never reads a line. Connections without
+	 * threads of their own have nothing to start.
+	 */
+	protected void start() {
+		if (inputListener != null) {
+			ThreadSpawner.newThread(inputListener, "ClientListener: " + user.getUserName()).start();
+			ThreadSpawner.newThread(outputWriter, "OutputListener: " + user.getUserName()).start();
+		}
+	}
+	
+	/**
+	 * Closes the underlying network channel to the client. Called once the
+	 * ClientConnection has been disconnected.
+	 */
+	protected void closeChannel() {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+	
+	/**
+	 * Check whether the associated client still has a connection channel open.
+	 * @return <code>true</code> if there is still a connection, <code>false</code> otherwise.
+	 */
+	protected boolean isConnected() {
+		return keepConnected;
+	}
+	
+	/**
+	 * Checks whether the client negotiated tagged requests during its handshake.
+	 * 
+	 * @return <code>true</code> if the client's requests may carry tags.
+	 */
+	public boolean isTagged() {
+		return tagged;
+	}
+	
+	/**
+	 * Get the User which the associated client has logged in as.
+	 * @return The User which the associated client has logged in as.
+	 */
+	public User getUser() {
+		return user;
+	}
+
+}
@@ -1,272 +1,644 @@
-package server.services.connection;
-
-import java.util.Collection;
-import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Iterator;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-
-import server.services.GlobalService;
-import server.services.ServiceManager;
-import server.services.InvalidServiceConfigurationException;
-import server.services.user.NoSuchUserException;
-import server.services.user.User;
-
-/**
- * This GlobalService is one of the core services of the server. It maintains
- * a table of all active connections, listens for new incoming connections, and
- * is responsible for terminating and checking existing connections.
- * 
- * @author Adrian Petrescu
- *
- */
-public class ConnectionManager implements GlobalService {
-	
-	/**
-	 * This thread establishes a ServerSocket on the given port and listens for
-	 * new incoming connections. When they are received, the ConnectionManager is
-	 * notified.
-	 * 
-	 * @author Adrian Petrescu
-	 *
-	 */
-	class ConnectionListener implements Runnable {
-		
-		private int port;
-		private boolean connected;
-		private ServerSocket serverSocket;
-		
-		public ConnectionListener(int port) {
-			this.port = port;
-			connected = true;
-		}
-		
-		public void disconnect() {
-			try {
-				connected = false;
-				serverSocket.close();
-			} catch (IOException e) {}
-		}
-		
-		public void run() {
-			try {
-				serverSocket = new ServerSocket(port);
-			} catch (IOException e1) {
-				e1.printStackTrace();
-				System.exit(-1);
-			}
-				while(connected) {
-					try {
-						Socket s = serverSocket.accept();
-						ServiceManager.getConnectionManager().newConnection(s);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-		}
-	}
-	
-	public static final String SERVICE_NAME = "ConnectionManager";
-	private static final int MAX_RETRIES = 3;
-	private int port;
-	private ConnectionListener listener;
-	private ConcurrentHashMap<User, ClientConnection> connectionTable;
-	private UserConnectedEvent userConnected;
-	private UserDisconnectedEvent userDisconnected;
-	
-	public String getIdentifier() {
-		return SERVICE_NAME;
-	}
-	
-	/**
-	 * Called when the server is ready to accept new incoming connections. A
-	 * ConnectionListener thread is started up that listens on a given port for
-	 * new incoming connections, and establishes a ClientConnection with them.
-	 * 
-	 * @param properties A Properties structure containing configuration data
-	 * for the ConnectionManager.
-	 * <br>
-	 * <b>Required configuration options:</b>
-	 * <br>
-	 * port (the port to listen on).
-	 */
-	public void initialize(Properties properties) throws InvalidServiceConfigurationException {
-		try {
-			port = Integer.parseInt((String) properties.get("port"));
-		} catch (NullPointerException e) {
-			throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, "port");
-		}
-		connectionTable = new ConcurrentHashMap<User, ClientConnection>();
-		userConnected = new UserConnectedEvent();
-		userDisconnected = new UserDisconnectedEvent();
-		ServiceManager.getEventManager().registerEvent(userConnected);
-		ServiceManager.getEventManager().registerEvent(userDisconnected);
-		
-		ConnectionListener listener = new ConnectionListener(port);
-		new Thread(listener, "ConnectionListener").start();
-	}
-	
-	/**
-	 * Called by the ConnectionManager when it has established a socket connection with
-	 * a prospective client. This method is responsible for validating the connection's
-	 * login credentials, creating an associated ClientConnection, and adding it to the
-	 * global connection table.
-	 * 
-	 * @param socket A socket connection to the prospective client.
-	 */
-	private void newConnection(Socket socket) {
-		try {
-			int retries = 0;
-			BufferedReader in = new BufferedReader(new InputStreamReader (socket.getInputStream()));
-			PrintWriter out = new PrintWriter(socket.getOutputStream());
-			String loginString = in.readLine();
-			
-			// Try MAX_RETRIES time to get the proper 'ping' connection request.
-			while ((loginString == null || !loginString.equals("ping")) && retries < MAX_RETRIES) {
-				loginString = in.readLine();
-				retries++;
-			}
-			
-			if (retries >= MAX_RETRIES) {
-				in.close();
-				out.close();
-				socket.close();
-			} else {
-				out.println("pong");
-				out.flush();
-				loginString = in.readLine();
-				if (loginString.startsWith("login ") && loginString.split(" ").length == 3) {
-					User user = null;
-					try {
-						user = ServiceManager.getUserManager().getUser(loginString.split(" ")[1]);
-						
-						// Make sure it's a valid password.
-						if (!ServiceManager.getDatabaseManager().validateLogin(
-								loginString.split(" ")[1],
-								loginString.split(" ")[2])) {
-							out.println("login invalid password");
-							out.flush();
-							out.close();
-							in.close();
-							socket.close();
-							user = null;
-						} else		
-						// Make sure the user isn't already logged in.
-						if (checkUserLoggedIn(user)) {
-							out.println("login invalid already_connected");
-							out.flush();
-							out.close();
-							in.close();
-							socket.close();
-							user = null;
-						}
-					} catch (NoSuchUserException e) {
-						out.println("login invalid register");
-						out.flush();
-						out.close();
-						in.close();
-						socket.close();
-					}
-					
-					// The gauntlet has been run, it's safe to log the user in now.
-					if (user != null) {
-						ClientConnection c = new ClientConnection(user, in, out, socket);
-						connectionTable.put(user, c);
-						
-						userConnected.occured(user.getUserName());
-					}
-					
-				} else {
-					in.close();
-					out.close();
-					socket.close();
-				}
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-	
-	/**
-	 * Get the connection status of a particular User; the ConnectionManager checks
-	 * to see if the client associated with the given User has an active connection
-	 * established with the server.
-	 * 
-	 * @param user The user to check.
-	 * @return <code>true</code> if the given User is currently logged in, and
-	 * <code>false</code> if it is not.
-	 */
-	public synchronized boolean checkUserLoggedIn(User user) {
-		return connectionTable.containsKey(user);
-	}
-	
-	/**
-	 * Get a connection channel with the specified User. This ClientConnection object
-	 * can be used to send data to the particular client.
-	 * ProtocolModules should <b>not</b> use this; it is for the output queue manager
-	 * to use only.
-	 * 
-	 * @param user The User to get a connection with.
-	 * @return A ClientConnection object if the user is currently logged in, aor
-	 * <code>null</code> if not.
-	 */
-	public ClientConnection getUserConnection(User user) {
-		ClientConnection conn = connectionTable.get(user);
-		if (conn == null) {
-			try {
-				Thread.sleep(100);
-				conn = connectionTable.get(user);
-			} catch (InterruptedException e) {}
-		}
-		return conn;
-	}
-	
-	/**
-	 * Get the total number of active connections to the server at the time when the
-	 * method is called.
-	 * @return The total number of active users.
-	 */
-	public int getNumberOfUsersLoggedIn() {
-		return connectionTable.size();
-	}
-	
-	/**
-	 * Log the user out of the server. All further communications will cease, and
-	 * you will no longer be able to get a ClientConnection from the user until
-	 * they log in again.
-	 * @param user The User to log out.
-	 */
-	public synchronized void disconnectUser(User user) {
-		ClientConnection userConnection = connectionTable.get(user);
-		connectionTable.remove(user);
-		if (userConnection != null && userConnection.isConnected()) {			
-			userConnection.disconnect();
-		}
-		userDisconnected.occured(user.getUserName());
-	}
-	
-	
-	/**
-	 * Called when the server is shutting down. The ConnectionManager stops
-	 * accepting any more incoming connections, and iterates through the active 
-	 * connections, closing them cleanly.
-	 */
-	public void shutdown() {
-		listener.disconnect();
-		while (!connectionTable.isEmpty()) {
-			Collection<ClientConnection> connections = connectionTable.values();
-			Iterator<ClientConnection> connectionsIterator = connections.iterator();
-			while (connectionsIterator.hasNext()) {
-				ClientConnection connection = connectionsIterator.next();
-				connection.disconnect();
-				connections.remove(connection);
-			}
-		}
-	}
-
-}
+package server.services.connection;
+
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.Iterator;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import server.main.ThreadSpawner;
+import server.services.GlobalService;
+import server.services.ServiceManager;
+import server.services.InvalidServiceConfigurationException;
+import server.services.event.EventManager;
+import server.services.protocol.MessagePool;
+import server.services.protocol.MessageQueue;
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.NoSuchUserException;
+import server.services.user.User;
+
+/**
+ * This GlobalService is one of the core services of the server. It maintains
+ * a table of all active connections, listens for new incoming connections, and
+ * is responsible for terminating and checking existing connections.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class ConnectionManager implements GlobalService {
+	
+	/**
+	 * This thread establishes a ServerSocket on the given port and listens for
+	 * new incoming connections. When they are received, the ConnectionManager is
+	 * notified.
+	 * 
+	 * @author Adrian Petrescu
+	 *
+	 */
+	class ConnectionListener implements Runnable {
+		
+		private int port;
+		private boolean connected;
+		private ServerSocket serverSocket;
+		
+		public ConnectionListener(int port) {
+			this.port = port;
+			connected = true;
+		}
+		
+		public void disconnect() {
+			try {
+				connected = false;
+				serverSocket.close();
+			} catch (IOException e) {}
+		}
+		
+		public void run() {
+			try {
+				serverSocket = new ServerSocket(port);
+			} catch (IOException e1) {
+				e1.printStackTrace();
+				System.exit(-1);
+			}
+				while(connected) {
+					try {
+						Socket s = serverSocket.accept();
+						ServiceManager.getConnectionManager().newConnection(s);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+		}
+	}
+	
+	public static final String SERVICE_NAME = "ConnectionManager";
+	private static final String[] dependencies = { EventManager.SERVICE_NAME };
+	static final int MAX_RETRIES = 3;
+	
+	/**
+	 * The longest line, in bytes, a client of the <code>nio</code> transport
+	 * may send unless configured otherwise.
+	 */
+	static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+	
+	private static final String TRANSPORT_BLOCKING = "blocking";
+	private static final String TRANSPORT_NIO = "nio";
+	
+	/**
+	 * The ping with which a client asks for its requests to be tagged, and
+	 * the pong which agrees to it.
+	 */
+	static final String PING_TAGS = "ping tags";
+	static final String PONG_TAGS = "pong tags";
+	
+	private int port;
+	private ConnectionListener listener;
+	private NioConnectionListener nioListener;
+	private HandshakePipeline pipeline;
+	private OutboundPolicy outboundPolicy;
+	private boolean tagsEnabled = true;
+	private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+	private ConcurrentHashMap<User, ClientConnection> connectionTable;
+	private UserConnectedEvent userConnected;
+	private UserDisconnectedEvent userDisconnected;
+	private AtomicLong messagesDropped = new AtomicLong();
+	private AtomicLong messagesUndeliverable = new AtomicLong();
+	private AtomicLong writes = new AtomicLong();
+	private AtomicLong messagesWritten = new AtomicLong();
+	private AtomicLong bytesWritten = new AtomicLong();
+	
+	public String getIdentifier() {
+		return SERVICE_NAME;
+	}
+
+	public String[] getDependencies() {
+		return dependencies;
+	}
+	
+	/**
+	 * Called when the server is ready to accept new incoming connections. A
+	 * ConnectionListener thread is started up that listens on a given port for
+	 * new incoming connections, and establishes a ClientConnection with them.
+	 * 
+	 * @param properties A Properties structure containing configuration data
+	 * for the ConnectionManager.
+	 * <br>
+	 * <b>Required configuration options:</b>
+	 * <br>
+	 * port (the port to listen on).
+	 * <br>
+	 * <b>Optional configuration options:</b>
+	 * <br>
+	 * transport (<code>blocking</code>, the default, for a pair of threads per
+	 * client, or <code>nio</code> for a small set of non-blocking event loops).
+	 * <br>
+	 * nio_loops (the number of event loops used by the <code>nio</code> transport;
+	 * defaults to the number of available processors).
+	 * <br>
+	 * max_line_length (the longest line, in bytes, a client of the <code>nio</code>
+	 * transport may send before it is disconnected; defaults to 8192).
+	 * <br>
+	 * handshake_workers, handshake_auth_workers, handshake_queue (the sizes of the
+	 * login handshake pools and of their queues).
+	 * <br>
+	 * handshake_ping_timeout, handshake_login_timeout, handshake_auth_timeout
+	 * (how many milliseconds each handshake stage may take).
+	 * <br>
+	 * outbound_capacity (how many bytes may be waiting to be sent to each client),
+	 * outbound_block_timeout (how many milliseconds a sender waits for room),
+	 * outbound_policy (the OverflowPolicy of every message; <code>block</code>
+	 * by default), and outbound_policy_&lt;class&gt; (the OverflowPolicy of a
+	 * class of messages, with spaces written as underscores, as in
+	 * outbound_policy_room_list).
+	 * <br>
+	 * write_linger (how many microseconds a client's writer waits for more
+	 * output before writing; 0, the default, writes as soon as its queue is
+	 * empty).
+	 * <br>
+	 * tags (<code>true</code>, the default, to let clients which open with
+	 * <code>ping tags</code> tag their requests; <code>false</code> answers
+	 * them with a plain <code>pong</code>).
+	 */
+	public void initialize(Properties properties) throws InvalidServiceConfigurationException {
+		try {
+			port = Integer.parseInt((String) properties.get("port"));
+		} catch (NullPointerException e) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, "port");
+		}
+		connectionTable = new ConcurrentHashMap<User, ClientConnection>();
+		userConnected = new UserConnectedEvent();
+		userDisconnected = new UserDisconnectedEvent();
+		ServiceManager.getEventManager().registerEvent(userConnected);
+		ServiceManager.getEventManager().registerEvent(userDisconnected);
+		
+		pipeline = new HandshakePipeline(this,
+				getIntProperty(properties, "handshake_workers", 16),
+				getIntProperty(properties, "handshake_auth_workers", 4),
+				getIntProperty(properties, "handshake_queue", 256),
+				getIntProperty(properties, "handshake_ping_timeout", 10000),
+				getIntProperty(properties, "handshake_login_timeout", 10000),
+				getIntProperty(properties, "handshake_auth_timeout", 5000));
+		
+		outboundPolicy = new OutboundPolicy(
+				getIntProperty(properties, "outbound_capacity", OutboundPolicy.DEFAULT_CAPACITY),
+				getIntProperty(properties, "outbound_block_timeout", OutboundPolicy.DEFAULT_BLOCK_TIMEOUT),
+				getOverflowPolicy(properties, "outbound_policy", "block"));
+		for (Object key : properties.keySet()) {
+			String name = (String) key;
+			if (name.startsWith("outbound_policy_")) {
+				String messageClass = name.substring("outbound_policy_".length()).replace('_', ' ');
+				outboundPolicy.setPolicy(messageClass, getOverflowPolicy(properties, name, null));
+			}
+		}
+		outboundPolicy.setLinger(getIntProperty(properties, "write_linger", 0, 0));
+		tagsEnabled = Boolean.parseBoolean(properties.getProperty("tags", "true").trim());
+		maxLineLength = getIntProperty(properties, "max_line_length", DEFAULT_MAX_LINE_LENGTH);
+		
+		String transport = properties.getProperty("transport", TRANSPORT_BLOCKING);
+		if (transport.equals(TRANSPORT_NIO)) {
+			int loops = getIntProperty(properties, "nio_loops", Runtime.getRuntime().availableProcessors());
+			try {
+				nioListener = new NioConnectionListener(this, port, loops);
+			} catch (IOException e) {
+				throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, "port", "Could not listen on port " + port);
+			}
+			nioListener.start();
+		} else if (transport.equals(TRANSPORT_BLOCKING)) {
+			listener = new ConnectionListener(port);
+			ThreadSpawner.newThread(listener, "ConnectionListener").start();
+		} else {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, "transport", "Invalid transport. Supported transports are: blocking, nio");
+		}
+	}
+	
+	/**
+	 * Reads an optional, positive numeric setting from the configuration.
+	 * 
+	 * @param properties The ConnectionManager's configuration.
+	 * @param key The setting to read.
+	 * @param defaultValue The value to use if the setting is absent.
+	 * @return The configured value, or <code>defaultValue</code>.
+	 * @throws InvalidServiceConfigurationException Thrown if the setting is
+	 * present but is not a positive number.
+	 */
+	private int getIntProperty(Properties properties, String key, int defaultValue) throws InvalidServiceConfigurationException {
+		return getIntProperty(properties, key, defaultValue, 1);
+	}
+	
+	/**
+	 * Reads an optional numeric setting with the given minimum from the
+	 * configuration.
+	 * 
+	 * @param properties The ConnectionManager's configuration.
+	 * @param key The setting to read.
+	 * @param defaultValue The value to use if the setting is absent.
+	 * @param minimum The smallest valid value.
+	 * @return The configured value, or <code>defaultValue</code>.
+	 * @throws InvalidServiceConfigurationException Thrown if the setting is
+	 * present but is not a number of at least <code>minimum</code>.
+	 */
+	private int getIntProperty(Properties properties, String key, int defaultValue, int minimum) throws InvalidServiceConfigurationException {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int parsed = Integer.parseInt(value.trim());
+			if (parsed >= minimum) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {}
+		throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, key, "Invalid " + key
+				+ (minimum > 0 ? ", not a positive numeric value" : ", not a non-negative numeric value"));
+	}
+	
+	/**
+	 * Reads an OverflowPolicy setting from the configuration.
+	 * 
+	 * @param properties The ConnectionManager's configuration.
+	 * @param key The setting to read.
+	 * @param defaultValue The name of the policy to use if the setting is absent.
+	 * @return The configured OverflowPolicy.
+	 * @throws InvalidServiceConfigurationException Thrown if the setting does
+	 * not name an OverflowPolicy.
+	 */
+	private OverflowPolicy getOverflowPolicy(Properties properties, String key, String defaultValue) throws InvalidServiceConfigurationException {
+		OverflowPolicy policy = OverflowPolicy.fromName(properties.getProperty(key, defaultValue));
+		if (policy == null) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, key, "Invalid " + key + ". Supported policies are: block, drop_oldest, drop_newest, coalesce, disconnect");
+		}
+		return policy;
+	}
+	
+	/**
+	 * Called by the ConnectionManager when it has established a socket connection with
+	 * a prospective client. The connection is handed to the HandshakePipeline, which
+	 * is responsible for validating the connection's login credentials, creating an
+	 * associated ClientConnection, and adding it to the global connection table, all
+	 * without holding up the ConnectionListener.
+	 * 
+	 * @param socket A socket connection to the prospective client.
+	 */
+	private void newConnection(Socket socket) {
+		pipeline.accept(socket);
+	}
+	
+	/**
+	 * Answers the first line of a client's handshake. A plain
+	 * <code>ping</code> is answered with <code>pong</code>. A client which
+	 * opens with <code>ping tags</code> instead is asking to tag its
+	 * requests with correlation IDs, and is answered with
+	 * <code>pong tags</code> if tags are enabled.
+	 * 
+	 * @param ping The first line received from the client.
+	 * @return The line to answer with, or <code>null</code> if the line was
+	 * not a ping.
+	 */
+	String answerPing(String ping) {
+		if (ping == null) {
+			return null;
+		}
+		if (ping.equals("ping")) {
+			return "pong";
+		}
+		if (ping.equals(PING_TAGS)) {
+			return tagsEnabled ? PONG_TAGS : "pong";
+		}
+		return null;
+	}
+	
+	/**
+	 * Validates the login line sent by a prospective client once the ping/pong
+	 * exchange has completed. The line must be of the form
+	 * <code>login <i>userName</i> <i>password</i></code>, name a registered
+	 * user who is not already logged in, and carry that user's password.
+	 * 
+	 * @param loginString The login line received from the client.
+	 * @return The User the client may now be logged in as.
+	 * @throws LoginRefusedException Thrown if the login was malformed or
+	 * invalid. Its reply, if any, should be sent to the client before the
+	 * connection is closed.
+	 */
+	User authenticate(String loginString) throws LoginRefusedException {
+		if (loginString == null || !loginString.startsWith("login ")
+				|| loginString.split(" ").length != 3) {
+			throw new LoginRefusedException(null);
+		}
+		String[] loginTokens = loginString.split(" ");
+		
+		User user;
+		try {
+			user = ServiceManager.getUserManager().getUser(loginTokens[1]);
+		} catch (NoSuchUserException e) {
+			throw new LoginRefusedException("login invalid register");
+		}
+		
+		// Make sure it's a valid password.
+		if (!ServiceManager.getDatabaseManager().validateLogin(loginTokens[1], loginTokens[2])) {
+			throw new LoginRefusedException("login invalid password");
+		}
+		
+		// Make sure the user isn't already logged in.
+		if (checkUserLoggedIn(user)) {
+			throw new LoginRefusedException("login invalid already_connected");
+		}
+		return user;
+	}
+	
+	/**
+	 * Adds a freshly authenticated ClientConnection to the global connection
+	 * table, starts it, and notifies everyone listening for new users.
+	 * 
+	 * @param user The User who has just logged in.
+	 * @param connection The connection over which the User logged in.
+	 * @return <code>false</code> if the User was already logged in, in which
+	 * case the connection is not registered, and <code>true</code> otherwise.
+	 */
+	boolean registerConnection(User user, ClientConnection connection) {
+		synchronized (this) {
+			if (checkUserLoggedIn(user)) {
+				return false;
+			}
+			connectionTable.put(user, connection);
+			ServiceManager.getUserManager().pinUser(user);
+		}
+		connection.start();
+		// Callbacks may be slow; they must not hold up other logins.
+		userConnected.occured(user);
+		return true;
+	}
+	
+	/**
+	 * Creates a ClientConnection served by the blocking transport for a freshly
+	 * authenticated client, and registers it. The connection's threads are only
+	 * started once it has been registered, so not at all if the User is
+	 * already logged in.
+	 * 
+	 * @param user The User who has just logged in.
+	 * @param in The input stream from the client.
+	 * @param out The output stream to the client.
+	 * @param socket The socket the client logged in over.
+	 * @param tagged <code>true</code> if the client negotiated tagged requests.
+	 * @return <code>false</code> if the User was already logged in, in which
+	 * case no connection was created, and <code>true</code> otherwise.
+	 */
+	boolean registerConnection(User user, BufferedReader in, OutputStream out, Socket socket, boolean tagged) {
+		if (checkUserLoggedIn(user)) {
+			return false;
+		}
+		return registerConnection(user, new ClientConnection(user, in, out, socket, outboundPolicy, tagged));
+	}
+	
+	/**
+	 * Get the pipeline running the login handshakes of new clients, along
+	 * with its metrics.
+	 * 
+	 * @return The ConnectionManager's HandshakePipeline.
+	 */
+	public HandshakePipeline getHandshakePipeline() {
+		return pipeline;
+	}
+	
+	/**
+	 * Get the capacity and OverflowPolicies shared by the OutboundQueue of
+	 * every client.
+	 * 
+	 * @return The ConnectionManager's OutboundPolicy.
+	 */
+	OutboundPolicy getOutboundPolicy() {
+		return outboundPolicy;
+	}
+	
+	/**
+	 * Get the longest line a client of the <code>nio</code> transport may
+	 * send; a client which sends a longer one is disconnected.
+	 * 
+	 * @return The longest line allowed, in bytes.
+	 */
+	int getMaxLineLength() {
+		return maxLineLength;
+	}
+	
+	/**
+	 * Get the connection status of a particular User; the ConnectionManager checks
+	 * to see if the client associated with the given User has an active connection
+	 * established with the server.
+	 * 
+	 * @param user The user to check.
+	 * @return <code>true</code> if the given User is currently logged in, and
+	 * <code>false</code> if it is not.
+	 */
+	public synchronized boolean checkUserLoggedIn(User user) {
+		return connectionTable.containsKey(user);
+	}
+	
+	/**
+	 * Delivers every message of an OutputMessageQueue straight to the outbound
+	 * queue of its recipient's ClientConnection, bypassing the global output
+	 * queue. This never blocks: messages to clients which are not logged in
+	 * are discarded, and messages to clients whose outbound queue is full are
+	 * dropped, so a slow client cannot hold up delivery to anybody else.
+	 * 
+	 * Consecutive messages to the same recipient are queued together, so they
+	 * are still sent consecutively even when several threads are delivering
+	 * to that recipient at once. High priority messages are marked urgent, so
+	 * that they are flushed to the client right away.
+	 * 
+	 * The messages belong to their recipients' connections once they have
+	 * been handed over; undeliverable messages, and the emptied queue, are
+	 * released to the MessagePool.
+	 * 
+	 * @param messages The messages to deliver.
+	 */
+	public void deliver(OutputMessageQueue messages) {
+		boolean urgent = messages.getPriority() == MessageQueue.MAX_PRIORITY;
+		ProtocolMessage message = messages.dequeue();
+		while (message != null) {
+			User recipient = message.getUser();
+			ClientConnection conn = (recipient == null) ? null : findConnection(recipient);
+			if (conn == null) {
+				messagesUndeliverable.incrementAndGet();
+				MessagePool.release(message);
+				message = messages.dequeue();
+				continue;
+			}
+			synchronized (conn) {
+				do {
+					if (urgent) {
+						message.setUrgent(true);
+					}
+					if (!conn.deliver(message)) {
+						messagesDropped.incrementAndGet();
+					}
+					message = messages.dequeue();
+				} while (message != null && recipient.equals(message.getUser()));
+			}
+		}
+		MessagePool.release(messages);
+	}
+	
+	/**
+	 * Get the connection of a User right away. Unlike
+	 * <code>getUserConnection</code>, this never waits for a connection which
+	 * is not there yet, so that delivery is never held up.
+	 * 
+	 * @param user The User whose connection to get.
+	 * @return The User's connection, or <code>null</code> if it is not
+	 * logged in.
+	 */
+	ClientConnection findConnection(User user) {
+		return connectionTable.get(user);
+	}
+	
+	/**
+	 * Get the number of messages <code>deliver</code> has dropped because
+	 * their recipient's outbound queue was full.
+	 * 
+	 * @return The number of dropped messages.
+	 */
+	public long getMessagesDropped() {
+		return messagesDropped.get();
+	}
+	
+	/**
+	 * Get the number of messages <code>deliver</code> has discarded because
+	 * their recipient was not logged in.
+	 * 
+	 * @return The number of undeliverable messages.
+	 */
+	public long getMessagesUndeliverable() {
+		return messagesUndeliverable.get();
+	}
+	
+	/**
+	 * Called by the transports each time they write a batch of messages out
+	 * to a client.
+	 * 
+	 * @param messages The number of messages written together.
+	 * @param bytes The size of the write.
+	 */
+	void recordWrite(int messages, int bytes) {
+		writes.incrementAndGet();
+		messagesWritten.addAndGet(messages);
+		bytesWritten.addAndGet(bytes);
+	}
+	
+	/**
+	 * Get the number of writes made to clients. Each write carries one or
+	 * more messages and costs a single flush.
+	 * 
+	 * @return The number of writes.
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+	
+	/**
+	 * Get the number of messages written to clients.
+	 * 
+	 * @return The number of messages written.
+	 */
+	public long getMessagesWritten() {
+		return messagesWritten.get();
+	}
+	
+	/**
+	 * Get the number of writes saved by writing several messages at once,
+	 * compared to writing and flushing every message on its own.
+	 * 
+	 * @return The number of writes saved.
+	 */
+	public long getWritesSaved() {
+		return messagesWritten.get() - writes.get();
+	}
+	
+	/**
+	 * Get the average size of a write to a client.
+	 * 
+	 * @return The average number of bytes per write.
+	 */
+	public long getAverageWriteSize() {
+		long count = writes.get();
+		return (count == 0) ? 0 : bytesWritten.get() / count;
+	}
+	
+	/**
+	 * Get a connection channel with the specified User. This ClientConnection object
+	 * can be used to send data to the particular client.
+	 * ProtocolModules should <b>not</b> use this; it is for the output queue manager
+	 * to use only.
+	 * 
+	 * @param user The User to get a connection with.
+	 * @return A ClientConnection object if the user is currently logged in, aor
+	 * <code>null</code> if not.
+	 */
+	public ClientConnection getUserConnection(User user) {
+		ClientConnection conn = connectionTable.get(user);
+		if (conn == null) {
+			try {
+				Thread.sleep(100);
+				conn = connectionTable.get(user);
+			} catch (InterruptedException e) {}
+		}
+		return conn;
+	}
+	
+	/**
+	 * Get the total number of active connections to the server at the time when the
+	 * method is called.
+	 * @return The total number of active users.
+	 */
+	public int getNumberOfUsersLoggedIn() {
+		return connectionTable.size();
+	}
+	
+	/**
+	 * Log the user out of the server. All further communications will cease, and
+	 * you will no longer be able to get a ClientConnection from the user until
+	 * they log in again.
+	 * @param user The User to log out.
+	 */
+	public void disconnectUser(User user) {
+		synchronized (this) {
+			ClientConnection userConnection = connectionTable.get(user);
+			connectionTable.remove(user);
+			if (userConnection != null && userConnection.isConnected()) {			
+				userConnection.disconnect();
+			}
+			ServiceManager.getUserManager().unpinUser(user);
+		}
+		userDisconnected.occured(user);
+	}
+	
+	
+	/**
+	 * Called when the server is shutting down. The ConnectionManager stops
+	 * accepting any more incoming connections, and iterates through the active 
+	 * connections, closing them cleanly.
+	 */
+	public void shutdown() {
+		if (listener != null) {
+			listener.disconnect();
+		}
+		if (nioListener != null) {
+			nioListener.disconnect();
+		}
+		pipeline.shutdown();
+		while (!connectionTable.isEmpty()) {
+			Collection<ClientConnection> connections = connectionTable.values();
+			Iterator<ClientConnection> connectionsIterator = connections.iterator();
+			while (connectionsIterator.hasNext()) {
+				ClientConnection connection = connectionsIterator.next();
+				connection.disconnect();
+				connections.remove(connection);
+			}
+		}
+	}
+
+}
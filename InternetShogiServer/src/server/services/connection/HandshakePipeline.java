@@ -0,0 +1,460 @@
+package server.services.connection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import server.main.ThreadSpawner;
+import server.services.user.User;
+
+/**
+ * Runs the login handshake of new clients off the thread which accepts them.
+ * A handshake goes through a fixed sequence of stages: the connection is
+ * accepted, the <code>ping</code> is read, the <code>login</code> line is
+ * read, the credentials are authenticated, and finally the client is
+ * registered with the ConnectionManager.
+ *
+ * The reading stages of the blocking transport run on a bounded pool of
+ * handshake threads, and authentication (which goes to the database) runs on
+ * its own bounded pool for both transports. Every stage has its own timeout,
+ * so neither a slow client nor a slow database round trip can hold up
+ * anybody else's login.
+ *
+ * The pipeline also keeps track of how many handshakes are in flight and of
+ * the latency between accepting a connection and logging the client in.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class HandshakePipeline {
+
+	/**
+	 * Notified once the authentication stage of a handshake has finished.
+	 * Exactly one of the two methods is called, on an authentication thread.
+	 *
+	 * @author Adrian Petrescu
+	 *
+	 */
+	interface LoginCallback {
+
+		/**
+		 * The client's credentials were valid. The callback should now
+		 * register the client with the ConnectionManager.
+		 *
+		 * @param user The User the client may now be registered as.
+		 * @return <code>true</code> if the client was registered, and
+		 * <code>false</code> if it could not be (for instance, because the
+		 * same User logged in elsewhere in the meantime).
+		 */
+		boolean loginAccepted(User user);
+
+		/**
+		 * The client's login was refused, or authentication timed out.
+		 *
+		 * @param reply The line to send to the client before closing the
+		 * connection, or <code>null</code> if it should simply be dropped.
+		 */
+		void loginRefused(String reply);
+	}
+
+	/**
+	 * The first stages of the blocking transport's handshake: reads the
+	 * <code>ping</code> and the <code>login</code> line from the client, each
+	 * under its own timeout, and hands the login over to be authenticated.
+	 */
+	private class ReadStage implements Runnable {
+		private Socket socket;
+		private long acceptedAt;
+
+		ReadStage(Socket socket, long acceptedAt) {
+			this.socket = socket;
+			this.acceptedAt = acceptedAt;
+		}
+
+		public void run() {
+			try {
+				final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				final OutputStream rawOut = socket.getOutputStream();
+				final PrintWriter out = new PrintWriter(rawOut);
+
+				// Try MAX_RETRIES time to get the proper 'ping' connection request.
+				socket.setSoTimeout(pingTimeout);
+				int retries = 0;
+				String loginString = in.readLine();
+				String pong = connectionManager.answerPing(loginString);
+				while (pong == null && retries < ConnectionManager.MAX_RETRIES) {
+					loginString = in.readLine();
+					pong = connectionManager.answerPing(loginString);
+					retries++;
+				}
+				if (pong == null) {
+					closeQuietly(socket);
+					handshakeFinished(acceptedAt, false);
+					return;
+				}
+				final boolean tagged = pong.equals(ConnectionManager.PONG_TAGS);
+
+				out.println(pong);
+				out.flush();
+				socket.setSoTimeout(loginTimeout);
+				loginString = in.readLine();
+				socket.setSoTimeout(0);
+
+				authenticate(loginString, acceptedAt, new LoginCallback() {
+					public boolean loginAccepted(User user) {
+						if (!connectionManager.registerConnection(user, in, rawOut, socket, tagged)) {
+							loginRefused("login invalid already_connected");
+							return false;
+						}
+						return true;
+					}
+
+					public void loginRefused(String reply) {
+						if (reply != null) {
+							out.println(reply);
+							out.flush();
+						}
+						closeQuietly(socket);
+					}
+				});
+			} catch (SocketTimeoutException e) {
+				timedOut.incrementAndGet();
+				closeQuietly(socket);
+				handshakeFinished(acceptedAt, false);
+			} catch (IOException e) {
+				closeQuietly(socket);
+				handshakeFinished(acceptedAt, false);
+			}
+		}
+	}
+
+	private ConnectionManager connectionManager;
+	private ThreadPoolExecutor handshakeExecutor;
+	private ThreadPoolExecutor authExecutor;
+	private ScheduledExecutorService timeoutScheduler;
+
+	private int pingTimeout;
+	private int loginTimeout;
+	private int authTimeout;
+
+	private AtomicInteger inFlight;
+	private AtomicLong completed;
+	private AtomicLong failed;
+	private AtomicLong timedOut;
+	private AtomicLong rejected;
+	private AtomicLong totalLatency;
+	private AtomicLong maxLatency;
+
+	/**
+	 * Constructs a new HandshakePipeline.
+	 *
+	 * @param connectionManager The ConnectionManager to authenticate and
+	 * register clients with.
+	 * @param handshakeWorkers The number of threads reading handshakes for the
+	 * blocking transport.
+	 * @param authWorkers The number of threads authenticating logins.
+	 * @param queueCapacity How many handshakes may wait for each pool before
+	 * new connections are turned away.
+	 * @param pingTimeout Milliseconds a client has to send its <code>ping</code>.
+	 * @param loginTimeout Milliseconds a client has to send its <code>login</code>
+	 * after receiving the <code>pong</code>.
+	 * @param authTimeout Milliseconds authentication may take before the login
+	 * is abandoned.
+	 */
+	HandshakePipeline(ConnectionManager connectionManager, int handshakeWorkers,
+			int authWorkers, int queueCapacity, int pingTimeout, int loginTimeout,
+			int authTimeout) {
+		this.connectionManager = connectionManager;
+		this.pingTimeout = pingTimeout;
+		this.loginTimeout = loginTimeout;
+		this.authTimeout = authTimeout;
+
+		handshakeExecutor = new ThreadPoolExecutor(handshakeWorkers, handshakeWorkers,
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new StageThreadFactory("HandshakeReader"));
+		handshakeExecutor.allowCoreThreadTimeOut(true);
+		authExecutor = new ThreadPoolExecutor(authWorkers, authWorkers,
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new StageThreadFactory("HandshakeAuthenticator"));
+		authExecutor.allowCoreThreadTimeOut(true);
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+				new StageThreadFactory("HandshakeTimeouts"));
+		scheduler.setRemoveOnCancelPolicy(true);
+		timeoutScheduler = scheduler;
+
+		inFlight = new AtomicInteger();
+		completed = new AtomicLong();
+		failed = new AtomicLong();
+		timedOut = new AtomicLong();
+		rejected = new AtomicLong();
+		totalLatency = new AtomicLong();
+		maxLatency = new AtomicLong();
+	}
+
+	/**
+	 * The accept stage of the blocking transport. The rest of the handshake
+	 * is queued up for a handshake thread, and this method returns
+	 * immediately. If the pipeline is saturated, the connection is dropped.
+	 *
+	 * @param socket A socket connection to the prospective client.
+	 */
+	void accept(Socket socket) {
+		long acceptedAt = handshakeStarted();
+		try {
+			handshakeExecutor.execute(new ReadStage(socket, acceptedAt));
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			closeQuietly(socket);
+			handshakeFinished(acceptedAt, false);
+		}
+	}
+
+	/**
+	 * The authentication stage. The login line is validated on an
+	 * authentication thread, and the callback is notified of the outcome.
+	 * If the outcome is not known within the authentication timeout, the
+	 * login is refused. Once the callback returns, the handshake is over.
+	 *
+	 * @param loginString The login line sent by the client.
+	 * @param acceptedAt The value returned by <code>handshakeStarted()</code>
+	 * when the client was accepted.
+	 * @param callback The callback to notify of the outcome.
+	 */
+	void authenticate(final String loginString, final long acceptedAt, final LoginCallback callback) {
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Future<?>> timeout = new AtomicReference<Future<?>>();
+		final Future<?> authentication;
+		try {
+			authentication = authExecutor.submit(new Runnable() {
+				public void run() {
+					User user = null;
+					String reply = null;
+					try {
+						user = connectionManager.authenticate(loginString);
+					} catch (LoginRefusedException e) {
+						reply = e.getReply();
+					} catch (RuntimeException e) {}
+
+					// If the timeout fired first, the client is already gone.
+					if (!done.compareAndSet(false, true)) {
+						return;
+					}
+					Future<?> pendingTimeout = timeout.get();
+					if (pendingTimeout != null) {
+						pendingTimeout.cancel(false);
+					}
+
+					boolean loggedIn = false;
+					if (user != null) {
+						loggedIn = callback.loginAccepted(user);
+					} else {
+						callback.loginRefused(reply);
+					}
+					handshakeFinished(acceptedAt, loggedIn);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			callback.loginRefused(null);
+			handshakeFinished(acceptedAt, false);
+			return;
+		}
+
+		timeout.set(timeoutScheduler.schedule(new Runnable() {
+			public void run() {
+				if (done.compareAndSet(false, true)) {
+					authentication.cancel(true);
+					timedOut.incrementAndGet();
+					callback.loginRefused(null);
+					handshakeFinished(acceptedAt, false);
+				}
+			}
+		}, authTimeout, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Schedules the given task to run once a handshake stage has timed out.
+	 * Used by the non-blocking transport, whose reading stages run on its
+	 * event loops rather than on the pipeline's threads.
+	 *
+	 * @param task The task to run if the stage has not finished in time.
+	 * @param stageTimeout Milliseconds before the task is run.
+	 * @return A handle which can be cancelled once the stage has finished.
+	 */
+	ScheduledFuture<?> scheduleTimeout(Runnable task, int stageTimeout) {
+		return timeoutScheduler.schedule(task, stageTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records that a stage of a handshake timed out. The handshake itself
+	 * must still be finished with <code>handshakeFinished</code>.
+	 */
+	void handshakeTimedOut() {
+		timedOut.incrementAndGet();
+	}
+
+	int getPingTimeout() {
+		return pingTimeout;
+	}
+
+	int getLoginTimeout() {
+		return loginTimeout;
+	}
+
+	/**
+	 * Records that a new connection has been accepted and its handshake has
+	 * begun.
+	 *
+	 * @return The time the connection was accepted at, to be passed to
+	 * <code>handshakeFinished</code>.
+	 */
+	long handshakeStarted() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records that a handshake has ended, one way or another. This must be
+	 * called exactly once for every call to <code>handshakeStarted</code>.
+	 *
+	 * @param acceptedAt The time the connection was accepted at.
+	 * @param loggedIn <code>true</code> if the client ended up logged in.
+	 */
+	void handshakeFinished(long acceptedAt, boolean loggedIn) {
+		inFlight.decrementAndGet();
+		if (!loggedIn) {
+			failed.incrementAndGet();
+			return;
+		}
+		long latency = System.nanoTime() - acceptedAt;
+		completed.incrementAndGet();
+		totalLatency.addAndGet(latency);
+		long max = maxLatency.get();
+		while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+			max = maxLatency.get();
+		}
+	}
+
+	/**
+	 * Get the number of handshakes which have been accepted but have not yet
+	 * either logged the client in or given up on it.
+	 *
+	 * @return The number of handshakes in flight.
+	 */
+	public int getHandshakesInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Get the number of handshakes which ended with the client logged in.
+	 *
+	 * @return The number of successful handshakes.
+	 */
+	public long getHandshakesCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Get the number of handshakes which did not end with the client logged
+	 * in, for any reason (including timeouts and rejections).
+	 *
+	 * @return The number of failed handshakes.
+	 */
+	public long getHandshakesFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Get the number of handshakes abandoned because one of their stages
+	 * took longer than its timeout.
+	 *
+	 * @return The number of timed-out handshakes.
+	 */
+	public long getHandshakesTimedOut() {
+		return timedOut.get();
+	}
+
+	/**
+	 * Get the number of handshakes turned away because one of the pipeline's
+	 * pools was saturated.
+	 *
+	 * @return The number of rejected handshakes.
+	 */
+	public long getHandshakesRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Get the average time between accepting a connection and logging the
+	 * client in, over every successful handshake.
+	 *
+	 * @return The average accept-to-logged-in latency, in microseconds.
+	 */
+	public long getAverageLoginLatency() {
+		long count = completed.get();
+		return (count == 0) ? 0 : totalLatency.get() / count / 1000;
+	}
+
+	/**
+	 * Get the longest time it took between accepting a connection and
+	 * logging the client in.
+	 *
+	 * @return The maximum accept-to-logged-in latency, in microseconds.
+	 */
+	public long getMaxLoginLatency() {
+		return maxLatency.get() / 1000;
+	}
+
+	/**
+	 * Stops accepting new handshakes. Handshakes already in flight are
+	 * abandoned.
+	 */
+	void shutdown() {
+		handshakeExecutor.shutdownNow();
+		authExecutor.shutdownNow();
+		timeoutScheduler.shutdownNow();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Names the threads of each pipeline stage, and creates them through the
+	 * ThreadSpawner so they follow the server's thread mode.
+	 */
+	private static class StageThreadFactory implements ThreadFactory {
+		private String stageName;
+		private AtomicInteger count = new AtomicInteger();
+
+		StageThreadFactory(String stageName) {
+			this.stageName = stageName;
+		}
+
+		public Thread newThread(Runnable task) {
+			Thread thread = ThreadSpawner.newThread(task, stageName + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+package server.services.connection;
+
+/**
+ * This Exception is thrown when a prospective client's login request is
+ * refused by the ConnectionManager, either because it was malformed or
+ * because the credentials it contained were not valid.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class LoginRefusedException extends Throwable {
+
+	private String reply;
+
+	/* Satisfies the condition that extends Throwable (which
+	 * implements Serializable) specifies this value for
+	 * serialization purposes. It doesn't really matter what
+	 * we use here.
+	 */
+	private static final long serialVersionUID = 54091L;
+
+	/**
+	 * Constructs a new LoginRefusedException.
+	 *
+	 * @param reply The line which should be sent to the client before the
+	 * connection is closed, or <code>null</code> if the connection should
+	 * simply be dropped.
+	 */
+	public LoginRefusedException(String reply) {
+		this.reply = reply;
+	}
+
+	/**
+	 * Get the line which should be sent to the client before the connection
+	 * is closed.
+	 *
+	 * @return The reply to the refused login, or <code>null</code> if the
+	 * connection should simply be dropped.
+	 */
+	public String getReply() {
+		return reply;
+	}
+
+}
@@ -0,0 +1,39 @@
+package server.services.connection;
+
+import server.services.user.User;
+
+/**
+ * A ClientConnection served by an NioEventLoop instead of its own pair of
+ * threads. Input is delivered by the client's NioSession as full lines, and
+ * output is queued on the session's OutboundQueue to be written out by its
+ * event loop.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+class NioClientConnection extends ClientConnection {
+
+	private NioSession session;
+
+	/**
+	 * Constructs a new NioClientConnection for a client which has just logged in.
+	 *
+	 * @param user The User who has logged in over this connection.
+	 * @param session The session of the channel the client logged in over.
+	 */
+	NioClientConnection(User user, NioSession session) {
+		super(user, session.getOutboundQueue(), session.isTagged());
+		this.session = session;
+	}
+
+	@Override
+	protected void messageQueued() {
+		session.scheduleFlush();
+	}
+
+	@Override
+	protected void closeChannel() {
+		session.close();
+	}
+
+}
@@ -0,0 +1,87 @@
+package server.services.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The non-blocking counterpart of the ConnectionListener. It binds a
+ * ServerSocketChannel on the given port and owns a small, fixed set of
+ * NioEventLoops. The first loop accepts new connections, which are then
+ * handed out to every loop in turn; from there on, the handshake, the
+ * reading and the writing for that client all happen on the loop it was
+ * assigned to.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+class NioConnectionListener {
+
+	private ServerSocketChannel serverChannel;
+	private NioEventLoop[] loops;
+	private int nextLoop;
+
+	/**
+	 * Constructs a new NioConnectionListener and binds it to the given port.
+	 * No connections are accepted until <code>start()</code> is called.
+	 *
+	 * @param connectionManager The ConnectionManager to register new clients with.
+	 * @param port The port to listen on.
+	 * @param numLoops The number of event loops to spread the clients over.
+	 * @throws IOException Thrown if the port could not be bound.
+	 */
+	NioConnectionListener(ConnectionManager connectionManager, int port, int numLoops) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+
+		loops = new NioEventLoop[numLoops];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new NioEventLoop(connectionManager);
+		}
+		loops[0].registerAcceptor(serverChannel, this);
+	}
+
+	/**
+	 * Starts a thread for each of the event loops.
+	 */
+	void start() {
+		for (int i = 0; i < loops.length; i++) {
+			new Thread(loops[i], "NioEventLoop-" + i).start();
+		}
+	}
+
+	/**
+	 * Called by the accepting event loop whenever the server channel has
+	 * pending connections. Each one is assigned to the next event loop in
+	 * round-robin order.
+	 */
+	void accept() {
+		try {
+			SocketChannel channel = serverChannel.accept();
+			while (channel != null) {
+				loops[nextLoop].register(channel);
+				nextLoop = (nextLoop + 1) % loops.length;
+				channel = serverChannel.accept();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops accepting new connections and brings down every event loop,
+	 * closing all the channels they were serving.
+	 */
+	void disconnect() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {}
+		for (NioEventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+package server.services.connection;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single-threaded, Selector-driven event loop serving many clients at once.
+ * Every channel registered with the loop is attached to an NioSession, which
+ * the loop notifies whenever the channel can be read from or written to.
+ * Other threads never touch the Selector directly; they hand work to the
+ * loop through <code>execute()</code> instead.
+ *
+ * A RuntimeException thrown while serving a client only closes that
+ * client's session; the loop carries on serving everybody else.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+class NioEventLoop implements Runnable {
+
+	private Selector selector;
+	private ConnectionManager connectionManager;
+	private NioConnectionListener acceptor;
+	private Queue<Runnable> pendingTasks;
+	private volatile boolean running;
+
+	/**
+	 * Constructs a new NioEventLoop. It will not do anything until it is run.
+	 *
+	 * @param connectionManager The ConnectionManager to register new clients with.
+	 * @throws IOException Thrown if a Selector could not be opened.
+	 */
+	NioEventLoop(ConnectionManager connectionManager) throws IOException {
+		this.connectionManager = connectionManager;
+		selector = Selector.open();
+		pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+		running = true;
+	}
+
+	/**
+	 * Makes this loop responsible for accepting new connections on the
+	 * given server channel. Must be called before the loop is started.
+	 *
+	 * @param serverChannel A non-blocking, bound server channel.
+	 * @param acceptor The listener to notify when connections are pending.
+	 * @throws ClosedChannelException Thrown if the server channel is closed.
+	 */
+	void registerAcceptor(ServerSocketChannel serverChannel, NioConnectionListener acceptor) throws ClosedChannelException {
+		this.acceptor = acceptor;
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Hands a freshly accepted channel over to this loop. The handshake with
+	 * the client starts as soon as the loop gets to it.
+	 *
+	 * @param channel The channel to a prospective client.
+	 */
+	void register(final SocketChannel channel) {
+		execute(new Runnable() {
+			public void run() {
+				NioSession session = null;
+				try {
+					channel.configureBlocking(false);
+					session = new NioSession(NioEventLoop.this, channel, connectionManager);
+					session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+				} catch (IOException e) {
+					abandon(channel, session);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					abandon(channel, session);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes a channel which could not be registered, along with its
+	 * session if it got that far.
+	 *
+	 * @param channel The channel to the prospective client.
+	 * @param session The channel's session, or <code>null</code> if none.
+	 */
+	private static void abandon(SocketChannel channel, NioSession session) {
+		if (session != null) {
+			closeQuietly(session);
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Runs the given task on this loop's thread, the next time it wakes up.
+	 *
+	 * @param task The work to be done on the loop.
+	 */
+	void execute(Runnable task) {
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Brings down the loop. Every channel it was serving is closed.
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+
+			Runnable task = pendingTasks.poll();
+			while (task != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					// A broken task must not bring down every session on this loop.
+					e.printStackTrace();
+				}
+				task = pendingTasks.poll();
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					try {
+						acceptor.accept();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+					continue;
+				}
+
+				NioSession session = (NioSession) key.attachment();
+				try {
+					if (key.isReadable()) {
+						session.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						session.flush();
+					}
+				} catch (CancelledKeyException e) {
+					session.close();
+				} catch (RuntimeException e) {
+					// Only the client whose input or output broke is dropped.
+					e.printStackTrace();
+					closeQuietly(session);
+				}
+			}
+		}
+
+		for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+			if (key.attachment() instanceof NioSession) {
+				((NioSession) key.attachment()).close();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Closes a session which broke while being served, even if closing it
+	 * breaks too.
+	 *
+	 * @param session The session to close.
+	 */
+	private static void closeQuietly(NioSession session) {
+		try {
+			session.close();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
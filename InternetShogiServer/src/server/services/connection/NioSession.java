@@ -0,0 +1,431 @@
+package server.services.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import server.services.protocol.MessagePool;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.User;
+
+/**
+ * The state kept by an NioEventLoop for a single client channel. It splits
+ * the incoming bytes into lines, walks the client through the same ping/pong
+ * and login handshake as the blocking transport, and from then on passes
+ * every line to its NioClientConnection. Outgoing lines may be queued from
+ * any thread on the same kind of OutboundQueue as the blocking transport
+ * uses; they are written out by the event loop.
+ *
+ * A line longer than the ConnectionManager's maximum line length closes
+ * the session, so that a client cannot make the server buffer an endless
+ * line.
+ *
+ * The ping and login stages are read on the event loop under the timeouts of
+ * the ConnectionManager's HandshakePipeline, while authentication is handed
+ * to the pipeline so that the event loop never waits on the database. Any
+ * lines which arrive while the client is being authenticated are held back
+ * and passed on in order once it is logged in.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+class NioSession {
+
+	private enum State { AWAITING_PING, AWAITING_LOGIN, AUTHENTICATING, LOGGED_IN }
+
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	private NioEventLoop loop;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private ConnectionManager connectionManager;
+	private Charset charset;
+
+	private ByteBuffer readBuffer;
+	private byte[] line;
+	private int lineLength;
+	private int maxLineLength;
+
+	private OutboundQueue outboundQueue;
+	private ByteBuffer pending;
+	private ByteArrayOutputStream batch;
+	private AtomicBoolean flushScheduled;
+	private Runnable flushTask;
+	private boolean closeAfterFlush;
+
+	private HandshakePipeline pipeline;
+	private long acceptedAt;
+	private Future<?> stageTimeout;
+	private List<String> pendingLines;
+
+	private volatile State state;
+	private int retries;
+	private boolean tagged;
+	private volatile NioClientConnection connection;
+	private volatile boolean closed;
+
+	/**
+	 * Constructs a new NioSession for a client which has just connected.
+	 *
+	 * @param loop The event loop serving this client.
+	 * @param channel The non-blocking channel to the client.
+	 * @param connectionManager The ConnectionManager to log the client in with.
+	 */
+	NioSession(NioEventLoop loop, SocketChannel channel, ConnectionManager connectionManager) {
+		this.loop = loop;
+		this.channel = channel;
+		this.connectionManager = connectionManager;
+		charset = Charset.defaultCharset();
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		maxLineLength = connectionManager.getMaxLineLength();
+		line = new byte[Math.min(128, maxLineLength)];
+		outboundQueue = new OutboundQueue(connectionManager.getOutboundPolicy());
+		batch = new ByteArrayOutputStream();
+		flushScheduled = new AtomicBoolean();
+		flushTask = new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					close();
+				}
+			}
+		};
+		state = State.AWAITING_PING;
+
+		pipeline = connectionManager.getHandshakePipeline();
+		acceptedAt = pipeline.handshakeStarted();
+		stageTimeout = scheduleStageTimeout(State.AWAITING_PING, pipeline.getPingTimeout());
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Checks whether the client asked for tagged requests in its ping.
+	 *
+	 * @return <code>true</code> if the client negotiated tags.
+	 */
+	boolean isTagged() {
+		return tagged;
+	}
+
+	OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+
+	/**
+	 * Called by the event loop when the channel has data to be read. Every
+	 * complete line is handled immediately; a partial line is kept until the
+	 * rest of it arrives, unless it is already too long, in which case the
+	 * channel is closed.
+	 */
+	void read() {
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		if (read < 0) {
+			close();
+			return;
+		}
+
+		readBuffer.flip();
+		while (readBuffer.hasRemaining() && !closed && !closeAfterFlush) {
+			byte b = readBuffer.get();
+			if (b == '\n') {
+				int length = lineLength;
+				if (length > 0 && line[length - 1] == '\r') {
+					length--;
+				}
+				lineLength = 0;
+				lineReceived(new String(line, 0, length, charset));
+			} else {
+				if (lineLength >= maxLineLength) {
+					close();
+					break;
+				}
+				if (lineLength == line.length) {
+					line = Arrays.copyOf(line, Math.min(line.length * 2, maxLineLength));
+				}
+				line[lineLength++] = b;
+			}
+		}
+		readBuffer.clear();
+	}
+
+	/**
+	 * Advances the handshake, or once the client is logged in, passes the
+	 * line on to its ClientConnection.
+	 *
+	 * @param received A full line of input from the client.
+	 */
+	private void lineReceived(String received) {
+		switch (state) {
+		case AWAITING_PING:
+			String pong = connectionManager.answerPing(received);
+			if (pong != null) {
+				stageTimeout.cancel(false);
+				state = State.AWAITING_LOGIN;
+				tagged = pong.equals(ConnectionManager.PONG_TAGS);
+				write(pong);
+				stageTimeout = scheduleStageTimeout(State.AWAITING_LOGIN, pipeline.getLoginTimeout());
+			} else if (++retries >= ConnectionManager.MAX_RETRIES) {
+				close();
+			}
+			break;
+
+		case AWAITING_LOGIN:
+			stageTimeout.cancel(false);
+			state = State.AUTHENTICATING;
+			pendingLines = new ArrayList<String>();
+			pipeline.authenticate(received, acceptedAt, new HandshakePipeline.LoginCallback() {
+				public boolean loginAccepted(User user) {
+					return loggedIn(user);
+				}
+
+				public void loginRefused(final String reply) {
+					runOnLoop(new Runnable() {
+						public void run() {
+							if (reply == null) {
+								close();
+							} else {
+								closeAfterFlush = true;
+								write(reply);
+							}
+						}
+					});
+				}
+			});
+			break;
+
+		case AUTHENTICATING:
+			pendingLines.add(received);
+			break;
+
+		case LOGGED_IN:
+			connection.messageRecieved(received);
+			break;
+		}
+	}
+
+	/**
+	 * Called on an authentication thread once the client's credentials have
+	 * been accepted. The client is registered right away, but the lines it
+	 * sent in the meantime are passed on from the event loop, so that they
+	 * are still delivered in order.
+	 *
+	 * @param user The User the client has logged in as.
+	 * @return <code>true</code> if the client was registered.
+	 */
+	private boolean loggedIn(User user) {
+		if (closed) {
+			return false;
+		}
+		final NioClientConnection newConnection = new NioClientConnection(user, this);
+		if (!connectionManager.registerConnection(user, newConnection)) {
+			runOnLoop(new Runnable() {
+				public void run() {
+					closeAfterFlush = true;
+					write("login invalid already_connected");
+				}
+			});
+			return false;
+		}
+		connection = newConnection;
+		runOnLoop(new Runnable() {
+			public void run() {
+				if (closed) {
+					if (newConnection.isConnected()) {
+						newConnection.disconnect();
+					}
+					return;
+				}
+				state = State.LOGGED_IN;
+				for (String pending : pendingLines) {
+					newConnection.messageRecieved(pending);
+				}
+				pendingLines = null;
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Closes the channel if the handshake is still in the given stage once
+	 * the stage's timeout has elapsed.
+	 *
+	 * @param stage The stage being timed.
+	 * @param timeout Milliseconds the client has to get past the stage.
+	 * @return A handle to cancel the timeout with once the stage is over.
+	 */
+	private Future<?> scheduleStageTimeout(final State stage, int timeout) {
+		final Runnable expire = new Runnable() {
+			public void run() {
+				if (state == stage && !closed) {
+					pipeline.handshakeTimedOut();
+					close();
+				}
+			}
+		};
+		return pipeline.scheduleTimeout(new Runnable() {
+			public void run() {
+				runOnLoop(expire);
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Runs a task of this session on its event loop. If the task breaks,
+	 * this session is closed, rather than being left half way through.
+	 *
+	 * @param task The work to be done on the loop.
+	 */
+	private void runOnLoop(final Runnable task) {
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queues a line to be sent to the client. This may be called from any
+	 * thread; the actual write happens on the event loop.
+	 *
+	 * @param output The line to send.
+	 * @return <code>false</code> if the channel has already been closed or
+	 * the line was dropped, and <code>true</code> otherwise.
+	 */
+	boolean write(String output) {
+		if (closed || !outboundQueue.offer(new ProtocolMessage(output), false)) {
+			return false;
+		}
+		scheduleFlush();
+		return true;
+	}
+
+	/**
+	 * Asks the event loop to flush the queued output, unless it has already
+	 * been asked to. This may be called from any thread.
+	 */
+	void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.execute(flushTask);
+		}
+	}
+
+	/**
+	 * Writes as much of the queued output as the channel will take. Whatever
+	 * has been queued by the time the event loop gets here is gathered into a
+	 * single buffer, so a burst of messages costs a single write; a lone
+	 * message is written straight from its encoded bytes. If the
+	 * socket buffer fills up, the event loop is asked to call back once the
+	 * channel is writable again.
+	 * 
+	 * Each message is released to the MessagePool as soon as its bytes have
+	 * been taken; a recycled message is given new bytes rather than having
+	 * its old ones overwritten, so a lone message can still be written
+	 * after it has been released.
+	 */
+	void flush() {
+		flushScheduled.set(false);
+		if (closed) {
+			return;
+		}
+		try {
+			while (true) {
+				if (pending == null) {
+					ProtocolMessage message = outboundQueue.poll();
+					if (message == null) {
+						break;
+					}
+					int messages = 1;
+					byte[] encoded = message.getEncoded();
+					MessagePool.release(message);
+					message = outboundQueue.poll();
+					if (message == null) {
+						pending = ByteBuffer.wrap(encoded);
+					} else {
+						int maxBatch = connectionManager.getOutboundPolicy().getCapacity();
+						batch.write(encoded, 0, encoded.length);
+						while (message != null) {
+							encoded = message.getEncoded();
+							batch.write(encoded, 0, encoded.length);
+							MessagePool.release(message);
+							messages++;
+							message = (batch.size() < maxBatch) ? outboundQueue.poll() : null;
+						}
+						pending = ByteBuffer.wrap(batch.toByteArray());
+						batch.reset();
+					}
+					connectionManager.recordWrite(messages, pending.remaining());
+				}
+				channel.write(pending);
+				if (pending.hasRemaining()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				pending = null;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (closeAfterFlush) {
+				close();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the channel to the client. If the client had logged in, it is
+	 * logged out. Calling this more than once has no effect.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		outboundQueue.close();
+		ProtocolMessage unsent = outboundQueue.poll();
+		while (unsent != null) {
+			MessagePool.release(unsent);
+			unsent = outboundQueue.poll();
+		}
+		if (state == State.AWAITING_PING || state == State.AWAITING_LOGIN) {
+			// The pipeline only finishes handshakes which reach authentication.
+			stageTimeout.cancel(false);
+			pipeline.handshakeFinished(acceptedAt, false);
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {}
+		if (connection != null && connection.isConnected()) {
+			connection.disconnect();
+		}
+	}
+
+}
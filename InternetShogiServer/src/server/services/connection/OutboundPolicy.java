@@ -0,0 +1,178 @@
+package server.services.connection;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import server.services.protocol.ProtocolMessage;
+
+/**
+ * The settings shared by the OutboundQueue of every connection: how many
+ * bytes a queue may hold, how long a blocked sender may wait for room, and
+ * which OverflowPolicy applies to which class of message.
+ *
+ * The class of a message is its protocol key followed by the first token of
+ * its payload (<code>room list</code>), or just its protocol key
+ * (<code>room</code>); a policy configured for the longer class takes
+ * precedence over one configured for the protocol key.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class OutboundPolicy {
+
+	/**
+	 * The default capacity of an OutboundQueue, in bytes.
+	 */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	/**
+	 * The default number of milliseconds a blocked sender waits for room.
+	 */
+	public static final int DEFAULT_BLOCK_TIMEOUT = 2000;
+
+	private int capacity;
+	private int blockTimeout;
+	private OverflowPolicy defaultPolicy;
+	private int linger;
+	private Map<String, OverflowPolicy> classPolicies;
+
+	/**
+	 * Constructs a new OutboundPolicy.
+	 *
+	 * @param capacity How many bytes each OutboundQueue may hold.
+	 * @param blockTimeout How many milliseconds a sender blocked by the
+	 * <code>BLOCK</code> policy waits for room before dropping its message.
+	 * @param defaultPolicy The OverflowPolicy of messages with no policy of
+	 * their own.
+	 */
+	public OutboundPolicy(int capacity, int blockTimeout, OverflowPolicy defaultPolicy) {
+		this.capacity = capacity;
+		this.blockTimeout = blockTimeout;
+		this.defaultPolicy = defaultPolicy;
+		classPolicies = new HashMap<String, OverflowPolicy>();
+	}
+
+	/**
+	 * Constructs a new OutboundPolicy with the default capacity and timeout,
+	 * which blocks every sender.
+	 */
+	public OutboundPolicy() {
+		this(DEFAULT_CAPACITY, DEFAULT_BLOCK_TIMEOUT, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Sets the OverflowPolicy of a class of messages. This should only be
+	 * done before the OutboundPolicy is handed to any connection.
+	 *
+	 * @param messageClass A protocol key, optionally followed by a space and
+	 * the first token of the payload.
+	 * @param policy The OverflowPolicy of that class of messages.
+	 */
+	public void setPolicy(String messageClass, OverflowPolicy policy) {
+		classPolicies.put(messageClass, policy);
+	}
+
+	/**
+	 * Get the OverflowPolicy which applies to the given message.
+	 *
+	 * @param message A message about to be queued for a client.
+	 * @return The OverflowPolicy of the message's class.
+	 */
+	public OverflowPolicy getPolicy(ProtocolMessage message) {
+		return getPolicy(getMessageClass(message));
+	}
+
+	/**
+	 * Get the class of a message, if it matters. When no class has a policy
+	 * of its own and nothing is coalesced, every message is treated the same
+	 * and classifying them would be wasted work.
+	 *
+	 * @param message The message to classify.
+	 * @return The class of the message, or <code>null</code> if classes do
+	 * not matter.
+	 */
+	String classify(ProtocolMessage message) {
+		if (classPolicies.isEmpty() && defaultPolicy != OverflowPolicy.COALESCE) {
+			return null;
+		}
+		return getMessageClass(message);
+	}
+
+	/**
+	 * Get the OverflowPolicy which applies to a class of messages.
+	 *
+	 * @param messageClass The class, as returned by <code>classify</code>.
+	 * @return The OverflowPolicy of the class.
+	 */
+	OverflowPolicy getPolicy(String messageClass) {
+		if (messageClass == null) {
+			return defaultPolicy;
+		}
+		OverflowPolicy policy = classPolicies.get(messageClass);
+		if (policy == null) {
+			int space = messageClass.indexOf(' ');
+			if (space >= 0) {
+				policy = classPolicies.get(messageClass.substring(0, space));
+			}
+		}
+		return (policy == null) ? defaultPolicy : policy;
+	}
+
+	/**
+	 * Get the class of a message: its protocol key and the first token of its
+	 * payload, if it has one.
+	 *
+	 * @param message The message to classify.
+	 * @return The class of the message.
+	 */
+	static String getMessageClass(ProtocolMessage message) {
+		String line = message.getMessage();
+		int first = line.indexOf(' ');
+		if (first < 0) {
+			return line;
+		}
+		int second = line.indexOf(' ', first + 1);
+		return (second < 0) ? line : line.substring(0, second);
+	}
+
+	/**
+	 * Sets how long a writer may wait for more output before writing out what
+	 * it has, so that bursts of messages go out in a single write. Urgent
+	 * messages are always written immediately. This should only be done
+	 * before the OutboundPolicy is handed to any connection.
+	 *
+	 * @param linger The linger, in microseconds; 0 writes as soon as the
+	 * queue is empty.
+	 */
+	public void setLinger(int linger) {
+		this.linger = linger;
+	}
+
+	/**
+	 * Get how long a writer may wait for more output before writing.
+	 *
+	 * @return The linger, in microseconds.
+	 */
+	public int getLinger() {
+		return linger;
+	}
+
+	/**
+	 * Get how many bytes each OutboundQueue may hold.
+	 *
+	 * @return The capacity of each OutboundQueue, in bytes.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get how long a sender blocked by the <code>BLOCK</code> policy waits.
+	 *
+	 * @return The block timeout, in milliseconds.
+	 */
+	public int getBlockTimeout() {
+		return blockTimeout;
+	}
+
+}
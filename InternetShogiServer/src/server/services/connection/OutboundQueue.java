@@ -0,0 +1,416 @@
+package server.services.connection;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import server.services.protocol.MessagePool;
+import server.services.protocol.ProtocolMessage;
+
+/**
+ * The queue of messages waiting to be written out to a single client. Its
+ * capacity is measured in bytes rather than in messages, counting the
+ * encoded size of each line and its line separator, so that a few large
+ * messages cannot take up as much memory as many small ones.
+ *
+ * When a message does not fit, the OverflowPolicy of its class decides what
+ * happens to it. The queue also keeps track of its high-water mark and of
+ * how many messages it has had to drop, so that slow clients can be spotted.
+ * Messages which are dropped after they were queued, to make room or to be
+ * coalesced, are released to the MessagePool; a message which is refused
+ * still belongs to the caller.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class OutboundQueue {
+
+	/**
+	 * A queued message, along with the bytes it takes up and its class, if
+	 * the OutboundPolicy cares about classes at all.
+	 */
+	private static class Entry {
+		ProtocolMessage message;
+		int size;
+		String messageClass;
+
+		Entry(ProtocolMessage message, int size, String messageClass) {
+			this.message = message;
+			this.size = size;
+			this.messageClass = messageClass;
+		}
+	}
+
+	private OutboundPolicy policy;
+	private ArrayDeque<Entry> entries;
+	private int bytes;
+	private boolean closed;
+	private boolean overflowed;
+
+	private ReentrantLock lock;
+	private Condition notEmpty;
+	private Condition notFull;
+
+	private int highWaterBytes;
+	private int highWaterMessages;
+	private long droppedOldest;
+	private long droppedNewest;
+	private long coalesced;
+	private long blockTimeouts;
+
+	/**
+	 * Constructs a new, empty OutboundQueue.
+	 *
+	 * @param policy The capacity and OverflowPolicies to apply.
+	 */
+	public OutboundQueue(OutboundPolicy policy) {
+		this.policy = policy;
+		entries = new ArrayDeque<Entry>();
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+	}
+
+	/**
+	 * Queues a message for the client, applying the OverflowPolicy of its
+	 * class if it does not fit. A message larger than the whole queue is
+	 * still accepted once the queue is empty.
+	 *
+	 * @param message The message to queue.
+	 * @param mayBlock <code>false</code> if the caller must never wait for
+	 * room, in which case the <code>BLOCK</code> policy drops the message
+	 * immediately.
+	 * @return <code>true</code> if the message was queued, and <code>false</code>
+	 * if it was dropped or the queue has been closed. If the message was
+	 * refused because of the <code>DISCONNECT</code> policy,
+	 * <code>isOverflowed()</code> becomes <code>true</code> and the caller
+	 * should disconnect the client.
+	 */
+	public boolean offer(ProtocolMessage message, boolean mayBlock) {
+		String messageClass = policy.classify(message);
+		OverflowPolicy overflowPolicy = policy.getPolicy(messageClass);
+		int size = message.getEncoded().length;
+
+		lock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+			if (overflowPolicy == OverflowPolicy.COALESCE) {
+				removeClass(messageClass);
+			}
+			if (!fits(size)) {
+				switch (overflowPolicy) {
+				case BLOCK:
+					if (!mayBlock) {
+						droppedNewest++;
+						return false;
+					}
+					if (!awaitRoom(size)) {
+						if (!closed) {
+							blockTimeouts++;
+							droppedNewest++;
+						}
+						return false;
+					}
+					break;
+				case DROP_OLDEST:
+					while (!fits(size)) {
+						Entry oldest = entries.poll();
+						bytes -= oldest.size;
+						droppedOldest++;
+						MessagePool.release(oldest.message);
+					}
+					break;
+				case DROP_NEWEST:
+				case COALESCE:
+					droppedNewest++;
+					return false;
+				case DISCONNECT:
+					overflowed = true;
+					closed = true;
+					notEmpty.signalAll();
+					notFull.signalAll();
+					return false;
+				}
+			}
+
+			entries.add(new Entry(message, size, messageClass));
+			bytes += size;
+			if (bytes > highWaterBytes) {
+				highWaterBytes = bytes;
+			}
+			if (entries.size() > highWaterMessages) {
+				highWaterMessages = entries.size();
+			}
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean fits(int size) {
+		return entries.isEmpty() || bytes + size <= policy.getCapacity();
+	}
+
+	/**
+	 * Waits for the given number of bytes to become free, up to the block
+	 * timeout. Must be called with the lock held.
+	 */
+	private boolean awaitRoom(int size) {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(policy.getBlockTimeout());
+		try {
+			while (!fits(size) && !closed) {
+				if (remaining <= 0) {
+					return false;
+				}
+				remaining = notFull.awaitNanos(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !closed;
+	}
+
+	/**
+	 * Removes every queued message of the given class. Must be called with
+	 * the lock held.
+	 */
+	private void removeClass(String messageClass) {
+		Iterator<Entry> i = entries.iterator();
+		while (i.hasNext()) {
+			Entry entry = i.next();
+			if (entry.messageClass.equals(messageClass)) {
+				i.remove();
+				bytes -= entry.size;
+				coalesced++;
+				MessagePool.release(entry.message);
+			}
+		}
+	}
+
+	/**
+	 * Retrieves and removes the oldest queued message, waiting for one if
+	 * the queue is empty.
+	 *
+	 * @return The oldest queued message, or <code>null</code> once the queue
+	 * has been closed.
+	 * @throws InterruptedException Thrown if the thread was interrupted while
+	 * waiting.
+	 */
+	public ProtocolMessage take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (entries.isEmpty()) {
+				if (closed) {
+					return null;
+				}
+				notEmpty.await();
+			}
+			return remove();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves and removes the oldest queued message, if there is one.
+	 *
+	 * @return The oldest queued message, or <code>null</code> if the queue
+	 * is empty.
+	 */
+	public ProtocolMessage poll() {
+		lock.lock();
+		try {
+			return entries.isEmpty() ? null : remove();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves and removes the oldest queued message, waiting up to the
+	 * given time for one if the queue is empty.
+	 *
+	 * @param timeout How long to wait.
+	 * @param unit The unit of <code>timeout</code>.
+	 * @return The oldest queued message, or <code>null</code> if none arrived
+	 * in time or the queue has been closed.
+	 * @throws InterruptedException Thrown if the thread was interrupted while
+	 * waiting.
+	 */
+	public ProtocolMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (entries.isEmpty()) {
+				if (closed || remaining <= 0) {
+					return null;
+				}
+				remaining = notEmpty.awaitNanos(remaining);
+			}
+			return remove();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ProtocolMessage remove() {
+		Entry entry = entries.poll();
+		bytes -= entry.size;
+		notFull.signalAll();
+		return entry.message;
+	}
+
+	/**
+	 * Closes the queue. Messages offered from now on are refused, blocked
+	 * senders give up, and <code>take</code> returns <code>null</code> once
+	 * the messages already queued have been taken.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks whether the client overran the queue while the
+	 * <code>DISCONNECT</code> policy applied.
+	 *
+	 * @return <code>true</code> if the client should be disconnected.
+	 */
+	public boolean isOverflowed() {
+		lock.lock();
+		try {
+			return overflowed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of messages waiting to be written.
+	 *
+	 * @return The current depth of the queue, in messages.
+	 */
+	public int getDepth() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of bytes waiting to be written.
+	 *
+	 * @return The current depth of the queue, in bytes.
+	 */
+	public int getBytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the largest number of bytes the queue has held at once.
+	 *
+	 * @return The high-water mark of the queue, in bytes.
+	 */
+	public int getHighWaterBytes() {
+		lock.lock();
+		try {
+			return highWaterBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the largest number of messages the queue has held at once.
+	 *
+	 * @return The high-water mark of the queue, in messages.
+	 */
+	public int getHighWaterMessages() {
+		lock.lock();
+		try {
+			return highWaterMessages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of queued messages dropped to make room for newer ones.
+	 *
+	 * @return The number of messages dropped by the <code>DROP_OLDEST</code>
+	 * policy.
+	 */
+	public long getDroppedOldest() {
+		lock.lock();
+		try {
+			return droppedOldest;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of new messages dropped because they did not fit,
+	 * including those whose sender gave up waiting for room.
+	 *
+	 * @return The number of messages refused by the queue.
+	 */
+	public long getDroppedNewest() {
+		lock.lock();
+		try {
+			return droppedNewest;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of queued messages replaced by a newer message of the
+	 * same class.
+	 *
+	 * @return The number of messages removed by the <code>COALESCE</code>
+	 * policy.
+	 */
+	public long getCoalesced() {
+		lock.lock();
+		try {
+			return coalesced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of senders which gave up waiting for room.
+	 *
+	 * @return The number of <code>BLOCK</code> deadlines which expired.
+	 */
+	public long getBlockTimeouts() {
+		lock.lock();
+		try {
+			return blockTimeouts;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
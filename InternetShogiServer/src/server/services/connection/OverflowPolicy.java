@@ -0,0 +1,60 @@
+package server.services.connection;
+
+/**
+ * What an OutboundQueue does with a new message when the client is not
+ * keeping up and the queue has no room left for it.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Waits for the client to make room, up to a deadline, and then drops
+	 * the new message. Senders which must never block, like the threads
+	 * delivering replies directly, drop the message right away instead.
+	 */
+	BLOCK,
+
+	/**
+	 * Drops the oldest queued messages until the new message fits.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Drops the new message.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Replaces any queued message of the same class with the new one, even
+	 * when the queue is not full, so the client only ever receives the
+	 * latest version (of a room list, for instance). If there is nothing to
+	 * replace and no room, the new message is dropped.
+	 */
+	COALESCE,
+
+	/**
+	 * Disconnects the client.
+	 */
+	DISCONNECT;
+
+	/**
+	 * Looks up an OverflowPolicy by its configuration name: <code>block</code>,
+	 * <code>drop_oldest</code>, <code>drop_newest</code>, <code>coalesce</code>
+	 * or <code>disconnect</code>.
+	 *
+	 * @param name The configured name.
+	 * @return The corresponding OverflowPolicy, or <code>null</code> if the name
+	 * is not recognised.
+	 */
+	public static OverflowPolicy fromName(String name) {
+		for (OverflowPolicy policy : values()) {
+			if (policy.name().equalsIgnoreCase(name.trim())) {
+				return policy;
+			}
+		}
+		return null;
+	}
+
+}
@@ -28,6 +28,10 @@ public class DatabaseManager implements GlobalService {
 		return SERVICE_NAME;
 	}
 
+	public String[] getDependencies() {
+		return new String[0];
+	}
+
 	public void initialize(Properties properties)
 			throws InvalidServiceConfigurationException {
 		String dbEngine = properties.getProperty("engine");
@@ -93,7 +97,10 @@ public class DatabaseManager implements GlobalService {
 		}
 		UserInformation userInfo = new UserInformation(userName);
 		try {
-			rs.next();
+			if (!rs.next()) {
+				rs.close();
+				return null;
+			}
 			userInfo.setEmail(rs.getString("email"));
 			userInfo.setDescription(rs.getString("description"));
 			rs.close();
@@ -0,0 +1,31 @@
+package server.services.event;
+
+import java.util.List;
+
+/**
+ * A BatchCallback is notified of a TypedEvent like a PayloadCallback, but
+ * receives the payloads of several occurrences at once whenever they pile
+ * up, such as when thousands of users are disconnected together. It can
+ * then handle the whole batch in one go instead of once per occurrence.
+ *
+ * BatchCallbacks are always notified asynchronously, on a thread of their
+ * own.
+ *
+ * @author Adrian Petrescu
+ *
+ * @param <P> The kind of EventPayload this callback understands.
+ */
+public interface BatchCallback<P extends EventPayload> {
+
+	/**
+	 * Once this BatchCallback is registered against a TypedEvent, this method
+	 * will be called with the occurrences which have piled up since it was
+	 * last called, whenever there are any.
+	 *
+	 * @param payloads The details of each occurrence, in the order they
+	 * occurred. There is always at least one. The list belongs to the
+	 * callback, but the payloads are shared and must not be modified.
+	 */
+	public void eventsOccured(List<P> payloads);
+
+}
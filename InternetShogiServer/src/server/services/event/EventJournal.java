@@ -0,0 +1,344 @@
+package server.services.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import server.main.ThreadSpawner;
+
+/**
+ * The EventJournal records every event which occurs on the server, so that
+ * what happened (who connected, who joined or left which room, and when)
+ * can be reconstructed afterwards with a JournalReader.
+ *
+ * Events are appended to a log split into segments of a fixed size, each a
+ * memory-mapped file in the journal's directory named after its sequence
+ * number. Once a segment is full, the journal moves on to the next one.
+ *
+ * Firing threads only queue the event; a single writer thread appends
+ * whatever has been queued in one batch, then forces the segment to disk
+ * once for the whole batch. Under load the batches grow, so the cost of
+ * forcing is shared by many events. If the writer falls so far behind that
+ * its queue fills up, new events are dropped from the journal and counted,
+ * rather than holding up the firing threads.
+ *
+ * Each segment starts with a magic number and a version. Each record holds
+ * its length, a CRC32 of its body, and the body: the time of the event,
+ * the name of the Event, and the details of the occurrence as they would
+ * be given to an EventCallback. A zero length marks the end of a segment.
+ * When a journal is reopened, it carries on after the last intact record
+ * of the last segment, overwriting anything torn by a crash.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class EventJournal implements EventObserver, Runnable {
+
+	/**
+	 * The default size of each segment, in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The default number of events which may be waiting for the writer.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 65536;
+
+	static final int MAGIC = 0x49535345;
+	static final int VERSION = 1;
+	static final int SEGMENT_HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 8;
+	static final String SEGMENT_SUFFIX = ".journal";
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* The smallest segment which still leaves room for a useful record. */
+	private static final int MIN_SEGMENT_SIZE = 4096;
+	private static final int MAX_RECORD_SIZE = 64 * 1024;
+	private static final int MAX_BATCH = 1024;
+	private static final long POLL_INTERVAL = 100;
+
+	/**
+	 * An event waiting to be written.
+	 */
+	private static class Entry {
+		final long timestamp;
+		final Event event;
+		final EventPayload payload;
+
+		Entry(long timestamp, Event event, EventPayload payload) {
+			this.timestamp = timestamp;
+			this.event = event;
+			this.payload = payload;
+		}
+	}
+
+	private File directory;
+	private int segmentSize;
+	private boolean force;
+	private BlockingQueue<Entry> queue;
+
+	private long segmentNumber;
+	private FileChannel channel;
+	private MappedByteBuffer segment;
+
+	private ByteBuffer record;
+	private Properties scratch;
+	private CRC32 crc;
+
+	private AtomicLong written;
+	private AtomicLong dropped;
+	private AtomicLong batches;
+	private volatile boolean alive;
+	private volatile boolean closed;
+	private Thread writer;
+
+	/**
+	 * Opens the journal in the given directory, creating the directory if
+	 * needed. Writing carries on after the last event already in the journal.
+	 * Nothing is written until <code>start()</code> is called.
+	 *
+	 * @param directory The directory holding the journal's segments.
+	 * @param segmentSize The size of each new segment, in bytes.
+	 * @param queueCapacity How many events may be waiting for the writer.
+	 * @param force <code>true</code> to force each batch of events to disk
+	 * before writing the next one, or <code>false</code> to leave it to the
+	 * operating system.
+	 * @throws IOException Thrown if the journal cannot be opened.
+	 */
+	public EventJournal(File directory, int segmentSize, int queueCapacity, boolean force) throws IOException {
+		this.directory = directory;
+		this.segmentSize = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+		this.force = force;
+		queue = new ArrayBlockingQueue<Entry>(queueCapacity);
+		record = ByteBuffer.allocate(Math.min(MAX_RECORD_SIZE, this.segmentSize - SEGMENT_HEADER_SIZE - RECORD_HEADER_SIZE));
+		scratch = new Properties();
+		crc = new CRC32();
+		written = new AtomicLong();
+		dropped = new AtomicLong();
+		batches = new AtomicLong();
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + directory);
+		}
+		File[] segments = JournalReader.listSegments(directory);
+		if (segments.length == 0) {
+			openSegment(0);
+		} else {
+			resume(segments[segments.length - 1]);
+		}
+	}
+
+	/**
+	 * Reopens the last segment of an existing journal, positioned after its
+	 * last intact record. If the segment cannot be read, a new one is started.
+	 */
+	private void resume(File last) throws IOException {
+		long number = JournalReader.segmentNumber(last);
+		channel = new RandomAccessFile(last, "rw").getChannel();
+		if (channel.size() < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+			channel.close();
+			openSegment(number + 1);
+			return;
+		}
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		int end = JournalReader.readSegment(segment, null);
+		if (end < 0) {
+			channel.close();
+			openSegment(number + 1);
+			return;
+		}
+		segmentNumber = number;
+		segment.position(end);
+	}
+
+	private void openSegment(long number) throws IOException {
+		segmentNumber = number;
+		File file = new File(directory, JournalReader.segmentName(number));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		segment.putInt(MAGIC);
+		segment.putInt(VERSION);
+	}
+
+	/**
+	 * Starts the thread which writes queued events to the journal.
+	 */
+	public void start() {
+		alive = true;
+		writer = ThreadSpawner.newThread(this, "EventJournal");
+		writer.start();
+	}
+
+	/**
+	 * Queues an event to be written to the journal. This never blocks.
+	 */
+	public void eventOccured(Event event, EventPayload payload) {
+		if (closed || !queue.offer(new Entry(System.currentTimeMillis(), event, payload))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	public void run() {
+		List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+		while (alive || !queue.isEmpty()) {
+			try {
+				Entry first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, MAX_BATCH - 1);
+				for (Entry entry : batch) {
+					append(entry);
+				}
+				if (force) {
+					segment.force();
+				}
+				batches.incrementAndGet();
+			} catch (InterruptedException e) {
+				// Checked again at the top of the loop.
+			} catch (IOException e) {
+				System.err.println("Could not write to the event journal: " + e.getMessage());
+			}
+			batch.clear();
+		}
+	}
+
+	private void append(Entry entry) throws IOException {
+		if (!encode(entry)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		int length = record.remaining();
+		if (segment.remaining() < RECORD_HEADER_SIZE + length) {
+			if (force) {
+				segment.force();
+			}
+			channel.close();
+			openSegment(segmentNumber + 1);
+		}
+		crc.reset();
+		crc.update(record.array(), 0, length);
+		segment.putInt(length);
+		segment.putInt((int) crc.getValue());
+		segment.put(record);
+		written.incrementAndGet();
+	}
+
+	/**
+	 * Encodes an event into the record buffer, ready to be copied out.
+	 *
+	 * @return <code>false</code> if the event is too large to be journaled.
+	 */
+	private boolean encode(Entry entry) {
+		Properties eventData = entry.payload.peekProperties();
+		if (eventData == null) {
+			scratch.clear();
+			entry.payload.fillProperties(scratch);
+			eventData = scratch;
+		}
+		record.clear();
+		try {
+			record.putLong(entry.timestamp);
+			putString(entry.event.getName());
+			record.putShort((short) eventData.size());
+			for (Map.Entry<Object, Object> field : eventData.entrySet()) {
+				putString(String.valueOf(field.getKey()));
+				putString(String.valueOf(field.getValue()));
+			}
+		} catch (BufferOverflowException e) {
+			return false;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		record.flip();
+		return true;
+	}
+
+	private void putString(String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("String too long to journal");
+		}
+		record.putShort((short) bytes.length);
+		record.put(bytes);
+	}
+
+	/**
+	 * Get the directory holding the journal's segments.
+	 *
+	 * @return The journal's directory.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Get the number of events written to the journal since it was opened.
+	 *
+	 * @return The number of events written.
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Get the number of events which were left out of the journal, because
+	 * the writer had fallen behind or the event was too large.
+	 *
+	 * @return The number of events dropped.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Get the number of batches written. Together with
+	 * <code>getWritten()</code>, this tells how many events shared each
+	 * trip to the disk.
+	 *
+	 * @return The number of batches written.
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Writes every event still queued, forces the current segment to disk
+	 * and closes it. Events occurring afterwards are dropped.
+	 */
+	public void close() {
+		closed = true;
+		alive = false;
+		if (writer != null) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			segment.force();
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Could not close the event journal: " + e.getMessage());
+		}
+	}
+
+}
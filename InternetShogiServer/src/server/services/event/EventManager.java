@@ -1,119 +1,599 @@
-package server.services.event;
-
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
-
-import server.services.GlobalService;
-import server.services.InvalidServiceConfigurationException;
-
-/**
- * This GlobalService is one of the core services of the server. It maintains
- * a table of possible events and callbacks to be notified when those events
- * occur.
- * 
- * @author Adrian Petrescu
- *
- */
-public class EventManager implements GlobalService {
-
-	public static final String SERVICE_NAME = "EventManager";
-	
-	private ConcurrentHashMap<Event, List<EventCallback>> eventCallbackTable;
-	private ConcurrentHashMap<String, Event> eventTable;
-	
-	public String getIdentifier() {
-		return SERVICE_NAME;
-	}
-
-	public void initialize(Properties properties)
-			throws InvalidServiceConfigurationException {
-		eventCallbackTable = new ConcurrentHashMap<Event, List<EventCallback>>();
-		eventTable = new ConcurrentHashMap<String, Event>();
-	}
-
-	/**
-	 * Register an event with the server. Its key will be the name of the event.
-	 * Once an event is registered, other components can register callbacks to
-	 * this event.
-	 * 
-	 * Only one event can register with a given key, later attempts will fail.
-	 * 
-	 * @param event The event to register.
-	 * @return <code>true</code> if no previous event was registered with the
-	 * same key and the registration was successful, <code>false</code> otherwise.
-	 */
-	public synchronized boolean registerEvent(Event event) {
-		if (eventTable.containsKey(event.getName())
-				|| eventCallbackTable.containsKey(event)) {
-			return false;
-		}
-		
-		eventTable.put(event.getName(), event);
-		List<EventCallback> registeredCallbacks = Collections
-				.synchronizedList(new LinkedList<EventCallback>());
-		eventCallbackTable.put(event, registeredCallbacks);
-		return true;
-	}
-	
-	/**
-	 * Register a callback for a particular Event with the server. Every time
-	 * the given event occurs, the registered EventCallback will also be 
-	 * triggered.
-	 * 
-	 * An EventCallback can only be registered once for a given Event.
-	 * 
-	 * @param callback The EventCallback to be notified when the Event occurs.
-	 * @param event The Event to watch.
-	 * @return <code>false</code> if the same callback has previously been
-	 * registered to the same event, <code>true</code> otherwise.
-	 */
-	public synchronized boolean registerCallback(EventCallback callback,
-			Event event) {
-		if (eventCallbackTable.get(event).contains(callback)) {
-			return false;
-		}
-		
-		eventCallbackTable.get(event).add(callback);
-		return true;
-	}
-	
-	/**
-	 * Used to notify the EventManager that one of its registered events
-	 * has occurred. The EventManager will notify each EventCallback in
-	 * the same order they were registered in.
-	 * 
-	 * @param event The event which has occurred.
-	 * @param eventData Some extra configuration data to pass to the
-	 * EventCallback.
-	 */
-	synchronized void eventOccured(Event event, Properties eventData) {
-		if (!eventCallbackTable.containsKey(event)) {
-			return;
-		}
-		
-		List<EventCallback> callbacks = eventCallbackTable.get(event);
-		Iterator<EventCallback> i = callbacks.iterator();
-		while (i.hasNext()) {
-			i.next().eventOccured(eventData);
-		}
-	}
-	
-	/**
-	 * Fetch the Event with the given name among all Events registered
-	 * with the EventManager.
-	 * 
-	 * @param eventName The name to look for.
-	 * @return The registered Event with the given name.
-	 */
-	public Event getEvent(String eventName) {
-		return eventTable.get(eventName);
-	}
-	
-	public void shutdown() {
-	}
-
-}
+package server.services.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.main.ThreadSpawner;
+import server.services.GlobalService;
+import server.services.InvalidServiceConfigurationException;
+
+/**
+ * This GlobalService is one of the core services of the server. It maintains
+ * a table of possible events and callbacks to be notified when those events
+ * occur.
+ *
+ * Callbacks are notified asynchronously by default: each callback has its
+ * own bounded queue of pending events and its own thread working through it,
+ * so a slow callback only ever delays itself, and never the thread on which
+ * the event occurred (a client logging in, for instance). That thread never
+ * waits for room: if a callback's queue is full, the event is dropped for
+ * that callback. A callback still sees the events it is not dropped in the
+ * order they occurred. Callbacks which keep state and cannot afford to miss
+ * an event should be registered as synchronous, or as a BatchCallback.
+ *
+ * Firing an event takes no locks; the callbacks of each event are kept in
+ * an array which is replaced, never modified, when a callback registers.
+ *
+ * A TypedEvent describes each occurrence with an EventPayload, which its
+ * PayloadCallbacks receive as is. Plain EventCallbacks keep working against
+ * any Event, and receive the payload as Properties.
+ *
+ * A BatchCallback receives the payloads of a TypedEvent in batches: every
+ * time it is notified, it is handed all the occurrences which have piled up
+ * for it, up to a limit. When nothing is piling up, it waits a moment (the
+ * batch linger) for more to arrive, so that a storm of events, like the
+ * disconnections of every user at once, reaches it in a few large batches.
+ * Since each batch empties whatever has piled up, the queue of a
+ * BatchCallback is unbounded, and it never misses an occurrence.
+ *
+ * EventObservers see every occurrence of every Event. If the journal is
+ * enabled, an EventJournal is registered as one, and records every event.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class EventManager implements GlobalService {
+
+	public static final String SERVICE_NAME = "EventManager";
+
+	/**
+	 * The default number of events which may be waiting for each
+	 * asynchronous callback.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	/**
+	 * The default number of milliseconds a BatchCallback waits for more
+	 * events before being handed a batch which is not full.
+	 */
+	public static final int DEFAULT_BATCH_LINGER = 10;
+
+	private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+	private static final EventObserver[] NO_OBSERVERS = new EventObserver[0];
+
+	/**
+	 * A callback together with the way its events are delivered to it. The
+	 * callback is an EventCallback, a PayloadCallback or a BatchCallback.
+	 */
+	private class Subscriber implements Runnable {
+		private Object target;
+		private EventCallback callback;
+		private PayloadCallback<EventPayload> payloadCallback;
+		private BatchCallback<EventPayload> batchCallback;
+		private int maxBatch;
+		private BlockingQueue<EventPayload> queue;
+		private AtomicLong delivered;
+		private AtomicLong batches;
+		private AtomicLong dropped;
+		private Thread worker;
+
+		// Registration only lets a callback watch events whose payloads it accepts.
+		@SuppressWarnings("unchecked")
+		Subscriber(Object target, boolean synchronous, int maxBatch) {
+			this.target = target;
+			if (target instanceof EventCallback) {
+				callback = (EventCallback) target;
+			} else if (target instanceof BatchCallback) {
+				batchCallback = (BatchCallback<EventPayload>) target;
+			} else {
+				payloadCallback = (PayloadCallback<EventPayload>) target;
+			}
+			this.maxBatch = maxBatch;
+			if (synchronous) {
+				queue = null;
+			} else if (batchCallback != null) {
+				queue = new LinkedBlockingQueue<EventPayload>();
+			} else {
+				queue = new ArrayBlockingQueue<EventPayload>(queueCapacity);
+			}
+			delivered = new AtomicLong();
+			batches = new AtomicLong();
+			dropped = new AtomicLong();
+		}
+
+		boolean isSynchronous() {
+			return queue == null;
+		}
+
+		void start(int id) {
+			worker = ThreadSpawner.newThread(this, "EventCallback-" + id);
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		void deliver(EventPayload payload) {
+			if (isSynchronous()) {
+				call(payload);
+				return;
+			}
+			// Never make the thread where the event occurred wait for room.
+			if (!queue.offer(payload)) {
+				dropped.incrementAndGet();
+			}
+		}
+
+		private void call(EventPayload payload) {
+			try {
+				if (payloadCallback != null) {
+					payloadCallback.eventOccured(payload);
+				} else {
+					callback.eventOccured(payload.toProperties());
+				}
+			} catch (RuntimeException e) {
+				// A broken callback must not stop the others from being notified.
+				e.printStackTrace();
+			}
+			delivered.incrementAndGet();
+			batches.incrementAndGet();
+		}
+
+		private void callBatch(List<EventPayload> batch) {
+			try {
+				batchCallback.eventsOccured(batch);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			delivered.addAndGet(batch.size());
+			batches.incrementAndGet();
+		}
+
+		/**
+		 * Waits for the first event of a batch, then gathers whatever else
+		 * arrives within the batch linger, up to the largest batch.
+		 */
+		private List<EventPayload> takeBatch() throws InterruptedException {
+			List<EventPayload> batch = new ArrayList<EventPayload>();
+			batch.add(queue.take());
+			long deadline = System.nanoTime() + batchLinger;
+			while (batch.size() < maxBatch) {
+				if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+					continue;
+				}
+				long wait = deadline - System.nanoTime();
+				EventPayload next = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+				if (next == null) {
+					break;
+				}
+				batch.add(next);
+			}
+			return batch;
+		}
+
+		public void run() {
+			while (alive) {
+				try {
+					if (batchCallback != null) {
+						callBatch(takeBatch());
+					} else {
+						call(queue.take());
+					}
+				} catch (InterruptedException e) {
+					// Woken up by shutdown().
+				}
+			}
+		}
+	}
+
+	private ConcurrentHashMap<Event, Subscriber[]> eventCallbackTable;
+	private ConcurrentHashMap<String, Event> eventTable;
+	private ConcurrentHashMap<Object, Subscriber> subscriberTable;
+	private volatile EventObserver[] observers;
+	private EventJournal journal;
+	private int queueCapacity;
+	private long batchLinger;
+	private volatile boolean alive;
+
+	public String getIdentifier() {
+		return SERVICE_NAME;
+	}
+
+	public String[] getDependencies() {
+		return new String[0];
+	}
+
+	/**
+	 * Initializes the EventManager.
+	 * <br>
+	 * <b>Optional configuration options:</b>
+	 * <br>
+	 * queue_capacity (how many events may be waiting for each asynchronous
+	 * callback).
+	 * <br>
+	 * batch_linger (how many milliseconds a BatchCallback waits for more
+	 * events before being handed a batch which is not full; 0 hands over
+	 * whatever has piled up right away).
+	 * <br>
+	 * journal (<code>true</code> to record every event in an EventJournal;
+	 * <code>false</code> by default).
+	 * <br>
+	 * journal_dir (the directory of the journal; <code>journal</code> by
+	 * default), journal_segment_size (the size of each of its files, in
+	 * bytes), journal_queue_capacity (how many events may be waiting to be
+	 * written) and journal_force (<code>true</code>, the default, to force
+	 * each batch of events to disk).
+	 */
+	public void initialize(Properties properties)
+			throws InvalidServiceConfigurationException {
+		eventCallbackTable = new ConcurrentHashMap<Event, Subscriber[]>();
+		eventTable = new ConcurrentHashMap<String, Event>();
+		subscriberTable = new ConcurrentHashMap<Object, Subscriber>();
+		queueCapacity = getIntProperty(properties, "queue_capacity", DEFAULT_QUEUE_CAPACITY, 1);
+		batchLinger = TimeUnit.MILLISECONDS.toNanos(getIntProperty(properties, "batch_linger", DEFAULT_BATCH_LINGER, 0));
+		observers = NO_OBSERVERS;
+		alive = true;
+
+		if (Boolean.parseBoolean(properties.getProperty("journal", "false").trim())) {
+			File directory = new File(properties.getProperty("journal_dir", "journal").trim());
+			try {
+				journal = new EventJournal(directory,
+						getIntProperty(properties, "journal_segment_size", EventJournal.DEFAULT_SEGMENT_SIZE, 1),
+						getIntProperty(properties, "journal_queue_capacity", EventJournal.DEFAULT_QUEUE_CAPACITY, 1),
+						Boolean.parseBoolean(properties.getProperty("journal_force", "true").trim()));
+			} catch (IOException e) {
+				throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, "journal_dir",
+						"Cannot open the event journal in " + directory + ": " + e.getMessage());
+			}
+			journal.start();
+			registerObserver(journal);
+		}
+	}
+
+	/**
+	 * Reads a numeric setting from the configuration.
+	 *
+	 * @param properties The EventManager's configuration.
+	 * @param key The setting to read.
+	 * @param defaultValue The value to use if the setting is absent.
+	 * @param minimum The smallest valid value.
+	 * @return The configured value, or <code>defaultValue</code>.
+	 * @throws InvalidServiceConfigurationException Thrown if the setting is
+	 * present but is not a number of at least <code>minimum</code>.
+	 */
+	private int getIntProperty(Properties properties, String key, int defaultValue, int minimum) throws InvalidServiceConfigurationException {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int parsed = Integer.parseInt(value.trim());
+			if (parsed >= minimum) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {}
+		throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, key, "Invalid " + key
+				+ (minimum > 0 ? ", not a positive numeric value" : ", not a non-negative numeric value"));
+	}
+
+	/**
+	 * Register an event with the server. Its key will be the name of the event.
+	 * Once an event is registered, other components can register callbacks to
+	 * this event.
+	 *
+	 * Only one event can register with a given key, later attempts will fail.
+	 *
+	 * @param event The event to register.
+	 * @return <code>true</code> if no previous event was registered with the
+	 * same key and the registration was successful, <code>false</code> otherwise.
+	 */
+	public synchronized boolean registerEvent(Event event) {
+		if (eventTable.containsKey(event.getName())
+				|| eventCallbackTable.containsKey(event)) {
+			return false;
+		}
+
+		eventTable.put(event.getName(), event);
+		eventCallbackTable.put(event, NO_SUBSCRIBERS);
+		return true;
+	}
+
+	/**
+	 * Register a callback for a particular Event with the server. Every time
+	 * the given event occurs, the registered EventCallback will also be
+	 * triggered, asynchronously.
+	 *
+	 * An EventCallback can only be registered once for a given Event.
+	 *
+	 * @param callback The EventCallback to be notified when the Event occurs.
+	 * @param event The Event to watch.
+	 * @return <code>false</code> if the same callback has previously been
+	 * registered to the same event, <code>true</code> otherwise.
+	 */
+	public boolean registerCallback(EventCallback callback, Event event) {
+		return registerCallback(callback, event, false);
+	}
+
+	/**
+	 * Register a callback for a particular Event with the server, choosing
+	 * how it is notified. A synchronous callback runs on the thread on which
+	 * the event occurred, before that thread carries on; it should be quick.
+	 * An asynchronous callback runs on a thread of its own.
+	 *
+	 * The way a callback is notified is chosen the first time it is
+	 * registered to any Event; it cannot register with the other one later.
+	 *
+	 * @param callback The EventCallback to be notified when the Event occurs.
+	 * @param event The Event to watch.
+	 * @param synchronous <code>true</code> to notify the callback on the
+	 * thread where the event occurred.
+	 * @return <code>false</code> if the same callback has previously been
+	 * registered to the same event, or was registered to be notified the
+	 * other way, <code>true</code> otherwise.
+	 */
+	public boolean registerCallback(EventCallback callback, Event event,
+			boolean synchronous) {
+		return register(callback, event, synchronous, 1);
+	}
+
+	/**
+	 * Register a PayloadCallback for a particular TypedEvent with the server.
+	 * Every time the given event occurs, the callback will be triggered with
+	 * its payload, asynchronously.
+	 *
+	 * A PayloadCallback can only be registered once for a given Event.
+	 *
+	 * @param callback The PayloadCallback to be notified when the Event occurs.
+	 * @param event The Event to watch.
+	 * @return <code>false</code> if the same callback has previously been
+	 * registered to the same event, <code>true</code> otherwise.
+	 */
+	public <P extends EventPayload> boolean registerPayloadCallback(
+			PayloadCallback<? super P> callback, TypedEvent<P> event) {
+		return register(callback, event, false, 1);
+	}
+
+	/**
+	 * Register a PayloadCallback for a particular TypedEvent with the server,
+	 * choosing how it is notified, as for EventCallbacks.
+	 *
+	 * @param callback The PayloadCallback to be notified when the Event occurs.
+	 * @param event The Event to watch.
+	 * @param synchronous <code>true</code> to notify the callback on the
+	 * thread where the event occurred.
+	 * @return <code>false</code> if the same callback has previously been
+	 * registered to the same event, or was registered to be notified the
+	 * other way, <code>true</code> otherwise.
+	 */
+	public <P extends EventPayload> boolean registerPayloadCallback(
+			PayloadCallback<? super P> callback, TypedEvent<P> event,
+			boolean synchronous) {
+		return register(callback, event, synchronous, 1);
+	}
+
+	/**
+	 * Register a BatchCallback for a particular TypedEvent with the server.
+	 * The callback is notified asynchronously, with up to
+	 * <code>maxBatch</code> occurrences at a time.
+	 *
+	 * A BatchCallback can only be registered once for a given Event. If it
+	 * is registered to several Events, it receives the occurrences of all of
+	 * them in the same batches, and the largest batch is the one given when
+	 * it was first registered.
+	 *
+	 * @param callback The BatchCallback to be notified when the Event occurs.
+	 * @param event The Event to watch.
+	 * @param maxBatch The most occurrences to hand the callback at once.
+	 * @return <code>false</code> if the same callback has previously been
+	 * registered to the same event, <code>true</code> otherwise.
+	 */
+	public <P extends EventPayload> boolean registerBatchCallback(
+			BatchCallback<? super P> callback, TypedEvent<P> event, int maxBatch) {
+		return register(callback, event, false, Math.max(maxBatch, 1));
+	}
+
+	/**
+	 * Register an EventObserver, which will be notified of every occurrence
+	 * of every Event from now on.
+	 *
+	 * @param observer The EventObserver to notify.
+	 * @return <code>false</code> if the observer was already registered,
+	 * <code>true</code> otherwise.
+	 */
+	public synchronized boolean registerObserver(EventObserver observer) {
+		EventObserver[] registered = observers;
+		for (EventObserver existing : registered) {
+			if (existing == observer) {
+				return false;
+			}
+		}
+		EventObserver[] updated = new EventObserver[registered.length + 1];
+		System.arraycopy(registered, 0, updated, 0, registered.length);
+		updated[registered.length] = observer;
+		observers = updated;
+		return true;
+	}
+
+	private synchronized boolean register(Object callback, Event event,
+			boolean synchronous, int maxBatch) {
+		Subscriber[] registered = eventCallbackTable.get(event);
+		for (Subscriber subscriber : registered) {
+			if (subscriber.target == callback) {
+				return false;
+			}
+		}
+
+		Subscriber subscriber = subscriberTable.get(callback);
+		if (subscriber == null) {
+			subscriber = new Subscriber(callback, synchronous, maxBatch);
+			if (!synchronous) {
+				subscriber.start(subscriberTable.size());
+			}
+			subscriberTable.put(callback, subscriber);
+		} else if (subscriber.isSynchronous() != synchronous) {
+			return false;
+		}
+
+		Subscriber[] subscribers = new Subscriber[registered.length + 1];
+		System.arraycopy(registered, 0, subscribers, 0, registered.length);
+		subscribers[registered.length] = subscriber;
+		eventCallbackTable.put(event, subscribers);
+		return true;
+	}
+
+	/**
+	 * Used to notify the EventManager that one of its registered events
+	 * has occurred. The EventManager will notify every EventObserver, then
+	 * each EventCallback in the same order they were registered in:
+	 * synchronous callbacks before this method returns, and asynchronous
+	 * ones by queueing the event for them. If an asynchronous callback has
+	 * fallen so far behind that its queue is full, the event is dropped
+	 * for that callback alone.
+	 *
+	 * @param event The event which has occurred.
+	 * @param payload The details of the occurrence, to pass to the
+	 * callbacks.
+	 */
+	void eventOccured(Event event, EventPayload payload) {
+		Subscriber[] subscribers = eventCallbackTable.get(event);
+		if (subscribers == null) {
+			return;
+		}
+
+		for (EventObserver observer : observers) {
+			try {
+				observer.eventOccured(event, payload);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		for (Subscriber subscriber : subscribers) {
+			subscriber.deliver(payload);
+		}
+	}
+
+	/**
+	 * Used to notify the EventManager that one of its registered events
+	 * which has no typed payload has occurred.
+	 *
+	 * @param event The event which has occurred.
+	 * @param eventData Some extra configuration data to pass to the
+	 * EventCallback.
+	 */
+	void eventOccured(Event event, Properties eventData) {
+		eventOccured(event, new PropertiesPayload(eventData));
+	}
+
+	/**
+	 * Fetch the Event with the given name among all Events registered
+	 * with the EventManager.
+	 *
+	 * @param eventName The name to look for.
+	 * @return The registered Event with the given name.
+	 */
+	public Event getEvent(String eventName) {
+		return eventTable.get(eventName);
+	}
+
+	/**
+	 * Fetch the TypedEvent with the given name among all Events registered
+	 * with the EventManager, provided its payloads are of the given type.
+	 *
+	 * @param eventName The name to look for.
+	 * @param payloadType The type of EventPayload the caller understands.
+	 * @return The registered Event with the given name, or <code>null</code>
+	 * if there is none or its payloads are not of the given type.
+	 */
+	@SuppressWarnings("unchecked")
+	public <P extends EventPayload> TypedEvent<? extends P> getEvent(String eventName, Class<P> payloadType) {
+		Event event = eventTable.get(eventName);
+		if (!(event instanceof TypedEvent)
+				|| !payloadType.isAssignableFrom(((TypedEvent<?>) event).getPayloadType())) {
+			return null;
+		}
+		return (TypedEvent<? extends P>) event;
+	}
+
+	/**
+	 * Get the number of events waiting to be delivered to a callback.
+	 *
+	 * @param callback A registered callback.
+	 * @return The number of queued events, which is always 0 for a
+	 * synchronous callback.
+	 */
+	public int getQueued(Object callback) {
+		Subscriber subscriber = subscriberTable.get(callback);
+		return (subscriber == null || subscriber.isSynchronous()) ? 0 : subscriber.queue.size();
+	}
+
+	/**
+	 * Get the number of events a callback has been notified of.
+	 *
+	 * @param callback A registered callback.
+	 * @return The number of events delivered to the callback.
+	 */
+	public long getDelivered(Object callback) {
+		Subscriber subscriber = subscriberTable.get(callback);
+		return (subscriber == null) ? 0 : subscriber.delivered.get();
+	}
+
+	/**
+	 * Get the number of times a callback has been notified. This is the
+	 * same as <code>getDelivered</code>, except for a BatchCallback, which
+	 * is notified once per batch.
+	 *
+	 * @param callback A registered callback.
+	 * @return The number of notifications.
+	 */
+	public long getBatches(Object callback) {
+		Subscriber subscriber = subscriberTable.get(callback);
+		return (subscriber == null) ? 0 : subscriber.batches.get();
+	}
+
+	/**
+	 * Get the number of events which were dropped for a callback because its
+	 * queue was full.
+	 *
+	 * @param callback A registered callback.
+	 * @return The number of events the callback missed.
+	 */
+	public long getDropped(Object callback) {
+		Subscriber subscriber = subscriberTable.get(callback);
+		return (subscriber == null) ? 0 : subscriber.dropped.get();
+	}
+
+	/**
+	 * Get the EventJournal recording every event.
+	 *
+	 * @return The EventJournal, or <code>null</code> if the journal is not
+	 * enabled.
+	 */
+	public EventJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Stops the threads of the asynchronous callbacks. Events which have
+	 * not been delivered yet are abandoned, except by the journal, which
+	 * writes every event it has already been given before closing.
+	 */
+	public void shutdown() {
+		alive = false;
+		if (journal != null) {
+			journal.close();
+		}
+		for (Subscriber subscriber : subscriberTable.values()) {
+			if (subscriber.worker != null) {
+				subscriber.worker.interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+package server.services.event;
+
+/**
+ * An EventObserver is notified of every occurrence of every Event, including
+ * Events registered after it, along with the Event which occurred. It is
+ * meant for components which record or measure what happens on the server,
+ * like the EventJournal, rather than react to it.
+ *
+ * Observers are always notified on the thread on which the event occurred,
+ * before any callback, so they must hand the work off quickly.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public interface EventObserver {
+
+	/**
+	 * Called each time any registered Event occurs.
+	 *
+	 * @param event The Event which occurred.
+	 * @param payload The details of the occurrence. It is shared with the
+	 * callbacks of the Event, and must not be modified.
+	 */
+	public void eventOccured(Event event, EventPayload payload);
+
+}
@@ -0,0 +1,70 @@
+package server.services.event;
+
+import java.util.Properties;
+
+/**
+ * An EventPayload carries the details of a single occurrence of an Event,
+ * such as the User who connected, as typed fields which PayloadCallbacks
+ * read directly.
+ *
+ * EventCallbacks written before payloads existed still receive the details
+ * as Properties. The Properties are only built the first time such a
+ * callback asks for them, and are then shared by every callback notified of
+ * the same occurrence; no map is allocated if no EventCallback is listening.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+abstract public class EventPayload {
+
+	private volatile Properties properties;
+
+	/**
+	 * Constructs a new EventPayload.
+	 */
+	protected EventPayload() {
+	}
+
+	/**
+	 * Constructs an EventPayload whose Properties are already built.
+	 *
+	 * @param properties The details of the occurrence.
+	 */
+	EventPayload(Properties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * Copies the details of this occurrence into Properties, with the keys
+	 * the EventCallbacks of its Event expect.
+	 *
+	 * @param properties The Properties to fill.
+	 */
+	abstract protected void fillProperties(Properties properties);
+
+	/**
+	 * Get the details of this occurrence as Properties, for EventCallbacks.
+	 *
+	 * @return The details of this occurrence.
+	 */
+	public final Properties toProperties() {
+		Properties built = properties;
+		if (built == null) {
+			built = new Properties();
+			fillProperties(built);
+			properties = built;
+		}
+		return built;
+	}
+
+	/**
+	 * Get the Properties of this occurrence if they have been built already.
+	 *
+	 * @return The details of this occurrence, or <code>null</code> if no
+	 * EventCallback has asked for them yet.
+	 */
+	Properties peekProperties() {
+		return properties;
+	}
+
+}
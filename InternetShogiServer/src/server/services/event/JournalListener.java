@@ -0,0 +1,25 @@
+package server.services.event;
+
+import java.util.Properties;
+
+/**
+ * A JournalListener is handed each event read back from an EventJournal,
+ * in the order the events occurred.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public interface JournalListener {
+
+	/**
+	 * Called for each event read from the journal.
+	 *
+	 * @param timestamp When the event occurred, in milliseconds since the
+	 * epoch.
+	 * @param eventName The name of the Event which occurred.
+	 * @param eventData The details of the occurrence, as the Event's
+	 * EventCallbacks would have received them.
+	 */
+	public void eventReplayed(long timestamp, String eventName, Properties eventData);
+
+}
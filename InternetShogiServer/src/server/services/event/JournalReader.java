@@ -0,0 +1,209 @@
+package server.services.event;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Reads back the events recorded by an EventJournal, in the order they
+ * occurred, and hands each one to a JournalListener. A PresenceReplay, for
+ * instance, rebuilds who was connected and who was in which room.
+ *
+ * Reading stops at the end of each segment, or at the first record which
+ * is torn or corrupt. The journal may be read while the server is still
+ * writing to it; events written meanwhile may or may not be seen.
+ *
+ * The reader can also be run on its own, to print a journal:
+ * <code>JournalReader <i>directory</i> [--state]</code> prints every event,
+ * or with <code>--state</code>, the connected users and room occupants at the
+ * end of the journal.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class JournalReader {
+
+	/**
+	 * Reads every event in a journal.
+	 *
+	 * @param directory The directory holding the journal's segments.
+	 * @param listener The JournalListener to hand each event to.
+	 * @return The number of events read.
+	 * @throws IOException Thrown if a segment cannot be read.
+	 */
+	public static long replay(File directory, JournalListener listener) throws IOException {
+		CountingListener counter = new CountingListener(listener);
+		for (File file : listSegments(directory)) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				readSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), counter);
+			} finally {
+				raf.close();
+			}
+		}
+		return counter.count;
+	}
+
+	/**
+	 * Counts the events passed on to another listener.
+	 */
+	private static class CountingListener implements JournalListener {
+		private JournalListener listener;
+		private long count;
+
+		CountingListener(JournalListener listener) {
+			this.listener = listener;
+		}
+
+		public void eventReplayed(long timestamp, String eventName, Properties eventData) {
+			count++;
+			listener.eventReplayed(timestamp, eventName, eventData);
+		}
+	}
+
+	/**
+	 * Reads the events of a single segment, from its start.
+	 *
+	 * @param segment The contents of the segment.
+	 * @param listener The JournalListener to hand each event to, or
+	 * <code>null</code> to only find the end of the segment.
+	 * @return The position just after the last intact record, or -1 if this
+	 * is not a segment of a journal.
+	 */
+	static int readSegment(ByteBuffer segment, JournalListener listener) {
+		if (segment.limit() < EventJournal.SEGMENT_HEADER_SIZE
+				|| segment.getInt(0) != EventJournal.MAGIC
+				|| segment.getInt(4) != EventJournal.VERSION) {
+			return -1;
+		}
+		CRC32 crc = new CRC32();
+		int position = EventJournal.SEGMENT_HEADER_SIZE;
+		while (segment.limit() - position >= EventJournal.RECORD_HEADER_SIZE) {
+			int length = segment.getInt(position);
+			if (length <= 0 || length > segment.limit() - position - EventJournal.RECORD_HEADER_SIZE) {
+				break;
+			}
+			byte[] body = new byte[length];
+			segment.position(position + EventJournal.RECORD_HEADER_SIZE);
+			segment.get(body);
+			crc.reset();
+			crc.update(body, 0, length);
+			if ((int) crc.getValue() != segment.getInt(position + 4)) {
+				break;
+			}
+			if (listener != null && !decode(ByteBuffer.wrap(body), listener)) {
+				break;
+			}
+			position += EventJournal.RECORD_HEADER_SIZE + length;
+		}
+		return position;
+	}
+
+	private static boolean decode(ByteBuffer body, JournalListener listener) {
+		try {
+			long timestamp = body.getLong();
+			String eventName = getString(body);
+			int fields = body.getShort() & 0xFFFF;
+			Properties eventData = new Properties();
+			for (int i = 0; i < fields; i++) {
+				String key = getString(body);
+				eventData.setProperty(key, getString(body));
+			}
+			listener.eventReplayed(timestamp, eventName, eventData);
+			return true;
+		} catch (RuntimeException e) {
+			// A record which passed its CRC but does not parse was not written by us.
+			return false;
+		}
+	}
+
+	private static String getString(ByteBuffer body) {
+		byte[] bytes = new byte[body.getShort() & 0xFFFF];
+		body.get(bytes);
+		return new String(bytes, EventJournal.UTF8);
+	}
+
+	/**
+	 * Lists the segments of a journal, oldest first.
+	 *
+	 * @param directory The directory holding the journal's segments.
+	 * @return The segments, or an empty array if there are none.
+	 */
+	static File[] listSegments(File directory) {
+		File[] segments = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(EventJournal.SEGMENT_SUFFIX)
+						&& segmentNumber(file) >= 0;
+			}
+		});
+		if (segments == null) {
+			return new File[0];
+		}
+		// Segment names are zero-padded, so they sort in sequence.
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Get the name of the file holding a segment.
+	 *
+	 * @param number The sequence number of the segment.
+	 * @return The name of its file.
+	 */
+	static String segmentName(long number) {
+		return String.format("%016d%s", number, EventJournal.SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Get the sequence number of a segment from the name of its file.
+	 *
+	 * @param file The file holding the segment.
+	 * @return The sequence number, or -1 if the file is not a segment.
+	 */
+	static long segmentNumber(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - EventJournal.SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: JournalReader <directory> [--state]");
+			System.exit(-1);
+		}
+		File directory = new File(args[0]);
+		if (args.length > 1 && args[1].equals("--state")) {
+			PresenceReplay state = new PresenceReplay();
+			long events = replay(directory, state);
+			System.out.println(events + " events, the last at " + new Date(state.getLastTimestamp()));
+			System.out.println("connected " + state.getConnectedUsers());
+			for (String room : state.getRooms()) {
+				System.out.println("room " + room + " " + state.getOccupants(room));
+			}
+			return;
+		}
+		replay(directory, new JournalListener() {
+			public void eventReplayed(long timestamp, String eventName, Properties eventData) {
+				StringBuilder line = new StringBuilder();
+				line.append(timestamp).append(' ').append(eventName);
+				for (Map.Entry<Object, Object> field : eventData.entrySet()) {
+					line.append(' ').append(field.getKey()).append('=').append(field.getValue());
+				}
+				System.out.println(line);
+			}
+		});
+	}
+
+}
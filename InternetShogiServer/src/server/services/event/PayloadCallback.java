@@ -0,0 +1,22 @@
+package server.services.event;
+
+/**
+ * A PayloadCallback is notified of a TypedEvent, like an EventCallback, but
+ * receives the typed EventPayload of each occurrence instead of Properties.
+ *
+ * @author Adrian Petrescu
+ *
+ * @param <P> The kind of EventPayload this callback understands.
+ */
+public interface PayloadCallback<P extends EventPayload> {
+
+	/**
+	 * Once this PayloadCallback is registered against a TypedEvent, this
+	 * method will be called each time the corresponding Event occurs.
+	 *
+	 * @param payload The details of the occurrence. It is shared with the
+	 * other callbacks, and must not be modified.
+	 */
+	public void eventOccured(P payload);
+
+}
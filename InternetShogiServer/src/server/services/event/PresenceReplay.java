@@ -0,0 +1,112 @@
+package server.services.event;
+
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Rebuilds who was connected to the server, and who was in which room, from
+ * the events read back from an EventJournal. It understands the
+ * <code>USER_CONNECT</code> and <code>USER_DISCONNECT</code> events, which
+ * carry a <code>userName</code>, and the <code>ROOM_JOIN</code> and
+ * <code>ROOM_LEAVE</code> events, which also carry a <code>roomName</code>.
+ * Other events are ignored.
+ *
+ * A disconnected user is taken out of every room, even if the journal does
+ * not show them leaving, since the server may have stopped in between.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class PresenceReplay implements JournalListener {
+
+	private SortedSet<String> connected;
+	private SortedMap<String, SortedSet<String>> rooms;
+	private long lastTimestamp;
+
+	/**
+	 * Constructs a PresenceReplay with nobody connected.
+	 */
+	public PresenceReplay() {
+		connected = new TreeSet<String>();
+		rooms = new TreeMap<String, SortedSet<String>>();
+	}
+
+	public void eventReplayed(long timestamp, String eventName, Properties eventData) {
+		lastTimestamp = timestamp;
+		String userName = eventData.getProperty("userName");
+		if (userName == null) {
+			return;
+		}
+		if (eventName.equals("USER_CONNECT")) {
+			connected.add(userName);
+		} else if (eventName.equals("USER_DISCONNECT")) {
+			connected.remove(userName);
+			for (SortedSet<String> occupants : rooms.values()) {
+				occupants.remove(userName);
+			}
+		} else if (eventName.equals("ROOM_JOIN")) {
+			String roomName = eventData.getProperty("roomName");
+			if (roomName != null) {
+				SortedSet<String> occupants = rooms.get(roomName);
+				if (occupants == null) {
+					occupants = new TreeSet<String>();
+					rooms.put(roomName, occupants);
+				}
+				occupants.add(userName);
+			}
+		} else if (eventName.equals("ROOM_LEAVE")) {
+			String roomName = eventData.getProperty("roomName");
+			if (roomName != null && rooms.containsKey(roomName)) {
+				rooms.get(roomName).remove(userName);
+			}
+		}
+	}
+
+	/**
+	 * Get the users who were connected at the end of the journal.
+	 *
+	 * @return The names of the connected users, in order.
+	 */
+	public Set<String> getConnectedUsers() {
+		return Collections.unmodifiableSet(connected);
+	}
+
+	/**
+	 * Get the rooms anyone has joined.
+	 *
+	 * @return The names of the rooms, in order.
+	 */
+	public Set<String> getRooms() {
+		return Collections.unmodifiableSet(rooms.keySet());
+	}
+
+	/**
+	 * Get the users who were in a room at the end of the journal.
+	 *
+	 * @param roomName The name of the room.
+	 * @return The names of the room's occupants, in order.
+	 */
+	public Set<String> getOccupants(String roomName) {
+		SortedSet<String> occupants = rooms.get(roomName);
+		if (occupants == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(occupants);
+	}
+
+	/**
+	 * Get the time of the last event read.
+	 *
+	 * @return When the last event occurred, in milliseconds since the epoch,
+	 * or 0 if there were no events.
+	 */
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+}
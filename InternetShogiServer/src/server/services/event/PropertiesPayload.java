@@ -0,0 +1,22 @@
+package server.services.event;
+
+import java.util.Properties;
+
+/**
+ * The payload of an Event which still reports its details as Properties.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+class PropertiesPayload extends EventPayload {
+
+	PropertiesPayload(Properties eventData) {
+		super(eventData);
+	}
+
+	@Override
+	protected void fillProperties(Properties properties) {
+		// Never called; the Properties are handed over when constructed.
+	}
+
+}
@@ -0,0 +1,48 @@
+package server.services.event;
+
+import server.services.ServiceManager;
+
+/**
+ * A TypedEvent is an Event which describes each of its occurrences with an
+ * EventPayload of a fixed type. PayloadCallbacks registered to it receive
+ * the payload itself; EventCallbacks receive it as Properties.
+ *
+ * @author Adrian Petrescu
+ *
+ * @param <P> The type of EventPayload of this Event.
+ */
+abstract public class TypedEvent<P extends EventPayload> extends Event {
+
+	private Class<P> payloadType;
+
+	/**
+	 * Constructs a new TypedEvent.
+	 *
+	 * @param payloadType The type of EventPayload of this Event.
+	 */
+	protected TypedEvent(Class<P> payloadType) {
+		this.payloadType = payloadType;
+	}
+
+	/**
+	 * Get the type of EventPayload which describes each occurrence of this
+	 * Event.
+	 *
+	 * @return The type of payload.
+	 */
+	public Class<P> getPayloadType() {
+		return payloadType;
+	}
+
+	/**
+	 * Called to indicate that the event which this Event object symbolises
+	 * has occurred. This method will notify the Event Manager, which will
+	 * notify all registered callback functions.
+	 *
+	 * @param payload The details of this occurrence.
+	 */
+	protected void occured(P payload) {
+		ServiceManager.getEventManager().eventOccured(this, payload);
+	}
+
+}
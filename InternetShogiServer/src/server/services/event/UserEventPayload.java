@@ -0,0 +1,42 @@
+package server.services.event;
+
+import java.util.Properties;
+
+import server.services.user.User;
+
+/**
+ * The payload of an Event which happens to a single User, such as the User
+ * connecting or disconnecting. EventCallbacks find the name of the User
+ * under <code>userName</code>.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class UserEventPayload extends EventPayload {
+
+	private User user;
+
+	/**
+	 * Constructs a new UserEventPayload.
+	 *
+	 * @param user The User the Event happened to.
+	 */
+	public UserEventPayload(User user) {
+		this.user = user;
+	}
+
+	/**
+	 * Get the User the Event happened to.
+	 *
+	 * @return The User.
+	 */
+	public User getUser() {
+		return user;
+	}
+
+	@Override
+	protected void fillProperties(Properties properties) {
+		properties.setProperty("userName", user.getUserName());
+	}
+
+}
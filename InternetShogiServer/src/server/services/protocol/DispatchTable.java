@@ -0,0 +1,129 @@
+package server.services.protocol;
+
+import java.util.Map;
+
+/**
+ * An immutable table from the tokens of a ProtocolMessage to whatever
+ * handles them, looked up straight from the characters of the message, so
+ * that dispatching a message never has to cut its token out into a String.
+ * A table is never changed once it has been built; whoever owns it builds
+ * a new one whenever the entries change, and swaps it in.
+ *
+ * The table is sized so that, whenever possible, no two keys share a slot,
+ * and a lookup is a single probe and a single comparison. Only if that
+ * would take an unreasonably large table do lookups fall back to probing
+ * the following slots.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+final class DispatchTable<T> {
+
+	/* Give up on a collision-free table beyond this many slots per key. */
+	private static final int MAX_SLOTS_PER_KEY = 64;
+
+	private final String[] keys;
+	private final Object[] values;
+	private final int mask;
+	private final boolean collisionFree;
+
+	/**
+	 * Builds a table holding the given entries.
+	 *
+	 * @param entries The keys and their values.
+	 */
+	DispatchTable(Map<String, ? extends T> entries) {
+		int slots = 2;
+		while (slots < 2 * entries.size()) {
+			slots *= 2;
+		}
+		int maxSlots = Math.max(slots, MAX_SLOTS_PER_KEY * entries.size());
+		while (slots < maxSlots && !isCollisionFree(entries, slots)) {
+			slots *= 2;
+		}
+		keys = new String[slots];
+		values = new Object[slots];
+		mask = slots - 1;
+		boolean collided = false;
+		for (Map.Entry<String, ? extends T> entry : entries.entrySet()) {
+			String key = entry.getKey();
+			int slot = hash(key, 0, key.length()) & mask;
+			while (keys[slot] != null) {
+				collided = true;
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			values[slot] = entry.getValue();
+		}
+		collisionFree = !collided;
+	}
+
+	private static boolean isCollisionFree(Map<String, ?> entries, int slots) {
+		boolean[] taken = new boolean[slots];
+		for (String key : entries.keySet()) {
+			int slot = hash(key, 0, key.length()) & (slots - 1);
+			if (taken[slot]) {
+				return false;
+			}
+			taken[slot] = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up one of the tokens of a message.
+	 *
+	 * @param message The message.
+	 * @param token The index of the token, where 0 is the protocol key.
+	 * @return The value for the token, or <code>null</code> if there is none,
+	 * or if the message has no such token.
+	 */
+	T get(ProtocolMessage message, int token) {
+		int[] offsets = message.getTokenOffsets();
+		if (2 * token >= offsets.length) {
+			return null;
+		}
+		return get(message.getMessage(), offsets[2 * token], offsets[2 * token + 1]);
+	}
+
+	/**
+	 * Looks up a key.
+	 *
+	 * @param key The key.
+	 * @return The value for the key, or <code>null</code> if there is none.
+	 */
+	T get(String key) {
+		return get(key, 0, key.length());
+	}
+
+	@SuppressWarnings("unchecked")
+	private T get(String text, int start, int end) {
+		int length = end - start;
+		int slot = hash(text, start, end) & mask;
+		String key = keys[slot];
+		while (key != null) {
+			if (key.length() == length && text.regionMatches(start, key, 0, length)) {
+				return (T) values[slot];
+			}
+			if (collisionFree) {
+				return null;
+			}
+			slot = (slot + 1) & mask;
+			key = keys[slot];
+		}
+		return null;
+	}
+
+	/**
+	 * The same hash as <code>String.hashCode</code>, over part of a String,
+	 * with its high bits folded into the low ones the table slots use.
+	 */
+	private static int hash(String text, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + text.charAt(i);
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+}
@@ -1,7 +1,5 @@
 package server.services.protocol;
 
-import java.util.LinkedList;
-
 /**
  * Represents an ordered collection of ProtocolMessages that are intended as input
  * for the server. Messages in an InputMessageQueue are guaranteed to be parsed
@@ -22,7 +20,6 @@ public class InputMessageQueue extends MessageQueue {
 	 */
 	public InputMessageQueue() {
 		super();
-		messageQueue = new LinkedList<ProtocolMessage>();
 		setPriority(1);
 	}
 	
@@ -33,9 +30,8 @@ public class InputMessageQueue extends MessageQueue {
 	 */
 	public InputMessageQueue(ProtocolMessage message) {
 		super();
-		messageQueue = new LinkedList<ProtocolMessage>();
 		setPriority(1);
-		messageQueue.add(message);
+		enqueue(message);
 	}
 	
 	/**
@@ -45,7 +41,6 @@ public class InputMessageQueue extends MessageQueue {
 	 */
 	public InputMessageQueue(int priority) {
 		super();
-		messageQueue = new LinkedList<ProtocolMessage>();
 		setPriority(priority);
 	}
 	
@@ -57,9 +52,8 @@ public class InputMessageQueue extends MessageQueue {
 	 */
 	public InputMessageQueue(ProtocolMessage message, int priority) {
 		super();
-		messageQueue = new LinkedList<ProtocolMessage>();
 		setPriority(priority);
-		messageQueue.add(message);
+		enqueue(message);
 	}
 	
 }
@@ -0,0 +1,39 @@
+package server.services.protocol;
+
+import server.services.protocol.modules.ProtocolModule;
+import server.services.user.User;
+
+/**
+ * Work which the server generates for itself on behalf of a user, such as
+ * sending the message of the day when they log in, or taking them out of
+ * their rooms when they quit. Instead of being written out as a line of
+ * text, queued, and parsed back in like client input, an InternalCommand is
+ * carried by a ProtocolMessage straight to the module which runs it.
+ * 
+ * It still goes through the same queues as the user's own messages, so it is
+ * run in order with them, and its module is locked for it just as for a
+ * message if the module is not thread-safe.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public interface InternalCommand {
+
+	/**
+	 * Get the ProtocolModule which runs this command. The command is dropped
+	 * if the module has been unloaded by the time it comes up.
+	 * 
+	 * @return The module the command belongs to.
+	 */
+	public ProtocolModule getModule();
+
+	/**
+	 * Runs the command. This is subject to the same rules as
+	 * <code>ProtocolModule.parseMessage</code>.
+	 * 
+	 * @param user The User the command was submitted for.
+	 * @return An OutputMessageQueue of messages to be sent to clients.
+	 */
+	public OutputMessageQueue execute(User user);
+
+}
@@ -0,0 +1,242 @@
+package server.services.protocol;
+
+import server.services.user.User;
+
+/**
+ * Builds the text of a ProtocolMessage token by token in a growable character
+ * buffer, instead of concatenating a new String for every token the way
+ * <code>ProtocolMessage.append</code> used to. A MessageBuilder can be reused
+ * once its message has been built, and each thread has one of its own,
+ * available from <code>forThread</code>, so building a reply normally does
+ * not allocate anything but the finished message.
+ *
+ * When the message is plain ASCII, as protocol messages almost always are,
+ * <code>build</code> also encodes it straight from the buffer, so the
+ * connection writing it out never has to encode it again.
+ *
+ * Tokens are appended with the same rules as <code>ProtocolMessage.append</code>:
+ * leading and trailing whitespace is removed, runs of whitespace inside the
+ * appended text become a single space, and appending nothing but whitespace
+ * has no effect.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class MessageBuilder {
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private static final boolean ASCII_ENCODING = isAsciiEncoding();
+
+	private static final ThreadLocal<MessageBuilder> builders = new ThreadLocal<MessageBuilder>() {
+		@Override
+		protected MessageBuilder initialValue() {
+			return new MessageBuilder();
+		}
+	};
+
+	private char[] buffer;
+	private int length;
+	private boolean ascii;
+
+	/**
+	 * Constructs a new, empty MessageBuilder.
+	 */
+	public MessageBuilder() {
+		buffer = new char[128];
+		ascii = true;
+	}
+
+	/**
+	 * Constructs a new MessageBuilder for a message to the given protocol key.
+	 *
+	 * @param protocolKey The protocol key of the message.
+	 */
+	public MessageBuilder(String protocolKey) {
+		this();
+		append(protocolKey);
+	}
+
+	/**
+	 * Get the calling thread's MessageBuilder, emptied and started on a
+	 * message to the given protocol key. The builder is shared by everything
+	 * running on the thread, so its message must be built before anything
+	 * else asks for it.
+	 *
+	 * @param protocolKey The protocol key of the message.
+	 * @return The thread's MessageBuilder.
+	 */
+	public static MessageBuilder forThread(String protocolKey) {
+		MessageBuilder builder = builders.get();
+		builder.reset();
+		builder.append(protocolKey);
+		return builder;
+	}
+
+	/**
+	 * Appends token(s) to the end of the message, separated from what is
+	 * already there by a single space.
+	 *
+	 * @param tokens The token(s) to append.
+	 * @return This MessageBuilder.
+	 */
+	public MessageBuilder append(CharSequence tokens) {
+		int start = 0;
+		int end = tokens.length();
+		while (start < end && tokens.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && tokens.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		boolean inToken = false;
+		for (int i = start; i < end; i++) {
+			char c = tokens.charAt(i);
+			if (isWhitespace(c)) {
+				inToken = false;
+				continue;
+			}
+			if (!inToken) {
+				if (length > 0) {
+					put(' ');
+				}
+				inToken = true;
+			}
+			put(c);
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a number to the end of the message as a token of its own.
+	 *
+	 * @param number The number to append.
+	 * @return This MessageBuilder.
+	 */
+	public MessageBuilder append(int number) {
+		return append(String.valueOf(number));
+	}
+
+	/**
+	 * Get the length of the message built so far.
+	 *
+	 * @return The number of characters in the message.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Empties the builder, so that it can build another message.
+	 *
+	 * @return This MessageBuilder.
+	 */
+	public MessageBuilder reset() {
+		length = 0;
+		ascii = true;
+		return this;
+	}
+
+	/**
+	 * Finishes the message and empties the builder. The message comes from
+	 * the MessagePool, and belongs to the caller.
+	 *
+	 * @param user The User the message is from or addressed to, or
+	 * <code>null</code>.
+	 * @return The built ProtocolMessage.
+	 */
+	public ProtocolMessage build(User user) {
+		String message = new String(buffer, 0, length);
+		byte[] encoded = null;
+		if (ascii && ASCII_ENCODING) {
+			encoded = new byte[length + LINE_SEPARATOR.length()];
+			for (int i = 0; i < length; i++) {
+				encoded[i] = (byte) buffer[i];
+			}
+			for (int i = 0; i < LINE_SEPARATOR.length(); i++) {
+				encoded[length + i] = (byte) LINE_SEPARATOR.charAt(i);
+			}
+		}
+		reset();
+		return MessagePool.acquireMessage(user, message, encoded);
+	}
+
+	/**
+	 * Finishes the message and empties the builder.
+	 *
+	 * @return The built ProtocolMessage, with no associated User.
+	 */
+	public ProtocolMessage build() {
+		return build(null);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, length);
+	}
+
+	/**
+	 * Appends the token(s) to a message held in a StringBuilder, with the
+	 * same rules as <code>append</code>, except that a space is added before
+	 * every token even if the message is empty, as
+	 * <code>ProtocolMessage.append</code> has always done.
+	 */
+	static void appendTokens(StringBuilder message, String tokens) {
+		String trimmed = tokens.trim();
+		int end = trimmed.length();
+		boolean inToken = false;
+		for (int i = 0; i < end; i++) {
+			char c = trimmed.charAt(i);
+			if (isWhitespace(c)) {
+				inToken = false;
+				continue;
+			}
+			if (!inToken) {
+				message.append(' ');
+				inToken = true;
+			}
+			message.append(c);
+		}
+	}
+
+	/**
+	 * The characters matched by the regular expression <code>\s</code>.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	private void put(char c) {
+		if (length == buffer.length) {
+			char[] larger = new char[buffer.length * 2];
+			System.arraycopy(buffer, 0, larger, 0, length);
+			buffer = larger;
+		}
+		buffer[length++] = c;
+		if (c >= 0x80) {
+			ascii = false;
+		}
+	}
+
+	/**
+	 * Checks whether the platform's default encoding writes ASCII characters
+	 * as the same single bytes, so ASCII messages can be encoded by copying.
+	 */
+	private static boolean isAsciiEncoding() {
+		char[] chars = new char[0x80];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) i;
+		}
+		byte[] bytes = new String(chars).getBytes();
+		if (bytes.length != chars.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] != i) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,468 @@
+package server.services.protocol;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import server.services.user.User;
+
+/**
+ * Recycles the ProtocolMessages, InputMessageQueues and OutputMessageQueues
+ * that every line of client traffic passes through, so that a busy server
+ * does not have to allocate a fresh set of them for each one. Pooling is
+ * off unless it is turned on with <code>configure</code>; while it is off,
+ * acquiring an object simply creates it and releasing one does nothing.
+ *
+ * Every pooled object has exactly one owner at a time, and only its owner
+ * may release it, once nothing will ever look at it again:
+ * <ul>
+ * <li>The ClientConnection acquires each input message and its
+ * InputMessageQueue, and hands both to the ProtocolMap.</li>
+ * <li>The ProtocolMap releases each input message once its ProtocolModule
+ * has parsed it, and the InputMessageQueue once it is empty. ProtocolModules
+ * must therefore not hold on to the messages they are given. The replies
+ * of the modules are gathered into a single OutputMessageQueue, and the
+ * modules' own queues are released.</li>
+ * <li>The OutputQueueProcessor (or <code>ConnectionManager.deliver</code>)
+ * hands each reply to the recipient's connection, and releases the
+ * emptied OutputMessageQueue.</li>
+ * <li>The connection releases each message once its bytes have been
+ * copied out to be written, or when it drops the message.</li>
+ * </ul>
+ * Objects which were never acquired from the pool may be released all the
+ * same; they are simply taken into it. An object which must live on, such
+ * as a template which is copied for every recipient, is handed to
+ * <code>keep</code> instead.
+ *
+ * In debug mode, the pool also remembers where every object it hands out
+ * was acquired, so that objects which are never released can be reported
+ * with <code>reportLeaks</code>. This costs a stack trace per object, and
+ * is only meant for tracking down leaks.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class MessagePool {
+
+	/**
+	 * The number of idle objects of each kind the pool holds on to by
+	 * default.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/* The most idle objects of each kind a single thread keeps to itself. */
+	private static final int THREAD_CACHE_SIZE = 32;
+
+	/**
+	 * Where a pooled object was acquired, in debug mode.
+	 */
+	private static class Acquisition extends Throwable {
+		private static final long serialVersionUID = 1L;
+		private final long acquiredAt;
+
+		Acquisition(Object acquired) {
+			super(acquired.getClass().getSimpleName() + " acquired here");
+			acquiredAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * The idle objects of one kind kept by a single thread.
+	 */
+	private static class ThreadCache {
+		private final Object[] objects = new Object[THREAD_CACHE_SIZE];
+		private int size;
+	}
+
+	/**
+	 * A bounded stack of idle objects of one kind, shared by every thread,
+	 * in front of which each thread keeps a small stack of its own. Objects
+	 * are mostly acquired and released without taking the lock, which is
+	 * only taken to move half a thread's stack at a time to or from the
+	 * shared one.
+	 */
+	private static abstract class Pool<T> {
+		private Object[] idle = new Object[0];
+		private int size;
+		private volatile int cacheSize;
+		private long created;
+		private long doubleReleases;
+
+		private final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+			@Override
+			protected ThreadCache initialValue() {
+				return new ThreadCache();
+			}
+		};
+
+		abstract T create();
+
+		abstract boolean isPooled(T object);
+
+		abstract void setPooled(T object, boolean pooled);
+
+		@SuppressWarnings("unchecked")
+		T acquire() {
+			ThreadCache cache = caches.get();
+			if (cache.size == 0 && !refill(cache)) {
+				return create();
+			}
+			T object = (T) cache.objects[--cache.size];
+			cache.objects[cache.size] = null;
+			setPooled(object, false);
+			return object;
+		}
+
+		void release(T object) {
+			if (isPooled(object)) {
+				synchronized (this) {
+					doubleReleases++;
+				}
+				return;
+			}
+			ThreadCache cache = caches.get();
+			if (cache.size >= cacheSize) {
+				if (cacheSize == 0) {
+					return;
+				}
+				spill(cache);
+			}
+			setPooled(object, true);
+			cache.objects[cache.size++] = object;
+		}
+
+		/**
+		 * Moves up to half a thread's stack of objects off the shared stack,
+		 * or counts a new object as created if there are none.
+		 */
+		private synchronized boolean refill(ThreadCache cache) {
+			int moved = Math.min(size, Math.max(cacheSize / 2, 1));
+			if (moved == 0) {
+				created++;
+				return false;
+			}
+			size -= moved;
+			System.arraycopy(idle, size, cache.objects, 0, moved);
+			Arrays.fill(idle, size, size + moved, null);
+			cache.size = moved;
+			return true;
+		}
+
+		/**
+		 * Moves half of a thread's stack onto the shared stack, as far as
+		 * there is room for it; the objects which do not fit are dropped.
+		 */
+		private synchronized void spill(ThreadCache cache) {
+			int moved = (cache.size + 1) / 2;
+			int kept = Math.min(moved, idle.length - size);
+			int from = cache.size - moved;
+			System.arraycopy(cache.objects, from, idle, size, kept);
+			size += kept;
+			Arrays.fill(cache.objects, from, cache.size, null);
+			cache.size = from;
+		}
+
+		synchronized void setCapacity(int capacity) {
+			Object[] resized = new Object[capacity];
+			size = Math.min(size, capacity);
+			System.arraycopy(idle, 0, resized, 0, size);
+			idle = resized;
+			cacheSize = Math.min(capacity, THREAD_CACHE_SIZE);
+		}
+
+		synchronized long getCreated() {
+			return created;
+		}
+
+		synchronized long getDoubleReleases() {
+			return doubleReleases;
+		}
+	}
+
+	private static final Pool<ProtocolMessage> messages = new Pool<ProtocolMessage>() {
+		ProtocolMessage create() {
+			return new ProtocolMessage();
+		}
+
+		boolean isPooled(ProtocolMessage message) {
+			return message.pooled;
+		}
+
+		void setPooled(ProtocolMessage message, boolean pooled) {
+			message.pooled = pooled;
+		}
+	};
+
+	private static final Pool<InputMessageQueue> inputQueues = new Pool<InputMessageQueue>() {
+		InputMessageQueue create() {
+			return new InputMessageQueue();
+		}
+
+		boolean isPooled(InputMessageQueue queue) {
+			return queue.pooled;
+		}
+
+		void setPooled(InputMessageQueue queue, boolean pooled) {
+			queue.pooled = pooled;
+		}
+	};
+
+	private static final Pool<OutputMessageQueue> outputQueues = new Pool<OutputMessageQueue>() {
+		OutputMessageQueue create() {
+			return new OutputMessageQueue();
+		}
+
+		boolean isPooled(OutputMessageQueue queue) {
+			return queue.pooled;
+		}
+
+		void setPooled(OutputMessageQueue queue, boolean pooled) {
+			queue.pooled = pooled;
+		}
+	};
+
+	private static volatile boolean enabled;
+	private static volatile boolean debug;
+	private static final Map<Object, Acquisition> outstanding =
+		Collections.synchronizedMap(new IdentityHashMap<Object, Acquisition>());
+
+	private MessagePool() {
+	}
+
+	/**
+	 * Turns pooling on or off. Objects acquired while pooling was on may
+	 * still be released after it has been turned off, and the other way
+	 * around.
+	 *
+	 * @param enabled <code>true</code> to recycle objects.
+	 * @param debug <code>true</code> to track every object handed out, so
+	 * that leaks can be reported. Only has an effect while pooling is on.
+	 * @param capacity The number of idle objects of each kind to hold on to.
+	 */
+	public static void configure(boolean enabled, boolean debug, int capacity) {
+		messages.setCapacity(capacity);
+		inputQueues.setCapacity(capacity);
+		outputQueues.setCapacity(capacity);
+		if (!debug) {
+			outstanding.clear();
+		}
+		MessagePool.debug = debug;
+		MessagePool.enabled = enabled;
+	}
+
+	/**
+	 * Checks whether objects are being recycled.
+	 *
+	 * @return <code>true</code> if pooling is on.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Get a ProtocolMessage containing the given message, which will be
+	 * trimmed of leading and trailing whitespace, associated with the given
+	 * User.
+	 *
+	 * @param user The User who is either the sender or the recipient of the
+	 * message, or <code>null</code>.
+	 * @param message The message to be stored.
+	 * @return A ProtocolMessage owned by the caller.
+	 */
+	public static ProtocolMessage acquireMessage(User user, String message) {
+		return acquireMessage(user, message.trim(), null);
+	}
+
+	/**
+	 * Get a ProtocolMessage for a message which needs no trimming, and
+	 * which may already have been encoded.
+	 */
+	static ProtocolMessage acquireMessage(User user, String message, byte[] encoded) {
+		if (!enabled) {
+			return new ProtocolMessage(user, message, encoded);
+		}
+		ProtocolMessage pooled = messages.acquire();
+		pooled.reset(user, message, encoded);
+		track(pooled);
+		return pooled;
+	}
+
+	/**
+	 * Get an InputMessageQueue containing a single ProtocolMessage.
+	 *
+	 * @param message The first ProtocolMessage in the queue.
+	 * @param priority The priority of the queue.
+	 * @return An InputMessageQueue owned by the caller.
+	 */
+	public static InputMessageQueue acquireInputQueue(ProtocolMessage message, int priority) {
+		if (!enabled) {
+			return new InputMessageQueue(message, priority);
+		}
+		InputMessageQueue queue = inputQueues.acquire();
+		queue.setPriority(priority);
+		queue.enqueue(message);
+		track(queue);
+		return queue;
+	}
+
+	/**
+	 * Get an empty OutputMessageQueue.
+	 *
+	 * @param priority The priority of the queue.
+	 * @return An OutputMessageQueue owned by the caller.
+	 */
+	public static OutputMessageQueue acquireOutputQueue(int priority) {
+		if (!enabled) {
+			return new OutputMessageQueue(priority);
+		}
+		OutputMessageQueue queue = outputQueues.acquire();
+		queue.setPriority(priority);
+		track(queue);
+		return queue;
+	}
+
+	/**
+	 * Get an empty OutputMessageQueue, with the default priority of 1.
+	 *
+	 * @return An OutputMessageQueue owned by the caller.
+	 */
+	public static OutputMessageQueue acquireOutputQueue() {
+		return acquireOutputQueue(1);
+	}
+
+	/**
+	 * Get an OutputMessageQueue containing a single ProtocolMessage, with
+	 * the default priority of 1.
+	 *
+	 * @param message The first ProtocolMessage in the queue.
+	 * @return An OutputMessageQueue owned by the caller.
+	 */
+	public static OutputMessageQueue acquireOutputQueue(ProtocolMessage message) {
+		OutputMessageQueue queue = acquireOutputQueue(1);
+		queue.enqueue(message);
+		return queue;
+	}
+
+	/**
+	 * Gives a ProtocolMessage back to the pool. The caller must not use it
+	 * again afterwards.
+	 *
+	 * @param message The message to recycle.
+	 */
+	public static void release(ProtocolMessage message) {
+		if (!enabled) {
+			return;
+		}
+		untrack(message);
+		messages.release(message);
+	}
+
+	/**
+	 * Gives a MessageQueue back to the pool. Any messages still in the queue
+	 * are <i>not</i> released along with it, since they may still be in use
+	 * elsewhere. The caller must not use the queue again afterwards.
+	 *
+	 * @param queue The queue to recycle.
+	 */
+	public static void release(MessageQueue queue) {
+		if (!enabled) {
+			return;
+		}
+		untrack(queue);
+		queue.recycle();
+		if (queue instanceof InputMessageQueue) {
+			inputQueues.release((InputMessageQueue) queue);
+		} else if (queue instanceof OutputMessageQueue) {
+			outputQueues.release((OutputMessageQueue) queue);
+		}
+	}
+
+	/**
+	 * Takes an object acquired from the pool out of its lifecycle for good.
+	 * It will never be released, and is not reported as a leak.
+	 *
+	 * @param object A ProtocolMessage or MessageQueue which is kept forever.
+	 */
+	public static void keep(Object object) {
+		outstanding.remove(object);
+	}
+
+	private static void track(Object object) {
+		if (debug) {
+			outstanding.put(object, new Acquisition(object));
+		}
+	}
+
+	private static void untrack(Object object) {
+		if (debug) {
+			outstanding.remove(object);
+		}
+	}
+
+	/**
+	 * Get the number of objects handed out in debug mode which have been
+	 * neither released nor kept.
+	 *
+	 * @return The number of outstanding objects, or 0 outside debug mode.
+	 */
+	public static int getOutstanding() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Prints where every object which has been outstanding for longer than
+	 * the given time was acquired. Only objects handed out in debug mode
+	 * are tracked.
+	 *
+	 * @param olderThan The number of milliseconds an object must have been
+	 * outstanding for to be considered leaked.
+	 * @param out Where to print the report.
+	 * @return The number of leaked objects.
+	 */
+	public static int reportLeaks(long olderThan, PrintStream out) {
+		ArrayList<Acquisition> acquisitions;
+		synchronized (outstanding) {
+			acquisitions = new ArrayList<Acquisition>(outstanding.values());
+		}
+		long now = System.currentTimeMillis();
+		int leaks = 0;
+		for (Acquisition acquisition : acquisitions) {
+			if (now - acquisition.acquiredAt >= olderThan) {
+				acquisition.printStackTrace(out);
+				leaks++;
+			}
+		}
+		if (leaks > 0) {
+			out.println(leaks + " pooled objects were never released.");
+		}
+		return leaks;
+	}
+
+	/**
+	 * Get the number of objects the pool has had to create because it had
+	 * none idle, for ProtocolMessages, InputMessageQueues and
+	 * OutputMessageQueues, in that order. Once the pool has warmed up, these
+	 * should hardly grow.
+	 *
+	 * @return The number of objects of each kind created.
+	 */
+	public static long[] getCreated() {
+		return new long[] { messages.getCreated(), inputQueues.getCreated(), outputQueues.getCreated() };
+	}
+
+	/**
+	 * Get the number of times an object was released while it was already
+	 * idle in the pool. Such releases are ignored, but always point to a bug
+	 * in whichever code released the object twice.
+	 *
+	 * @return The number of repeated releases.
+	 */
+	public static long getDoubleReleases() {
+		return messages.getDoubleReleases() + inputQueues.getDoubleReleases()
+				+ outputQueues.getDoubleReleases();
+	}
+
+}
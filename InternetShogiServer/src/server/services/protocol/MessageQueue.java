@@ -1,7 +1,6 @@
 package server.services.protocol;
 
-import java.util.Iterator;
-import java.util.Queue;
+import java.util.Arrays;
 
 import server.services.user.User;
 
@@ -14,20 +13,62 @@ import server.services.user.User;
  * around within the server. A MessageQueue should be used even if only
  * a single ProtocolMessage needs to be passed around.
  * 
+ * The messages are kept in a linked list of arrays, or chunks, rather than
+ * one node per message. Each chunk is twice as large as the one before it,
+ * up to a limit, so a queue of a handful of messages needs a single small
+ * array, and a reply broadcast to a whole room needs only a few large ones.
+ * Appending a long MessageQueue to another one links its chunks onto the
+ * end instead of copying the messages over.
+ * 
  * @author Adrian Petrescu
  *
  */
 public abstract class MessageQueue {
 	
-	protected Queue<ProtocolMessage> messageQueue;
+	/* The capacity of a queue's first chunk, and of its last. */
+	private static final int FIRST_CHUNK = 4;
+	private static final int MAX_CHUNK = 1024;
+	
+	/*
+	 * Queues shorter than this are copied by append; anything longer
+	 * has its chunks linked on.
+	 */
+	private static final int SPLICE_THRESHOLD = 32;
+	
+	/**
+	 * A run of consecutive messages in the queue, from <code>head</code> up
+	 * to (but not including) <code>tail</code>.
+	 */
+	private static class Chunk {
+		final ProtocolMessage[] messages;
+		int head;
+		int tail;
+		Chunk next;
+		
+		Chunk(int capacity) {
+			messages = new ProtocolMessage[capacity];
+		}
+	}
+	
+	/*
+	 * Only the first chunk is ever empty, and only when the whole queue
+	 * is; it is kept to be filled again.
+	 */
+	private Chunk first;
+	private Chunk last;
+	private int size;
 	protected int priority;
+	protected long enqueuedAt;
+	
+	/* Set while the queue is idle in the MessagePool. */
+	boolean pooled;
 	
 	/**
 	 * The largest priority a MessageQueue can have on the server. If a
 	 * MessageQueue's priority is set to a value higher than MAX_PRIORITY,
 	 * it will default to MAX_PRIORITY.
 	 */
-	public static final int MAX_PRIORITY = 3;
+	public static final int MAX_PRIORITY = 2;
 	
 	/**
 	 * Returns <code>true</code> if the MessageQueue has no more elements.
@@ -35,7 +76,7 @@ public abstract class MessageQueue {
 	 * @return <code>true</code> if the MessageQueue has no more elements.
 	 */
 	public boolean isEmpty() {
-		return messageQueue.isEmpty();
+		return size == 0;
 	}
 	
 	/**
@@ -44,7 +85,7 @@ public abstract class MessageQueue {
 	 * @return the number of elements in this MessageQueue.
 	 */
 	public int getSize() {
-		return messageQueue.size();
+		return size;
 	}
 	
 	/**
@@ -54,7 +95,32 @@ public abstract class MessageQueue {
 	 * @return The next ProtocolMessage in this queue, or null if it is empty.
 	 */
 	public ProtocolMessage dequeue() {
-		return messageQueue.poll();
+		if (size == 0) {
+			return null;
+		}
+		Chunk chunk = first;
+		ProtocolMessage message = chunk.messages[chunk.head];
+		chunk.messages[chunk.head++] = null;
+		size--;
+		if (chunk.head == chunk.tail) {
+			if (chunk.next != null) {
+				first = chunk.next;
+			} else {
+				chunk.head = 0;
+				chunk.tail = 0;
+			}
+		}
+		return message;
+	}
+	
+	/**
+	 * Retrieves, but does not remove, the next ProtocolMessage in this queue,
+	 * or null if this MessageQueue is empty.
+	 * 
+	 * @return The next ProtocolMessage in this queue, or null if it is empty.
+	 */
+	public ProtocolMessage peek() {
+		return (size == 0) ? null : first.messages[first.head];
 	}
 	
 	/**
@@ -63,18 +129,48 @@ public abstract class MessageQueue {
 	 * @param message The ProtocolMessage to be added.
 	 */
 	public void enqueue(ProtocolMessage message) {
-		messageQueue.add(message);
+		Chunk chunk = last;
+		if (chunk == null) {
+			chunk = new Chunk(FIRST_CHUNK);
+			first = chunk;
+			last = chunk;
+		} else if (chunk.tail == chunk.messages.length) {
+			chunk = new Chunk(Math.min(chunk.messages.length * 2, MAX_CHUNK));
+			last.next = chunk;
+			last = chunk;
+		}
+		chunk.messages[chunk.tail++] = message;
+		size++;
 	}
 	
 	/**
-	 * Appends an entire MessageQueue to the end of this one. The priority of
-	 * this MessageQueue will become the max of the old priority, and the priority
-	 * of the new MessageQueue being added.
+	 * Moves an entire MessageQueue to the end of this one, leaving the other
+	 * MessageQueue empty. The priority of this MessageQueue will become the
+	 * max of the old priority, and the priority of the new MessageQueue being
+	 * added. Long queues are linked on without copying their messages, so
+	 * this takes the same time however many messages are appended.
 	 * 
 	 * @param messages The MessageQueue to append to the end of this one.
 	 */
 	public void append(MessageQueue messages) {
-		messageQueue.addAll(messages.messageQueue);
+		if (messages.size < SPLICE_THRESHOLD) {
+			ProtocolMessage message = messages.dequeue();
+			while (message != null) {
+				enqueue(message);
+				message = messages.dequeue();
+			}
+		} else {
+			if (size == 0) {
+				first = messages.first;
+			} else {
+				last.next = messages.first;
+			}
+			last = messages.last;
+			size += messages.size;
+			messages.first = null;
+			messages.last = null;
+			messages.size = 0;
+		}
 		setPriority(Math.max(getPriority(), messages.getPriority()));
 	}
 
@@ -82,9 +178,9 @@ public abstract class MessageQueue {
 	 * Sets the priority of this Message Queue. The priority of a MessageQueue 
 	 * is an integer between 0 and <code>MessageQueue.MAX_PRIORITY</code>. The 
 	 * higher the priority value, the sooner the MessageQueue will be processed
-	 * by the main server. It is guaranteed that no message of priority 
-	 * <code>n</code> will be processed until all messages of priority <code>n+1
-	 * </code> have already been processed.
+	 * by the main server. Higher priorities are served more often than lower
+	 * ones, but a MessageQueue which has waited too long is served next
+	 * regardless of its priority, so lower priorities are never starved.
 	 * 
 	 * If a MessageQueue's priority is set to a value higher than MAX_PRIORITY,
 	 * it will default to MAX_PRIORITY. If a MessageQueue's priority is set to
@@ -100,9 +196,9 @@ public abstract class MessageQueue {
 	 * Gets the priority of this Message Queue. The priority of a MessageQueue 
 	 * is an integer between 0 and <code>MessageQueue.MAX_PRIORITY</code>. The 
 	 * higher the priority value, the sooner the MessageQueue will be processed
-	 * by the main server. It is guaranteed that no message of priority 
-	 * <code>n</code> will be processed until all messages of priority <code>n+1
-	 * </code> have already been processed.
+	 * by the main server. Higher priorities are served more often than lower
+	 * ones, but a MessageQueue which has waited too long is served next
+	 * regardless of its priority, so lower priorities are never starved.
 	 * 
 	 * @return The priority of this MessageQueue.
 	 */
@@ -110,6 +206,49 @@ public abstract class MessageQueue {
 		return priority;
 	}
 	
+	/**
+	 * Records when this MessageQueue was placed on one of the global queues.
+	 * 
+	 * @param enqueuedAt The value of <code>System.nanoTime()</code> when this
+	 * MessageQueue was enqueued.
+	 */
+	public void setEnqueuedAt(long enqueuedAt) {
+		this.enqueuedAt = enqueuedAt;
+	}
+	
+	/**
+	 * Gets the time this MessageQueue was placed on one of the global queues,
+	 * which the server uses to keep lower priorities from being starved.
+	 * 
+	 * @return The value of <code>System.nanoTime()</code> when this
+	 * MessageQueue was enqueued, or 0 if it never was.
+	 */
+	public long getEnqueuedAt() {
+		return enqueuedAt;
+	}
+	
+	/**
+	 * Empties the queue before it goes back to the MessagePool, without
+	 * releasing the messages it held.
+	 */
+	void recycle() {
+		for (Chunk chunk = first; chunk != null; chunk = chunk.next) {
+			Arrays.fill(chunk.messages, chunk.head, chunk.tail, null);
+		}
+		if (first != null && first.messages.length == FIRST_CHUNK) {
+			first.head = 0;
+			first.tail = 0;
+			first.next = null;
+			last = first;
+		} else {
+			first = null;
+			last = null;
+		}
+		size = 0;
+		setPriority(1);
+		enqueuedAt = 0;
+	}
+	
 	/**
 	 * Sets the user (usually the recipient) of every individual ProtocolMessage in
 	 * this queue.
@@ -117,9 +256,29 @@ public abstract class MessageQueue {
 	 * @param user The user to  be associated with every message in this queue.
 	 */
 	public void setUser(User user) {
-		Iterator<ProtocolMessage> i = messageQueue.iterator();
-		while (i.hasNext()) {
-			i.next().setUser(user);
+		for (Chunk chunk = first; chunk != null; chunk = chunk.next) {
+			for (int i = chunk.head; i < chunk.tail; i++) {
+				chunk.messages[i].setUser(user);
+			}
+		}
+	}
+	
+	/**
+	 * Gives the tag of a request to every message in this queue which is
+	 * addressed back to the request's sender and has no tag of its own.
+	 * 
+	 * @param sender The User who sent the request.
+	 * @param tag The tag of the request.
+	 */
+	void tagReplies(User sender, String tag) {
+		for (Chunk chunk = first; chunk != null; chunk = chunk.next) {
+			for (int i = chunk.head; i < chunk.tail; i++) {
+				ProtocolMessage message = chunk.messages[i];
+				User recipient = message.getUser();
+				if (message.getTag() == null && (recipient == sender || (recipient != null && recipient.equals(sender)))) {
+					message.setTag(tag);
+				}
+			}
 		}
 	}
 	
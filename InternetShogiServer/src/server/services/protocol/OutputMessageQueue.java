@@ -1,6 +1,6 @@
 package server.services.protocol;
 
-import java.util.LinkedList;
+import server.services.user.User;
 
 /**
  * Represents an ordered collection of ProtocolMessages that are intended as output
@@ -22,7 +22,6 @@ public class OutputMessageQueue extends MessageQueue {
 	 */
 	public OutputMessageQueue() {
 		super();
-		this.messageQueue = new LinkedList<ProtocolMessage>();
 		setPriority(1);
 	}
 	
@@ -33,8 +32,7 @@ public class OutputMessageQueue extends MessageQueue {
 	 */
 	public OutputMessageQueue(ProtocolMessage message) {
 		super();
-		this.messageQueue = new LinkedList<ProtocolMessage>();
-		messageQueue.add(message);
+		enqueue(message);
 		setPriority(1);
 	}
 	
@@ -45,7 +43,6 @@ public class OutputMessageQueue extends MessageQueue {
 	 */
 	public OutputMessageQueue(int priority) {
 		super();
-		messageQueue = new LinkedList<ProtocolMessage>();
 		setPriority(priority);
 	}
 	
@@ -57,9 +54,25 @@ public class OutputMessageQueue extends MessageQueue {
 	 */
 	public OutputMessageQueue(ProtocolMessage message, int priority) {
 		super();
-		messageQueue = new LinkedList<ProtocolMessage>();
 		setPriority(priority);
-		messageQueue.add(message);
+		enqueue(message);
+	}
+	
+	/**
+	 * Adds a copy of a ProtocolMessage addressed to each of the given
+	 * recipients to the end of this queue, in order. The message is encoded
+	 * once, and every copy shares the encoded bytes all the way to the
+	 * recipients' connections. The copies come from the MessagePool, and
+	 * belong to this queue; the original message still belongs to the caller.
+	 * 
+	 * @param message The ProtocolMessage to broadcast. Its own User is ignored.
+	 * @param recipients The Users to send the message to.
+	 */
+	public void broadcast(ProtocolMessage message, User... recipients) {
+		message.getEncoded();
+		for (User recipient : recipients) {
+			enqueue(message.addressedTo(recipient));
+		}
 	}
 	
 }
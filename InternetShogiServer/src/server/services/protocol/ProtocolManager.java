@@ -1,166 +1,482 @@
-package server.services.protocol;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Properties;
-
-import server.main.GlobalOutputMessageQueue;
-import server.services.GlobalService;
-import server.services.InvalidServiceConfigurationException;
-import server.services.protocol.modules.AreYouThere;
-import server.services.protocol.modules.InvalidProtocolConfigurationException;
-import server.services.protocol.modules.MessageOfTheDay;
-import server.services.protocol.modules.ProtocolDependenciesNotMetException;
-import server.services.protocol.modules.ProtocolModule;
-import server.services.protocol.modules.Tell;
-import server.services.protocol.modules.room.RoomManager;
-
-/** For testing only */
-//import server.services.protocol.modules.Test;
-
-/**
- * This GlobalService is one of the core services of the system. It
- * maintains the protocol map, which is responsible for choosing
- * which ProtocolModule will handle a given input message, and parsing
- * it.
- * 
- * @author Adrian Petrescu
- *
- */
-public class ProtocolManager implements GlobalService {
-
-	public static final String SERVICE_NAME = "ProtocolManager";
-	private static final String configFileSuffix = "_configFile";
-
-	private ProtocolMap protocolMap;
-
-	public String getIdentifier() {
-		return SERVICE_NAME;
-	}
-
-	/**
-	 * Loads a new ProtocolModule into the protocol map. This may include
-	 * parsing a module's individual configuration file.
-	 * 
-	 * @param module The ProtocolModule to be loaded.
-	 * @param properties A property structure containing a <i>module</i>_confFile,
-	 * where <i>module</i> is the given module's protocol key, if it is required.
-	 * @throws FileNotFoundException Thrown if the configuration file was given,
-	 * but was not found on the filesystem.
-	 * @throws IOException Thrown if the configuration file was given, but could
-	 * not be read from the filesystem.
-	 * @throws ProtocolDependenciesNotMetException Thrown if the given module
-	 * depends on a ProtocolModule that has not yet been loaded.
-	 * @throws InvalidProtocolConfigurationException Thrown if the given configuration
-	 * file exists and can be read, but does not contain a valid configuration for
-	 * this ProtocolModule.
-	 */
-	private void loadProtocolModule(ProtocolModule module, Properties properties)
-			throws FileNotFoundException, IOException,
-			ProtocolDependenciesNotMetException,
-			InvalidProtocolConfigurationException {
-		Properties moduleProperties = new Properties();
-		if (properties.containsKey(module.getKey() + configFileSuffix)) {
-			InputStream in = new FileInputStream(new File(
-					(String) properties
-							.get(module.getKey() + configFileSuffix)));
-			moduleProperties.load(in);
-			in.close();
-		}
-
-		protocolMap.loadProtocolModule(module, moduleProperties);
-	}
-
-	/**
-	 * Called when the server is ready to start loading ProtocolModules and
-	 * parsing messages.
-	 * 
-	 * @param properties A Properties structure containing configuration data
-	 * for the ProtocolManager.
-	 * <br>
-	 * <b>Required configuration options:</b>
-	 * <br>
-	 * <i>module</i>_confFile - A path to a module-specific configuration
-	 * file, for any modules that may require it.
-	 */
-	public void initialize(Properties properties)
-			throws InvalidServiceConfigurationException {
-		// TODO: Load 3rd-party modules.
-
-		protocolMap = new ProtocolMap();
-
-		/* Load AreYouThere module */
-		ProtocolModule ayt = new AreYouThere();
-		try {
-			loadProtocolModule(ayt, properties);
-		} catch (Throwable e) {
-			throw new InvalidServiceConfigurationException(SERVICE_NAME,
-					properties, ayt.getKey());
-		}
-
-		/* Load Tell module */
-		ProtocolModule tell = new Tell();
-		try {
-			loadProtocolModule(tell, properties);
-		} catch (Throwable e) {
-			throw new InvalidServiceConfigurationException(SERVICE_NAME,
-					properties, tell.getKey());
-		}
-		
-		/* Load MessageOfTheDay module */
-		ProtocolModule motd = new MessageOfTheDay();
-		try {
-			loadProtocolModule(motd, properties);
-		} catch (Throwable e) {
-			throw new InvalidServiceConfigurationException(SERVICE_NAME,
-					properties, motd.getKey());
-		}
-		
-		/* Load RoomManager module */
-		ProtocolModule roomManager = new RoomManager();
-		try {
-			loadProtocolModule(roomManager, properties);
-		} catch (Throwable e) {
-			throw new InvalidServiceConfigurationException(SERVICE_NAME,
-					properties, roomManager.getKey());
-		}
-		
-		/** 
-		// Load Test module
-		ProtocolModule test = new Test();
-		try {
-			loadProtocolModule(test, properties);
-		} catch (Throwable e) {
-			throw new InvalidServiceConfigurationException(SERVICE_NAME,
-					properties, test.getKey());
-		}
-		*/
-		
-	}
-
-	/**
-	 * Passes each message to its appropriate ProtocolModule, waits for
-	 * the resulting OutputMessageQueues, and adds them all in order to the
-	 * global output queue.
-	 * 
-	 * @param messages The messages to be parsed and replied to.
-	 */
-	public void parseMessages(InputMessageQueue messages) {
-		GlobalOutputMessageQueue.getGlobalOutputMessageQueue().enqueue(
-				protocolMap.parseMessages(messages));
-	}
-
-	/**
-	 * Called when the server is shutting down. The ProtocolManager begins
-	 * emptying the protocol map, doing any necessary unloading work for
-	 * the ProtocolModules (like writing state to the database).
-	 * 
-	 */
-	public void shutdown() {
-		protocolMap.shutdown();
-	}
-
-}
+package server.services.protocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import server.main.GlobalInputMessageQueue;
+import server.main.GlobalOutputMessageQueue;
+import server.main.ThreadSpawner;
+import server.services.GlobalService;
+import server.services.InvalidServiceConfigurationException;
+import server.services.ServiceManager;
+import server.services.connection.ConnectionManager;
+import server.services.database.DatabaseManager;
+import server.services.event.EventManager;
+import server.services.protocol.modules.AreYouThere;
+import server.services.protocol.modules.InvalidProtocolConfigurationException;
+import server.services.protocol.modules.MessageOfTheDay;
+import server.services.protocol.modules.ProtocolDependenciesNotMetException;
+import server.services.protocol.modules.ProtocolModule;
+import server.services.protocol.modules.Tell;
+import server.services.protocol.modules.room.RoomManager;
+import server.services.user.User;
+import server.services.user.UserManager;
+
+/** For testing only */
+//import server.services.protocol.modules.Test;
+
+/**
+ * This GlobalService is one of the core services of the system. It
+ * maintains the protocol map, which is responsible for choosing
+ * which ProtocolModule will handle a given input message, and parsing
+ * it.
+ * 
+ * Replies from AsyncProtocolModules are delivered from a small pool of
+ * continuation threads once they complete, so the thread which parsed the
+ * input can move on to other users in the meantime. Each user's messages
+ * are still parsed and replied to in order: while a user has replies
+ * pending, their later messages wait behind them, unless the user sent
+ * them tagged.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class ProtocolManager implements GlobalService {
+
+	public static final String SERVICE_NAME = "ProtocolManager";
+	private static final String[] dependencies = { EventManager.SERVICE_NAME,
+			DatabaseManager.SERVICE_NAME, UserManager.SERVICE_NAME, ConnectionManager.SERVICE_NAME };
+	private static final String configFileSuffix = "_configFile";
+	private static final String prioritySuffix = "_priority";
+
+	/**
+	 * The priority of messages to a protocol key which has not been given one
+	 * in the configuration.
+	 */
+	public static final int DEFAULT_PRIORITY = 1;
+
+	/**
+	 * Replies are placed on the GlobalOutputMessageQueue, to be sent by the
+	 * OutputQueueProcessor.
+	 */
+	public static final String DELIVERY_QUEUED = "queued";
+	
+	/**
+	 * Replies are handed straight to their recipients' connections by the
+	 * thread which parsed the input.
+	 */
+	public static final String DELIVERY_DIRECT = "direct";
+
+	/**
+	 * The number of continuation threads, unless configured otherwise.
+	 */
+	public static final int DEFAULT_ASYNC_THREADS = 2;
+
+	/* Stands in for the sender of messages which have none. */
+	private static final Object NO_USER = new Object();
+
+	private ProtocolMap protocolMap;
+	private ConcurrentHashMap<String, Integer> priorities;
+	private volatile DispatchTable<Integer> priorityTable;
+	private boolean directDelivery;
+	private ExecutorService continuations;
+	/* The replies still pending for each sender; these stages never fail. */
+	private ConcurrentHashMap<Object, CompletableFuture<Void>> pendingReplies;
+	/* How long each module took to load, in nanoseconds, in the order they were loaded. */
+	private Map<String, Long> moduleStartupTimes;
+
+	public String getIdentifier() {
+		return SERVICE_NAME;
+	}
+
+	public String[] getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * Loads a new ProtocolModule into the protocol map. This may include
+	 * parsing a module's individual configuration file.
+	 * 
+	 * @param module The ProtocolModule to be loaded.
+	 * @param properties A property structure containing a <i>module</i>_confFile,
+	 * where <i>module</i> is the given module's protocol key, if it is required,
+	 * and optionally a <i>module</i>_priority.
+	 * @throws FileNotFoundException Thrown if the configuration file was given,
+	 * but was not found on the filesystem.
+	 * @throws IOException Thrown if the configuration file was given, but could
+	 * not be read from the filesystem.
+	 * @throws ProtocolDependenciesNotMetException Thrown if the given module
+	 * depends on a ProtocolModule that has not yet been loaded.
+	 * @throws InvalidProtocolConfigurationException Thrown if the given configuration
+	 * file exists and can be read, but does not contain a valid configuration for
+	 * this ProtocolModule.
+	 */
+	private void loadProtocolModule(ProtocolModule module, Properties properties)
+			throws FileNotFoundException, IOException,
+			ProtocolDependenciesNotMetException,
+			InvalidProtocolConfigurationException {
+		long began = System.nanoTime();
+		Properties moduleProperties = new Properties();
+		if (properties.containsKey(module.getKey() + configFileSuffix)) {
+			InputStream in = new FileInputStream(new File(
+					(String) properties
+							.get(module.getKey() + configFileSuffix)));
+			moduleProperties.load(in);
+			in.close();
+		}
+
+		if (properties.containsKey(module.getKey() + prioritySuffix)) {
+			priorities.put(module.getKey(), Integer.valueOf(Integer.parseInt(
+					properties.getProperty(module.getKey() + prioritySuffix).trim())));
+			priorityTable = new DispatchTable<Integer>(priorities);
+		}
+
+		protocolMap.loadProtocolModule(module, moduleProperties);
+		moduleStartupTimes.put(module.getKey(), Long.valueOf(System.nanoTime() - began));
+	}
+
+	/**
+	 * Get how long each ProtocolModule took to load, including reading its
+	 * configuration file, for the ServiceManager's startup report.
+	 * 
+	 * @return The time taken by each module, in nanoseconds, keyed by its
+	 * protocol key, in the order the modules were loaded.
+	 */
+	public Map<String, Long> getModuleStartupTimes() {
+		return Collections.unmodifiableMap(moduleStartupTimes);
+	}
+
+	/**
+	 * Get the priority which messages to the given protocol key should be
+	 * queued with. Priorities are configured per module, as
+	 * <i>module</i>_priority, and range from 0 (bulk work) to
+	 * <code>MessageQueue.MAX_PRIORITY</code> (latency-sensitive work).
+	 * 
+	 * @param protocolKey The protocol key of the message.
+	 * @return The configured priority, or <code>DEFAULT_PRIORITY</code>.
+	 */
+	public int getPriority(String protocolKey) {
+		Integer priority = priorities.get(protocolKey);
+		return (priority == null) ? DEFAULT_PRIORITY : priority.intValue();
+	}
+
+	/**
+	 * Get the priority which a message should be queued with, according to
+	 * its protocol key. This is the same as <code>getPriority(message.getProtocolKey())</code>,
+	 * but reads the key straight from the message.
+	 * 
+	 * @param message The message.
+	 * @return The configured priority, or <code>DEFAULT_PRIORITY</code>.
+	 */
+	public int getPriority(ProtocolMessage message) {
+		Integer priority = priorityTable.get(message, 0);
+		return (priority == null) ? DEFAULT_PRIORITY : priority.intValue();
+	}
+
+	/**
+	 * Queues an InternalCommand to be run for a user, with the priority of
+	 * its module. The command goes through the global input queue like the
+	 * user's own messages, so it is run in order with them, but it is never
+	 * shed, and it is handed straight to its module without being written
+	 * out as text and parsed.
+	 * 
+	 * @param user The User the command is run for.
+	 * @param command The command.
+	 */
+	public void submit(User user, InternalCommand command) {
+		String key = command.getModule().getKey();
+		ProtocolMessage message = MessagePool.acquireMessage(user, key);
+		message.setCommand(command);
+		GlobalInputMessageQueue.getGlobalInputMessageQueue().enqueue(
+				MessagePool.acquireInputQueue(message, getPriority(key)));
+	}
+
+	/**
+	 * Called when the server is ready to start loading ProtocolModules and
+	 * parsing messages.
+	 * 
+	 * @param properties A Properties structure containing configuration data
+	 * for the ProtocolManager.
+	 * <br>
+	 * <b>Required configuration options:</b>
+	 * <br>
+	 * <i>module</i>_confFile - A path to a module-specific configuration
+	 * file, for any modules that may require it.
+	 * <br>
+	 * <b>Optional configuration options:</b>
+	 * <br>
+	 * <i>module</i>_priority - The priority of messages to the module, from
+	 * 0 to <code>MessageQueue.MAX_PRIORITY</code>. Defaults to 1.
+	 * <br>
+	 * delivery - How replies reach the clients: <code>queued</code> (through
+	 * the global output queue, the default) or <code>direct</code>.
+	 * <br>
+	 * pool - <code>true</code> to recycle messages and message queues
+	 * through the MessagePool. Defaults to <code>false</code>.
+	 * <br>
+	 * pool_capacity - The most idle objects of each kind the MessagePool
+	 * keeps. Defaults to <code>MessagePool.DEFAULT_CAPACITY</code>.
+	 * <br>
+	 * pool_debug - <code>true</code> to track every pooled object, and report
+	 * the ones never released when the server shuts down.
+	 * <br>
+	 * async_threads - The number of threads which deliver the replies of
+	 * AsyncProtocolModules once they complete. Defaults to 2.
+	 */
+	public void initialize(Properties properties)
+			throws InvalidServiceConfigurationException {
+		// TODO: Load 3rd-party modules.
+
+		protocolMap = new ProtocolMap();
+		moduleStartupTimes = new LinkedHashMap<String, Long>();
+		priorities = new ConcurrentHashMap<String, Integer>();
+		priorityTable = new DispatchTable<Integer>(priorities);
+		
+		String delivery = properties.getProperty("delivery", DELIVERY_QUEUED).trim();
+		if (delivery.equals(DELIVERY_DIRECT)) {
+			directDelivery = true;
+		} else if (!delivery.equals(DELIVERY_QUEUED)) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, "delivery", "Unknown delivery mode " + delivery);
+		}
+		
+		int poolCapacity;
+		try {
+			poolCapacity = Integer.parseInt(properties.getProperty("pool_capacity",
+					String.valueOf(MessagePool.DEFAULT_CAPACITY)).trim());
+		} catch (NumberFormatException e) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, "pool_capacity");
+		}
+		if (poolCapacity < 0) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, "pool_capacity", "The pool capacity cannot be negative.");
+		}
+		MessagePool.configure(
+				Boolean.parseBoolean(properties.getProperty("pool", "false").trim()),
+				Boolean.parseBoolean(properties.getProperty("pool_debug", "false").trim()),
+				poolCapacity);
+		
+		int asyncThreads;
+		try {
+			asyncThreads = Integer.parseInt(properties.getProperty("async_threads",
+					String.valueOf(DEFAULT_ASYNC_THREADS)).trim());
+		} catch (NumberFormatException e) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, "async_threads");
+		}
+		if (asyncThreads < 1) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, "async_threads", "At least one continuation thread is needed.");
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		continuations = Executors.newFixedThreadPool(asyncThreads, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = ThreadSpawner.newThread(task, "ProtocolContinuation-" + threadCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		pendingReplies = new ConcurrentHashMap<Object, CompletableFuture<Void>>();
+
+		/* Load AreYouThere module */
+		ProtocolModule ayt = new AreYouThere();
+		try {
+			loadProtocolModule(ayt, properties);
+		} catch (Throwable e) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, ayt.getKey());
+		}
+
+		/* Load Tell module */
+		ProtocolModule tell = new Tell();
+		try {
+			loadProtocolModule(tell, properties);
+		} catch (Throwable e) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, tell.getKey());
+		}
+		
+		/* Load MessageOfTheDay module */
+		ProtocolModule motd = new MessageOfTheDay();
+		try {
+			loadProtocolModule(motd, properties);
+		} catch (Throwable e) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, motd.getKey());
+		}
+		
+		/* Load RoomManager module */
+		ProtocolModule roomManager = new RoomManager();
+		try {
+			loadProtocolModule(roomManager, properties);
+		} catch (Throwable e) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, roomManager.getKey());
+		}
+		
+		/** 
+		// Load Test module
+		ProtocolModule test = new Test();
+		try {
+			loadProtocolModule(test, properties);
+		} catch (Throwable e) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME,
+					properties, test.getKey());
+		}
+		*/
+		
+	}
+
+	/**
+	 * Passes each message to its appropriate ProtocolModule, and adds the
+	 * resulting OutputMessageQueues in order to the global output queue.
+	 * With direct delivery, they are instead handed straight to the
+	 * ConnectionManager.
+	 * 
+	 * This does not wait for AsyncProtocolModules: their replies are
+	 * delivered by a continuation thread once they complete. If the sender
+	 * still has replies pending from earlier messages, these messages are
+	 * only parsed after those have been delivered.
+	 * 
+	 * Tagged requests are the exception: their replies carry the tag of the
+	 * request they answer, so the client can match them up in any order.
+	 * They are parsed right away, and their replies are delivered as soon as
+	 * they are complete, even ahead of replies to earlier requests.
+	 * 
+	 * @param messages The messages to be parsed and replied to.
+	 */
+	public void parseMessages(final InputMessageQueue messages) {
+		ProtocolMessage first = messages.peek();
+		if (first != null && first.getTag() != null) {
+			parseAndDeliver(messages);
+			return;
+		}
+		final Object sender = senderOf(messages);
+		CompletableFuture<Void> previous = pendingReplies.get(sender);
+		final CompletableFuture<Void> replied;
+		if (previous == null) {
+			replied = parseAndDeliver(messages);
+			if (replied.isDone()) {
+				return;
+			}
+		} else {
+			replied = previous.thenComposeAsync(new Function<Void, CompletionStage<Void>>() {
+				public CompletionStage<Void> apply(Void ignored) {
+					return parseAndDeliver(messages);
+				}
+			}, continuations);
+		}
+		/*
+		 * Only the thread parsing this sender's messages ever adds to the
+		 * chain, so it cannot be replaced behind our back; it is removed
+		 * once its last link is done, unless a new link was added first.
+		 */
+		pendingReplies.put(sender, replied);
+		replied.whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void ignored, Throwable failure) {
+				pendingReplies.remove(sender, replied);
+			}
+		});
+	}
+	
+	/**
+	 * Parses an InputMessageQueue and delivers the replies whenever they are
+	 * complete. The returned stage completes once they have been delivered,
+	 * and never completes exceptionally, so that a failure does not hold up
+	 * the sender's later messages.
+	 */
+	private CompletableFuture<Void> parseAndDeliver(InputMessageQueue messages) {
+		CompletionStage<OutputMessageQueue> replies;
+		try {
+			replies = protocolMap.parseMessagesAsync(messages, continuations);
+		} catch (RuntimeException e) {
+			// A broken module must not stop the sender's later messages.
+			e.printStackTrace();
+			return CompletableFuture.completedFuture(null);
+		}
+		return replies.toCompletableFuture().handle(new BiFunction<OutputMessageQueue, Throwable, Void>() {
+			public Void apply(OutputMessageQueue output, Throwable failure) {
+				if (failure != null) {
+					failure.printStackTrace();
+				} else {
+					deliver(output);
+				}
+				return null;
+			}
+		});
+	}
+	
+	private void deliver(OutputMessageQueue replies) {
+		try {
+			if (directDelivery) {
+				ServiceManager.getConnectionManager().deliver(replies);
+			} else {
+				GlobalOutputMessageQueue.getGlobalOutputMessageQueue().enqueue(replies);
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Get the sender of an InputMessageQueue, from its first message.
+	 */
+	private static Object senderOf(InputMessageQueue messages) {
+		ProtocolMessage first = messages.peek();
+		Object user = (first == null) ? null : first.getUser();
+		return (user == null) ? NO_USER : user;
+	}
+	
+	/**
+	 * Get the number of senders whose replies are still pending.
+	 * 
+	 * @return The number of senders waiting on an AsyncProtocolModule.
+	 */
+	public int getPendingSenders() {
+		return pendingReplies.size();
+	}
+	
+	/**
+	 * Checks whether replies bypass the global output queue.
+	 * 
+	 * @return <code>true</code> if replies are delivered directly to their
+	 * recipients' connections.
+	 */
+	public boolean isDirectDelivery() {
+		return directDelivery;
+	}
+
+	/**
+	 * Called when the server is shutting down. The ProtocolManager begins
+	 * emptying the protocol map, doing any necessary unloading work for
+	 * the ProtocolModules (like writing state to the database). Replies
+	 * still pending from AsyncProtocolModules are abandoned. In the
+	 * MessagePool's debug mode, any pooled objects which were never released
+	 * are reported.
+	 * 
+	 */
+	public void shutdown() {
+		continuations.shutdown();
+		protocolMap.shutdown();
+		MessagePool.reportLeaks(0, System.err);
+	}
+
+}
@@ -1,139 +1,346 @@
-package server.services.protocol;
-
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
-
-import server.services.protocol.modules.InvalidProtocolConfigurationException;
-import server.services.protocol.modules.ProtocolDependenciesNotMetException;
-import server.services.protocol.modules.ProtocolModule;
-
-/**
- * The ProtocolMap is the construct in charge of delegating the parsing of input
- * messages to individual ProtocolModules. It is responsible for loading and unloading
- * each such module, and properly sending each ProtocolMessage of a MessageQueue to
- * the appropriate handler.
- * 
- * @author Adrian Petrescu
- *
- */
-public class ProtocolMap {
-
-	private ConcurrentHashMap<String, ProtocolModule> protocolMap;
-	
-	/**
-	 * Constructs a new instance of the ProtocolMap.
-	 */
-	public ProtocolMap() {
-		protocolMap = new ConcurrentHashMap<String, ProtocolModule>();
-	}
-	
-	/**
-	 * Load a new ProtocolModule into the map. Future input messages that are received with
-	 * a matching protocol key will be delegated to this module for parsing.
-	 * 
-	 * @param module The ProtocolModule to be added to the ProtocolMap.
-	 * @param properties A Properties structure containing configuration data for the module
-	 * to be loaded. May be empty.
-	 * @throws ProtocolDependenciesNotMetException Thrown if any of the given ProtocolModule's 
-	 * dependencies are not met.
-	 * @throws InvalidProtocolConfigurationException Thrown if the given Properties file contained
-	 * a missing or invalid configuration parameter.
-	 */
-	public void loadProtocolModule(ProtocolModule module, Properties properties) throws ProtocolDependenciesNotMetException, InvalidProtocolConfigurationException {
-		Collection<ProtocolModule> loadedModules = protocolMap.values();
-		ArrayList<String> unmetDependencies = new ArrayList<String>();
-		for(String dependency : module.getDependencies()) {
-			String moduleName = dependency.split(" ")[0];
-			String moduleVersion = dependency.split(" ")[1];
-			boolean dependencyMet = false;
-			Iterator<ProtocolModule> i = loadedModules.iterator();
-			while (i.hasNext()) {
-				ProtocolModule loadedModule = i.next();
-				if (loadedModule.getName().equals(moduleName)) {
-					String loadedModuleVersion = loadedModule.getVersion();
-					if (loadedModuleVersion.charAt(0) > moduleVersion.charAt(0)) {
-						dependencyMet = true;
-					} else if (loadedModuleVersion.charAt(0) == moduleVersion.charAt(0)
-							&& Integer.parseInt(loadedModuleVersion.substring(2)) >= Integer.parseInt(moduleVersion.substring(2))) {
-						dependencyMet = true;
-					}
-				}
-			}
-			
-			if (!dependencyMet) {
-				unmetDependencies.add(dependency);
-			}
-		}
-		
-		if (unmetDependencies.size() > 0) {
-			throw new ProtocolDependenciesNotMetException(module.getName(), (String []) unmetDependencies.toArray());
-		}
-		
-		module.initialize(properties);
-		protocolMap.put(module.getKey(), module);
-	}
-	
-	
-	/**
-	 * Parses an entire InputMessageQueue, and returns the server's reply.
-	 * If any of the messages received did not have an associated ProtocolModule handler,
-	 * then return an <code>invalid</code> message.
-	 * 
-	 * @param messages An InputMessageQueue of messages from the clients.
-	 * @return An OutputMessageQueue of replies for clients.
-	 */
-	public OutputMessageQueue parseMessages(InputMessageQueue messages) {
-		OutputMessageQueue finalOutput = new OutputMessageQueue();
-		
-		while (!messages.isEmpty()) {
-			ProtocolMessage message = messages.dequeue();
-			OutputMessageQueue reply;
-			if (protocolMap.containsKey(message.getProtocolKey())) {
-				reply = protocolMap.get(message.getProtocolKey()).parseMessage(message);
-			} else {
-				ProtocolMessage invalid = new ProtocolMessage(message.getUser(), "invalid");
-				invalid.append(message.getProtocolKey());
-				reply = new OutputMessageQueue(invalid);
-			}
-			finalOutput.append(reply);
-		}
-		return finalOutput;
-	}
-	
-	/**
-	 * Removes a ProtocolModule from the map. Any future messages received
-	 * will not be sent to the given Module, unless a module for
-	 * the same ProtocolKey is later loaded back.
-	 * 
-	 * @param moduleName The name of the ProtocolModule to remove.
-	 */
-	public void unloadProtocolModule(String moduleName) {
-		if (!protocolMap.containsKey(moduleName)) {
-			return;
-		}
-		
-		protocolMap.get(moduleName).shutdown();
-		protocolMap.remove(moduleName);
-	}
-	
-	/**
-	 * This method is called when this ProtocolMap is shutdown.. It is guaranteed
-	 * that it will only be called once per the lifetime of this service, and that
-	 * once it is called, no other messages will need to be parsed.
-	 */
-	public void shutdown() {
-		Collection<ProtocolModule> loadedModules = protocolMap.values();
-		for (ProtocolModule loadedModule : ((ProtocolModule[]) loadedModules.toArray())) {
-			unloadProtocolModule(loadedModule.getName());
-		}
-	}
-	
-	@Override
-	protected void finalize() throws Throwable {
-		shutdown();
-	}
-	
-}
+package server.services.protocol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import server.services.protocol.modules.AsyncProtocolModule;
+import server.services.protocol.modules.InvalidProtocolConfigurationException;
+import server.services.protocol.modules.ProtocolDependenciesNotMetException;
+import server.services.protocol.modules.ProtocolModule;
+import server.services.protocol.modules.Subcommand;
+import server.services.protocol.modules.SubcommandModule;
+import server.services.protocol.modules.SynchronousModuleAdapter;
+
+/**
+ * The ProtocolMap is the construct in charge of delegating the parsing of input
+ * messages to individual ProtocolModules. It is responsible for loading and unloading
+ * each such module, and properly sending each ProtocolMessage of a MessageQueue to
+ * the appropriate handler.
+ * 
+ * Messages are dispatched through an immutable DispatchTable, which finds
+ * the module for a message straight from the characters of its protocol
+ * key, and, for a SubcommandModule, the Subcommand named by its second
+ * token. The table is rebuilt whenever a module is loaded or unloaded.
+ * 
+ * Every module is run as an AsyncProtocolModule, ordinary ones through a
+ * SynchronousModuleAdapter. The messages of an InputMessageQueue are
+ * parsed one after the other on the calling thread for as long as their
+ * replies are ready at once; once a module leaves its reply pending, the
+ * rest of the queue is parsed on the continuation Executor after it
+ * completes.
+ * 
+ * Messages carrying an InternalCommand are not parsed; the command is run
+ * by its module instead.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class ProtocolMap {
+
+	/**
+	 * Where messages to one protocol key are dispatched.
+	 */
+	private static class Route {
+		final ProtocolModule module;
+		final AsyncProtocolModule async;
+		final DispatchTable<Subcommand> subcommands;
+		
+		Route(ProtocolModule module) {
+			this.module = module;
+			async = SynchronousModuleAdapter.adapt(module);
+			if (module instanceof SubcommandModule) {
+				subcommands = new DispatchTable<Subcommand>(((SubcommandModule) module).getSubcommands());
+			} else {
+				subcommands = null;
+			}
+		}
+	}
+	
+	/* Runs continuations on whichever thread completed the stage. */
+	private static final Executor SAME_THREAD = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
+	/* The loaded modules by protocol key; only changed while holding the lock on this map. */
+	private HashMap<String, Route> protocolMap;
+	private volatile DispatchTable<Route> dispatchTable;
+	
+	/**
+	 * Constructs a new instance of the ProtocolMap.
+	 */
+	public ProtocolMap() {
+		protocolMap = new HashMap<String, Route>();
+		dispatchTable = new DispatchTable<Route>(protocolMap);
+	}
+	
+	/**
+	 * Load a new ProtocolModule into the map. Future input messages that are received with
+	 * a matching protocol key will be delegated to this module for parsing.
+	 * 
+	 * @param module The ProtocolModule to be added to the ProtocolMap.
+	 * @param properties A Properties structure containing configuration data for the module
+	 * to be loaded. May be empty.
+	 * @throws ProtocolDependenciesNotMetException Thrown if any of the given ProtocolModule's 
+	 * dependencies are not met.
+	 * @throws InvalidProtocolConfigurationException Thrown if the given Properties file contained
+	 * a missing or invalid configuration parameter.
+	 */
+	public synchronized void loadProtocolModule(ProtocolModule module, Properties properties) throws ProtocolDependenciesNotMetException, InvalidProtocolConfigurationException {
+		ArrayList<String> unmetDependencies = new ArrayList<String>();
+		for(String dependency : module.getDependencies()) {
+			String moduleName = dependency.split(" ")[0];
+			String moduleVersion = dependency.split(" ")[1];
+			boolean dependencyMet = false;
+			for (Route route : protocolMap.values()) {
+				ProtocolModule loadedModule = route.module;
+				if (loadedModule.getName().equals(moduleName)) {
+					String loadedModuleVersion = loadedModule.getVersion();
+					if (loadedModuleVersion.charAt(0) > moduleVersion.charAt(0)) {
+						dependencyMet = true;
+					} else if (loadedModuleVersion.charAt(0) == moduleVersion.charAt(0)
+							&& Integer.parseInt(loadedModuleVersion.substring(2)) >= Integer.parseInt(moduleVersion.substring(2))) {
+						dependencyMet = true;
+					}
+				}
+			}
+			
+			if (!dependencyMet) {
+				unmetDependencies.add(dependency);
+			}
+		}
+		
+		if (unmetDependencies.size() > 0) {
+			throw new ProtocolDependenciesNotMetException(module.getName(), unmetDependencies.toArray(new String[unmetDependencies.size()]));
+		}
+		
+		module.initialize(properties);
+		protocolMap.put(module.getKey(), new Route(module));
+		dispatchTable = new DispatchTable<Route>(protocolMap);
+	}
+	
+	
+	/**
+	 * Parses an entire InputMessageQueue, and returns the server's reply.
+	 * If any of the messages received did not have an associated ProtocolModule handler,
+	 * then return an <code>invalid</code> message. The reply has at least the
+	 * priority of the messages it answers.
+	 * 
+	 * This waits for the replies of any AsyncProtocolModules, on the calling
+	 * thread; see <code>parseMessagesAsync</code>.
+	 * 
+	 * The ProtocolMap takes ownership of the InputMessageQueue and its
+	 * messages, and releases them to the MessagePool once they have been
+	 * parsed; the caller owns the returned OutputMessageQueue.
+	 * 
+	 * @param messages An InputMessageQueue of messages from the clients.
+	 * @return An OutputMessageQueue of replies for clients.
+	 */
+	public OutputMessageQueue parseMessages(InputMessageQueue messages) {
+		try {
+			return parseMessagesAsync(messages, SAME_THREAD).toCompletableFuture().join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Parses an entire InputMessageQueue, and returns a CompletionStage for
+	 * the server's reply, just as <code>parseMessages</code> does, but
+	 * without waiting for AsyncProtocolModules. The messages are parsed in
+	 * order, and each one is only handed to its module once the reply to the
+	 * one before it is complete. If all of them are answered at once, the
+	 * returned stage is already complete.
+	 * 
+	 * A message whose reply completes exceptionally goes unanswered, and the
+	 * rest of the queue is still parsed.
+	 * 
+	 * @param messages An InputMessageQueue of messages from the clients.
+	 * @param continuations The Executor which parses the rest of the queue
+	 * once a pending reply completes.
+	 * @return A CompletionStage which completes with an OutputMessageQueue
+	 * of replies for clients.
+	 */
+	public CompletionStage<OutputMessageQueue> parseMessagesAsync(InputMessageQueue messages, Executor continuations) {
+		OutputMessageQueue finalOutput = MessagePool.acquireOutputQueue(messages.getPriority());
+		return parseRemaining(messages, finalOutput, continuations);
+	}
+	
+	/**
+	 * Parses the messages left in an InputMessageQueue into the final output,
+	 * until one of them is not answered at once.
+	 */
+	private CompletionStage<OutputMessageQueue> parseRemaining(final InputMessageQueue messages,
+			final OutputMessageQueue finalOutput, final Executor continuations) {
+		while (!messages.isEmpty()) {
+			final ProtocolMessage message = messages.dequeue();
+			CompletableFuture<OutputMessageQueue> reply;
+			Route route = dispatchTable.get(message, 0);
+			if (message.getCommand() != null) {
+				reply = CompletableFuture.completedFuture(runCommand(route, message));
+			} else if (route != null) {
+				reply = parseMessage(route, message).toCompletableFuture();
+			} else {
+				ProtocolMessage invalid = MessageBuilder.forThread("invalid")
+						.append(message.getProtocolKey())
+						.build(message.getUser());
+				reply = CompletableFuture.completedFuture(MessagePool.acquireOutputQueue(invalid));
+			}
+			
+			if (!reply.isDone()) {
+				return reply.handleAsync(new BiFunction<OutputMessageQueue, Throwable, OutputMessageQueue>() {
+					public OutputMessageQueue apply(OutputMessageQueue output, Throwable failure) {
+						collectReply(message, output, failure, finalOutput);
+						return finalOutput;
+					}
+				}, continuations).thenCompose(new Function<OutputMessageQueue, CompletionStage<OutputMessageQueue>>() {
+					public CompletionStage<OutputMessageQueue> apply(OutputMessageQueue output) {
+						return parseRemaining(messages, finalOutput, continuations);
+					}
+				});
+			}
+			
+			OutputMessageQueue output = null;
+			Throwable failure = null;
+			try {
+				output = reply.join();
+			} catch (CompletionException e) {
+				failure = e.getCause();
+			} catch (CancellationException e) {
+				failure = e;
+			}
+			collectReply(message, output, failure, finalOutput);
+		}
+		MessagePool.release(messages);
+		return CompletableFuture.completedFuture(finalOutput);
+	}
+	
+	/**
+	 * Adds the reply to one message to the final output, and releases the
+	 * message and the reply to the MessagePool. If the message was tagged,
+	 * the replies going back to its sender are given the same tag.
+	 */
+	private static void collectReply(ProtocolMessage message, OutputMessageQueue reply,
+			Throwable failure, OutputMessageQueue finalOutput) {
+		if (failure != null) {
+			failure.printStackTrace();
+		} else if (reply != null) {
+			if (message.getTag() != null) {
+				reply.tagReplies(message.getUser(), message.getTag());
+			}
+			finalOutput.append(reply);
+			MessagePool.release(reply);
+		}
+		MessagePool.release(message);
+	}
+	
+	/**
+	 * Runs the InternalCommand carried by a message, locking its module if it
+	 * is not thread-safe. Commands for modules which are no longer loaded are
+	 * dropped.
+	 * 
+	 * @param route Where messages to the message's protocol key go.
+	 * @param message The message carrying the command.
+	 * @return The command's reply.
+	 */
+	private OutputMessageQueue runCommand(Route route, ProtocolMessage message) {
+		InternalCommand command = message.getCommand();
+		ProtocolModule module = command.getModule();
+		if (route == null || route.module != module) {
+			return null;
+		}
+		if (module.isThreadSafe()) {
+			return command.execute(message.getUser());
+		}
+		synchronized (module) {
+			return command.execute(message.getUser());
+		}
+	}
+	
+	/**
+	 * Hands a single message to its ProtocolModule, or to the module's
+	 * Subcommand for it. Modules which are not thread-safe are locked for
+	 * the duration of the call, so that only one thread at a time ever runs
+	 * them.
+	 * 
+	 * @param route Where messages to the message's protocol key go.
+	 * @param message The message to be parsed.
+	 * @return The module's reply.
+	 */
+	private CompletionStage<OutputMessageQueue> parseMessage(Route route, ProtocolMessage message) {
+		Subcommand subcommand = (route.subcommands == null) ? null : route.subcommands.get(message, 1);
+		if (route.module.isThreadSafe()) {
+			return parseMessage(route, subcommand, message);
+		}
+		synchronized (route.module) {
+			return parseMessage(route, subcommand, message);
+		}
+	}
+	
+	private static CompletionStage<OutputMessageQueue> parseMessage(Route route, Subcommand subcommand, ProtocolMessage message) {
+		if (subcommand != null) {
+			return CompletableFuture.completedFuture(subcommand.parseMessage(message));
+		}
+		return route.async.parseMessageAsync(message);
+	}
+	
+	/**
+	 * Removes a ProtocolModule from the map. Any future messages received
+	 * will not be sent to the given Module, unless a module for
+	 * the same ProtocolKey is later loaded back.
+	 * 
+	 * @param moduleName The name of the ProtocolModule to remove.
+	 */
+	public void unloadProtocolModule(String moduleName) {
+		ProtocolModule unloaded = null;
+		synchronized (this) {
+			for (Map.Entry<String, Route> entry : protocolMap.entrySet()) {
+				if (entry.getValue().module.getName().equals(moduleName)) {
+					unloaded = entry.getValue().module;
+					protocolMap.remove(entry.getKey());
+					dispatchTable = new DispatchTable<Route>(protocolMap);
+					break;
+				}
+			}
+		}
+		if (unloaded != null) {
+			unloaded.shutdown();
+		}
+	}
+	
+	/**
+	 * This method is called when this ProtocolMap is shutdown.. It is guaranteed
+	 * that it will only be called once per the lifetime of this service, and that
+	 * once it is called, no other messages will need to be parsed.
+	 */
+	public void shutdown() {
+		ArrayList<String> loadedModules = new ArrayList<String>();
+		synchronized (this) {
+			for (Route route : protocolMap.values()) {
+				loadedModules.add(route.module.getName());
+			}
+		}
+		for (String moduleName : loadedModules) {
+			unloadProtocolModule(moduleName);
+		}
+	}
+	
+	@Override
+	protected void finalize() throws Throwable {
+		shutdown();
+	}
+	
+}
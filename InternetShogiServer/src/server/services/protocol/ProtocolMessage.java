@@ -1,18 +1,80 @@
 package server.services.protocol;
 
+import java.util.Arrays;
+
 import server.services.user.User;
 
 /**
  * Represents a single protocol instruction, either from the client or the
  * server. It represents the smallest functional unit of the protocol.
  * 
+ * A message is split into space-separated tokens the first time they are
+ * needed, and only once; the tokens are kept as offsets into the message,
+ * and can be read through <code>getToken</code> without copying them out.
+ * 
+ * A message may also carry a correlation tag, which clients that asked for
+ * tags during their handshake put in front of a request as
+ * <code>#<i>tag</i> </code>. The tag is not part of the message itself; the
+ * replies to the request are given the same tag, and it is written in front
+ * of them on their way back to the client.
+ * 
  * @author Adrian Petrescu
  * 
  */
 public class ProtocolMessage {
 
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
 	private String message = "";
 	private User user;
+	private boolean urgent;
+	private byte[] encoded;
+	private int[] tokenOffsets;
+	private String protocolKey;
+	private String tag;
+	private byte[] taggedEncoded;
+	private InternalCommand command;
+
+	/* Set while the message is idle in the MessagePool. */
+	boolean pooled;
+
+	/**
+	 * A read-only view of a single token of a message.
+	 */
+	private static class Token implements CharSequence {
+		private String message;
+		private int start;
+		private int end;
+
+		Token(String message, int start, int end) {
+			this.message = message;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int length() {
+			return end - start;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= end - start) {
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+			return message.charAt(start + index);
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > end - start || from > to) {
+				throw new IndexOutOfBoundsException(from + ", " + to);
+			}
+			return new Token(message, start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return message.substring(start, end);
+		}
+	}
 
 	/**
 	 * Creates a new ProtocolMessage with an empty message. Its payload and
@@ -69,6 +131,39 @@ public class ProtocolMessage {
 		this.user = user;
 	}
 
+	/**
+	 * Constructs a new ProtocolMessage put together by a MessageBuilder or
+	 * the MessagePool, which have already made sure the message needs no
+	 * trimming.
+	 * 
+	 * @param user The User who is either the sender or the recipient of
+	 *            this message.
+	 * @param message The message to be stored.
+	 * @param encoded The message already encoded as by <code>getEncoded</code>,
+	 *            or <code>null</code> to encode it when it is needed.
+	 */
+	ProtocolMessage(User user, String message, byte[] encoded) {
+		this.message = message;
+		this.user = user;
+		this.encoded = encoded;
+	}
+
+	/**
+	 * Gives a message taken from the MessagePool new content, forgetting
+	 * everything about its previous use.
+	 */
+	void reset(User user, String message, byte[] encoded) {
+		this.message = message;
+		this.user = user;
+		this.encoded = encoded;
+		urgent = false;
+		tokenOffsets = null;
+		protocolKey = null;
+		tag = null;
+		taggedEncoded = null;
+		command = null;
+	}
+
 	/**
 	 * Every protocol message identifies its own protocol module by the protocol
 	 * key, which is usually the first token of the message, allowing for easily
@@ -77,7 +172,13 @@ public class ProtocolMessage {
 	 * @return The first token of the message.
 	 */
 	public String getProtocolKey() {
-		return (message.length() == 0) ? "" : message.split(" ")[0];
+		String key = protocolKey;
+		if (key == null) {
+			int[] offsets = getTokenOffsets();
+			key = (offsets.length == 0) ? "" : message.substring(offsets[0], offsets[1]);
+			protocolKey = key;
+		}
+		return key;
 	}
 
 	/**
@@ -88,9 +189,10 @@ public class ProtocolMessage {
 	 * @return The payload of the ProtocolMessage, as a String.
 	 */
 	public String getPayload() {
-		if (message.split(" ").length < 2)
+		int[] offsets = getTokenOffsets();
+		if (offsets.length < 4)
 			return "";
-		return message.substring(message.indexOf(' ') + 1);
+		return message.substring(offsets[1] + 1);
 	}
 
 	/**
@@ -105,13 +207,109 @@ public class ProtocolMessage {
 	 * @return The payload of the ProtocolMessage, as a tokenized String array.
 	 */
 	public String[] getTokenizedPayload() {
-		if (message.split(" ").length < 2)
+		int[] offsets = getTokenOffsets();
+		if (offsets.length < 4)
 			return new String[0];
-		String[] payload = new String[message.split(" ").length - 1];
-		System.arraycopy(message.split(" "), 1, payload, 0, payload.length);
+		String[] payload = new String[offsets.length / 2 - 1];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = message.substring(offsets[2 * i + 2], offsets[2 * i + 3]);
+		}
 		return payload;
 	}
 
+	/**
+	 * Returns the number of tokens in the message, including the protocol
+	 * key. The tokens are the same as those of <code>getMessage().split(" ")</code>:
+	 * consecutive spaces give empty tokens, and the empty message has a single,
+	 * empty token.
+	 * 
+	 * @return The number of tokens in the message.
+	 */
+	public int getTokenCount() {
+		return getTokenOffsets().length / 2;
+	}
+
+	/**
+	 * Returns a token of the message as a view onto the message itself, so
+	 * that no String is created unless the caller asks for one with
+	 * <code>toString()</code>. Token 0 is the protocol key, and token 1 is
+	 * the first token of the payload.
+	 * 
+	 * @param index The index of the token, from 0 to <code>getTokenCount() - 1</code>.
+	 * @return The token.
+	 * @throws IndexOutOfBoundsException Thrown if there is no such token.
+	 */
+	public CharSequence getToken(int index) {
+		int[] offsets = getTokenOffsets();
+		if (index < 0 || 2 * index >= offsets.length) {
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		}
+		return new Token(message, offsets[2 * index], offsets[2 * index + 1]);
+	}
+
+	/**
+	 * Checks whether a token of the message is equal to the given String,
+	 * without creating a String for the token.
+	 * 
+	 * @param index The index of the token, where 0 is the protocol key.
+	 * @param value The String to compare the token with.
+	 * @return <code>true</code> if the message has such a token and it is
+	 * equal to <code>value</code>.
+	 */
+	public boolean tokenEquals(int index, String value) {
+		int[] offsets = getTokenOffsets();
+		if (index < 0 || 2 * index >= offsets.length) {
+			return false;
+		}
+		int start = offsets[2 * index];
+		int length = offsets[2 * index + 1] - start;
+		return length == value.length() && message.regionMatches(start, value, 0, length);
+	}
+
+	/**
+	 * Returns the start and end of every token of the message, in pairs,
+	 * splitting the message the first time it is called.
+	 */
+	int[] getTokenOffsets() {
+		int[] offsets = tokenOffsets;
+		if (offsets == null) {
+			offsets = tokenize(message);
+			tokenOffsets = offsets;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Splits a message on single spaces, with the same results as
+	 * <code>message.split(" ")</code>: trailing empty tokens are dropped,
+	 * unless the message contains no space at all.
+	 */
+	private static int[] tokenize(String message) {
+		int length = message.length();
+		int count = 1;
+		for (int i = 0; i < length; i++) {
+			if (message.charAt(i) == ' ') {
+				count++;
+			}
+		}
+		int[] offsets = new int[2 * count];
+		int used = 0;
+		int start = 0;
+		for (int i = 0; i <= length; i++) {
+			if (i == length || message.charAt(i) == ' ') {
+				offsets[used++] = start;
+				offsets[used++] = i;
+				start = i + 1;
+			}
+		}
+		if (count > 1) {
+			while (used > 0 && offsets[used - 1] == offsets[used - 2]) {
+				used -= 2;
+			}
+		}
+		return (used == offsets.length) ? offsets : Arrays.copyOf(offsets, used);
+	}
+
 	/**
 	 * Returns the message contained in the ProtocolMessage, including both the
 	 * protocol key and the payload.
@@ -126,6 +324,9 @@ public class ProtocolMessage {
 	 * Adds token(s) to the end of the ProtocolMessage's payload. All leading
 	 * and trailing whitespace is removed from each token.
 	 * 
+	 * Every call copies the whole message, so replies made of many tokens
+	 * should be put together with a MessageBuilder instead.
+	 * 
 	 * @param tokens
 	 *            A string of tokens to be added to the end of the payload of
 	 *            the message.
@@ -133,18 +334,16 @@ public class ProtocolMessage {
 	 *         <code>getMessage()</code>.
 	 */
 	public String append(String tokens) {
-		String[] tokensArray = tokens.trim().split("\\s+");
+		StringBuilder appended = new StringBuilder(message.length() + tokens.length() + 1);
+		appended.append(message);
+		MessageBuilder.appendTokens(appended, tokens);
 
-		// If we try to append the empty string, or a bunch of whitespace, then
-		// tokens.trim().split("\\s+") returns an array of length 1 containing
-		// the empty string. So do nothing. If we don't treat this as a special
-		// case, the main loop will add an unnecessary space to the message.
-		if (tokensArray[0].equals(""))
+		// Appending the empty string, or a bunch of whitespace, does nothing.
+		if (appended.length() == message.length())
 			return message;
 
-		for (int i = 0; i < tokensArray.length; i++) {
-			message += " " + tokensArray[i];
-		}
+		message = appended.toString();
+		messageChanged();
 		return message;
 	}
 
@@ -162,8 +361,19 @@ public class ProtocolMessage {
 	public String setProtocolKey(String protocolKey) {
 		message = protocolKey.trim() + (getPayload().length() == 0 ? "" : " ")
 				+ getPayload();
+		messageChanged();
 		return message;
 	}
+
+	/**
+	 * Forgets everything cached about the old content of the message.
+	 */
+	private void messageChanged() {
+		encoded = null;
+		taggedEncoded = null;
+		tokenOffsets = null;
+		protocolKey = null;
+	}
 	
 	/**
 	 * Returns this message's associated User. If this ProtocolMessage is
@@ -191,4 +401,123 @@ public class ProtocolMessage {
 		this.user = user;
 	}
 
+	/**
+	 * Checks whether this message must be written to its recipient as soon
+	 * as possible, rather than waiting to be coalesced with other output.
+	 * 
+	 * @return <code>true</code> if the message is urgent.
+	 */
+	public boolean isUrgent() {
+		return urgent;
+	}
+
+	/**
+	 * Marks this message as urgent or not. Urgent messages, like game moves,
+	 * are flushed to the client immediately instead of lingering to be
+	 * written together with the messages which follow them.
+	 * 
+	 * @param urgent <code>true</code> if the message is urgent.
+	 */
+	public void setUrgent(boolean urgent) {
+		this.urgent = urgent;
+	}
+
+	/**
+	 * Returns the InternalCommand this message carries, if it was generated
+	 * by the server rather than received from a client. Such a message is
+	 * not parsed: the command is run instead, and the text of the message is
+	 * only the protocol key of the command's module.
+	 * 
+	 * @return The command, or <code>null</code> if the message carries none.
+	 */
+	public InternalCommand getCommand() {
+		return command;
+	}
+
+	/**
+	 * Makes this message carry an InternalCommand.
+	 * 
+	 * @param command The command, or <code>null</code> for none.
+	 */
+	public void setCommand(InternalCommand command) {
+		this.command = command;
+	}
+
+	/**
+	 * Returns the correlation tag of this message. For a request, this is the
+	 * tag the client sent it with; for a reply, the tag of the request it
+	 * answers.
+	 * 
+	 * @return The tag, or <code>null</code> if the message has none.
+	 */
+	public String getTag() {
+		return tag;
+	}
+
+	/**
+	 * Sets the correlation tag of this message. The tag must not contain any
+	 * whitespace.
+	 * 
+	 * @param tag The tag, or <code>null</code> for none.
+	 */
+	public void setTag(String tag) {
+		this.tag = tag;
+		taggedEncoded = null;
+	}
+
+	/**
+	 * Returns the message as it is written to a client: the full line,
+	 * preceded by its tag if it has one and followed by a line separator, in
+	 * the platform's default encoding. The line is only encoded once, and
+	 * copies made with <code>addressedTo</code> share the encoded bytes, so
+	 * the returned array must not be modified.
+	 * 
+	 * @return The encoded message.
+	 */
+	public byte[] getEncoded() {
+		byte[] bytes = getEncodedLine();
+		if (tag == null) {
+			return bytes;
+		}
+		byte[] tagged = taggedEncoded;
+		if (tagged == null) {
+			byte[] prefix = ("#" + tag + " ").getBytes();
+			tagged = Arrays.copyOf(prefix, prefix.length + bytes.length);
+			System.arraycopy(bytes, 0, tagged, prefix.length, bytes.length);
+			taggedEncoded = tagged;
+		}
+		return tagged;
+	}
+
+	/**
+	 * Returns the encoded line without any tag.
+	 */
+	private byte[] getEncodedLine() {
+		byte[] bytes = encoded;
+		if (bytes == null) {
+			bytes = (message + LINE_SEPARATOR).getBytes();
+			encoded = bytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns a copy of this ProtocolMessage addressed to another User. The
+	 * copy shares this message's text and its encoded bytes, so addressing
+	 * the same message to many recipients costs little more than a reference
+	 * per recipient. The copy has no tag, since it is not a reply to anything
+	 * its recipient sent. The copy comes from the MessagePool, and belongs to
+	 * the caller.
+	 * 
+	 * @param recipient The User the copy is addressed to.
+	 * @return A new ProtocolMessage with the same content as this one.
+	 */
+	public ProtocolMessage addressedTo(User recipient) {
+		ProtocolMessage copy = MessagePool.acquireMessage(recipient, message, getEncodedLine());
+		copy.urgent = urgent;
+		copy.tokenOffsets = tokenOffsets;
+		copy.protocolKey = protocolKey;
+		return copy;
+	}
+
 }
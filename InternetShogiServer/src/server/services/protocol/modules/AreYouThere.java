@@ -2,6 +2,7 @@ package server.services.protocol.modules;
 
 import java.util.Properties;
 
+import server.services.protocol.MessagePool;
 import server.services.protocol.OutputMessageQueue;
 import server.services.protocol.ProtocolMessage;
 
@@ -34,7 +35,7 @@ public class AreYouThere implements ProtocolModule {
 	 * <code><i>yes</i></code>
 	 */
 	public OutputMessageQueue parseMessage(ProtocolMessage message) {
-		return new OutputMessageQueue(new ProtocolMessage(message.getUser(), "yes"));
+		return MessagePool.acquireOutputQueue(MessagePool.acquireMessage(message.getUser(), "yes"));
 	}
 	
 	public String[] getDependencies() {
@@ -57,6 +58,10 @@ public class AreYouThere implements ProtocolModule {
 		
 	}
 	
+	public boolean isThreadSafe() {
+		return true;
+	}
+	
 	public void shutdown() {
 		
 	}
@@ -0,0 +1,46 @@
+package server.services.protocol.modules;
+
+import java.util.concurrent.CompletionStage;
+
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+
+/**
+ * A ProtocolModule whose replies may take a while to produce, such as one
+ * which has to query the database. Rather than holding up the thread which
+ * parses the input, it starts the work and returns a CompletionStage, which
+ * it completes with its reply whenever the work is done, from whichever
+ * thread it likes.
+ * 
+ * The ProtocolMap only ever calls <code>parseMessageAsync</code> on such a
+ * module. Messages from the same user are still parsed, and replied to, in
+ * the order they were received: a user's next message is not handed to any
+ * module until the reply to the previous one is complete. Messages from
+ * other users are parsed in the meantime.
+ * 
+ * Ordinary ProtocolModules are run through a SynchronousModuleAdapter.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public interface AsyncProtocolModule extends ProtocolModule {
+
+	/**
+	 * This method is called when the most recently-dequeued message for the
+	 * server was determined to be aimed for this ProtocolModule.
+	 * 
+	 * The message may be used until the returned CompletionStage completes,
+	 * after which it may be recycled by the MessagePool, so it must not be
+	 * kept, nor placed in the reply. If the stage completes exceptionally,
+	 * the message goes unanswered.
+	 * 
+	 * If the module is not thread-safe, only the call to this method is
+	 * serialized; the work it starts may well overlap with the next call.
+	 * 
+	 * @param message The message received from the client.
+	 * @return A CompletionStage which completes with an OutputMessageQueue
+	 * of messages to be sent to the client.
+	 */
+	public CompletionStage<OutputMessageQueue> parseMessageAsync(ProtocolMessage message);
+
+}
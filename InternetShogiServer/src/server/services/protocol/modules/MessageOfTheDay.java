@@ -1,121 +1,151 @@
-package server.services.protocol.modules;
-
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Properties;
-
-import server.main.GlobalInputMessageQueue;
-import server.services.ServiceManager;
-import server.services.event.EventCallback;
-import server.services.protocol.InputMessageQueue;
-import server.services.protocol.OutputMessageQueue;
-import server.services.protocol.ProtocolMessage;
-import server.services.user.NoSuchUserException;
-
-/**
- * The MessageOfTheDay (MOTD for short) is a message sent to all users on
- * login, outlining any news, instructions, or miscellaneous information
- * that the administrator wants to make publicly available.
- * 
- * @author APetrescu
- *
- */
-public class MessageOfTheDay implements ProtocolModule {
-
-	class NewUserCallback implements EventCallback {
-		
-		public void eventOccured(Properties properties) {
-			if (properties.containsKey("userName")) {
-				try {
-					GlobalInputMessageQueue.getGlobalInputMessageQueue().enqueue(
-							new InputMessageQueue(new ProtocolMessage(ServiceManager.getUserManager().getUser(properties.getProperty("userName")), "motd")));
-				} catch (NoSuchUserException e) {
-					e.printStackTrace();
-				}
-
-			}
-		}
-		
-	}
-	
-	private ArrayList<String> message;
-	
-	public static final String name = "MessageOfTheDay";
-	public static final String protocolKey = "motd";
-	public static final String version = "0.01";
-	
-	public String[] getDependencies() {
-		return new String[0];
-	}
-
-	public String getKey() {
-		return protocolKey;
-	}
-
-	public String getName() {
-		return name;
-	}
-
-	public String getVersion() {
-		return version;
-	}
-
-	public void initialize(Properties properties)
-			throws InvalidProtocolConfigurationException {
-		String motdConfFile = properties.getProperty("file");
-		message = new ArrayList<String>();
-		try {
-			BufferedReader in = new BufferedReader(new FileReader(motdConfFile));
-			String inLine = in.readLine();
-			while (inLine != null) {
-				message.add(inLine);
-				inLine = in.readLine();
-			}
-			in.close();
-		} catch (FileNotFoundException e) {
-			throw new InvalidProtocolConfigurationException(getName(), properties, "file", "Configuration file not found.");
-		} catch (IOException e) {
-			throw new InvalidProtocolConfigurationException(getName(), properties, "file", "Configuration file" + motdConfFile + " is not readable.");
-		}
-		
-		NewUserCallback newUser = new NewUserCallback();
-		ServiceManager.getEventManager().registerCallback(newUser, ServiceManager.getEventManager().getEvent("USER_CONNECT"));
-	}
-
-	/**
-	 * A <code>motd</code> message should not contain any parameters. A simple
-	 * "motd" will be responded to with a series of "motd message *message*" responses
-	 * until the full message has been transmitted, followed by a "motd done".
-	 * 
-	 * <br>
-	 * <b>Expected syntax:</b>
-	 * <br>
-	 * <code><i>motd</i></code>
-	 * 
-	 * <br>
-	 * <b>Output syntax:</b>
-	 * <br>
-	 * <code><i>motd message *message*</i> ... <i>motd done</i></code>
-	 */
-	public OutputMessageQueue parseMessage(ProtocolMessage message) {
-		OutputMessageQueue outputQueue = new OutputMessageQueue();
-		Iterator<String> i = this.message.iterator();
-		
-		while(i.hasNext()) {
-			ProtocolMessage m = new ProtocolMessage(message.getUser(), "motd message");
-			m.append(i.next());
-			outputQueue.enqueue(m);
-		}
-		outputQueue.enqueue(new ProtocolMessage(message.getUser(), "motd done"));
-		
-		return outputQueue;
-	}
-
-	public void shutdown() {
-	}
-
-}
+package server.services.protocol.modules;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Properties;
+
+import server.services.ServiceManager;
+import server.services.event.PayloadCallback;
+import server.services.event.UserEventPayload;
+import server.services.protocol.InternalCommand;
+import server.services.protocol.MessageBuilder;
+import server.services.protocol.MessagePool;
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.User;
+
+/**
+ * The MessageOfTheDay (MOTD for short) is a message sent to all users on
+ * login, outlining any news, instructions, or miscellaneous information
+ * that the administrator wants to make publicly available.
+ * 
+ * @author APetrescu
+ *
+ */
+public class MessageOfTheDay implements ProtocolModule {
+
+	class NewUserCallback implements PayloadCallback<UserEventPayload> {
+		
+		public void eventOccured(UserEventPayload payload) {
+			ServiceManager.getProtocolManager().submit(payload.getUser(), sendMotd);
+		}
+		
+	}
+	
+	/**
+	 * Sends the message of the day to a user who has just logged in.
+	 */
+	class SendMotdCommand implements InternalCommand {
+		
+		public ProtocolModule getModule() {
+			return MessageOfTheDay.this;
+		}
+		
+		public OutputMessageQueue execute(User user) {
+			return getMessageOfTheDay(user);
+		}
+		
+	}
+	
+	/* Built once, and addressed to each user who asks for them. */
+	private ArrayList<ProtocolMessage> message;
+	private ProtocolMessage done;
+	private InternalCommand sendMotd = new SendMotdCommand();
+	
+	public static final String name = "MessageOfTheDay";
+	public static final String protocolKey = "motd";
+	public static final String version = "0.01";
+	
+	public String[] getDependencies() {
+		return new String[0];
+	}
+
+	public String getKey() {
+		return protocolKey;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public void initialize(Properties properties)
+			throws InvalidProtocolConfigurationException {
+		String motdConfFile = properties.getProperty("file");
+		message = new ArrayList<ProtocolMessage>();
+		done = new MessageBuilder(protocolKey).append("done").build();
+		MessagePool.keep(done);
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(motdConfFile));
+			String inLine = in.readLine();
+			while (inLine != null) {
+				ProtocolMessage line = new MessageBuilder(protocolKey).append("message").append(inLine).build();
+				MessagePool.keep(line);
+				message.add(line);
+				inLine = in.readLine();
+			}
+			in.close();
+		} catch (FileNotFoundException e) {
+			throw new InvalidProtocolConfigurationException(getName(), properties, "file", "Configuration file not found.");
+		} catch (IOException e) {
+			throw new InvalidProtocolConfigurationException(getName(), properties, "file", "Configuration file" + motdConfFile + " is not readable.");
+		}
+		
+		NewUserCallback newUser = new NewUserCallback();
+		// Only submits a command, so it is quick enough to run on the login thread, and never misses a login.
+		ServiceManager.getEventManager().registerPayloadCallback(newUser,
+				ServiceManager.getEventManager().getEvent("USER_CONNECT", UserEventPayload.class), true);
+	}
+
+	/**
+	 * A <code>motd</code> message should not contain any parameters. A simple
+	 * "motd" will be responded to with a series of "motd message *message*" responses
+	 * until the full message has been transmitted, followed by a "motd done".
+	 * 
+	 * <br>
+	 * <b>Expected syntax:</b>
+	 * <br>
+	 * <code><i>motd</i></code>
+	 * 
+	 * <br>
+	 * <b>Output syntax:</b>
+	 * <br>
+	 * <code><i>motd message *message*</i> ... <i>motd done</i></code>
+	 */
+	public OutputMessageQueue parseMessage(ProtocolMessage message) {
+		return getMessageOfTheDay(message.getUser());
+	}
+	
+	/**
+	 * Returns the full message of the day, followed by <code>motd done</code>.
+	 * 
+	 * @param user The User to address the messages to.
+	 * @return An OutputMessageQueue of the message of the day.
+	 */
+	private OutputMessageQueue getMessageOfTheDay(User user) {
+		OutputMessageQueue outputQueue = MessagePool.acquireOutputQueue();
+		Iterator<ProtocolMessage> i = this.message.iterator();
+		
+		while(i.hasNext()) {
+			outputQueue.enqueue(i.next().addressedTo(user));
+		}
+		outputQueue.enqueue(done.addressedTo(user));
+		
+		return outputQueue;
+	}
+
+	public boolean isThreadSafe() {
+		return true;
+	}
+	
+	public void shutdown() {
+	}
+
+}
@@ -57,11 +57,25 @@ public interface ProtocolModule {
 	 * This method is called when the most recently-dequeued message for the
 	 * server was determined to be aimed for this ProtocolModule.
 	 * 
+	 * The message may be recycled by the MessagePool as soon as this method
+	 * returns, so it must not be kept, nor placed in the reply.
+	 * 
 	 * @param message The message received from the client.
 	 * @return An OutputMessageQueue of messages to be sent to the client.
 	 */
 	public OutputMessageQueue parseMessage(ProtocolMessage message);
 	
+	/**
+	 * Messages may be parsed by several threads at once, as long as they were
+	 * sent by different users. A ProtocolModule which cannot handle that
+	 * should return <code>false</code> here, and the ProtocolMap will never
+	 * call <code>parseMessage</code> on it from more than one thread at a time.
+	 * 
+	 * @return <code>true</code> if <code>parseMessage</code> may be called
+	 * concurrently.
+	 */
+	public boolean isThreadSafe();
+	
 	/**
 	 * This method is called when the ProtocolModule is first loaded into the
 	 * map. It is guaranteed to be called exactly once for the lifetime of
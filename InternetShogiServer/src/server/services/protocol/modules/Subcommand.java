@@ -0,0 +1,27 @@
+package server.services.protocol.modules;
+
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+
+/**
+ * Handles one subcommand of a SubcommandModule: the messages whose second
+ * token, right after the protocol key, names the subcommand, such as
+ * <code>room join</code>.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public interface Subcommand {
+
+	/**
+	 * Called when a message for this subcommand is received. Subcommands
+	 * are subject to the same rules as <code>ProtocolModule.parseMessage</code>,
+	 * and are never called concurrently unless their module is thread-safe.
+	 * 
+	 * @param message The message received from the client. Token 0 is the
+	 * protocol key, and token 1 is the name of the subcommand.
+	 * @return An OutputMessageQueue of messages to be sent to the client.
+	 */
+	public OutputMessageQueue parseMessage(ProtocolMessage message);
+
+}
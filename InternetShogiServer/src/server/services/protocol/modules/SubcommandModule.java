@@ -0,0 +1,27 @@
+package server.services.protocol.modules;
+
+import java.util.Map;
+
+/**
+ * A ProtocolModule whose messages are further divided into subcommands by
+ * their second token, like <code>room list</code> and <code>room join</code>.
+ * The ProtocolMap looks the subcommand up along with the protocol key, and
+ * hands the message straight to the Subcommand registered for it, so the
+ * module does not need to pick it apart itself. Messages with no
+ * subcommand, or one the module does not have, still go to the module's
+ * <code>parseMessage</code>.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public interface SubcommandModule extends ProtocolModule {
+
+	/**
+	 * Get the subcommands of this module, by name. The ProtocolMap asks for
+	 * them once, right after the module has been initialized.
+	 * 
+	 * @return The Subcommand handling each subcommand name.
+	 */
+	public Map<String, Subcommand> getSubcommands();
+
+}
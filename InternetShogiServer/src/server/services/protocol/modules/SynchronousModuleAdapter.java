@@ -0,0 +1,90 @@
+package server.services.protocol.modules;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+
+/**
+ * Presents an ordinary ProtocolModule as an AsyncProtocolModule, whose
+ * replies are already complete by the time <code>parseMessageAsync</code>
+ * returns. Everything else is passed straight through to the module.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class SynchronousModuleAdapter implements AsyncProtocolModule {
+
+	private ProtocolModule module;
+
+	/**
+	 * Constructs an adapter for the given module.
+	 * 
+	 * @param module The ProtocolModule to adapt.
+	 */
+	public SynchronousModuleAdapter(ProtocolModule module) {
+		this.module = module;
+	}
+
+	/**
+	 * Presents any ProtocolModule as an AsyncProtocolModule.
+	 * 
+	 * @param module The ProtocolModule.
+	 * @return The module itself if it is already an AsyncProtocolModule, or
+	 * an adapter for it otherwise.
+	 */
+	public static AsyncProtocolModule adapt(ProtocolModule module) {
+		if (module instanceof AsyncProtocolModule) {
+			return (AsyncProtocolModule) module;
+		}
+		return new SynchronousModuleAdapter(module);
+	}
+
+	/**
+	 * Get the module being adapted.
+	 * 
+	 * @return The adapted ProtocolModule.
+	 */
+	public ProtocolModule getModule() {
+		return module;
+	}
+
+	public CompletionStage<OutputMessageQueue> parseMessageAsync(ProtocolMessage message) {
+		return CompletableFuture.completedFuture(module.parseMessage(message));
+	}
+
+	public OutputMessageQueue parseMessage(ProtocolMessage message) {
+		return module.parseMessage(message);
+	}
+
+	public String[] getDependencies() {
+		return module.getDependencies();
+	}
+
+	public String getKey() {
+		return module.getKey();
+	}
+
+	public String getName() {
+		return module.getName();
+	}
+
+	public String getVersion() {
+		return module.getVersion();
+	}
+
+	public void initialize(Properties properties) throws InvalidProtocolConfigurationException {
+		module.initialize(properties);
+	}
+
+	public boolean isThreadSafe() {
+		return module.isThreadSafe();
+	}
+
+	public void shutdown() {
+		module.shutdown();
+	}
+
+}
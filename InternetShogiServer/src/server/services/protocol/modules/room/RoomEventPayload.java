@@ -0,0 +1,46 @@
+package server.services.protocol.modules.room;
+
+import java.util.Properties;
+
+import server.services.event.UserEventPayload;
+import server.services.user.User;
+
+/**
+ * The payload of an Event which happens to a User in a Room, such as the
+ * User joining or leaving it. EventCallbacks find the name of the User under
+ * <code>userName</code> and the name of the Room under <code>roomName</code>.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class RoomEventPayload extends UserEventPayload {
+
+	private String roomName;
+	
+	/**
+	 * Constructs a new RoomEventPayload.
+	 * 
+	 * @param user The User the Event happened to.
+	 * @param roomName The name of the Room it happened in.
+	 */
+	public RoomEventPayload(User user, String roomName) {
+		super(user);
+		this.roomName = roomName;
+	}
+	
+	/**
+	 * Get the name of the Room the Event happened in.
+	 * 
+	 * @return The name of the Room.
+	 */
+	public String getRoomName() {
+		return roomName;
+	}
+	
+	@Override
+	protected void fillProperties(Properties properties) {
+		super.fillProperties(properties);
+		properties.setProperty("roomName", roomName);
+	}
+
+}
@@ -0,0 +1,35 @@
+package server.services.protocol.modules.room;
+
+import server.services.event.TypedEvent;
+import server.services.user.User;
+
+/**
+ * This event occurs whenever a user joins a room.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class RoomJoinedEvent extends TypedEvent<RoomEventPayload> {
+
+	static final String NAME = "ROOM_JOIN";
+	
+	RoomJoinedEvent() {
+		super(RoomEventPayload.class);
+	}
+	
+	@Override
+	public String getName() {
+		return NAME;
+	}
+	
+	/**
+	 * Called when a user joins a room.
+	 * 
+	 * @param user The user who joined the room.
+	 * @param room The room.
+	 */
+	void occured(User user, Room room) {
+		super.occured(new RoomEventPayload(user, room.getRoomInformation().getName()));
+	}
+
+}
@@ -1,17 +1,25 @@
 package server.services.protocol.modules.room;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 
-import server.main.GlobalInputMessageQueue;
 import server.services.ServiceManager;
-import server.services.event.EventCallback;
-import server.services.protocol.InputMessageQueue;
+import server.services.connection.ConnectionManager;
+import server.services.event.BatchCallback;
+import server.services.event.UserEventPayload;
+import server.services.protocol.InternalCommand;
+import server.services.protocol.MessageBuilder;
+import server.services.protocol.MessagePool;
 import server.services.protocol.OutputMessageQueue;
 import server.services.protocol.ProtocolMessage;
 import server.services.protocol.modules.InvalidProtocolConfigurationException;
 import server.services.protocol.modules.ProtocolModule;
-import server.services.user.NoSuchUserException;
+import server.services.protocol.modules.Subcommand;
+import server.services.protocol.modules.SubcommandModule;
 import server.services.user.User;
 
 
@@ -24,30 +32,94 @@ import server.services.user.User;
  * @author APetrescu
  *
  */
-public class RoomManager implements ProtocolModule {
+public class RoomManager implements SubcommandModule {
 
-	class UserQuitCallback implements EventCallback {
+	/**
+	 * Receives the users who quit in batches, so that when many quit at once
+	 * they are taken out of the rooms together.
+	 */
+	class UserQuitCallback implements BatchCallback<UserEventPayload> {
 
-		public void eventOccured(Properties eventData) {
-			try {
-				User userQuit = ServiceManager.getUserManager().getUser(eventData.getProperty("userName"));
-				for (Room room : roomTable.values().toArray(new Room[0])) {
-					if (room.occupants.contains(userQuit)) {
-						ProtocolMessage quit = new ProtocolMessage(userQuit, "room leave " + room.getRoomInformation().getName());
-						GlobalInputMessageQueue.getGlobalInputMessageQueue().enqueue(new InputMessageQueue(quit));
+		public void eventsOccured(List<UserEventPayload> payloads) {
+			List<User> users = new ArrayList<User>(payloads.size());
+			for (UserEventPayload payload : payloads) {
+				users.add(payload.getUser());
+			}
+			ServiceManager.getProtocolManager().submit(users.get(0), new LeaveAllRoomsCommand(users));
+		}
+	
+	}
+	
+	/**
+	 * Takes the users who have quit out of every room they were in, and lets
+	 * the rest of each room know with one <code>room leave</code> naming all
+	 * of them, rather than one per user.
+	 * 
+	 * The command only runs in order with the input of one of the users, and
+	 * some time after they quit, so the others may have logged in again and
+	 * joined rooms meanwhile. Users who are logged in when it runs are left
+	 * where they are.
+	 */
+	class LeaveAllRoomsCommand implements InternalCommand {
+		
+		private List<User> users;
+		
+		LeaveAllRoomsCommand(List<User> users) {
+			this.users = users;
+		}
+		
+		public ProtocolModule getModule() {
+			return RoomManager.this;
+		}
+		
+		public OutputMessageQueue execute(User user) {
+			OutputMessageQueue leaveMessages = MessagePool.acquireOutputQueue();
+			ConnectionManager connectionManager = ServiceManager.getConnectionManager();
+			List<User> quitters = new ArrayList<User>(users.size());
+			for (User quitter : users) {
+				if (!connectionManager.checkUserLoggedIn(quitter)) {
+					quitters.add(quitter);
+				}
+			}
+			List<User> left = new ArrayList<User>();
+			for (Room room : roomTable.values()) {
+				left.clear();
+				for (User quitter : quitters) {
+					if (room.removeUser(quitter)) {
+						roomLeft.occured(quitter, room);
+						left.add(quitter);
 					}
 				}
-			} catch (NoSuchUserException e) {}
+				if (left.isEmpty()) {
+					continue;
+				}
+				User[] occupants = room.getOccupants();
+				for (int i = 0; i < left.size(); i += MAX_LEAVE_NAMES) {
+					ProtocolMessage leaveMessage = getLeaveMessage(room,
+							left.subList(i, Math.min(i + MAX_LEAVE_NAMES, left.size())));
+					leaveMessages.broadcast(leaveMessage, occupants);
+					MessagePool.release(leaveMessage);
+				}
+			}
+			return leaveMessages;
 		}
-	
+		
 	}
 	
 	private static final String name = "Room";
 	private static final String protocolKey = "room";
 	private static final String version = "0.01";
 	private static final String[] dependencies = { "Tell 0.1" };
+	
+	/* The most users who quit to list in a single room leave message. */
+	private static final int MAX_LEAVE_NAMES = 256;
+	
+	/* The most users who quit to take out of the rooms in one go. */
+	private static final int MAX_QUIT_BATCH = 4096;
 
 	private ConcurrentHashMap<String, Room> roomTable;
+	private RoomJoinedEvent roomJoined;
+	private RoomLeftEvent roomLeft;
 
 	public String[] getDependencies() {
 		return dependencies;
@@ -87,8 +159,19 @@ public class RoomManager implements ProtocolModule {
 			roomTable.put(roomName, room);
 		}
 		
+		// A reloaded module keeps firing the events registered the first time.
+		roomJoined = new RoomJoinedEvent();
+		if (!ServiceManager.getEventManager().registerEvent(roomJoined)) {
+			roomJoined = (RoomJoinedEvent) ServiceManager.getEventManager().getEvent(RoomJoinedEvent.NAME);
+		}
+		roomLeft = new RoomLeftEvent();
+		if (!ServiceManager.getEventManager().registerEvent(roomLeft)) {
+			roomLeft = (RoomLeftEvent) ServiceManager.getEventManager().getEvent(RoomLeftEvent.NAME);
+		}
+		
 		UserQuitCallback userQuitCallback = new UserQuitCallback();
-		ServiceManager.getEventManager().registerCallback(userQuitCallback, ServiceManager.getEventManager().getEvent("USER_DISCONNECT"));
+		ServiceManager.getEventManager().registerBatchCallback(userQuitCallback,
+				ServiceManager.getEventManager().getEvent("USER_DISCONNECT", UserEventPayload.class), MAX_QUIT_BATCH);
 	}
 
 	/**
@@ -98,104 +181,129 @@ public class RoomManager implements ProtocolModule {
 	 * @return The <code>room invalid syntax</code> message queue.
 	 */
 	private OutputMessageQueue invalidSyntaxMessage(ProtocolMessage message) {
-		return new OutputMessageQueue(new ProtocolMessage(message.getUser(),
+		return MessagePool.acquireOutputQueue(MessagePool.acquireMessage(message.getUser(),
 				getKey() + " invalid syntax"));
 	}
 
+	/**
+	 * Messages which do not name one of the subcommands are answered with
+	 * <code>room invalid syntax</code>.
+	 */
 	public OutputMessageQueue parseMessage(ProtocolMessage message) {
-		String[] messagePayload = message.getTokenizedPayload();
+		return invalidSyntaxMessage(message);
+	}
 
-		switch (messagePayload.length) {
-		case 0: break;
-		
-		/*
-		 * Possibilities:
-		 * room list
-		 */
-		case 1:
-			if (messagePayload[0].equals("list")) {
-				OutputMessageQueue roomListMessageQueue = new OutputMessageQueue();
-				ProtocolMessage roomListMessage = new ProtocolMessage(message.getUser(), getKey() + " list");
-				String[] roomNames = new String[roomTable.keySet().size()];
-				roomTable.keySet().toArray(roomNames);
-				for (String roomName : roomNames) {
+	/**
+	 * The RoomManager's subcommands are:
+	 * <br>
+	 * <code>room list</code>
+	 * <br>
+	 * <code>room info <i>roomname</i></code>
+	 * <br>
+	 * <code>room join <i>roomname</i></code>
+	 * <br>
+	 * <code>room leave <i>roomname</i></code>
+	 * <br>
+	 * <code>room tell <i>roomname</i> <i>message</i></code>
+	 * <br>
+	 * Any of them with the wrong number of parameters is answered with
+	 * <code>room invalid syntax</code>.
+	 */
+	public Map<String, Subcommand> getSubcommands() {
+		HashMap<String, Subcommand> subcommands = new HashMap<String, Subcommand>();
+		subcommands.put("list", new Subcommand() {
+			public OutputMessageQueue parseMessage(ProtocolMessage message) {
+				if (message.getTokenCount() != 2) {
+					return invalidSyntaxMessage(message);
+				}
+				OutputMessageQueue roomListMessageQueue = MessagePool.acquireOutputQueue();
+				MessageBuilder roomListMessage = MessageBuilder.forThread(getKey()).append("list");
+				for (String roomName : roomTable.keySet()) {
 					roomListMessage.append(roomName);
 				}
-				roomListMessageQueue.enqueue(roomListMessage);
+				roomListMessageQueue.enqueue(roomListMessage.build(message.getUser()));
 				return roomListMessageQueue;
 			}
-			break;
-			
-		/*
-		 * Possibilities:
-		 * room info _roomname_
-		 * room join _roomname_
-		 * room leave _roomname_
-		 * room tell _roomname_ _message_
-		 */
-		case 2:
-			if (messagePayload[0].equals("info")) {
-				OutputMessageQueue roomInfoMessageQueue = getRoomInfoMessage(messagePayload[1]);
+		});
+		subcommands.put("info", new Subcommand() {
+			public OutputMessageQueue parseMessage(ProtocolMessage message) {
+				if (message.getTokenCount() != 3) {
+					return invalidSyntaxMessage(message);
+				}
+				OutputMessageQueue roomInfoMessageQueue = getRoomInfoMessage(message.getToken(2).toString());
 				roomInfoMessageQueue.setUser(message.getUser());
 				return roomInfoMessageQueue;
-			} else
-			
-			if (messagePayload[0].equals("join")) {
-				Room roomToJoin = getRoom(messagePayload[1]);
+			}
+		});
+		subcommands.put("join", new Subcommand() {
+			public OutputMessageQueue parseMessage(ProtocolMessage message) {
+				if (message.getTokenCount() != 3) {
+					return invalidSyntaxMessage(message);
+				}
+				Room roomToJoin = getRoom(message.getToken(2).toString());
 				boolean joinedRoom = false;
 				if (roomToJoin != null) {
 					joinedRoom = roomToJoin.addUser(message.getUser());
 				}
+				if (joinedRoom) {
+					roomJoined.occured(message.getUser(), roomToJoin);
+				}
 				return getRoomJoinMessages(message, joinedRoom);
-			} else
-			
-			if (messagePayload[0].equals("leave")) {
-				Room roomToLeave = getRoom(messagePayload[1]);
+			}
+		});
+		subcommands.put("leave", new Subcommand() {
+			public OutputMessageQueue parseMessage(ProtocolMessage message) {
+				if (message.getTokenCount() != 3) {
+					return invalidSyntaxMessage(message);
+				}
+				Room roomToLeave = getRoom(message.getToken(2).toString());
 				boolean leftRoom = false;
 				if (roomToLeave != null) {
 					leftRoom = roomToLeave.removeUser(message.getUser());
 				}
+				if (leftRoom) {
+					roomLeft.occured(message.getUser(), roomToLeave);
+				}
 				return getRoomLeaveMessages(message, leftRoom);
 			}
-			break;
-			
-		default:
-			if (messagePayload[0].equals("tell")) {
+		});
+		subcommands.put("tell", new Subcommand() {
+			public OutputMessageQueue parseMessage(ProtocolMessage message) {
+				if (message.getTokenCount() < 4) {
+					return invalidSyntaxMessage(message);
+				}
 				return getRoomTellMessages(message);
 			}
-			break;
-		}
-
-		return invalidSyntaxMessage(message);
+		});
+		return subcommands;
 	}
 
 	private OutputMessageQueue getRoomTellMessages(ProtocolMessage message) {
-		OutputMessageQueue roomTellMessageQueue = new OutputMessageQueue();
-		Room room = getRoom(message.getTokenizedPayload()[1]);
+		OutputMessageQueue roomTellMessageQueue = MessagePool.acquireOutputQueue();
+		Room room = getRoom(message.getToken(2).toString());
 		
 		if (room == null) { 
-			roomTellMessageQueue.enqueue(new ProtocolMessage(message.getUser(),
+			roomTellMessageQueue.enqueue(MessagePool.acquireMessage(message.getUser(),
 					"room tell invalid room_not_exist"));
 			return roomTellMessageQueue;
 		}
 		
 		if (!room.occupants.contains(message.getUser())) {
-			roomTellMessageQueue.enqueue(new ProtocolMessage(message.getUser(),
+			roomTellMessageQueue.enqueue(MessagePool.acquireMessage(message.getUser(),
 					"room tell invalid room_not_joined"));
 			return roomTellMessageQueue;
 		}
 		
-		for (User roomOccupant : room.getOccupants()) {
-			ProtocolMessage tellMessage = new ProtocolMessage(roomOccupant);
-			tellMessage.setProtocolKey(getKey());
-			tellMessage.append("tell");
-			tellMessage.append(room.getRoomInformation().getName());
-			tellMessage.append(message.getUser().getUserName());
-			for (int i = 2; i < message.getTokenizedPayload().length; i++) {
-				tellMessage.append(message.getTokenizedPayload()[i]);
-			}
-			roomTellMessageQueue.enqueue(tellMessage);
+		MessageBuilder tellMessage = MessageBuilder.forThread(getKey());
+		tellMessage.append("tell");
+		tellMessage.append(room.getRoomInformation().getName());
+		tellMessage.append(message.getUser().getUserName());
+		for (int i = 3; i < message.getTokenCount(); i++) {
+			tellMessage.append(message.getToken(i));
 		}
+		ProtocolMessage tell = tellMessage.build();
+		roomTellMessageQueue.broadcast(tell, room.getOccupants());
+		MessagePool.release(tell);
 		
 		return roomTellMessageQueue;
 	}
@@ -212,23 +320,22 @@ public class RoomManager implements ProtocolModule {
 	 * room following the syntax above, or <code>null</code> if the room is invalid.
 	 */
 	private OutputMessageQueue getRoomJoinMessages(ProtocolMessage message, boolean joinedRoom) {
-		OutputMessageQueue roomJoinMessageQueue = new OutputMessageQueue();
-		Room room = getRoom(message.getTokenizedPayload()[1]);
+		OutputMessageQueue roomJoinMessageQueue = MessagePool.acquireOutputQueue();
+		Room room = getRoom(message.getToken(2).toString());
 		
 		if (room == null || !joinedRoom) {
-			roomJoinMessageQueue.enqueue(new ProtocolMessage(message.getUser(),
+			roomJoinMessageQueue.enqueue(MessagePool.acquireMessage(message.getUser(),
 					"room join invalid room_not_exist"));
 			return roomJoinMessageQueue;
 		}
 		
-		for (User roomOccupant : room.getOccupants()) {
-			ProtocolMessage joinMessage = new ProtocolMessage(roomOccupant);
-			joinMessage.setProtocolKey(getKey());
-			joinMessage.append("join");
-			joinMessage.append(room.getRoomInformation().getName());
-			joinMessage.append(message.getUser().getUserName());
-			roomJoinMessageQueue.enqueue(joinMessage);
-		}
+		ProtocolMessage joinMessage = MessageBuilder.forThread(getKey())
+				.append("join")
+				.append(room.getRoomInformation().getName())
+				.append(message.getUser().getUserName())
+				.build();
+		roomJoinMessageQueue.broadcast(joinMessage, room.getOccupants());
+		MessagePool.release(joinMessage);
 		
 		return roomJoinMessageQueue;
 	}
@@ -245,33 +352,56 @@ public class RoomManager implements ProtocolModule {
 	 * room following the syntax above, or <code>null</code> if the room is invalid.
 	 */
 	private OutputMessageQueue getRoomLeaveMessages(ProtocolMessage message, boolean leftRoom) {
-		OutputMessageQueue roomLeaveMessageQueue = new OutputMessageQueue();
-		Room room = getRoom(message.getTokenizedPayload()[1]);
+		OutputMessageQueue roomLeaveMessageQueue = MessagePool.acquireOutputQueue();
+		Room room = getRoom(message.getToken(2).toString());
 		
 		if (room == null || !leftRoom) {
-			roomLeaveMessageQueue.enqueue(new ProtocolMessage(message.getUser(),
+			roomLeaveMessageQueue.enqueue(MessagePool.acquireMessage(message.getUser(),
 					"room leave invalid room_not_joined"));
 			return roomLeaveMessageQueue;
 		}
 		
-		for (User roomOccupant : room.getOccupants()) {
-			ProtocolMessage leaveMessage = new ProtocolMessage(roomOccupant);
-			leaveMessage.setProtocolKey(getKey());
-			leaveMessage.append("leave");
-			leaveMessage.append(room.getRoomInformation().getName());
-			leaveMessage.append(message.getUser().getUserName());
-			roomLeaveMessageQueue.enqueue(leaveMessage);
-		}
-		ProtocolMessage leaveMessage = new ProtocolMessage(message.getUser());
-		leaveMessage.setProtocolKey(getKey());
-		leaveMessage.append("leave");
-		leaveMessage.append(room.getRoomInformation().getName());
-		leaveMessage.append(message.getUser().getUserName());
-		roomLeaveMessageQueue.enqueue(leaveMessage);		
+		ProtocolMessage leaveMessage = getLeaveMessage(room, message.getUser());
+		roomLeaveMessageQueue.broadcast(leaveMessage, room.getOccupants());
+		leaveMessage.setUser(message.getUser());
+		roomLeaveMessageQueue.enqueue(leaveMessage);
 		
 		return roomLeaveMessageQueue;
 	}
 	
+	/**
+	 * Builds the <code>room leave <i>room</i> <i>user</i></code> notification.
+	 * 
+	 * @param room The room the user left.
+	 * @param user The user who left.
+	 * @return The notification, owned by the caller.
+	 */
+	private ProtocolMessage getLeaveMessage(Room room, User user) {
+		return MessageBuilder.forThread(getKey())
+				.append("leave")
+				.append(room.getRoomInformation().getName())
+				.append(user.getUserName())
+				.build();
+	}
+	
+	/**
+	 * Builds the <code>room leave <i>room</i> <i>user</i> <i>user</i> ...</code>
+	 * notification for several users who left a room at once.
+	 * 
+	 * @param room The room the users left.
+	 * @param users The users who left.
+	 * @return The notification, owned by the caller.
+	 */
+	private ProtocolMessage getLeaveMessage(Room room, List<User> users) {
+		MessageBuilder builder = MessageBuilder.forThread(getKey())
+				.append("leave")
+				.append(room.getRoomInformation().getName());
+		for (User user : users) {
+			builder.append(user.getUserName());
+		}
+		return builder.build();
+	}
+	
 	/**
 	 * Returns an OutputMessageQueue giving all relevant room information the
 	 * the client. Its protocol is: <br>
@@ -292,37 +422,41 @@ public class RoomManager implements ProtocolModule {
 	 *         any particular value.
 	 */
 	private OutputMessageQueue getRoomInfoMessage(String roomName) {
-		OutputMessageQueue roomInfoMessageQueue = new OutputMessageQueue();
+		OutputMessageQueue roomInfoMessageQueue = MessagePool.acquireOutputQueue();
 		Room room = getRoom(roomName);
 		
 		if (room == null) {
-			roomInfoMessageQueue.enqueue(new ProtocolMessage("room info invalid room_not_exist"));
+			roomInfoMessageQueue.enqueue(MessagePool.acquireMessage(null, "room info invalid room_not_exist"));
 			return roomInfoMessageQueue;
 		}
 
-		roomInfoMessageQueue.enqueue(new ProtocolMessage(getKey()
+		roomInfoMessageQueue.enqueue(MessagePool.acquireMessage(null, getKey()
 				+ " info name " + roomName));
-		roomInfoMessageQueue.enqueue(new ProtocolMessage(getKey()
+		roomInfoMessageQueue.enqueue(MessagePool.acquireMessage(null, getKey()
 				+ " info description "
 				+ room.getRoomInformation().getDescription()));
 
-		ProtocolMessage roomOccupants = new ProtocolMessage(getKey()
-				+ " info occupants");
+		MessageBuilder roomOccupants = MessageBuilder.forThread(getKey())
+				.append("info occupants");
 		for (User occupant : room.getOccupants()) {
 			roomOccupants.append(occupant.getUserName());
 		}
-		roomInfoMessageQueue.enqueue(roomOccupants);
+		roomInfoMessageQueue.enqueue(roomOccupants.build());
 
-		ProtocolMessage roomOwners = new ProtocolMessage(getKey()
-				+ " info owners");
+		MessageBuilder roomOwners = MessageBuilder.forThread(getKey())
+				.append("info owners");
 		for (String owner : room.getRoomInformation().getOwners()) {
 			roomOwners.append(owner);
 		}
-		roomInfoMessageQueue.enqueue(roomOwners);
+		roomInfoMessageQueue.enqueue(roomOwners.build());
 
 		return roomInfoMessageQueue;
 	}
 
+	public boolean isThreadSafe() {
+		return false;
+	}
+	
 	public void shutdown() {}
 
 }
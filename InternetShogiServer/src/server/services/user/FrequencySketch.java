@@ -0,0 +1,110 @@
+package server.services.user;
+
+/**
+ * Estimates how often each user name has been asked for recently, for the
+ * UserCache to decide which users are worth keeping. It is a count-min
+ * sketch of 4-bit counters: each name increments one counter in each of
+ * four rows, and its estimate is the smallest of the four, so it may be
+ * overestimated by collisions but never underestimated.
+ *
+ * Once as many names have been counted as ten times the cache's capacity,
+ * every counter is halved, so users who were popular a long time ago give
+ * way to users who are popular now.
+ *
+ * This class is not thread-safe; the UserCache only uses it while holding
+ * its lock.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+class FrequencySketch {
+
+	/* The largest value a 4-bit counter holds. */
+	private static final int MAX_COUNT = 15;
+
+	/* Clears the bit which halving shifts into the top of each counter. */
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL,
+		0x165667B19E3779F9L, 0xD6E8FEB86659FD93L };
+
+	/* Each long holds sixteen 4-bit counters. */
+	private long[] table;
+	private int tableMask;
+	private int sampleSize;
+	private int additions;
+
+	/**
+	 * Constructs an empty FrequencySketch.
+	 *
+	 * @param capacity The number of entries of the cache it counts for.
+	 */
+	FrequencySketch(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		table = new long[Math.min(size, 1 << 24)];
+		tableMask = table.length - 1;
+		sampleSize = (int) Math.min(10L * Math.max(capacity, 16), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Estimates how often a name has been counted.
+	 *
+	 * @param key The name.
+	 * @return The estimate, from 0 to 15.
+	 */
+	int frequency(Object key) {
+		int hash = key.hashCode();
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < SEEDS.length; row++) {
+			long slot = slot(hash, row);
+			frequency = Math.min(frequency, (int) (table[index(slot)] >>> shift(slot)) & MAX_COUNT);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Counts a name once more, unless its counters are already full.
+	 *
+	 * @param key The name.
+	 */
+	void increment(Object key) {
+		int hash = key.hashCode();
+		boolean added = false;
+		for (int row = 0; row < SEEDS.length; row++) {
+			long slot = slot(hash, row);
+			int index = index(slot);
+			int shift = shift(slot);
+			if (((table[index] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+				table[index] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * Halves every counter.
+	 */
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+
+	private static long slot(int hash, int row) {
+		long slot = (hash + SEEDS[row]) * SEEDS[row];
+		return slot ^ (slot >>> 32);
+	}
+
+	private int index(long slot) {
+		return (int) (slot >>> 4) & tableMask;
+	}
+
+	private static int shift(long slot) {
+		return ((int) slot & 15) << 2;
+	}
+
+}
@@ -0,0 +1,509 @@
+package server.services.user;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the Users the UserManager has loaded from the database, so that only
+ * the users who are actually asked for are loaded, and only the ones worth
+ * keeping are kept. Users who are online are pinned: they are never evicted,
+ * and do not count against the capacity.
+ *
+ * The cache is a W-TinyLFU cache. New users go into a small window, most
+ * recently used last. Users pushed out of the window only make it into the
+ * main part of the cache if a FrequencySketch says they have been asked for
+ * more often than the user they would replace, so a one-off scan of many
+ * accounts (a "finger" of every user, say) cannot flush out the users who
+ * are looked up all the time. The main part is split into a probation area,
+ * for users who have been admitted, and a protected area, for users who have
+ * been asked for again since.
+ *
+ * Users who have not been asked for in a while expire, and are loaded again
+ * the next time they are needed. Users who are not registered are not
+ * cached at all.
+ *
+ * Looking up a cached user takes no lock. Hits are recorded for eviction
+ * only when the lock is free, so under heavy contention some are not.
+ *
+ * @author Adrian Petrescu
+ *
+ */
+public class UserCache {
+
+	/**
+	 * The number of offline users kept, unless configured otherwise.
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/**
+	 * The number of seconds a user may go unused before they expire, unless
+	 * configured otherwise.
+	 */
+	public static final int DEFAULT_EXPIRY = 1800;
+
+	/**
+	 * Loads the users missing from the cache.
+	 */
+	interface Loader {
+		/**
+		 * Loads a user.
+		 *
+		 * @param userName The user name of the user.
+		 * @return The User, or <code>null</code> if no such user is registered.
+		 */
+		User load(String userName);
+	}
+
+	/* The parts of the cache an entry may be in. */
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	private static final int PINNED = 3;
+	private static final int REMOVED = 4;
+
+	/**
+	 * A cached user. Everything but the user and access time is only used
+	 * while holding the lock.
+	 */
+	private static class Node {
+		private final String userName;
+		private volatile User user;
+		private volatile long accessed;
+		private int area;
+		private Node previous;
+		private Node next;
+
+		Node(String userName, User user, long accessed) {
+			this.userName = userName;
+			this.user = user;
+			this.accessed = accessed;
+		}
+	}
+
+	/**
+	 * The entries of one part of the cache, least recently used first.
+	 */
+	private static class AccessOrder {
+		private Node first;
+		private Node last;
+		private int size;
+
+		void add(Node node) {
+			node.previous = last;
+			node.next = null;
+			if (last == null) {
+				first = node;
+			} else {
+				last.next = node;
+			}
+			last = node;
+			size++;
+		}
+
+		void remove(Node node) {
+			if (node.previous == null) {
+				first = node.next;
+			} else {
+				node.previous.next = node.next;
+			}
+			if (node.next == null) {
+				last = node.previous;
+			} else {
+				node.next.previous = node.previous;
+			}
+			node.previous = null;
+			node.next = null;
+			size--;
+		}
+
+		void moveToEnd(Node node) {
+			if (node != last) {
+				remove(node);
+				add(node);
+			}
+		}
+	}
+
+	private final Loader loader;
+	private final long expiry;
+	private final int windowCapacity;
+	private final int mainCapacity;
+	private final int protectedCapacity;
+
+	private final ConcurrentHashMap<String, Node> entries;
+	private final ConcurrentHashMap<String, FutureTask<User>> loading;
+	private final ReentrantLock lock;
+	private final FrequencySketch sketch;
+	private final AccessOrder window;
+	private final AccessOrder probation;
+	private final AccessOrder protectedArea;
+	private int pinned;
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+	private final AtomicLong expirations;
+
+	/**
+	 * Constructs an empty UserCache.
+	 *
+	 * @param capacity The most offline users to keep.
+	 * @param expiry How many nanoseconds a user may go unused before they
+	 * expire, or 0 if they never do.
+	 * @param loader Loads the users missing from the cache.
+	 */
+	UserCache(int capacity, long expiry, Loader loader) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be at least 1.");
+		}
+		this.loader = loader;
+		this.expiry = expiry;
+		windowCapacity = Math.max(1, capacity / 100);
+		mainCapacity = capacity - windowCapacity;
+		protectedCapacity = mainCapacity * 4 / 5;
+
+		entries = new ConcurrentHashMap<String, Node>();
+		loading = new ConcurrentHashMap<String, FutureTask<User>>();
+		lock = new ReentrantLock();
+		sketch = new FrequencySketch(capacity);
+		window = new AccessOrder();
+		probation = new AccessOrder();
+		protectedArea = new AccessOrder();
+
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+		expirations = new AtomicLong();
+	}
+
+	/**
+	 * Get a user, loading them if they are not cached. If several threads
+	 * ask for the same missing user at once, they are only loaded once.
+	 *
+	 * @param userName The user name of the user.
+	 * @return The User, or <code>null</code> if no such user is registered.
+	 */
+	public User get(String userName) {
+		long now = System.nanoTime();
+		Node node = entries.get(userName);
+		if (node != null) {
+			if (!isExpired(node, now)) {
+				node.accessed = now;
+				hits.incrementAndGet();
+				recordAccess(node);
+				return node.user;
+			}
+			lock.lock();
+			try {
+				if (node.area != REMOVED && isExpired(node, now)) {
+					remove(node);
+					expirations.incrementAndGet();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		misses.incrementAndGet();
+		return load(userName);
+	}
+
+	/**
+	 * Loads a missing user and adds them to the cache.
+	 */
+	private User load(final String userName) {
+		FutureTask<User> task = new FutureTask<User>(new Callable<User>() {
+			public User call() {
+				// Another thread may have finished loading the user just before.
+				Node node = entries.get(userName);
+				if (node != null) {
+					return node.user;
+				}
+				User user = loader.load(userName);
+				return (user == null) ? null : add(userName, user);
+			}
+		});
+		FutureTask<User> running = loading.putIfAbsent(userName, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				loading.remove(userName, task);
+			}
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return running.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException("Could not load " + userName, e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Adds a freshly loaded user to the window, then evicts whoever no
+	 * longer fits.
+	 *
+	 * @return The cached User, which is an earlier one if the user was
+	 * pinned while being loaded.
+	 */
+	private User add(String userName, User user) {
+		long now = System.nanoTime();
+		lock.lock();
+		try {
+			Node node = entries.get(userName);
+			if (node != null) {
+				return node.user;
+			}
+			node = new Node(userName, user, now);
+			node.area = WINDOW;
+			window.add(node);
+			entries.put(userName, node);
+			sketch.increment(userName);
+			evict();
+			expire(now);
+			return user;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records a hit for eviction, if nobody else holds the lock.
+	 */
+	private void recordAccess(Node node) {
+		if (!lock.tryLock()) {
+			return;
+		}
+		try {
+			sketch.increment(node.userName);
+			switch (node.area) {
+			case WINDOW:
+				window.moveToEnd(node);
+				break;
+			case PROBATION:
+				probation.remove(node);
+				node.area = PROTECTED;
+				protectedArea.add(node);
+				if (protectedArea.size > protectedCapacity) {
+					Node demoted = protectedArea.first;
+					protectedArea.remove(demoted);
+					demoted.area = PROBATION;
+					probation.add(demoted);
+				}
+				break;
+			case PROTECTED:
+				protectedArea.moveToEnd(node);
+				break;
+			default:
+				break;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the users who no longer fit in the window into the main part of
+	 * the cache, if they are asked for more often than the users they would
+	 * replace there. Called while holding the lock.
+	 */
+	private void evict() {
+		while (window.size > windowCapacity) {
+			Node candidate = window.first;
+			if (probation.size + protectedArea.size >= mainCapacity) {
+				Node victim = (probation.first != null) ? probation.first : protectedArea.first;
+				evictions.incrementAndGet();
+				if (victim == null || sketch.frequency(candidate.userName) <= sketch.frequency(victim.userName)) {
+					remove(candidate);
+					continue;
+				}
+				remove(victim);
+			}
+			window.remove(candidate);
+			candidate.area = PROBATION;
+			probation.add(candidate);
+		}
+	}
+
+	/**
+	 * Removes the users who have expired from the least recently used end of
+	 * each part of the cache. Called while holding the lock.
+	 */
+	private void expire(long now) {
+		AccessOrder[] areas = { window, probation, protectedArea };
+		for (AccessOrder area : areas) {
+			while (area.first != null && isExpired(area.first, now)) {
+				remove(area.first);
+				expirations.incrementAndGet();
+			}
+		}
+	}
+
+	private boolean isExpired(Node node, long now) {
+		return expiry > 0 && node.area != PINNED && now - node.accessed > expiry;
+	}
+
+	/**
+	 * Takes an entry out of the cache. Called while holding the lock.
+	 */
+	private void remove(Node node) {
+		if (node.area != REMOVED) {
+			detach(node);
+			node.area = REMOVED;
+			entries.remove(node.userName, node);
+		}
+	}
+
+	/**
+	 * Takes an entry out of its part of the cache, but leaves it in the
+	 * table. Called while holding the lock.
+	 */
+	private void detach(Node node) {
+		switch (node.area) {
+		case WINDOW:
+			window.remove(node);
+			break;
+		case PROBATION:
+			probation.remove(node);
+			break;
+		case PROTECTED:
+			protectedArea.remove(node);
+			break;
+		case PINNED:
+			pinned--;
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Pins a user who has come online, so that they stay cached until they
+	 * are unpinned. If the user has been evicted meanwhile, they are added
+	 * back.
+	 *
+	 * @param user The User.
+	 */
+	public void pin(User user) {
+		lock.lock();
+		try {
+			Node node = entries.get(user.getUserName());
+			if (node == null) {
+				node = new Node(user.getUserName(), user, System.nanoTime());
+				entries.put(user.getUserName(), node);
+			} else if (node.area == PINNED) {
+				return;
+			} else {
+				detach(node);
+				node.user = user;
+			}
+			node.area = PINNED;
+			pinned++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Unpins a user who has gone offline. They stay cached like any user
+	 * who has just been used, until they are evicted or expire.
+	 *
+	 * @param user The User.
+	 */
+	public void unpin(User user) {
+		lock.lock();
+		try {
+			Node node = entries.get(user.getUserName());
+			if (node == null || node.area != PINNED) {
+				return;
+			}
+			pinned--;
+			node.accessed = System.nanoTime();
+			node.area = WINDOW;
+			window.add(node);
+			evict();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of users cached, online or not.
+	 *
+	 * @return The number of cached users.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of users pinned because they are online.
+	 *
+	 * @return The number of pinned users.
+	 */
+	public int getPinned() {
+		lock.lock();
+		try {
+			return pinned;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of lookups which found the user cached.
+	 *
+	 * @return The number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups which had to load the user, including those
+	 * of users who turned out not to be registered.
+	 *
+	 * @return The number of misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of users evicted to make room for others.
+	 *
+	 * @return The number of evictions.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Get the number of users removed because they went unused too long.
+	 *
+	 * @return The number of expirations.
+	 */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+}
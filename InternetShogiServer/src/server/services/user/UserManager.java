@@ -1,77 +1,146 @@
-package server.services.user;
-
-import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
-
-import server.services.GlobalService;
-import server.services.InvalidServiceConfigurationException;
-import server.services.ServiceManager;
-
-/**
- * This GlobalService is one of the core services of the server. It maintains
- * a table of all registered users, both those who are currently logged in, and
- * those who are not. It is able to retrieve and update their information, register
- * new users, and remove old ones.
- * 
- * @author Adrian Petrescu
- *
- */
-public class UserManager implements GlobalService {
-	
-	private ConcurrentHashMap<String, User> userTable;
-	
-	public static final String SERVICE_NAME = "UserManager";
-	
-	
-	public String getIdentifier() {
-		return SERVICE_NAME;
-	}
-	
-	/**
-	 * Called when information about Users becomes relevant (i.e, after the database
-	 * is up). It constructs a table of every user registered with the server.
-	 * 
-	 * @param properties A Properties structure containing configuration data for the
-	 * UserManager.
-	 * <br>
-	 * <b>Required configuration options:</b>
-	 * <br>
-	 * user_table (the table containing the user records).
-	 */
-	public void initialize(Properties properties) throws InvalidServiceConfigurationException {
-		userTable = new ConcurrentHashMap<String, User>();
-		
-		// Load up every user from the database.
-		String[] userNames = ServiceManager.getDatabaseManager().getRegisteredUsers();
-		for (String userName : userNames) {
-			User user = new User(userName);
-			userTable.put(userName, user);
-		}
-	}
-	
-	/**
-	 * Called when the server is shutting down. The connection to the database is closed
-	 * and any further requests for data will be met with refusal.
-	 */
-	public void shutdown() {
-		
-	}
-	
-	/**
-	 * Get information about a User registered with the system.
-	 * 
-	 * @param userName The user name of the desired User.
-	 * @return A registered User corresponding to the given name.
-	 * @throws NoSuchUserException Thrown if no User with the given name has registered
-	 * with the server.
-	 */
-	public User getUser(String userName) throws NoSuchUserException {
-		User user = userTable.get(userName);
-		if (user == null) {
-			throw new NoSuchUserException(userName);
-		} else {
-			return user;
-		}
-	}
-
-}
+package server.services.user;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import server.services.GlobalService;
+import server.services.InvalidServiceConfigurationException;
+import server.services.ServiceManager;
+import server.services.database.DatabaseManager;
+
+/**
+ * This GlobalService is one of the core services of the server. It keeps
+ * track of registered users, both those who are currently logged in, and
+ * those who are not. It is able to retrieve and update their information, register
+ * new users, and remove old ones.
+ * 
+ * Users are loaded from the database the first time they are asked for, and
+ * kept in a UserCache. Users who are logged in stay cached until they log out;
+ * of the rest, only as many as the cache holds are kept.
+ * 
+ * @author Adrian Petrescu
+ *
+ */
+public class UserManager implements GlobalService {
+	
+	private UserCache userCache;
+	
+	public static final String SERVICE_NAME = "UserManager";
+	private static final String[] dependencies = { DatabaseManager.SERVICE_NAME };
+	
+	
+	public String getIdentifier() {
+		return SERVICE_NAME;
+	}
+
+	public String[] getDependencies() {
+		return dependencies;
+	}
+	
+	/**
+	 * Called when information about Users becomes relevant (i.e, after the database
+	 * is up). It sets up the cache users are loaded into as they are needed.
+	 * 
+	 * @param properties A Properties structure containing configuration data for the
+	 * UserManager.
+	 * <br>
+	 * <b>Required configuration options:</b>
+	 * <br>
+	 * user_table (the table containing the user records).
+	 * <br>
+	 * <b>Optional configuration options:</b>
+	 * <br>
+	 * cache_capacity (the most offline users to keep cached; defaults to
+	 * <code>UserCache.DEFAULT_CAPACITY</code>).
+	 * <br>
+	 * cache_expiry (how many seconds a user may go unused before being
+	 * loaded again; 0 never expires them. Defaults to
+	 * <code>UserCache.DEFAULT_EXPIRY</code>).
+	 */
+	public void initialize(Properties properties) throws InvalidServiceConfigurationException {
+		int capacity = getIntProperty(properties, "cache_capacity", UserCache.DEFAULT_CAPACITY, 1);
+		int expiry = getIntProperty(properties, "cache_expiry", UserCache.DEFAULT_EXPIRY, 0);
+		final DatabaseManager databaseManager = ServiceManager.getDatabaseManager();
+		userCache = new UserCache(capacity, TimeUnit.SECONDS.toNanos(expiry), new UserCache.Loader() {
+			public User load(String userName) {
+				UserInformation info = databaseManager.getUserInfo(userName);
+				return (info == null) ? null : new User(userName, info);
+			}
+		});
+	}
+	
+	/**
+	 * Reads a numeric setting with the given minimum from the configuration.
+	 * 
+	 * @throws InvalidServiceConfigurationException Thrown if the setting is
+	 * not a number, or is below the minimum.
+	 */
+	private static int getIntProperty(Properties properties, String key, int defaultValue, int minimum)
+			throws InvalidServiceConfigurationException {
+		int value;
+		try {
+			value = Integer.parseInt(properties.getProperty(key, String.valueOf(defaultValue)).trim());
+		} catch (NumberFormatException e) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, key);
+		}
+		if (value < minimum) {
+			throw new InvalidServiceConfigurationException(SERVICE_NAME, properties, key,
+					"The value must be at least " + minimum + ".");
+		}
+		return value;
+	}
+	
+	/**
+	 * Called when the server is shutting down. The connection to the database is closed
+	 * and any further requests for data will be met with refusal.
+	 */
+	public void shutdown() {
+		
+	}
+	
+	/**
+	 * Get information about a User registered with the system. If the User
+	 * is not cached, they are loaded from the database.
+	 * 
+	 * @param userName The user name of the desired User.
+	 * @return A registered User corresponding to the given name.
+	 * @throws NoSuchUserException Thrown if no User with the given name has registered
+	 * with the server.
+	 */
+	public User getUser(String userName) throws NoSuchUserException {
+		User user = userCache.get(userName);
+		if (user == null) {
+			throw new NoSuchUserException(userName);
+		} else {
+			return user;
+		}
+	}
+	
+	/**
+	 * Keeps a User who has logged in cached until they log out.
+	 * 
+	 * @param user The User who has logged in.
+	 */
+	public void pinUser(User user) {
+		userCache.pin(user);
+	}
+	
+	/**
+	 * Lets a User who has logged out be evicted from the cache again.
+	 * 
+	 * @param user The User who has logged out.
+	 */
+	public void unpinUser(User user) {
+		userCache.unpin(user);
+	}
+	
+	/**
+	 * Get the cache of Users, for its hit, miss and eviction counts.
+	 * 
+	 * @return The UserCache.
+	 */
+	public UserCache getUserCache() {
+		return userCache;
+	}
+
+}
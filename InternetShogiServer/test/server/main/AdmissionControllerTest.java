@@ -0,0 +1,94 @@
+package server.main;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import server.services.protocol.InputMessageQueue;
+
+public class AdmissionControllerTest {
+
+	private static InputMessageQueue input(int priority, long enqueuedAt) {
+		InputMessageQueue message = new InputMessageQueue(priority);
+		message.setEnqueuedAt(enqueuedAt);
+		return message;
+	}
+
+	@Test
+	public void testDepth() {
+		AdmissionController admission = new AdmissionController(new int[] { 2, 3 }, new long[] { 0, 0 });
+		InputMessageQueue first = input(1, 0);
+		assertTrue(admission.admit(first));
+		assertTrue(admission.admit(input(0, 0)));
+		assertEquals(2, admission.getDepth());
+
+		// Low priority input is shed first, and high priority input never is.
+		assertFalse(admission.admit(input(0, 0)));
+		assertTrue(admission.admit(input(1, 0)));
+		assertFalse(admission.admit(input(1, 0)));
+		assertTrue(admission.admit(input(2, 0)));
+		assertEquals(1, admission.getShedByDepth(0));
+		assertEquals(1, admission.getShedByDepth(1));
+		assertEquals(0, admission.getShed(2));
+		assertEquals(2, admission.getAdmitted(1));
+
+		admission.started(first, 0);
+		admission.started(input(1, 0), 0);
+		assertEquals(2, admission.getDepth());
+		assertTrue(admission.admit(input(1, 0)));
+	}
+
+	@Test
+	public void testAge() {
+		AdmissionController admission = new AdmissionController(new int[] { 0, 0 }, new long[] { 10, 0 });
+		InputMessageQueue slow = input(0, 0);
+		assertTrue(admission.admit(slow));
+		assertTrue(admission.admit(input(0, 0)));
+		admission.started(slow, 50000000L);
+		assertEquals(50000000L, admission.getAge(0));
+
+		// Shed while low priority input is still waiting behind the slow one.
+		assertFalse(admission.admit(input(0, 0)));
+		assertEquals(1, admission.getShedByAge(0));
+		assertTrue(admission.admit(input(1, 0)));
+
+		// Once nothing of that priority is waiting any more, it is let in again.
+		admission.started(input(0, 0), 50000000L);
+		assertTrue(admission.admit(input(0, 0)));
+	}
+
+	@Test
+	public void testEnqueueIsNeverShed() {
+		AdmissionController admission = new AdmissionController(new int[] { 1, 1 }, new long[] { 0, 0 });
+		GlobalInputMessageQueue queue = new GlobalInputMessageQueue(16, WaitStrategy.YIELD, new PriorityScheduler(), admission);
+		assertTrue(queue.offer(input(0, 0)));
+		assertFalse(queue.offer(input(0, 0)));
+		queue.enqueue(input(0, 0));
+		assertEquals(2, queue.getSize());
+		assertEquals(2, admission.getDepth());
+		assertEquals(1, admission.getShed(0));
+	}
+
+	@Test
+	public void testFullLevelIsShed() {
+		AdmissionController admission = new AdmissionController(new int[] { 0, 0 }, new long[] { 0, 0 });
+		GlobalInputMessageQueue queue = new GlobalInputMessageQueue(2, WaitStrategy.YIELD, new PriorityScheduler(), admission);
+		assertTrue(queue.offer(input(2, 0)));
+		assertTrue(queue.offer(input(2, 0)));
+
+		// Even high priority input is turned away at once, rather than waiting for room.
+		assertFalse(queue.offer(input(2, 0)));
+		assertEquals(1, admission.getShedByCapacity(2));
+		assertEquals(1, admission.getShed(2));
+		assertEquals(2, admission.getAdmitted(2));
+		assertEquals(2, admission.getDepth());
+		assertEquals(2, queue.getSize());
+
+		// Other levels still have room.
+		assertTrue(queue.offer(input(0, 0)));
+		assertNotNull(queue.dequeue());
+		assertTrue(queue.offer(input(2, 0)));
+		assertEquals(1, admission.getShed(2));
+	}
+
+}
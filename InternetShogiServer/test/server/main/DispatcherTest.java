@@ -0,0 +1,126 @@
+package server.main;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.ProtocolManager;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.User;
+import server.services.user.UserInformation;
+
+public class DispatcherTest {
+
+	private static final int USERS = 16;
+	private static final int QUEUES = 500;
+	private static final int MESSAGES = 3;
+
+	private static class TestUser extends User {
+		TestUser(String userName) {
+			super(userName, new UserInformation(userName));
+		}
+	}
+
+	/**
+	 * Records the order each User's messages are parsed in, instead of
+	 * parsing them, and whether two of them were ever parsed at once.
+	 */
+	private static class RecordingProtocolManager extends ProtocolManager {
+		private Map<User, List<Integer>> parsed = new ConcurrentHashMap<User, List<Integer>>();
+		private Map<User, AtomicBoolean> busy = new ConcurrentHashMap<User, AtomicBoolean>();
+		private Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+		private volatile boolean overlapped;
+
+		RecordingProtocolManager(List<User> users) {
+			for (User user : users) {
+				parsed.put(user, Collections.synchronizedList(new ArrayList<Integer>()));
+				busy.put(user, new AtomicBoolean());
+			}
+		}
+
+		@Override
+		public void parseMessages(InputMessageQueue messages) {
+			threads.add(Thread.currentThread());
+			User user = messages.peek().getUser();
+			AtomicBoolean parsing = busy.get(user);
+			if (!parsing.compareAndSet(false, true)) {
+				overlapped = true;
+			}
+			Thread.yield();
+			while (!messages.isEmpty()) {
+				parsed.get(user).add(Integer.valueOf(messages.dequeue().getPayload()));
+			}
+			parsing.set(false);
+		}
+	}
+
+	@Test
+	public void testEachUserIsParsedInOrder() throws InterruptedException {
+		final List<User> users = new ArrayList<User>();
+		for (int i = 0; i < USERS; i++) {
+			users.add(new TestUser("user" + i));
+		}
+		RecordingProtocolManager protocolManager = new RecordingProtocolManager(users);
+		final Dispatcher dispatcher = new Dispatcher(protocolManager, 4);
+		dispatcher.start();
+
+		// Every User's input arrives on a thread of its own, as it would from its connection.
+		Thread[] senders = new Thread[USERS];
+		for (int i = 0; i < USERS; i++) {
+			final User user = users.get(i);
+			senders[i] = new Thread(new Runnable() {
+				public void run() {
+					int sequence = 0;
+					for (int q = 0; q < QUEUES; q++) {
+						InputMessageQueue messages = new InputMessageQueue();
+						for (int m = 0; m < MESSAGES; m++) {
+							messages.enqueue(new ProtocolMessage(user, "test " + sequence++));
+						}
+						dispatcher.dispatch(messages);
+					}
+				}
+			});
+			senders[i].start();
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (processed(dispatcher) < USERS * QUEUES && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		dispatcher.shutdown();
+		assertEquals(USERS * QUEUES, processed(dispatcher));
+
+		for (User user : users) {
+			List<Integer> parsed = protocolManager.parsed.get(user);
+			assertEquals(QUEUES * MESSAGES, parsed.size());
+			for (int i = 0; i < parsed.size(); i++) {
+				assertEquals(i, parsed.get(i).intValue());
+			}
+		}
+		assertFalse(protocolManager.overlapped);
+		assertTrue(protocolManager.threads.size() > 1);
+		for (int lane = 0; lane < dispatcher.getWorkers(); lane++) {
+			assertEquals(0, dispatcher.getBacklog(lane));
+		}
+	}
+
+	private static long processed(Dispatcher dispatcher) {
+		long processed = 0;
+		for (int lane = 0; lane < dispatcher.getWorkers(); lane++) {
+			processed += dispatcher.getProcessed(lane);
+		}
+		return processed;
+	}
+
+}
@@ -0,0 +1,103 @@
+package server.main;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class MpscRingBufferTest {
+
+	@Test
+	public void testCapacity() {
+		assertEquals(2, new MpscRingBuffer<String>(1).getCapacity());
+		assertEquals(8, new MpscRingBuffer<String>(8).getCapacity());
+		assertEquals(16, new MpscRingBuffer<String>(9).getCapacity());
+	}
+
+	@Test
+	public void testOfferAndPoll() {
+		MpscRingBuffer<String> buffer = new MpscRingBuffer<String>(4);
+		assertTrue(buffer.isEmpty());
+		assertNull(buffer.poll());
+
+		assertTrue(buffer.offer("a"));
+		assertTrue(buffer.offer("b"));
+		assertEquals(2, buffer.size());
+		assertFalse(buffer.isEmpty());
+
+		assertEquals("a", buffer.poll());
+		assertEquals("b", buffer.poll());
+		assertNull(buffer.poll());
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void testFullAndWrapAround() {
+		MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(4);
+		for (int lap = 0; lap < 3; lap++) {
+			for (int i = 0; i < 4; i++) {
+				assertTrue(buffer.offer(lap * 4 + i));
+			}
+			assertFalse(buffer.offer(-1));
+			assertEquals(4, buffer.size());
+			for (int i = 0; i < 4; i++) {
+				assertEquals(Integer.valueOf(lap * 4 + i), buffer.poll());
+			}
+		}
+	}
+
+	@Test
+	public void testDrainTo() {
+		MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(8);
+		for (int i = 0; i < 5; i++) {
+			buffer.offer(i);
+		}
+		ArrayList<Integer> sink = new ArrayList<Integer>();
+		assertEquals(3, buffer.drainTo(sink, 3));
+		assertEquals(2, buffer.drainTo(sink, 3));
+		assertEquals(0, buffer.drainTo(sink, 3));
+		for (int i = 0; i < 5; i++) {
+			assertEquals(Integer.valueOf(i), sink.get(i));
+		}
+	}
+
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 100000;
+		final MpscRingBuffer<int[]> buffer = new MpscRingBuffer<int[]>(1024);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						while (!buffer.offer(new int[] { producer, i })) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			threads[p].start();
+		}
+
+		// Every producer's elements must come out in the order it added them.
+		int[] next = new int[producers];
+		int received = 0;
+		while (received < producers * perProducer) {
+			int[] element = buffer.poll();
+			if (element == null) {
+				Thread.yield();
+				continue;
+			}
+			assertEquals(next[element[0]]++, element[1]);
+			received++;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(buffer.isEmpty());
+	}
+
+}
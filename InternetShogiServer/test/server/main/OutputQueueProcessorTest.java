@@ -0,0 +1,79 @@
+package server.main;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import server.services.connection.ClientConnection;
+import server.services.connection.ConnectionManager;
+import server.services.connection.OutboundPolicy;
+import server.services.connection.OutboundQueue;
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.User;
+import server.services.user.UserInformation;
+
+public class OutputQueueProcessorTest {
+
+	private static class TestUser extends User {
+		TestUser(String userName) {
+			super(userName, new UserInformation(userName));
+		}
+	}
+
+	/**
+	 * A connection without threads; its output stays on its OutboundQueue.
+	 */
+	private static class TestConnection extends ClientConnection {
+		TestConnection(User user) {
+			super(user, new OutboundQueue(new OutboundPolicy()));
+		}
+	}
+
+	/**
+	 * Knows only the connections it was given.
+	 */
+	private static class TestConnectionManager extends ConnectionManager {
+		private Map<User, ClientConnection> connections = new HashMap<User, ClientConnection>();
+
+		@Override
+		public ClientConnection getUserConnection(User user) {
+			return connections.get(user);
+		}
+	}
+
+	@Test
+	public void testOfflineRecipientDoesNotCancelTheRest() {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		User alice = new TestUser("alice");
+		User gone = new TestUser("gone");
+		User bob = new TestUser("bob");
+		TestConnection aliceConnection = new TestConnection(alice);
+		TestConnection bobConnection = new TestConnection(bob);
+		connectionManager.connections.put(alice, aliceConnection);
+		connectionManager.connections.put(bob, bobConnection);
+
+		// A broadcast to two rooms, with a recipient who has already left in between.
+		OutputMessageQueue output = new OutputMessageQueue();
+		output.enqueue(new ProtocolMessage(alice, "room leave lobby carol"));
+		output.enqueue(new ProtocolMessage(gone, "room leave lobby carol"));
+		output.enqueue(new ProtocolMessage(bob, "room leave lobby carol"));
+		output.enqueue(new ProtocolMessage(gone, "room leave game carol"));
+		output.enqueue(new ProtocolMessage(alice, "room leave game carol"));
+
+		new OutputQueueProcessor(connectionManager, null).send(output);
+
+		OutboundQueue aliceQueue = aliceConnection.getOutboundQueue();
+		assertEquals("room leave lobby carol", aliceQueue.poll().getMessage());
+		assertEquals("room leave game carol", aliceQueue.poll().getMessage());
+		assertNull(aliceQueue.poll());
+		OutboundQueue bobQueue = bobConnection.getOutboundQueue();
+		assertEquals("room leave lobby carol", bobQueue.poll().getMessage());
+		assertNull(bobQueue.poll());
+		assertTrue(output.isEmpty());
+	}
+
+}
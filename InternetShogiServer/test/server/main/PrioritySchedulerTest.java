@@ -0,0 +1,59 @@
+package server.main;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.MessageQueue;
+
+public class PrioritySchedulerTest {
+
+	private static MessageQueue queued(long enqueuedAt) {
+		MessageQueue message = new InputMessageQueue();
+		message.setEnqueuedAt(enqueuedAt);
+		return message;
+	}
+
+	@Test
+	public void testEmpty() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+		assertEquals(-1, scheduler.next(new MessageQueue[3], 0));
+	}
+
+	@Test
+	public void testWeights() {
+		PriorityScheduler scheduler = new PriorityScheduler(new int[] { 1, 2, 4 }, 1000);
+		MessageQueue[] heads = { queued(0), queued(0), queued(0) };
+		int[] served = new int[3];
+		for (int i = 0; i < 70; i++) {
+			served[scheduler.next(heads, 0)]++;
+		}
+		assertEquals(10, served[0]);
+		assertEquals(20, served[1]);
+		assertEquals(40, served[2]);
+	}
+
+	@Test
+	public void testIdleLevelsSkipped() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+		MessageQueue[] heads = { queued(0), null, null };
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, scheduler.next(heads, 0));
+		}
+	}
+
+	@Test
+	public void testAging() {
+		PriorityScheduler scheduler = new PriorityScheduler(new int[] { 1, 1, 100 }, 5);
+		long now = 100 * 1000000L;
+		MessageQueue[] heads = { queued(now - 6 * 1000000L), queued(now - 8 * 1000000L), queued(now) };
+		// The medium priority message has waited longest past the limit.
+		assertEquals(1, scheduler.next(heads, now));
+		heads[1] = queued(now);
+		assertEquals(0, scheduler.next(heads, now));
+		heads[0] = queued(now);
+		assertEquals(2, scheduler.next(heads, now));
+	}
+
+}
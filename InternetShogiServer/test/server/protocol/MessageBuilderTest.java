@@ -0,0 +1,65 @@
+package server.protocol;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import server.services.protocol.MessageBuilder;
+import server.services.protocol.ProtocolMessage;
+
+public class MessageBuilderTest {
+
+	@Test
+	public void testAppendMatchesProtocolMessage() {
+		String[] appends = { "bar", "", "   ", "  foo   bar   ", "a\tb\nc", " x ", "b a         z" };
+		ProtocolMessage message = new ProtocolMessage("ayt");
+		MessageBuilder builder = new MessageBuilder("ayt");
+		for (String tokens : appends) {
+			message.append(tokens);
+			builder.append(tokens);
+			assertEquals(message.getMessage(), builder.toString());
+		}
+		assertEquals(message.getMessage(), builder.build().getMessage());
+	}
+
+	@Test
+	public void testProtocolMessageAppend() {
+		ProtocolMessage message = new ProtocolMessage();
+		assertEquals(" foo", message.append("foo"));
+		assertEquals(" foo bar baz", message.append(" bar \t baz "));
+		assertEquals(" foo bar baz", message.append(" \t "));
+	}
+
+	@Test
+	public void testBuildAndReuse() {
+		MessageBuilder builder = MessageBuilder.forThread("room");
+		ProtocolMessage first = builder.append("tell").append("lobby").append(42).build();
+		assertEquals("room tell lobby 42", first.getMessage());
+		assertEquals(0, builder.length());
+		assertNull(first.getUser());
+
+		ProtocolMessage second = MessageBuilder.forThread("motd").append("done").build();
+		assertEquals("motd done", second.getMessage());
+		assertEquals("room tell lobby 42", first.getMessage());
+	}
+
+	@Test
+	public void testEncoded() {
+		String separator = System.getProperty("line.separator");
+		ProtocolMessage ascii = new MessageBuilder("tell").append("bob hi").build();
+		assertEquals("tell bob hi" + separator, new String(ascii.getEncoded()));
+		ProtocolMessage accented = new MessageBuilder("tell").append("bob h\u00e9").build();
+		assertTrue(Arrays.equals(("tell bob h\u00e9" + separator).getBytes(), accented.getEncoded()));
+	}
+
+	@Test
+	public void testTokens() {
+		ProtocolMessage message = new MessageBuilder("room").append("info").append("lobby").build();
+		assertEquals("room", message.getProtocolKey());
+		assertEquals("info lobby", message.getPayload());
+		assertTrue(message.tokenEquals(2, "lobby"));
+	}
+
+}
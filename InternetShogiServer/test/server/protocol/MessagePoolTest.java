@@ -0,0 +1,123 @@
+package server.protocol;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.MessageBuilder;
+import server.services.protocol.MessagePool;
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMap;
+import server.services.protocol.ProtocolMessage;
+import server.services.protocol.modules.AreYouThere;
+
+public class MessagePoolTest {
+
+	@Test
+	public void testDisabled() {
+		MessagePool.configure(false, false, 16);
+		ProtocolMessage message = MessagePool.acquireMessage(null, " ayt ");
+		assertEquals("ayt", message.getMessage());
+		MessagePool.release(message);
+		assertNotSame(message, MessagePool.acquireMessage(null, "ayt"));
+	}
+
+	@Test
+	public void testReuse() {
+		MessagePool.configure(true, false, 16);
+		try {
+			ProtocolMessage message = MessagePool.acquireMessage(null, "room join lobby");
+			message.setUrgent(true);
+			assertEquals("room", message.getProtocolKey());
+			MessagePool.release(message);
+
+			ProtocolMessage reused = MessagePool.acquireMessage(null, "tell bob hi");
+			assertSame(message, reused);
+			assertEquals("tell", reused.getProtocolKey());
+			assertEquals("bob hi", reused.getPayload());
+			assertFalse(reused.isUrgent());
+
+			OutputMessageQueue queue = MessagePool.acquireOutputQueue(2);
+			queue.enqueue(reused);
+			MessagePool.release(queue);
+			OutputMessageQueue reusedQueue = MessagePool.acquireOutputQueue();
+			assertSame(queue, reusedQueue);
+			assertTrue(reusedQueue.isEmpty());
+			assertEquals(1, reusedQueue.getPriority());
+		} finally {
+			MessagePool.configure(false, false, 0);
+		}
+	}
+
+	@Test
+	public void testDoubleRelease() {
+		MessagePool.configure(true, false, 16);
+		try {
+			long before = MessagePool.getDoubleReleases();
+			ProtocolMessage message = MessagePool.acquireMessage(null, "ayt");
+			MessagePool.release(message);
+			MessagePool.release(message);
+			assertEquals(before + 1, MessagePool.getDoubleReleases());
+
+			// The message was only pooled once.
+			assertSame(message, MessagePool.acquireMessage(null, "ayt"));
+			assertNotSame(message, MessagePool.acquireMessage(null, "ayt"));
+		} finally {
+			MessagePool.configure(false, false, 0);
+		}
+	}
+
+	@Test
+	public void testLeakReport() {
+		MessagePool.configure(true, true, 16);
+		try {
+			ProtocolMessage released = MessagePool.acquireMessage(null, "ayt");
+			ProtocolMessage kept = new MessageBuilder("motd").append("done").build();
+			MessagePool.acquireMessage(null, "leaked");
+			MessagePool.release(released);
+			MessagePool.keep(kept);
+			assertEquals(1, MessagePool.getOutstanding());
+
+			ByteArrayOutputStream report = new ByteArrayOutputStream();
+			assertEquals(1, MessagePool.reportLeaks(0, new PrintStream(report, true)));
+			assertTrue(report.toString().contains("testLeakReport"));
+			assertEquals(0, MessagePool.reportLeaks(60000, new PrintStream(report, true)));
+		} finally {
+			MessagePool.configure(false, false, 0);
+		}
+		assertEquals(0, MessagePool.getOutstanding());
+	}
+
+	@Test
+	public void testProtocolMapReleasesInput() throws Throwable {
+		MessagePool.configure(true, true, 16);
+		try {
+			long doubleReleases = MessagePool.getDoubleReleases();
+			ProtocolMap map = new ProtocolMap();
+			map.loadProtocolModule(new AreYouThere(), new Properties());
+			ProtocolMessage input = MessagePool.acquireMessage(null, "ayt");
+			InputMessageQueue queue = MessagePool.acquireInputQueue(input, 2);
+			OutputMessageQueue output = map.parseMessages(queue);
+
+			assertEquals(2, output.getPriority());
+			ProtocolMessage reply = output.dequeue();
+			assertEquals("yes", reply.getMessage());
+			assertNull(output.dequeue());
+
+			// Only the reply and its queue are still out.
+			assertEquals(2, MessagePool.getOutstanding());
+			MessagePool.release(reply);
+			MessagePool.release(output);
+			assertEquals(0, MessagePool.getOutstanding());
+			assertEquals(doubleReleases, MessagePool.getDoubleReleases());
+		} finally {
+			MessagePool.configure(false, false, 0);
+		}
+	}
+
+}
@@ -1,97 +1,160 @@
-package server.protocol;
-
-import static org.junit.Assert.*;
-
-import org.junit.Test;
-
-import server.services.protocol.OutputMessageQueue;
-import server.services.protocol.ProtocolMessage;
-
-public class OutputMessageQueueTest {
-	
-	@Test
-	public void testIsEmpty() {
-		OutputMessageQueue emptyQueue = new OutputMessageQueue();
-		assertTrue(emptyQueue.isEmpty());
-		emptyQueue.enqueue(new ProtocolMessage("foo"));
-		assertFalse(emptyQueue.isEmpty());
-		assertFalse(new OutputMessageQueue(new ProtocolMessage("ayt")).isEmpty());
-	}
-
-	@Test
-	public void testGetSize() {
-		OutputMessageQueue testQueue = new OutputMessageQueue();
-		assertEquals(0, testQueue.getSize());
-		for (int i = 1; i <= 10; i++) {
-			testQueue.enqueue(new ProtocolMessage("foo"));
-			assertEquals(i, testQueue.getSize());
-		}
-		
-		for (int i = 9; i >= 0; i--) {
-			testQueue.dequeue();
-			assertEquals(i, testQueue.getSize());
-		}
-	}
-
-	@Test
-	public void testEnqueue() {
-		OutputMessageQueue testQueue = new OutputMessageQueue();
-		testQueue.enqueue(new ProtocolMessage("1"));
-		assertEquals(1, testQueue.getSize());
-		for (int i = 2; i <= 10; i++) {
-			testQueue.enqueue(new ProtocolMessage(String.valueOf(i)));
-			assertEquals(i, testQueue.getSize());
-		}
-	
-		for (int i = 9; i >= 0; i--) {
-			assertEquals(String.valueOf(10-i), testQueue.dequeue().getMessage());
-			assertEquals(i, testQueue.getSize());
-		}
-		
-		testQueue.enqueue(new ProtocolMessage("foo"));
-		testQueue.enqueue(new ProtocolMessage("bar"));
-		testQueue.dequeue();
-		testQueue.enqueue(new ProtocolMessage("foo"));
-		assertEquals("bar", testQueue.dequeue().getMessage());
-		assertEquals("foo", testQueue.dequeue().getMessage());
-	}
-	
-	@Test
-	public void testDequeue() {
-		OutputMessageQueue testQueue = new OutputMessageQueue();
-		testQueue.enqueue(new ProtocolMessage("1"));
-		assertEquals(1, testQueue.getSize());
-		for (int i = 2; i <= 10; i++) {
-			testQueue.enqueue(new ProtocolMessage(String.valueOf(i)));
-			assertEquals(i, testQueue.getSize());
-		}
-	
-		for (int i = 9; i >= 0; i--) {
-			assertEquals(String.valueOf(10-i), testQueue.dequeue().getMessage());
-			assertEquals(i, testQueue.getSize());
-		}
-		
-		testQueue.enqueue(new ProtocolMessage("foo"));
-		testQueue.enqueue(new ProtocolMessage("bar"));
-		testQueue.dequeue();
-		testQueue.enqueue(new ProtocolMessage("foo"));
-		assertEquals("bar", testQueue.dequeue().getMessage());
-		assertEquals("foo", testQueue.dequeue().getMessage());
-	}
-
-	@Test
-	public void testPriority() {
-		OutputMessageQueue testQueueNoPriority = new OutputMessageQueue();
-		assertEquals(1, testQueueNoPriority.getPriority());
-		
-		OutputMessageQueue testQueue = new OutputMessageQueue(OutputMessageQueue.MAX_PRIORITY + 1);
-		assertEquals(OutputMessageQueue.MAX_PRIORITY, testQueue.getPriority());
-		testQueue.setPriority(-10);
-		assertEquals(0, testQueue.getPriority());
-		for (int i = 0; i <= OutputMessageQueue.MAX_PRIORITY; i++) {
-			testQueue.setPriority(i);
-			assertEquals(i, testQueue.getPriority());
-		}
-	}
-
-}
+package server.protocol;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.User;
+
+public class OutputMessageQueueTest {
+	
+	@Test
+	public void testIsEmpty() {
+		OutputMessageQueue emptyQueue = new OutputMessageQueue();
+		assertTrue(emptyQueue.isEmpty());
+		emptyQueue.enqueue(new ProtocolMessage("foo"));
+		assertFalse(emptyQueue.isEmpty());
+		assertFalse(new OutputMessageQueue(new ProtocolMessage("ayt")).isEmpty());
+	}
+
+	@Test
+	public void testGetSize() {
+		OutputMessageQueue testQueue = new OutputMessageQueue();
+		assertEquals(0, testQueue.getSize());
+		for (int i = 1; i <= 10; i++) {
+			testQueue.enqueue(new ProtocolMessage("foo"));
+			assertEquals(i, testQueue.getSize());
+		}
+		
+		for (int i = 9; i >= 0; i--) {
+			testQueue.dequeue();
+			assertEquals(i, testQueue.getSize());
+		}
+	}
+
+	@Test
+	public void testEnqueue() {
+		OutputMessageQueue testQueue = new OutputMessageQueue();
+		testQueue.enqueue(new ProtocolMessage("1"));
+		assertEquals(1, testQueue.getSize());
+		for (int i = 2; i <= 10; i++) {
+			testQueue.enqueue(new ProtocolMessage(String.valueOf(i)));
+			assertEquals(i, testQueue.getSize());
+		}
+	
+		for (int i = 9; i >= 0; i--) {
+			assertEquals(String.valueOf(10-i), testQueue.dequeue().getMessage());
+			assertEquals(i, testQueue.getSize());
+		}
+		
+		testQueue.enqueue(new ProtocolMessage("foo"));
+		testQueue.enqueue(new ProtocolMessage("bar"));
+		testQueue.dequeue();
+		testQueue.enqueue(new ProtocolMessage("foo"));
+		assertEquals("bar", testQueue.dequeue().getMessage());
+		assertEquals("foo", testQueue.dequeue().getMessage());
+	}
+	
+	@Test
+	public void testDequeue() {
+		OutputMessageQueue testQueue = new OutputMessageQueue();
+		testQueue.enqueue(new ProtocolMessage("1"));
+		assertEquals(1, testQueue.getSize());
+		for (int i = 2; i <= 10; i++) {
+			testQueue.enqueue(new ProtocolMessage(String.valueOf(i)));
+			assertEquals(i, testQueue.getSize());
+		}
+	
+		for (int i = 9; i >= 0; i--) {
+			assertEquals(String.valueOf(10-i), testQueue.dequeue().getMessage());
+			assertEquals(i, testQueue.getSize());
+		}
+		
+		testQueue.enqueue(new ProtocolMessage("foo"));
+		testQueue.enqueue(new ProtocolMessage("bar"));
+		testQueue.dequeue();
+		testQueue.enqueue(new ProtocolMessage("foo"));
+		assertEquals("bar", testQueue.dequeue().getMessage());
+		assertEquals("foo", testQueue.dequeue().getMessage());
+	}
+
+	@Test
+	public void testPriority() {
+		OutputMessageQueue testQueueNoPriority = new OutputMessageQueue();
+		assertEquals(1, testQueueNoPriority.getPriority());
+		
+		OutputMessageQueue testQueue = new OutputMessageQueue(OutputMessageQueue.MAX_PRIORITY + 1);
+		assertEquals(OutputMessageQueue.MAX_PRIORITY, testQueue.getPriority());
+		testQueue.setPriority(-10);
+		assertEquals(0, testQueue.getPriority());
+		for (int i = 0; i <= OutputMessageQueue.MAX_PRIORITY; i++) {
+			testQueue.setPriority(i);
+			assertEquals(i, testQueue.getPriority());
+		}
+	}
+
+	@Test
+	public void testBroadcast() {
+		OutputMessageQueue testQueue = new OutputMessageQueue();
+		testQueue.enqueue(new ProtocolMessage("first"));
+		ProtocolMessage message = new ProtocolMessage("room tell lobby amy hi");
+		testQueue.broadcast(message, new User[3]);
+		assertEquals(4, testQueue.getSize());
+		assertEquals("first", testQueue.dequeue().getMessage());
+		while (!testQueue.isEmpty()) {
+			ProtocolMessage copy = testQueue.dequeue();
+			assertEquals(message.getMessage(), copy.getMessage());
+			assertSame(message.getEncoded(), copy.getEncoded());
+		}
+	}
+
+	@Test
+	public void testAppend() {
+		// Short queues are copied over, long ones are linked on.
+		for (int length : new int[] { 0, 1, 5, 31, 32, 100, 3000 }) {
+			OutputMessageQueue testQueue = new OutputMessageQueue(0);
+			for (int i = 0; i < 3; i++) {
+				testQueue.enqueue(new ProtocolMessage(String.valueOf(i)));
+			}
+			testQueue.dequeue();
+			OutputMessageQueue appended = new OutputMessageQueue(2);
+			for (int i = 3; i < 3 + length; i++) {
+				appended.enqueue(new ProtocolMessage(String.valueOf(i)));
+			}
+			testQueue.append(appended);
+			assertTrue(appended.isEmpty());
+			assertNull(appended.dequeue());
+			assertEquals(2, testQueue.getPriority());
+			assertEquals(2 + length, testQueue.getSize());
+
+			testQueue.enqueue(new ProtocolMessage("last"));
+			for (int i = 1; i < 3 + length; i++) {
+				assertEquals(String.valueOf(i), testQueue.peek().getMessage());
+				assertEquals(String.valueOf(i), testQueue.dequeue().getMessage());
+			}
+			assertEquals("last", testQueue.dequeue().getMessage());
+			assertTrue(testQueue.isEmpty());
+		}
+	}
+
+	@Test
+	public void testAppendToEmpty() {
+		OutputMessageQueue testQueue = new OutputMessageQueue();
+		OutputMessageQueue appended = new OutputMessageQueue();
+		for (int i = 0; i < 50; i++) {
+			appended.enqueue(new ProtocolMessage(String.valueOf(i)));
+		}
+		testQueue.append(appended);
+		appended.enqueue(new ProtocolMessage("again"));
+		testQueue.append(appended);
+		assertEquals(51, testQueue.getSize());
+		for (int i = 0; i < 50; i++) {
+			assertEquals(String.valueOf(i), testQueue.dequeue().getMessage());
+		}
+		assertEquals("again", testQueue.dequeue().getMessage());
+		assertNull(testQueue.dequeue());
+	}
+
+}
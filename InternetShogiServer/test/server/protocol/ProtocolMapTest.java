@@ -0,0 +1,314 @@
+package server.protocol;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import server.services.protocol.InputMessageQueue;
+import server.services.protocol.InternalCommand;
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMap;
+import server.services.protocol.ProtocolMessage;
+import server.services.protocol.modules.AreYouThere;
+import server.services.protocol.modules.AsyncProtocolModule;
+import server.services.protocol.modules.ProtocolModule;
+import server.services.protocol.modules.Subcommand;
+import server.services.protocol.modules.SubcommandModule;
+import server.services.protocol.modules.SynchronousModuleAdapter;
+import server.services.user.User;
+
+public class ProtocolMapTest {
+
+	/**
+	 * Answers every message with its key, followed by what handled it.
+	 */
+	private static class EchoModule implements SubcommandModule {
+		private String key;
+		private String[] subcommands;
+		private boolean shutdown;
+
+		EchoModule(String key, String... subcommands) {
+			this.key = key;
+			this.subcommands = subcommands;
+		}
+
+		public Map<String, Subcommand> getSubcommands() {
+			HashMap<String, Subcommand> map = new HashMap<String, Subcommand>();
+			for (final String subcommand : subcommands) {
+				map.put(subcommand, new Subcommand() {
+					public OutputMessageQueue parseMessage(ProtocolMessage message) {
+						return new OutputMessageQueue(new ProtocolMessage(key + " " + subcommand));
+					}
+				});
+			}
+			return map;
+		}
+
+		public OutputMessageQueue parseMessage(ProtocolMessage message) {
+			return new OutputMessageQueue(new ProtocolMessage(key + " module"));
+		}
+
+		public String[] getDependencies() {
+			return new String[0];
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getName() {
+			return "Echo" + key;
+		}
+
+		public String getVersion() {
+			return "0.01";
+		}
+
+		public void initialize(Properties properties) {
+		}
+
+		public boolean isThreadSafe() {
+			return false;
+		}
+
+		public void shutdown() {
+			shutdown = true;
+		}
+	}
+
+	/**
+	 * Leaves every reply pending until the test completes it.
+	 */
+	private static class SlowModule extends EchoModule implements AsyncProtocolModule {
+		private ArrayList<CompletableFuture<OutputMessageQueue>> pending = new ArrayList<CompletableFuture<OutputMessageQueue>>();
+
+		SlowModule() {
+			super("slow");
+		}
+
+		public CompletionStage<OutputMessageQueue> parseMessageAsync(ProtocolMessage message) {
+			CompletableFuture<OutputMessageQueue> reply = new CompletableFuture<OutputMessageQueue>();
+			pending.add(reply);
+			return reply;
+		}
+	}
+
+	private static final Executor SAME_THREAD = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static String parse(ProtocolMap map, String line) {
+		OutputMessageQueue reply = map.parseMessages(new InputMessageQueue(new ProtocolMessage(line)));
+		assertEquals(1, reply.getSize());
+		return reply.dequeue().getMessage();
+	}
+
+	@Test
+	public void testDispatch() throws Throwable {
+		ProtocolMap map = new ProtocolMap();
+		assertEquals("invalid ayt", parse(map, "ayt"));
+		map.loadProtocolModule(new AreYouThere(), new Properties());
+		map.loadProtocolModule(new EchoModule("room", "list", "join", "tell"), new Properties());
+
+		assertEquals("yes", parse(map, "ayt"));
+		assertEquals("yes", parse(map, "ayt extra tokens"));
+		assertEquals("room list", parse(map, "room list"));
+		assertEquals("room join", parse(map, "room join lobby"));
+		assertEquals("room tell", parse(map, "room tell lobby hi there"));
+		assertEquals("room module", parse(map, "room"));
+		assertEquals("room module", parse(map, "room leave lobby"));
+		assertEquals("room module", parse(map, "room  list"));
+		assertEquals("room module", parse(map, "room lis"));
+		assertEquals("room module", parse(map, "room lists"));
+		assertEquals("invalid roo", parse(map, "roo list"));
+		assertEquals("invalid rooms", parse(map, "rooms list"));
+		assertEquals("invalid", parse(map, ""));
+	}
+
+	@Test
+	public void testCollidingKeys() throws Throwable {
+		// "Aa" and "BB" have the same hash code.
+		ProtocolMap map = new ProtocolMap();
+		map.loadProtocolModule(new EchoModule("Aa", "Aa", "BB"), new Properties());
+		map.loadProtocolModule(new EchoModule("BB", "C#"), new Properties());
+		assertEquals("Aa BB", parse(map, "Aa BB"));
+		assertEquals("Aa Aa", parse(map, "Aa Aa"));
+		assertEquals("BB module", parse(map, "BB Aa"));
+		assertEquals("BB C#", parse(map, "BB C#"));
+		assertEquals("invalid Ab", parse(map, "Ab BB"));
+	}
+
+	@Test
+	public void testUnload() throws Throwable {
+		ProtocolMap map = new ProtocolMap();
+		EchoModule echo = new EchoModule("echo");
+		map.loadProtocolModule(echo, new Properties());
+		map.loadProtocolModule(new AreYouThere(), new Properties());
+		assertEquals("echo module", parse(map, "echo"));
+
+		map.unloadProtocolModule("Echoecho");
+		assertTrue(echo.shutdown);
+		assertEquals("invalid echo", parse(map, "echo"));
+		assertEquals("yes", parse(map, "ayt"));
+
+		map.shutdown();
+		assertEquals("invalid ayt", parse(map, "ayt"));
+	}
+
+	@Test
+	public void testAsyncModule() throws Throwable {
+		ProtocolMap map = new ProtocolMap();
+		SlowModule slow = new SlowModule();
+		map.loadProtocolModule(slow, new Properties());
+		map.loadProtocolModule(new AreYouThere(), new Properties());
+
+		InputMessageQueue input = new InputMessageQueue(new ProtocolMessage("ayt"));
+		input.enqueue(new ProtocolMessage("slow first"));
+		input.enqueue(new ProtocolMessage("ayt"));
+		input.enqueue(new ProtocolMessage("slow second"));
+		CompletableFuture<OutputMessageQueue> reply = map.parseMessagesAsync(input, SAME_THREAD).toCompletableFuture();
+
+		// The messages after a pending reply wait for it.
+		assertFalse(reply.isDone());
+		assertEquals(1, slow.pending.size());
+		slow.pending.get(0).complete(new OutputMessageQueue(new ProtocolMessage("slow 1")));
+		assertFalse(reply.isDone());
+		assertEquals(2, slow.pending.size());
+		slow.pending.get(1).complete(new OutputMessageQueue(new ProtocolMessage("slow 2")));
+		assertTrue(reply.isDone());
+
+		OutputMessageQueue output = reply.join();
+		assertEquals("yes", output.dequeue().getMessage());
+		assertEquals("slow 1", output.dequeue().getMessage());
+		assertEquals("yes", output.dequeue().getMessage());
+		assertEquals("slow 2", output.dequeue().getMessage());
+		assertNull(output.dequeue());
+	}
+
+	@Test
+	public void testAsyncFailure() throws Throwable {
+		ProtocolMap map = new ProtocolMap();
+		SlowModule slow = new SlowModule();
+		map.loadProtocolModule(slow, new Properties());
+		map.loadProtocolModule(new AreYouThere(), new Properties());
+
+		InputMessageQueue input = new InputMessageQueue(new ProtocolMessage("slow"));
+		input.enqueue(new ProtocolMessage("ayt"));
+		CompletableFuture<OutputMessageQueue> reply = map.parseMessagesAsync(input, SAME_THREAD).toCompletableFuture();
+		slow.pending.get(0).completeExceptionally(new IllegalStateException("expected by the test"));
+
+		// The failed message goes unanswered, but the rest are still parsed.
+		OutputMessageQueue output = reply.join();
+		assertEquals("yes", output.dequeue().getMessage());
+		assertNull(output.dequeue());
+	}
+
+	@Test
+	public void testSynchronousModuleAdapter() throws Throwable {
+		ProtocolModule module = new AreYouThere();
+		AsyncProtocolModule adapted = SynchronousModuleAdapter.adapt(module);
+		assertEquals("ayt", adapted.getKey());
+		CompletableFuture<OutputMessageQueue> reply = adapted.parseMessageAsync(new ProtocolMessage("ayt")).toCompletableFuture();
+		assertTrue(reply.isDone());
+		assertEquals("yes", reply.join().dequeue().getMessage());
+
+		SlowModule slow = new SlowModule();
+		assertSame(slow, SynchronousModuleAdapter.adapt(slow));
+	}
+
+	@Test
+	public void testTaggedReplies() throws Throwable {
+		ProtocolMap map = new ProtocolMap();
+		map.loadProtocolModule(new AreYouThere(), new Properties());
+		map.loadProtocolModule(new EchoModule("tagged") {
+			public OutputMessageQueue parseMessage(ProtocolMessage message) {
+				OutputMessageQueue reply = new OutputMessageQueue(new ProtocolMessage("first"));
+				ProtocolMessage ownTag = new ProtocolMessage("second");
+				ownTag.setTag("own");
+				reply.enqueue(ownTag);
+				return reply;
+			}
+		}, new Properties());
+
+		ProtocolMessage ayt = new ProtocolMessage("ayt");
+		ayt.setTag("a1");
+		InputMessageQueue input = new InputMessageQueue(ayt);
+		input.enqueue(new ProtocolMessage("ayt"));
+		ProtocolMessage tagged = new ProtocolMessage("tagged");
+		tagged.setTag("t2");
+		input.enqueue(tagged);
+		ProtocolMessage invalid = new ProtocolMessage("nope");
+		invalid.setTag("n3");
+		input.enqueue(invalid);
+
+		OutputMessageQueue output = map.parseMessages(input);
+		assertEquals("a1", output.dequeue().getTag());
+		assertNull(output.dequeue().getTag());
+		assertEquals("t2", output.dequeue().getTag());
+		assertEquals("own", output.dequeue().getTag());
+		ProtocolMessage reply = output.dequeue();
+		assertEquals("invalid nope", reply.getMessage());
+		assertEquals("n3", reply.getTag());
+	}
+
+	private static ProtocolMessage command(final ProtocolModule module, final String reply) {
+		ProtocolMessage message = new ProtocolMessage(module.getKey());
+		message.setCommand(new InternalCommand() {
+			public ProtocolModule getModule() {
+				return module;
+			}
+
+			public OutputMessageQueue execute(User user) {
+				return new OutputMessageQueue(new ProtocolMessage(user, reply));
+			}
+		});
+		return message;
+	}
+
+	@Test
+	public void testInternalCommand() throws Throwable {
+		ProtocolMap map = new ProtocolMap();
+		EchoModule echo = new EchoModule("echo", "list");
+		map.loadProtocolModule(echo, new Properties());
+		map.loadProtocolModule(new AreYouThere(), new Properties());
+
+		// Commands run in order with the messages around them, and are never parsed.
+		InputMessageQueue input = new InputMessageQueue(new ProtocolMessage("ayt"));
+		input.enqueue(command(echo, "from command"));
+		input.enqueue(new ProtocolMessage("echo list"));
+		OutputMessageQueue output = map.parseMessages(input);
+		assertEquals("yes", output.dequeue().getMessage());
+		assertEquals("from command", output.dequeue().getMessage());
+		assertEquals("echo list", output.dequeue().getMessage());
+		assertNull(output.dequeue());
+
+		// Commands for a module which is no longer loaded are dropped.
+		ProtocolMessage stale = command(echo, "too late");
+		map.unloadProtocolModule(echo.getName());
+		map.loadProtocolModule(new EchoModule("echo"), new Properties());
+		input = new InputMessageQueue(stale);
+		input.enqueue(new ProtocolMessage("ayt"));
+		output = map.parseMessages(input);
+		assertEquals("yes", output.dequeue().getMessage());
+		assertNull(output.dequeue());
+	}
+
+	@Test
+	public void testPlainModule() throws Throwable {
+		ProtocolModule module = new AreYouThere();
+		ProtocolMap map = new ProtocolMap();
+		map.loadProtocolModule(module, new Properties());
+		assertEquals("yes", parse(map, "ayt list"));
+	}
+
+}
@@ -1,89 +1,162 @@
-package server.protocol;
-
-import static org.junit.Assert.*;
-
-import org.junit.Test;
-
-import server.services.protocol.ProtocolMessage;
-
-public class ProtocolMessageTest {
-
-	@Test
-	public void testGetProtocolKey() {
-		ProtocolMessage emptyMessage = new ProtocolMessage();
-		assertEquals(emptyMessage.getProtocolKey(), "");
-		ProtocolMessage aytMessage = new ProtocolMessage("  ayt  ");
-		assertEquals(aytMessage.getProtocolKey(), "ayt");
-		aytMessage.append("foo");
-		assertEquals(aytMessage.getProtocolKey(), "ayt");
-	}
-
-	@Test
-	public void testGetPayload() {
-		ProtocolMessage emptyMessage = new ProtocolMessage();
-		assertEquals(emptyMessage.getPayload(), "");
-		ProtocolMessage aytMessage = new ProtocolMessage("  ayt  ");
-		assertEquals(aytMessage.getPayload(), "");
-		aytMessage.append("  foo  ");
-		assertEquals(aytMessage.getPayload(), "foo");
-		aytMessage.append("bar");
-		assertEquals(aytMessage.getPayload(), "foo bar");
-		aytMessage.append("   b    a z        ");
-		assertEquals(aytMessage.getPayload(), "foo bar b a z");
-	}
-
-	@Test
-	public void testGetTokenizedPayload() {
-		ProtocolMessage emptyMessage = new ProtocolMessage();
-		assertEquals(emptyMessage.getTokenizedPayload().length, 0);
-		ProtocolMessage aytMessage = new ProtocolMessage("ayt  ");
-		assertEquals(aytMessage.getTokenizedPayload().length, 0);
-		aytMessage.append("  b  a    z  ");
-		assertEquals(aytMessage.getTokenizedPayload().length, 3);
-		assertEquals(aytMessage.getTokenizedPayload()[0], "b");
-		assertEquals(aytMessage.getTokenizedPayload()[1], "a");
-		assertEquals(aytMessage.getTokenizedPayload()[2], "z");
-	}
-
-	@Test
-	public void testGetMessage() {
-		ProtocolMessage emptyMessage = new ProtocolMessage();
-		assertEquals(emptyMessage.getMessage(), "");
-		emptyMessage.append("    ");
-		assertEquals(emptyMessage.getMessage(), "");
-		ProtocolMessage aytMessage = new ProtocolMessage("ayt");
-		assertEquals(aytMessage.getMessage(), "ayt");
-		aytMessage.append(" foo bar ");
-		assertEquals(aytMessage.getMessage(), "ayt foo bar");
-		aytMessage.append("  b   a z");
-		assertEquals(aytMessage.getMessage(), "ayt foo bar b a z");
-	}
-
-	@Test
-	public void testAppend() {
-		ProtocolMessage emptyMessage = new ProtocolMessage();
-		emptyMessage.append("            ");
-		assertEquals(emptyMessage.getMessage(), "");
-		assertEquals(emptyMessage.getTokenizedPayload().length, 0);
-		assertEquals(emptyMessage.append("    "), emptyMessage.getMessage());
-		ProtocolMessage aytMessage = new ProtocolMessage("ayt");
-		assertEquals(aytMessage.append("foo   bar   "), aytMessage.getMessage());
-		assertEquals(aytMessage.append("  b a         z"), aytMessage.getMessage());
-	}
-
-	@Test
-	public void testSetProtocolKey() {
-		ProtocolMessage emptyMessage = new ProtocolMessage();
-		assertEquals(emptyMessage.setProtocolKey(" foo  "), emptyMessage.getMessage());
-		assertEquals(emptyMessage.getProtocolKey(), "foo");
-		emptyMessage.setProtocolKey("bar");
-		assertEquals(emptyMessage.getProtocolKey(), "bar");
-		assertEquals(emptyMessage.getMessage(), "bar");
-		assertEquals(emptyMessage.getPayload(), "");
-		ProtocolMessage aytMessage = new ProtocolMessage("ayt");
-		assertEquals(aytMessage.setProtocolKey("foo"), "foo");
-		aytMessage.append("bar");
-		assertEquals(aytMessage.setProtocolKey("ayt"), "ayt bar");
-	}
-
-}
+package server.protocol;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import server.services.protocol.ProtocolMessage;
+
+public class ProtocolMessageTest {
+
+	@Test
+	public void testGetProtocolKey() {
+		ProtocolMessage emptyMessage = new ProtocolMessage();
+		assertEquals(emptyMessage.getProtocolKey(), "");
+		ProtocolMessage aytMessage = new ProtocolMessage("  ayt  ");
+		assertEquals(aytMessage.getProtocolKey(), "ayt");
+		aytMessage.append("foo");
+		assertEquals(aytMessage.getProtocolKey(), "ayt");
+	}
+
+	@Test
+	public void testGetPayload() {
+		ProtocolMessage emptyMessage = new ProtocolMessage();
+		assertEquals(emptyMessage.getPayload(), "");
+		ProtocolMessage aytMessage = new ProtocolMessage("  ayt  ");
+		assertEquals(aytMessage.getPayload(), "");
+		aytMessage.append("  foo  ");
+		assertEquals(aytMessage.getPayload(), "foo");
+		aytMessage.append("bar");
+		assertEquals(aytMessage.getPayload(), "foo bar");
+		aytMessage.append("   b    a z        ");
+		assertEquals(aytMessage.getPayload(), "foo bar b a z");
+	}
+
+	@Test
+	public void testGetTokenizedPayload() {
+		ProtocolMessage emptyMessage = new ProtocolMessage();
+		assertEquals(emptyMessage.getTokenizedPayload().length, 0);
+		ProtocolMessage aytMessage = new ProtocolMessage("ayt  ");
+		assertEquals(aytMessage.getTokenizedPayload().length, 0);
+		aytMessage.append("  b  a    z  ");
+		assertEquals(aytMessage.getTokenizedPayload().length, 3);
+		assertEquals(aytMessage.getTokenizedPayload()[0], "b");
+		assertEquals(aytMessage.getTokenizedPayload()[1], "a");
+		assertEquals(aytMessage.getTokenizedPayload()[2], "z");
+	}
+
+	@Test
+	public void testGetMessage() {
+		ProtocolMessage emptyMessage = new ProtocolMessage();
+		assertEquals(emptyMessage.getMessage(), "");
+		emptyMessage.append("    ");
+		assertEquals(emptyMessage.getMessage(), "");
+		ProtocolMessage aytMessage = new ProtocolMessage("ayt");
+		assertEquals(aytMessage.getMessage(), "ayt");
+		aytMessage.append(" foo bar ");
+		assertEquals(aytMessage.getMessage(), "ayt foo bar");
+		aytMessage.append("  b   a z");
+		assertEquals(aytMessage.getMessage(), "ayt foo bar b a z");
+	}
+
+	@Test
+	public void testAppend() {
+		ProtocolMessage emptyMessage = new ProtocolMessage();
+		emptyMessage.append("            ");
+		assertEquals(emptyMessage.getMessage(), "");
+		assertEquals(emptyMessage.getTokenizedPayload().length, 0);
+		assertEquals(emptyMessage.append("    "), emptyMessage.getMessage());
+		ProtocolMessage aytMessage = new ProtocolMessage("ayt");
+		assertEquals(aytMessage.append("foo   bar   "), aytMessage.getMessage());
+		assertEquals(aytMessage.append("  b a         z"), aytMessage.getMessage());
+	}
+
+	@Test
+	public void testSetProtocolKey() {
+		ProtocolMessage emptyMessage = new ProtocolMessage();
+		assertEquals(emptyMessage.setProtocolKey(" foo  "), emptyMessage.getMessage());
+		assertEquals(emptyMessage.getProtocolKey(), "foo");
+		emptyMessage.setProtocolKey("bar");
+		assertEquals(emptyMessage.getProtocolKey(), "bar");
+		assertEquals(emptyMessage.getMessage(), "bar");
+		assertEquals(emptyMessage.getPayload(), "");
+		ProtocolMessage aytMessage = new ProtocolMessage("ayt");
+		assertEquals(aytMessage.setProtocolKey("foo"), "foo");
+		aytMessage.append("bar");
+		assertEquals(aytMessage.setProtocolKey("ayt"), "ayt bar");
+	}
+
+	@Test
+	public void testGetEncoded() {
+		String separator = System.getProperty("line.separator");
+		ProtocolMessage message = new ProtocolMessage("room tell lobby hi");
+		byte[] encoded = message.getEncoded();
+		assertEquals("room tell lobby hi" + separator, new String(encoded));
+		assertSame(encoded, message.getEncoded());
+		message.append("there");
+		assertEquals("room tell lobby hi there" + separator, new String(message.getEncoded()));
+	}
+
+	@Test
+	public void testAddressedTo() {
+		ProtocolMessage message = new ProtocolMessage("room join lobby amy");
+		message.setUrgent(true);
+		ProtocolMessage copy = message.addressedTo(null);
+		assertEquals(message.getMessage(), copy.getMessage());
+		assertTrue(copy.isUrgent());
+		assertSame(message.getEncoded(), copy.getEncoded());
+	}
+
+	@Test
+	public void testTokensMatchSplit() {
+		String[] messages = { "", "ayt", "room tell lobby hi there", "tell  bob   hi",
+				"a\tb c", "room list" };
+		for (String text : messages) {
+			ProtocolMessage message = new ProtocolMessage(text);
+			String[] split = message.getMessage().split(" ");
+			assertEquals(split.length, message.getTokenCount());
+			for (int i = 0; i < split.length; i++) {
+				assertEquals(split[i], message.getToken(i).toString());
+				assertTrue(message.tokenEquals(i, split[i]));
+			}
+		}
+	}
+
+	@Test
+	public void testGetToken() {
+		ProtocolMessage message = new ProtocolMessage("room tell lobby hi");
+		CharSequence token = message.getToken(2);
+		assertEquals(5, token.length());
+		assertEquals('l', token.charAt(0));
+		assertEquals("obb", token.subSequence(1, 4).toString());
+		assertTrue(message.tokenEquals(1, "tell"));
+		assertFalse(message.tokenEquals(1, "tel"));
+		assertFalse(message.tokenEquals(4, "hi"));
+		message.append("again");
+		assertEquals(5, message.getTokenCount());
+		assertEquals("again", message.getToken(4).toString());
+		message.setProtocolKey("whisper");
+		assertEquals("whisper", message.getProtocolKey());
+	}
+
+	@Test
+	public void testTag() {
+		String separator = System.getProperty("line.separator");
+		ProtocolMessage message = new ProtocolMessage("room info lobby");
+		byte[] untagged = message.getEncoded();
+		message.setTag("17");
+		assertEquals("17", message.getTag());
+		assertEquals("room info lobby", message.getMessage());
+		assertEquals("room", message.getProtocolKey());
+		assertEquals("#17 room info lobby" + separator, new String(message.getEncoded()));
+
+		// Copies for other recipients are not replies to the tagged request.
+		ProtocolMessage copy = message.addressedTo(null);
+		assertNull(copy.getTag());
+		assertSame(untagged, copy.getEncoded());
+
+		message.setTag(null);
+		assertSame(untagged, message.getEncoded());
+	}
+
+}
@@ -0,0 +1,168 @@
+package server.services;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ServiceManagerTest {
+
+	/**
+	 * A service which counts how often it is initialized, and takes a while
+	 * to do it so that other threads have a chance to race it.
+	 */
+	private static class TestService implements GlobalService {
+		private String name;
+		private String[] dependencies;
+		private AtomicInteger initialized = new AtomicInteger();
+		private volatile boolean ready;
+		/* Whether every dependency was ready when this was initialized. */
+		private volatile boolean dependenciesReady = true;
+
+		TestService(String name, String... dependencies) {
+			this.name = name;
+			this.dependencies = dependencies;
+		}
+
+		public void initialize(Properties properties) {
+			initialized.incrementAndGet();
+			for (String dependency : dependencies) {
+				GlobalService service = ServiceManager.start(dependency);
+				if (!(service instanceof TestService) || !((TestService) service).ready) {
+					dependenciesReady = false;
+				}
+			}
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			ready = true;
+		}
+
+		public void shutdown() {
+		}
+
+		public String[] getDependencies() {
+			return dependencies;
+		}
+
+		public String getIdentifier() {
+			return name;
+		}
+	}
+
+	/**
+	 * Hands out a single service, counting how often it is asked to.
+	 */
+	private static class CountingFactory implements ServiceManager.ServiceFactory {
+		private TestService service;
+		private AtomicInteger created = new AtomicInteger();
+
+		CountingFactory(TestService service) {
+			this.service = service;
+		}
+
+		public GlobalService newService() {
+			created.incrementAndGet();
+			return service;
+		}
+	}
+
+	private static CountingFactory register(String name, String... dependencies) {
+		CountingFactory factory = new CountingFactory(new TestService(name, dependencies));
+		ServiceManager.registerFactory(name, factory);
+		return factory;
+	}
+
+	/**
+	 * Starts the services on a thread each, all at once, and waits for them.
+	 */
+	private static GlobalService[] startConcurrently(final String... names) throws InterruptedException {
+		final GlobalService[] started = new GlobalService[names.length];
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch go = new CountDownLatch(1);
+		Thread[] threads = new Thread[names.length];
+		for (int i = 0; i < names.length; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						go.await();
+						started[index] = ServiceManager.start(names[index]);
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		go.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+			assertFalse(thread.isAlive());
+		}
+		assertNull(failure.get());
+		return started;
+	}
+
+	@Test
+	public void testConcurrentStartInitializesOnce() throws InterruptedException {
+		CountingFactory factory = register("TestOnce");
+		String[] names = new String[8];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "TestOnce";
+		}
+		GlobalService[] started = startConcurrently(names);
+		for (GlobalService service : started) {
+			assertSame(factory.service, service);
+		}
+		assertEquals(1, factory.created.get());
+		assertEquals(1, factory.service.initialized.get());
+		assertTrue(factory.service.ready);
+		assertSame(factory.service, ServiceManager.start("TestOnce"));
+		assertEquals(1, factory.service.initialized.get());
+	}
+
+	@Test
+	public void testWaitsForDependencies() throws InterruptedException {
+		CountingFactory base = register("TestBase");
+		CountingFactory middle = register("TestMiddle", "TestBase");
+		CountingFactory top = register("TestTop", "TestMiddle", "TestBase");
+		startConcurrently("TestTop", "TestMiddle", "TestBase", "TestTop", "TestBase");
+		assertTrue(top.service.dependenciesReady);
+		assertTrue(middle.service.dependenciesReady);
+		for (CountingFactory factory : new CountingFactory[] { base, middle, top }) {
+			assertEquals(1, factory.created.get());
+			assertEquals(1, factory.service.initialized.get());
+			assertTrue(factory.service.ready);
+		}
+	}
+
+	@Test
+	public void testDependencyCycle() {
+		register("TestCycleA", "TestCycleB");
+		register("TestCycleB", "TestCycleC");
+		register("TestCycleC", "TestCycleA");
+		try {
+			ServiceManager.start("TestCycleA");
+			fail("A dependency cycle should not start.");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("TestCycleA"));
+		}
+	}
+
+	@Test
+	public void testUnknownService() {
+		try {
+			ServiceManager.start("TestUnknown");
+			fail("An unknown service should not start.");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+}
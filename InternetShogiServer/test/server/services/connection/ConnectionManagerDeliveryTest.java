@@ -0,0 +1,145 @@
+package server.services.connection;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import server.services.protocol.OutputMessageQueue;
+import server.services.protocol.ProtocolMessage;
+import server.services.user.User;
+import server.services.user.UserInformation;
+
+public class ConnectionManagerDeliveryTest {
+
+	private static class TestUser extends User {
+		TestUser(String userName) {
+			super(userName, new UserInformation(userName));
+		}
+	}
+
+	/**
+	 * A connection without threads; its output stays on its OutboundQueue.
+	 */
+	private static class TestConnection extends ClientConnection {
+		TestConnection(User user, OutboundPolicy policy) {
+			super(user, new OutboundQueue(policy));
+		}
+	}
+
+	/**
+	 * Knows only the connections it was given.
+	 */
+	private static class TestConnectionManager extends ConnectionManager {
+		private Map<User, ClientConnection> connections = new HashMap<User, ClientConnection>();
+
+		@Override
+		ClientConnection findConnection(User user) {
+			return connections.get(user);
+		}
+	}
+
+	@Test
+	public void testFullQueueDropsWithoutBlocking() {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		User alice = new TestUser("alice");
+		// Room for a single message, and a sender under BLOCK would wait a long time.
+		TestConnection connection = new TestConnection(alice, new OutboundPolicy(16, 10000, OverflowPolicy.BLOCK));
+		connectionManager.connections.put(alice, connection);
+
+		OutputMessageQueue messages = new OutputMessageQueue();
+		messages.enqueue(new ProtocolMessage(alice, "game move 1"));
+		messages.enqueue(new ProtocolMessage(alice, "game move 2"));
+		long began = System.currentTimeMillis();
+		connectionManager.deliver(messages);
+		assertTrue(System.currentTimeMillis() - began < 1000);
+
+		assertEquals(1, connectionManager.getMessagesDropped());
+		assertEquals(0, connectionManager.getMessagesUndeliverable());
+		assertEquals("game move 1", connection.getOutboundQueue().poll().getMessage());
+		assertNull(connection.getOutboundQueue().poll());
+	}
+
+	@Test
+	public void testOfflineRecipient() {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		User alice = new TestUser("alice");
+		User gone = new TestUser("gone");
+		User bob = new TestUser("bob");
+		TestConnection aliceConnection = new TestConnection(alice, new OutboundPolicy());
+		TestConnection bobConnection = new TestConnection(bob, new OutboundPolicy());
+		connectionManager.connections.put(alice, aliceConnection);
+		connectionManager.connections.put(bob, bobConnection);
+
+		OutputMessageQueue messages = new OutputMessageQueue();
+		messages.enqueue(new ProtocolMessage(alice, "room join lobby carol"));
+		messages.enqueue(new ProtocolMessage(gone, "room join lobby carol"));
+		messages.enqueue(new ProtocolMessage(bob, "room join lobby carol"));
+		connectionManager.deliver(messages);
+
+		assertEquals(1, connectionManager.getMessagesUndeliverable());
+		assertEquals(0, connectionManager.getMessagesDropped());
+		assertEquals("room join lobby carol", aliceConnection.getOutboundQueue().poll().getMessage());
+		assertEquals("room join lobby carol", bobConnection.getOutboundQueue().poll().getMessage());
+		assertNull(aliceConnection.getOutboundQueue().poll());
+		assertNull(bobConnection.getOutboundQueue().poll());
+	}
+
+	@Test
+	public void testConsecutiveMessagesStayTogether() throws InterruptedException {
+		final int batches = 500;
+		final int batchSize = 5;
+		final TestConnectionManager connectionManager = new TestConnectionManager();
+		final User alice = new TestUser("alice");
+		TestConnection connection = new TestConnection(alice,
+				new OutboundPolicy(Integer.MAX_VALUE, 0, OverflowPolicy.BLOCK));
+		connectionManager.connections.put(alice, connection);
+
+		final CountDownLatch go = new CountDownLatch(1);
+		Thread[] senders = new Thread[2];
+		for (int t = 0; t < senders.length; t++) {
+			final int sender = t;
+			senders[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int b = 0; b < batches; b++) {
+						OutputMessageQueue messages = new OutputMessageQueue();
+						for (int i = 0; i < batchSize; i++) {
+							messages.enqueue(new ProtocolMessage(alice, "reply " + sender + "-" + b + " " + i));
+						}
+						connectionManager.deliver(messages);
+					}
+				}
+			});
+			senders[t].start();
+		}
+		go.countDown();
+		for (Thread sender : senders) {
+			sender.join();
+		}
+
+		// Every batch arrives whole, with nothing from the other thread in between.
+		OutboundQueue queue = connection.getOutboundQueue();
+		for (int n = 0; n < senders.length * batches; n++) {
+			String batch = null;
+			for (int i = 0; i < batchSize; i++) {
+				String[] tokens = queue.poll().getMessage().split(" ");
+				if (batch == null) {
+					batch = tokens[1];
+				}
+				assertEquals(batch, tokens[1]);
+				assertEquals(String.valueOf(i), tokens[2]);
+			}
+		}
+		assertNull(queue.poll());
+		assertEquals(0, connectionManager.getMessagesDropped());
+	}
+
+}
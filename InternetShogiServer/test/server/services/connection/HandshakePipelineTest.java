@@ -0,0 +1,230 @@
+package server.services.connection;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import server.services.user.User;
+import server.services.user.UserInformation;
+
+public class HandshakePipelineTest {
+
+	private static class TestUser extends User {
+		TestUser(String userName) {
+			super(userName, new UserInformation(userName));
+		}
+	}
+
+	/**
+	 * Accepts every well-formed login without a database, optionally only
+	 * once the test lets it, and remembers who it registered.
+	 */
+	private static class TestConnectionManager extends ConnectionManager {
+		private CountDownLatch gate = new CountDownLatch(0);
+		private CountDownLatch authenticated = new CountDownLatch(0);
+		private List<String> registered = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		User authenticate(String loginString) throws LoginRefusedException {
+			try {
+				// Ignores being interrupted, like a query the database is still busy with.
+				boolean interrupted = false;
+				while (true) {
+					try {
+						gate.await();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+				if (loginString == null || !loginString.startsWith("login ")) {
+					throw new LoginRefusedException(null);
+				}
+				return new TestUser(loginString.split(" ")[1]);
+			} finally {
+				authenticated.countDown();
+			}
+		}
+
+		@Override
+		boolean registerConnection(User user, BufferedReader in, OutputStream out, Socket socket, boolean tagged) {
+			registered.add(user.getUserName());
+			return true;
+		}
+	}
+
+	/**
+	 * Counts the outcomes of handshakes which are authenticated directly.
+	 */
+	private static class CountingCallback implements HandshakePipeline.LoginCallback {
+		private AtomicInteger accepted = new AtomicInteger();
+		private AtomicInteger refused = new AtomicInteger();
+
+		public boolean loginAccepted(User user) {
+			accepted.incrementAndGet();
+			return true;
+		}
+
+		public void loginRefused(String reply) {
+			refused.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Connects a client to the pipeline over a real socket.
+	 */
+	private static Socket connect(ServerSocket server, HandshakePipeline pipeline) throws IOException {
+		Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+		client.setSoTimeout(5000);
+		pipeline.accept(server.accept());
+		return client;
+	}
+
+	private static void awaitIdle(HandshakePipeline pipeline) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pipeline.getHandshakesInFlight() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pipeline.getHandshakesInFlight());
+	}
+
+	@Test
+	public void testCompletedHandshake() throws IOException, InterruptedException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		HandshakePipeline pipeline = new HandshakePipeline(connectionManager, 1, 1, 4, 5000, 5000, 5000);
+		ServerSocket server = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+		try {
+			Socket client = connect(server, pipeline);
+			assertEquals(1, pipeline.getHandshakesInFlight());
+			PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+			out.println("ping");
+			assertEquals("pong", in.readLine());
+			out.println("login alice secret");
+			awaitIdle(pipeline);
+
+			assertEquals(Collections.singletonList("alice"), connectionManager.registered);
+			assertEquals(1, pipeline.getHandshakesCompleted());
+			assertEquals(0, pipeline.getHandshakesFailed());
+			assertEquals(0, pipeline.getHandshakesTimedOut());
+			assertTrue(pipeline.getMaxLoginLatency() >= pipeline.getAverageLoginLatency());
+			assertTrue(pipeline.getMaxLoginLatency() > 0);
+			client.close();
+		} finally {
+			server.close();
+			pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testLoginStallsPastTimeout() throws IOException, InterruptedException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		HandshakePipeline pipeline = new HandshakePipeline(connectionManager, 1, 1, 4, 5000, 200, 5000);
+		ServerSocket server = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+		try {
+			Socket client = connect(server, pipeline);
+			PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+			out.println("ping");
+			assertEquals("pong", in.readLine());
+
+			// The client never sends its login, so the server hangs up on it.
+			assertNull(in.readLine());
+			awaitIdle(pipeline);
+			assertEquals(1, pipeline.getHandshakesTimedOut());
+			assertEquals(1, pipeline.getHandshakesFailed());
+			assertEquals(0, pipeline.getHandshakesCompleted());
+			assertTrue(connectionManager.registered.isEmpty());
+			client.close();
+		} finally {
+			server.close();
+			pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testAuthenticationFinishesAfterTimeout() throws IOException, InterruptedException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		connectionManager.gate = new CountDownLatch(1);
+		connectionManager.authenticated = new CountDownLatch(1);
+		HandshakePipeline pipeline = new HandshakePipeline(connectionManager, 1, 1, 4, 5000, 5000, 200);
+		ServerSocket server = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+		try {
+			Socket client = connect(server, pipeline);
+			PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+			out.println("ping");
+			assertEquals("pong", in.readLine());
+			out.println("login alice secret");
+
+			// Authentication outlives its timeout; the client is dropped without a reply.
+			assertNull(in.readLine());
+			awaitIdle(pipeline);
+			assertEquals(1, pipeline.getHandshakesTimedOut());
+			assertEquals(1, pipeline.getHandshakesFailed());
+
+			// When it does finish, the client must not be registered after all.
+			connectionManager.gate.countDown();
+			assertTrue(connectionManager.authenticated.await(5, TimeUnit.SECONDS));
+			Thread.sleep(100);
+			assertTrue(connectionManager.registered.isEmpty());
+			assertEquals(0, pipeline.getHandshakesCompleted());
+			assertEquals(1, pipeline.getHandshakesFailed());
+			assertEquals(0, pipeline.getHandshakesInFlight());
+			client.close();
+		} finally {
+			server.close();
+			pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testFullAuthenticationPoolIsRejected() throws InterruptedException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		connectionManager.gate = new CountDownLatch(1);
+		HandshakePipeline pipeline = new HandshakePipeline(connectionManager, 1, 1, 1, 5000, 5000, 5000);
+		CountingCallback callback = new CountingCallback();
+		try {
+			// One login keeps the only worker busy, and one waits in the queue.
+			pipeline.authenticate("login alice secret", pipeline.handshakeStarted(), callback);
+			pipeline.authenticate("login bob secret", pipeline.handshakeStarted(), callback);
+			assertEquals(2, pipeline.getHandshakesInFlight());
+
+			// There is no room for a third, which is refused straight away.
+			pipeline.authenticate("login carol secret", pipeline.handshakeStarted(), callback);
+			assertEquals(1, pipeline.getHandshakesRejected());
+			assertEquals(1, callback.refused.get());
+			assertEquals(2, pipeline.getHandshakesInFlight());
+			assertEquals(1, pipeline.getHandshakesFailed());
+
+			connectionManager.gate.countDown();
+			awaitIdle(pipeline);
+			assertEquals(2, callback.accepted.get());
+			assertEquals(1, callback.refused.get());
+			assertEquals(2, pipeline.getHandshakesCompleted());
+			assertEquals(1, pipeline.getHandshakesFailed());
+			assertEquals(0, pipeline.getHandshakesTimedOut());
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+
+}
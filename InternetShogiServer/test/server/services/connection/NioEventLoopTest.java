@@ -0,0 +1,85 @@
+package server.services.connection;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+import org.junit.Test;
+
+public class NioEventLoopTest {
+
+	/**
+	 * Answers pings without a database, and breaks on <code>boom</code>.
+	 */
+	private static class TestConnectionManager extends ConnectionManager {
+		private HandshakePipeline pipeline = new HandshakePipeline(this, 1, 1, 16, 10000, 10000, 5000);
+		private OutboundPolicy outboundPolicy = new OutboundPolicy();
+
+		@Override
+		public HandshakePipeline getHandshakePipeline() {
+			return pipeline;
+		}
+
+		@Override
+		OutboundPolicy getOutboundPolicy() {
+			return outboundPolicy;
+		}
+
+		@Override
+		String answerPing(String ping) {
+			if (ping.equals("boom")) {
+				throw new IllegalStateException("boom");
+			}
+			return super.answerPing(ping);
+		}
+	}
+
+	@Test
+	public void testBrokenSessionDoesNotStopTheLoop() throws IOException, InterruptedException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		NioEventLoop loop = new NioEventLoop(connectionManager);
+		Thread loopThread = new Thread(loop, "NioEventLoopTest");
+		loopThread.start();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		Socket broken = null;
+		Socket healthy = null;
+		try {
+			server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			broken = new Socket("127.0.0.1", server.socket().getLocalPort());
+			loop.register(server.accept());
+			healthy = new Socket("127.0.0.1", server.socket().getLocalPort());
+			loop.register(server.accept());
+			broken.setSoTimeout(5000);
+			healthy.setSoTimeout(5000);
+
+			// The line which breaks the handshake only closes its own client.
+			PrintWriter brokenOut = new PrintWriter(broken.getOutputStream(), true);
+			brokenOut.println("boom");
+			assertEquals(-1, broken.getInputStream().read());
+
+			PrintWriter healthyOut = new PrintWriter(healthy.getOutputStream(), true);
+			healthyOut.println("ping");
+			BufferedReader healthyIn = new BufferedReader(new InputStreamReader(healthy.getInputStream()));
+			assertEquals("pong", healthyIn.readLine());
+			assertTrue(loopThread.isAlive());
+		} finally {
+			if (broken != null) {
+				broken.close();
+			}
+			if (healthy != null) {
+				healthy.close();
+			}
+			server.close();
+			loop.shutdown();
+			loopThread.join(5000);
+			connectionManager.pipeline.shutdown();
+		}
+	}
+
+}
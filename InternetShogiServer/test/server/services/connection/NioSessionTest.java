@@ -0,0 +1,454 @@
+package server.services.connection;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Test;
+
+import server.services.user.User;
+import server.services.user.UserInformation;
+
+public class NioSessionTest {
+
+	private static final String NEWLINE = System.getProperty("line.separator");
+
+	private static class TestUser extends User {
+		TestUser(String userName) {
+			super(userName, new UserInformation(userName));
+		}
+	}
+
+	/**
+	 * A channel which hands out its input in the chunks it was given, and
+	 * takes at most <code>writeLimit</code> bytes of output per write.
+	 */
+	private static class FakeChannel extends SocketChannel {
+		private LinkedList<byte[]> input = new LinkedList<byte[]>();
+		private ByteArrayOutputStream output = new ByteArrayOutputStream();
+		private int writeLimit = Integer.MAX_VALUE;
+		private int writes;
+
+		FakeChannel() {
+			super(SelectorProvider.provider());
+		}
+
+		void feed(String chunk) {
+			input.add(chunk.getBytes());
+		}
+
+		String written() {
+			return new String(output.toByteArray());
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (input.isEmpty()) {
+				return 0;
+			}
+			byte[] chunk = input.removeFirst();
+			dst.put(chunk);
+			return chunk.length;
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			writes++;
+			int taken = Math.min(src.remaining(), writeLimit);
+			for (int i = 0; i < taken; i++) {
+				output.write(src.get());
+			}
+			return taken;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SocketChannel bind(SocketAddress local) {
+			return this;
+		}
+
+		@Override
+		public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+			return this;
+		}
+
+		@Override
+		public <T> T getOption(SocketOption<T> name) {
+			return null;
+		}
+
+		@Override
+		public Set<SocketOption<?>> supportedOptions() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public SocketChannel shutdownInput() {
+			return this;
+		}
+
+		@Override
+		public SocketChannel shutdownOutput() {
+			return this;
+		}
+
+		@Override
+		public Socket socket() {
+			return null;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public boolean isConnectionPending() {
+			return false;
+		}
+
+		@Override
+		public boolean connect(SocketAddress remote) {
+			return true;
+		}
+
+		@Override
+		public boolean finishConnect() {
+			return true;
+		}
+
+		@Override
+		public SocketAddress getRemoteAddress() {
+			return null;
+		}
+
+		@Override
+		public SocketAddress getLocalAddress() {
+			return null;
+		}
+
+		@Override
+		protected void implCloseSelectableChannel() {
+		}
+
+		@Override
+		protected void implConfigureBlocking(boolean block) {
+		}
+	}
+
+	/**
+	 * Remembers the operations the session is interested in.
+	 */
+	private static class FakeKey extends SelectionKey {
+		private SelectableChannel channel;
+		private int interestOps = OP_READ;
+		private boolean valid = true;
+
+		FakeKey(SelectableChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public SelectableChannel channel() {
+			return channel;
+		}
+
+		@Override
+		public Selector selector() {
+			return null;
+		}
+
+		@Override
+		public boolean isValid() {
+			return valid;
+		}
+
+		@Override
+		public void cancel() {
+			valid = false;
+		}
+
+		@Override
+		public int interestOps() {
+			return interestOps;
+		}
+
+		@Override
+		public SelectionKey interestOps(int ops) {
+			interestOps = ops;
+			return this;
+		}
+
+		@Override
+		public int readyOps() {
+			return 0;
+		}
+	}
+
+	/**
+	 * An event loop which never runs on its own; the test runs the work
+	 * handed to it instead.
+	 */
+	private static class TestLoop extends NioEventLoop {
+		private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		TestLoop(ConnectionManager connectionManager) throws IOException {
+			super(connectionManager);
+		}
+
+		@Override
+		void execute(Runnable task) {
+			tasks.add(task);
+		}
+
+		void runTasks() {
+			Runnable task = tasks.poll();
+			while (task != null) {
+				task.run();
+				task = tasks.poll();
+			}
+		}
+	}
+
+	/**
+	 * Logs in <code>alice</code> with the password <code>secret</code>
+	 * without a database, and remembers the lines of the handshake.
+	 */
+	private static class TestConnectionManager extends ConnectionManager {
+		private HandshakePipeline pipeline = new HandshakePipeline(this, 1, 1, 16, 10000, 10000, 5000);
+		private OutboundPolicy outboundPolicy = new OutboundPolicy();
+		private List<String> pings = Collections.synchronizedList(new ArrayList<String>());
+		private List<String> logins = Collections.synchronizedList(new ArrayList<String>());
+		private volatile ClientConnection registered;
+		private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+
+		@Override
+		public HandshakePipeline getHandshakePipeline() {
+			return pipeline;
+		}
+
+		@Override
+		OutboundPolicy getOutboundPolicy() {
+			return outboundPolicy;
+		}
+
+		@Override
+		int getMaxLineLength() {
+			return maxLineLength;
+		}
+
+		@Override
+		String answerPing(String ping) {
+			pings.add(ping);
+			return super.answerPing(ping);
+		}
+
+		@Override
+		User authenticate(String loginString) throws LoginRefusedException {
+			logins.add(loginString);
+			if (!loginString.equals("login alice secret")) {
+				throw new LoginRefusedException("login invalid password");
+			}
+			return new TestUser("alice");
+		}
+
+		@Override
+		boolean registerConnection(User user, ClientConnection connection) {
+			registered = connection;
+			return true;
+		}
+
+		/**
+		 * Waits for the pipeline to finish authenticating, and then runs
+		 * what it handed to the loop.
+		 */
+		void awaitHandshake(TestLoop loop) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (pipeline.getHandshakesInFlight() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, pipeline.getHandshakesInFlight());
+			loop.runTasks();
+		}
+	}
+
+	@Test
+	public void testLinesSplitAcrossReads() throws IOException, InterruptedException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		TestLoop loop = new TestLoop(connectionManager);
+		FakeChannel channel = new FakeChannel();
+		NioSession session = new NioSession(loop, channel, connectionManager);
+		session.setKey(new FakeKey(channel));
+		try {
+			channel.feed("pi");
+			session.read();
+			channel.feed("ng\r");
+			session.read();
+			assertTrue(connectionManager.pings.isEmpty());
+			channel.feed("\n");
+			session.read();
+			assertEquals(Collections.singletonList("ping"), connectionManager.pings);
+			loop.runTasks();
+			assertEquals("pong" + NEWLINE, channel.written());
+
+			// A line longer than the line buffer, dribbled in a few bytes at a time.
+			StringBuilder login = new StringBuilder("login alice ");
+			while (login.length() < 300) {
+				login.append("password");
+			}
+			String line = login.toString() + "\r\n";
+			for (int i = 0; i < line.length(); i += 7) {
+				channel.feed(line.substring(i, Math.min(i + 7, line.length())));
+				session.read();
+			}
+			connectionManager.awaitHandshake(loop);
+			assertEquals(1, connectionManager.logins.size());
+			assertEquals(login.toString(), connectionManager.logins.get(0));
+		} finally {
+			connectionManager.pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testLineTooLong() throws IOException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		connectionManager.maxLineLength = 16;
+		TestLoop loop = new TestLoop(connectionManager);
+		FakeChannel channel = new FakeChannel();
+		NioSession session = new NioSession(loop, channel, connectionManager);
+		session.setKey(new FakeKey(channel));
+		try {
+			channel.feed("0123456789abcdef\n");
+			session.read();
+			assertEquals(Collections.singletonList("0123456789abcdef"), connectionManager.pings);
+			assertTrue(channel.isOpen());
+
+			// A line which never ends is cut off at the limit, before it is handled.
+			for (int i = 0; i < 4 && channel.isOpen(); i++) {
+				channel.feed("0123456789");
+				session.read();
+			}
+			assertFalse(channel.isOpen());
+			assertEquals(1, connectionManager.pings.size());
+			assertEquals(1, connectionManager.pipeline.getHandshakesFailed());
+		} finally {
+			connectionManager.pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testHandshake() throws IOException, InterruptedException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		TestLoop loop = new TestLoop(connectionManager);
+		FakeChannel channel = new FakeChannel();
+		NioSession session = new NioSession(loop, channel, connectionManager);
+		session.setKey(new FakeKey(channel));
+		try {
+			channel.feed("hello\nping tags\r\nlogin alice secret\n");
+			session.read();
+			assertEquals(2, connectionManager.pings.size());
+			assertTrue(session.isTagged());
+			loop.runTasks();
+			assertEquals("pong tags" + NEWLINE, channel.written());
+
+			// The client is registered by the pipeline, and logged in on the loop.
+			connectionManager.awaitHandshake(loop);
+			ClientConnection connection = connectionManager.registered;
+			assertNotNull(connection);
+			assertEquals("alice", connection.getUser().getUserName());
+			assertTrue(connection.isTagged());
+			assertTrue(connection.isConnected());
+			assertTrue(channel.isOpen());
+		} finally {
+			connectionManager.pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testRefusedLogin() throws IOException, InterruptedException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		TestLoop loop = new TestLoop(connectionManager);
+		FakeChannel channel = new FakeChannel();
+		NioSession session = new NioSession(loop, channel, connectionManager);
+		session.setKey(new FakeKey(channel));
+		try {
+			channel.feed("ping\nlogin alice guess\n");
+			session.read();
+			assertFalse(session.isTagged());
+			connectionManager.awaitHandshake(loop);
+			assertNull(connectionManager.registered);
+			assertEquals("pong" + NEWLINE + "login invalid password" + NEWLINE, channel.written());
+			assertFalse(channel.isOpen());
+		} finally {
+			connectionManager.pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testPartialWrites() throws IOException {
+		TestConnectionManager connectionManager = new TestConnectionManager();
+		TestLoop loop = new TestLoop(connectionManager);
+		FakeChannel channel = new FakeChannel();
+		FakeKey key = new FakeKey(channel);
+		NioSession session = new NioSession(loop, channel, connectionManager);
+		session.setKey(key);
+		try {
+			channel.writeLimit = 5;
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < 3; i++) {
+				assertTrue(session.write("line " + i));
+				expected.append("line " + i).append(NEWLINE);
+			}
+			session.flush();
+			assertEquals(1, channel.writes);
+			assertEquals(expected.substring(0, 5), channel.written());
+			assertTrue((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+
+			// Output queued behind the leftover bytes is written after them.
+			assertTrue(session.write("last"));
+			expected.append("last").append(NEWLINE);
+			channel.writeLimit = 0;
+			session.flush();
+			assertEquals(expected.substring(0, 5), channel.written());
+			assertTrue((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+
+			channel.writeLimit = 4;
+			int flushes = 0;
+			while ((key.interestOps() & SelectionKey.OP_WRITE) != 0 && flushes++ < 100) {
+				session.flush();
+			}
+			assertEquals(expected.toString(), channel.written());
+			assertEquals(SelectionKey.OP_READ, key.interestOps());
+			assertTrue(channel.isOpen());
+		} finally {
+			connectionManager.pipeline.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+package server.services.connection;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import server.services.protocol.ProtocolMessage;
+
+public class OutboundQueueTest {
+
+	private static final int LINE = 4 + System.getProperty("line.separator").length();
+
+	private OutboundQueue newQueue(OverflowPolicy policy) {
+		// Room for exactly two four-character lines.
+		return new OutboundQueue(new OutboundPolicy(2 * LINE, 50, policy));
+	}
+
+	@Test
+	public void testOrderAndStats() {
+		OutboundQueue queue = newQueue(OverflowPolicy.DROP_NEWEST);
+		assertTrue(queue.offer(new ProtocolMessage("ab c"), true));
+		assertTrue(queue.offer(new ProtocolMessage("de f"), true));
+		assertEquals(2, queue.getDepth());
+		assertEquals(2 * LINE, queue.getBytes());
+
+		assertEquals("ab c", queue.poll().getMessage());
+		assertEquals("de f", queue.poll().getMessage());
+		assertNull(queue.poll());
+		assertEquals(0, queue.getBytes());
+		assertEquals(2, queue.getHighWaterMessages());
+		assertEquals(2 * LINE, queue.getHighWaterBytes());
+	}
+
+	@Test
+	public void testDropNewest() {
+		OutboundQueue queue = newQueue(OverflowPolicy.DROP_NEWEST);
+		assertTrue(queue.offer(new ProtocolMessage("aaaa"), true));
+		assertTrue(queue.offer(new ProtocolMessage("bbbb"), true));
+		assertFalse(queue.offer(new ProtocolMessage("cccc"), true));
+		assertEquals(1, queue.getDroppedNewest());
+		assertEquals("aaaa", queue.poll().getMessage());
+	}
+
+	@Test
+	public void testDropOldest() {
+		OutboundQueue queue = newQueue(OverflowPolicy.DROP_OLDEST);
+		assertTrue(queue.offer(new ProtocolMessage("aaaa"), true));
+		assertTrue(queue.offer(new ProtocolMessage("bbbb"), true));
+		assertTrue(queue.offer(new ProtocolMessage("cccc"), true));
+		assertEquals(1, queue.getDroppedOldest());
+		assertEquals("bbbb", queue.poll().getMessage());
+		assertEquals("cccc", queue.poll().getMessage());
+	}
+
+	@Test
+	public void testCoalesce() {
+		OutboundPolicy policy = new OutboundPolicy(10 * LINE, 50, OverflowPolicy.DROP_NEWEST);
+		policy.setPolicy("room list", OverflowPolicy.COALESCE);
+		OutboundQueue queue = new OutboundQueue(policy);
+		assertTrue(queue.offer(new ProtocolMessage("room list a"), true));
+		assertTrue(queue.offer(new ProtocolMessage("tell bob hi"), true));
+		assertTrue(queue.offer(new ProtocolMessage("room list b"), true));
+		assertEquals(1, queue.getCoalesced());
+		assertEquals("tell bob hi", queue.poll().getMessage());
+		assertEquals("room list b", queue.poll().getMessage());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testPolicyLookup() {
+		OutboundPolicy policy = new OutboundPolicy();
+		policy.setPolicy("room", OverflowPolicy.DROP_OLDEST);
+		policy.setPolicy("room list", OverflowPolicy.COALESCE);
+		assertEquals(OverflowPolicy.COALESCE, policy.getPolicy(new ProtocolMessage("room list a b")));
+		assertEquals(OverflowPolicy.DROP_OLDEST, policy.getPolicy(new ProtocolMessage("room join a")));
+		assertEquals(OverflowPolicy.DROP_OLDEST, policy.getPolicy(new ProtocolMessage("room")));
+		assertEquals(OverflowPolicy.BLOCK, policy.getPolicy(new ProtocolMessage("tell bob hi")));
+		assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.fromName("drop_oldest"));
+		assertNull(OverflowPolicy.fromName("sometimes"));
+	}
+
+	@Test
+	public void testBlock() {
+		OutboundQueue queue = newQueue(OverflowPolicy.BLOCK);
+		assertTrue(queue.offer(new ProtocolMessage("aaaa"), true));
+		assertTrue(queue.offer(new ProtocolMessage("bbbb"), true));
+
+		// A sender which may not block drops the message right away.
+		assertFalse(queue.offer(new ProtocolMessage("cccc"), false));
+		assertEquals(0, queue.getBlockTimeouts());
+
+		// Otherwise, it gives up once the timeout has elapsed.
+		assertFalse(queue.offer(new ProtocolMessage("dddd"), true));
+		assertEquals(1, queue.getBlockTimeouts());
+		assertEquals(2, queue.getDroppedNewest());
+	}
+
+	@Test
+	public void testDisconnectAndClose() throws InterruptedException {
+		OutboundQueue queue = newQueue(OverflowPolicy.DISCONNECT);
+		assertTrue(queue.offer(new ProtocolMessage("aaaa"), true));
+		assertTrue(queue.offer(new ProtocolMessage("bbbb"), true));
+		assertFalse(queue.isOverflowed());
+		assertFalse(queue.offer(new ProtocolMessage("cccc"), true));
+		assertTrue(queue.isOverflowed());
+
+		// The queue is closed, but what was queued can still be taken.
+		assertFalse(queue.offer(new ProtocolMessage("dddd"), true));
+		assertEquals("aaaa", queue.take().getMessage());
+		assertEquals("bbbb", queue.take().getMessage());
+		assertNull(queue.take());
+	}
+
+	@Test
+	public void testPollWithTimeout() throws InterruptedException {
+		OutboundQueue queue = newQueue(OverflowPolicy.BLOCK);
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		assertTrue(queue.offer(new ProtocolMessage("aaaa"), true));
+		assertEquals("aaaa", queue.poll(10, TimeUnit.MILLISECONDS).getMessage());
+		queue.close();
+		assertNull(queue.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testOversizedMessage() {
+		OutboundQueue queue = newQueue(OverflowPolicy.DROP_NEWEST);
+		assertTrue(queue.offer(new ProtocolMessage("a message longer than the queue"), true));
+		assertFalse(queue.offer(new ProtocolMessage("aaaa"), true));
+	}
+
+}
@@ -0,0 +1,193 @@
+package server.services.event;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import server.services.InvalidServiceConfigurationException;
+
+public class EventJournalTest {
+
+	private static class NamedEvent extends Event {
+		private String name;
+
+		NamedEvent(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static class PresencePayload extends EventPayload {
+		private String userName;
+		private String roomName;
+
+		PresencePayload(String userName, String roomName) {
+			this.userName = userName;
+			this.roomName = roomName;
+		}
+
+		@Override
+		protected void fillProperties(Properties properties) {
+			properties.setProperty("userName", userName);
+			if (roomName != null) {
+				properties.setProperty("roomName", roomName);
+			}
+		}
+	}
+
+	private static final Event CONNECT = new NamedEvent("USER_CONNECT");
+	private static final Event DISCONNECT = new NamedEvent("USER_DISCONNECT");
+	private static final Event JOIN = new NamedEvent("ROOM_JOIN");
+	private static final Event LEAVE = new NamedEvent("ROOM_LEAVE");
+
+	private static File newDirectory() throws IOException {
+		File directory = Files.createTempDirectory("journal").toFile();
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	private static void delete(File directory) {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		File directory = newDirectory();
+		EventJournal journal = new EventJournal(directory, EventJournal.DEFAULT_SEGMENT_SIZE, 1024, true);
+		journal.start();
+		journal.eventOccured(CONNECT, new PresencePayload("amy", null));
+		journal.eventOccured(CONNECT, new PresencePayload("bob", null));
+		journal.eventOccured(JOIN, new PresencePayload("amy", "lobby"));
+		journal.eventOccured(JOIN, new PresencePayload("bob", "lobby"));
+		journal.eventOccured(JOIN, new PresencePayload("bob", "games"));
+		journal.eventOccured(LEAVE, new PresencePayload("amy", "lobby"));
+		journal.close();
+		assertEquals(6, journal.getWritten());
+		assertEquals(0, journal.getDropped());
+
+		final List<String> names = new ArrayList<String>();
+		PresenceReplay state = new PresenceReplay();
+		assertEquals(6, JournalReader.replay(directory, state));
+		JournalReader.replay(directory, new JournalListener() {
+			public void eventReplayed(long timestamp, String eventName, Properties eventData) {
+				names.add(eventName + " " + eventData.getProperty("userName"));
+			}
+		});
+		assertEquals("USER_CONNECT amy", names.get(0));
+		assertEquals("ROOM_LEAVE amy", names.get(5));
+		assertEquals(2, state.getConnectedUsers().size());
+		assertEquals(1, state.getOccupants("lobby").size());
+		assertTrue(state.getOccupants("lobby").contains("bob"));
+		assertTrue(state.getOccupants("games").contains("bob"));
+
+		// Reopening carries on after the events already written.
+		journal = new EventJournal(directory, EventJournal.DEFAULT_SEGMENT_SIZE, 1024, false);
+		journal.start();
+		journal.eventOccured(DISCONNECT, new PresencePayload("bob", null));
+		journal.close();
+		state = new PresenceReplay();
+		assertEquals(7, JournalReader.replay(directory, state));
+		assertEquals(1, state.getConnectedUsers().size());
+		assertTrue(state.getOccupants("games").isEmpty());
+		delete(directory);
+	}
+
+	@Test
+	public void testSegmentRotation() throws IOException {
+		File directory = newDirectory();
+		EventJournal journal = new EventJournal(directory, 4096, 4096, false);
+		journal.start();
+		for (int i = 0; i < 1000; i++) {
+			journal.eventOccured(CONNECT, new PresencePayload("user" + i, null));
+		}
+		journal.close();
+		assertTrue(JournalReader.listSegments(directory).length > 1);
+
+		final List<String> users = new ArrayList<String>();
+		assertEquals(1000, JournalReader.replay(directory, new JournalListener() {
+			public void eventReplayed(long timestamp, String eventName, Properties eventData) {
+				users.add(eventData.getProperty("userName"));
+			}
+		}));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("user" + i, users.get(i));
+		}
+		delete(directory);
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		File directory = newDirectory();
+		EventJournal journal = new EventJournal(directory, EventJournal.DEFAULT_SEGMENT_SIZE, 1024, false);
+		journal.start();
+		journal.eventOccured(CONNECT, new PresencePayload("amy", null));
+		journal.eventOccured(CONNECT, new PresencePayload("bob", null));
+		journal.close();
+
+		// Corrupt the body of the second record, as a crash mid-write would.
+		File segment = JournalReader.listSegments(directory)[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.seek(EventJournal.SEGMENT_HEADER_SIZE);
+		int firstLength = raf.readInt();
+		raf.seek(EventJournal.SEGMENT_HEADER_SIZE + 2 * EventJournal.RECORD_HEADER_SIZE + firstLength + 4);
+		raf.writeInt(0x7EADBEEF);
+		raf.close();
+
+		PresenceReplay state = new PresenceReplay();
+		assertEquals(1, JournalReader.replay(directory, state));
+		assertTrue(state.getConnectedUsers().contains("amy"));
+
+		// The torn record is overwritten by the next event.
+		journal = new EventJournal(directory, EventJournal.DEFAULT_SEGMENT_SIZE, 1024, false);
+		journal.start();
+		journal.eventOccured(CONNECT, new PresencePayload("cat", null));
+		journal.close();
+		state = new PresenceReplay();
+		assertEquals(2, JournalReader.replay(directory, state));
+		assertTrue(state.getConnectedUsers().contains("cat"));
+		assertFalse(state.getConnectedUsers().contains("bob"));
+		delete(directory);
+	}
+
+	@Test
+	public void testObserver() throws IOException {
+		File directory = newDirectory();
+		Properties properties = new Properties();
+		properties.setProperty("journal", "true");
+		properties.setProperty("journal_dir", directory.getPath());
+		EventManager eventManager = new EventManager();
+		try {
+			eventManager.initialize(properties);
+		} catch (InvalidServiceConfigurationException e) {
+			fail(e.getMessage());
+		}
+		Event connect = new NamedEvent("USER_CONNECT");
+		eventManager.registerEvent(connect);
+		Properties eventData = new Properties();
+		eventData.setProperty("userName", "amy");
+		eventManager.eventOccured(connect, eventData);
+		eventManager.shutdown();
+		assertEquals(1, eventManager.getJournal().getWritten());
+
+		PresenceReplay state = new PresenceReplay();
+		assertEquals(1, JournalReader.replay(directory, state));
+		assertTrue(state.getConnectedUsers().contains("amy"));
+		delete(directory);
+	}
+
+}
@@ -0,0 +1,261 @@
+package server.services.event;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import server.services.InvalidServiceConfigurationException;
+
+public class EventManagerTest {
+
+	private static class TestEvent extends Event {
+		private String name;
+
+		TestEvent(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static class NamePayload extends EventPayload {
+		String userName;
+		int filled;
+
+		NamePayload(String userName) {
+			this.userName = userName;
+		}
+
+		@Override
+		protected void fillProperties(Properties properties) {
+			filled++;
+			properties.setProperty("userName", userName);
+		}
+	}
+
+	private static class NameEvent extends TypedEvent<NamePayload> {
+		NameEvent() {
+			super(NamePayload.class);
+		}
+
+		@Override
+		public String getName() {
+			return "NAMED";
+		}
+	}
+
+	/**
+	 * Remembers the events it sees, and the threads it saw them on.
+	 */
+	private static class RecordingCallback implements EventCallback {
+		List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		CountDownLatch latch;
+
+		RecordingCallback(int expected) {
+			latch = new CountDownLatch(expected);
+		}
+
+		public void eventOccured(Properties eventData) {
+			seen.add(eventData.getProperty("userName"));
+			threads.add(Thread.currentThread());
+			latch.countDown();
+		}
+	}
+
+	private static Properties user(String userName) {
+		Properties properties = new Properties();
+		properties.setProperty("userName", userName);
+		return properties;
+	}
+
+	private static EventManager newEventManager(Properties properties) {
+		EventManager eventManager = new EventManager();
+		try {
+			eventManager.initialize(properties);
+		} catch (InvalidServiceConfigurationException e) {
+			fail(e.getMessage());
+		}
+		return eventManager;
+	}
+
+	@Test
+	public void testRegistration() throws Exception {
+		EventManager eventManager = newEventManager(new Properties());
+		Event connect = new TestEvent("CONNECT");
+		assertTrue(eventManager.registerEvent(connect));
+		assertFalse(eventManager.registerEvent(new TestEvent("CONNECT")));
+		assertSame(connect, eventManager.getEvent("CONNECT"));
+
+		Event disconnect = new TestEvent("DISCONNECT");
+		eventManager.registerEvent(disconnect);
+		RecordingCallback callback = new RecordingCallback(0);
+		assertTrue(eventManager.registerCallback(callback, connect, true));
+		assertFalse(eventManager.registerCallback(callback, connect, true));
+		assertFalse(eventManager.registerCallback(callback, disconnect, false));
+		assertTrue(eventManager.registerCallback(callback, disconnect, true));
+		eventManager.shutdown();
+	}
+
+	@Test
+	public void testSynchronousDelivery() throws Exception {
+		EventManager eventManager = newEventManager(new Properties());
+		Event connect = new TestEvent("CONNECT");
+		eventManager.registerEvent(connect);
+		RecordingCallback callback = new RecordingCallback(1);
+		eventManager.registerCallback(callback, connect, true);
+
+		eventManager.eventOccured(connect, user("amy"));
+		assertEquals(1, callback.seen.size());
+		assertSame(Thread.currentThread(), callback.threads.get(0));
+		assertEquals(1, eventManager.getDelivered(callback));
+		eventManager.shutdown();
+	}
+
+	@Test
+	public void testAsynchronousDelivery() throws Exception {
+		EventManager eventManager = newEventManager(new Properties());
+		Event connect = new TestEvent("CONNECT");
+		Event disconnect = new TestEvent("DISCONNECT");
+		eventManager.registerEvent(connect);
+		eventManager.registerEvent(disconnect);
+		RecordingCallback callback = new RecordingCallback(100);
+		eventManager.registerCallback(callback, connect);
+		eventManager.registerCallback(callback, disconnect);
+
+		for (int i = 0; i < 50; i++) {
+			eventManager.eventOccured(connect, user("user" + i));
+			eventManager.eventOccured(disconnect, user("user" + i));
+		}
+		assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 50; i++) {
+			assertEquals("user" + i, callback.seen.get(2 * i));
+			assertEquals("user" + i, callback.seen.get(2 * i + 1));
+		}
+		assertNotSame(Thread.currentThread(), callback.threads.get(0));
+		assertEquals(0, eventManager.getDropped(callback));
+		eventManager.shutdown();
+	}
+
+	@Test
+	public void testSlowCallbackDoesNotBlock() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("queue_capacity", "2");
+		EventManager eventManager = newEventManager(properties);
+		Event connect = new TestEvent("CONNECT");
+		eventManager.registerEvent(connect);
+
+		final CountDownLatch release = new CountDownLatch(1);
+		EventCallback stuck = new EventCallback() {
+			public void eventOccured(Properties eventData) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {}
+			}
+		};
+		RecordingCallback quick = new RecordingCallback(10);
+		eventManager.registerCallback(stuck, connect);
+		eventManager.registerCallback(quick, connect, true);
+
+		for (int i = 0; i < 10; i++) {
+			eventManager.eventOccured(connect, user("user" + i));
+		}
+		assertEquals(10, quick.seen.size());
+		assertTrue(eventManager.getDropped(stuck) >= 7);
+		assertTrue(eventManager.getQueued(stuck) <= 2);
+
+		release.countDown();
+		eventManager.shutdown();
+	}
+
+	@Test
+	public void testTypedPayloads() {
+		EventManager eventManager = newEventManager(new Properties());
+		NameEvent named = new NameEvent();
+		eventManager.registerEvent(named);
+		assertSame(named, eventManager.getEvent("NAMED", NamePayload.class));
+		assertSame(named, eventManager.getEvent("NAMED", EventPayload.class));
+		assertNull(eventManager.getEvent("NAMED", UserEventPayload.class));
+
+		final List<NamePayload> received = new ArrayList<NamePayload>();
+		PayloadCallback<NamePayload> typed = new PayloadCallback<NamePayload>() {
+			public void eventOccured(NamePayload payload) {
+				received.add(payload);
+			}
+		};
+		assertTrue(eventManager.registerPayloadCallback(typed, named, true));
+		assertFalse(eventManager.registerPayloadCallback(typed, named, true));
+
+		// Without an EventCallback listening, no Properties are built.
+		NamePayload first = new NamePayload("amy");
+		eventManager.eventOccured(named, first);
+		assertSame(first, received.get(0));
+		assertEquals(0, first.filled);
+
+		// EventCallbacks share the Properties built for the occurrence.
+		RecordingCallback legacy = new RecordingCallback(1);
+		RecordingCallback other = new RecordingCallback(1);
+		eventManager.registerCallback(legacy, named, true);
+		eventManager.registerCallback(other, named, true);
+		NamePayload second = new NamePayload("bob");
+		eventManager.eventOccured(named, second);
+		assertSame(second, received.get(1));
+		assertEquals("bob", legacy.seen.get(0));
+		assertEquals("bob", other.seen.get(0));
+		assertEquals(1, second.filled);
+		eventManager.shutdown();
+	}
+
+	@Test
+	public void testBatchDelivery() throws Exception {
+		// Batches are never dropped, however small the other callbacks' queues.
+		Properties properties = new Properties();
+		properties.setProperty("queue_capacity", "2");
+		EventManager eventManager = newEventManager(properties);
+		NameEvent named = new NameEvent();
+		eventManager.registerEvent(named);
+
+		final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch latch = new CountDownLatch(1000);
+		BatchCallback<NamePayload> batched = new BatchCallback<NamePayload>() {
+			public void eventsOccured(List<NamePayload> payloads) {
+				sizes.add(payloads.size());
+				for (NamePayload payload : payloads) {
+					seen.add(payload.userName);
+					latch.countDown();
+				}
+			}
+		};
+		assertTrue(eventManager.registerBatchCallback(batched, named, 100));
+		assertFalse(eventManager.registerBatchCallback(batched, named, 100));
+
+		for (int i = 0; i < 1000; i++) {
+			eventManager.eventOccured(named, new NamePayload("user" + i));
+		}
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("user" + i, seen.get(i));
+		}
+		for (int size : sizes) {
+			assertTrue(size >= 1 && size <= 100);
+		}
+		// The storm arrives in a few full batches rather than one at a time.
+		assertTrue(sizes.size() < 100);
+		assertEquals(1000, eventManager.getDelivered(batched));
+		assertEquals(0, eventManager.getDropped(batched));
+		assertEquals(sizes.size(), eventManager.getBatches(batched));
+		eventManager.shutdown();
+	}
+
+}
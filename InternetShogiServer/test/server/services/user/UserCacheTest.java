@@ -0,0 +1,157 @@
+package server.services.user;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class UserCacheTest {
+
+	/**
+	 * Makes up a user for every name but "nobody", and counts the loads.
+	 */
+	private static class CountingLoader implements UserCache.Loader {
+		AtomicInteger loads = new AtomicInteger();
+
+		public User load(String userName) {
+			loads.incrementAndGet();
+			if (userName.equals("nobody")) {
+				return null;
+			}
+			return new User(userName, new UserInformation(userName));
+		}
+	}
+
+	@Test
+	public void testLoadOnDemand() {
+		CountingLoader loader = new CountingLoader();
+		UserCache cache = new UserCache(100, 0, loader);
+		User amy = cache.get("amy");
+		assertEquals("amy", amy.getUserName());
+		assertSame(amy, cache.get("amy"));
+		assertEquals(1, loader.loads.get());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// Unregistered users are looked up every time, but never cached.
+		assertNull(cache.get("nobody"));
+		assertNull(cache.get("nobody"));
+		assertEquals(3, loader.loads.get());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testCapacity() {
+		CountingLoader loader = new CountingLoader();
+		UserCache cache = new UserCache(100, 0, loader);
+		for (int i = 0; i < 1000; i++) {
+			cache.get("user" + i);
+		}
+		assertEquals(100, cache.size());
+		assertEquals(900, cache.getEvictions());
+	}
+
+	@Test
+	public void testScanResistance() {
+		CountingLoader loader = new CountingLoader();
+		UserCache cache = new UserCache(100, 0, loader);
+		// Between lookups of the same few users, scans of twice as many
+		// users as the cache holds would flush out a plain LRU cache.
+		for (int round = 0; round < 100; round++) {
+			for (int i = 0; i < 50; i++) {
+				cache.get("hot" + i);
+			}
+			for (int i = 0; i < 200; i++) {
+				cache.get("scan" + round + "-" + i);
+			}
+		}
+		long misses = cache.getMisses();
+		for (int i = 0; i < 50; i++) {
+			cache.get("hot" + i);
+		}
+		assertEquals(misses, cache.getMisses());
+	}
+
+	@Test
+	public void testPinning() {
+		CountingLoader loader = new CountingLoader();
+		UserCache cache = new UserCache(10, 0, loader);
+		User amy = cache.get("amy");
+		cache.pin(amy);
+		for (int i = 0; i < 1000; i++) {
+			cache.get("user" + i);
+		}
+		assertSame(amy, cache.get("amy"));
+		assertEquals(1, cache.getPinned());
+		assertEquals(11, cache.size());
+
+		// Pinning a user who was evicted meanwhile caches them again.
+		User bob = cache.get("bob");
+		for (int i = 0; i < 1000; i++) {
+			cache.get("other" + i);
+		}
+		cache.pin(bob);
+		int loads = loader.loads.get();
+		assertSame(bob, cache.get("bob"));
+		assertEquals(loads, loader.loads.get());
+
+		cache.unpin(amy);
+		cache.unpin(bob);
+		assertEquals(0, cache.getPinned());
+		assertEquals(10, cache.size());
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		CountingLoader loader = new CountingLoader();
+		UserCache cache = new UserCache(100, 20000000L, loader);
+		User amy = cache.get("amy");
+		User bob = cache.get("bob");
+		cache.pin(bob);
+		Thread.sleep(50);
+		assertNotSame(amy, cache.get("amy"));
+		assertSame(bob, cache.get("bob"));
+		assertEquals(1, cache.getExpirations());
+		assertEquals(3, loader.loads.get());
+	}
+
+	@Test
+	public void testConcurrentMiss() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger loads = new AtomicInteger();
+		final UserCache cache = new UserCache(100, 0, new UserCache.Loader() {
+			public User load(String userName) {
+				loads.incrementAndGet();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					return null;
+				}
+				return new User(userName, new UserInformation(userName));
+			}
+		});
+		final User[] users = new User[8];
+		Thread[] threads = new Thread[users.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					users[index] = cache.get("amy");
+				}
+			});
+			threads[i].start();
+		}
+		Thread.sleep(50);
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, loads.get());
+		for (User user : users) {
+			assertSame(users[0], user);
+		}
+	}
+
+}